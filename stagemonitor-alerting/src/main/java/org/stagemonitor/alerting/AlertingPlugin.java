@@ -4,6 +4,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -16,14 +17,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.alerting.alerter.AlertSender;
 import org.stagemonitor.alerting.alerter.AlertTemplateProcessor;
+import org.stagemonitor.alerting.alerter.Alerter;
 import org.stagemonitor.alerting.alerter.AlerterTypeServlet;
 import org.stagemonitor.alerting.alerter.IncidentServlet;
 import org.stagemonitor.alerting.alerter.Subscription;
 import org.stagemonitor.alerting.alerter.TestAlertSenderServlet;
 import org.stagemonitor.alerting.check.Check;
 import org.stagemonitor.alerting.incident.ConcurrentMapIncidentRepository;
-import org.stagemonitor.alerting.incident.ElasticsearchIncidentRepository;
 import org.stagemonitor.alerting.incident.IncidentRepository;
+import org.stagemonitor.alerting.incident.WriteBehindElasticsearchIncidentRepository;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.StagemonitorPlugin;
@@ -53,6 +55,54 @@ public class AlertingPlugin extends StagemonitorPlugin implements ServletContain
 			.defaultValue(60L)
 			.configurationCategory(ALERTING_PLUGIN_NAME)
 			.build();
+	private final ConfigurationOption<Long> alertTimeoutMillis = ConfigurationOption.longOption()
+			.key("stagemonitor.alerts.dispatch.timeoutMillis")
+			.dynamic(true)
+			.label("Alerter timeout (ms)")
+			.description("The maximum time in milliseconds an alerter may take to send an alert, " +
+					"before the alert is considered as failed.")
+			.defaultValue(10000L)
+			.configurationCategory(ALERTING_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> maxAlertRetries = ConfigurationOption.integerOption()
+			.key("stagemonitor.alerts.dispatch.maxRetries")
+			.dynamic(true)
+			.label("Max alert retries")
+			.description("How often a failed alert is retried. The delay between the retries doubles with each " +
+					"failed attempt.")
+			.defaultValue(3)
+			.configurationCategory(ALERTING_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> maxAlertsPerMinute = ConfigurationOption.integerOption()
+			.key("stagemonitor.alerts.dispatch.maxAlertsPerMinute")
+			.dynamic(true)
+			.label("Max alerts per minute")
+			.description("The maximum number of alerts per minute and alerter. If more alerts are triggered, they " +
+					"are queued and an alert for a check replaces the pending alert for the same check. " +
+					"Alerters that support digests (Email, Pushbullet and Log Alerts) send the pending alerts of " +
+					"all checks of a subscription as a single alert. " +
+					"A value of 0 disables the rate limit.")
+			.defaultValue(20)
+			.configurationCategory(ALERTING_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> alertQueueCapacity = ConfigurationOption.integerOption()
+			.key("stagemonitor.alerts.dispatch.queueCapacity")
+			.dynamic(false)
+			.label("Alert queue capacity")
+			.description("The maximum number of pending alerts per alerter. If the queue is full, new alerts are dropped.")
+			.defaultValue(1000)
+			.configurationCategory(ALERTING_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> maxBaselines = ConfigurationOption.integerOption()
+			.key("stagemonitor.alerts.baseline.maxBaselines")
+			.dynamic(false)
+			.label("Max baselines")
+			.description("The maximum number of baselines that are kept for baseline thresholds. " +
+					"Each matched metric of a baseline threshold requires one baseline. A seasonal baseline takes up to " +
+					"8 KB. If the limit is exceeded, the least recently used baseline is discarded.")
+			.defaultValue(1000)
+			.configurationCategory(ALERTING_PLUGIN_NAME)
+			.build();
 	public final ConfigurationOption<Map<String, Subscription>> subscriptions = ConfigurationOption
 			.jsonOption(new TypeReference<Map<String, Subscription>>() {}, Map.class)
 			.key("stagemonitor.alerts.subscriptions")
@@ -219,10 +269,10 @@ public class AlertingPlugin extends StagemonitorPlugin implements ServletContain
 	@Override
 	public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) throws Exception {
 		final AlertingPlugin alertingPlugin = configuration.getConfig(AlertingPlugin.class);
-		alertSender = new AlertSender(configuration);
+		alertSender = new AlertSender(configuration, ServiceLoader.load(Alerter.class), metricRegistry);
 		CorePlugin corePlugin = configuration.getConfig(CorePlugin.class);
 		if (corePlugin.getElasticsearchUrl() != null) {
-			incidentRepository = new ElasticsearchIncidentRepository(corePlugin.getElasticsearchClient());
+			incidentRepository = new WriteBehindElasticsearchIncidentRepository(corePlugin.getElasticsearchClient());
 		} else {
 			incidentRepository = new ConcurrentMapIncidentRepository();
 		}
@@ -235,6 +285,7 @@ public class AlertingPlugin extends StagemonitorPlugin implements ServletContain
 	@Override
 	public void onShutDown() {
 		thresholdMonitoringReporter.close();
+		alertSender.close();
 	}
 
 	@Override
@@ -246,6 +297,26 @@ public class AlertingPlugin extends StagemonitorPlugin implements ServletContain
 		return muteAlerts.getValue();
 	}
 
+	public long getAlertTimeoutMillis() {
+		return alertTimeoutMillis.getValue();
+	}
+
+	public int getMaxAlertRetries() {
+		return maxAlertRetries.getValue();
+	}
+
+	public int getMaxAlertsPerMinute() {
+		return maxAlertsPerMinute.getValue();
+	}
+
+	public int getAlertQueueCapacity() {
+		return alertQueueCapacity.getValue();
+	}
+
+	public int getMaxBaselines() {
+		return maxBaselines.getValue();
+	}
+
 	public Map<String, Subscription> getSubscriptionsByIds() {
 		return subscriptions.getValue();
 	}
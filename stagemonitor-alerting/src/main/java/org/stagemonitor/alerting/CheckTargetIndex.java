@@ -0,0 +1,133 @@
+package org.stagemonitor.alerting;
+
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Metric;
+import org.stagemonitor.alerting.check.Check;
+import org.stagemonitor.alerting.check.MetricCategory;
+import org.stagemonitor.core.metrics.metrics2.Metric2RegistryListener;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+
+/**
+ * Resolves the target pattern of a {@link Check} to the matching metrics.
+ * <p/>
+ * The pattern of a check is only matched against all metrics when the check is evaluated for the first time or when
+ * its target or metric category has changed. Afterwards, the set of matching metrics is maintained incrementally when
+ * metrics are added to or removed from the registry. The graphite name of each metric is only computed once.
+ * <p/>
+ * The index also resolves graphite names to metrics for {@link org.stagemonitor.alerting.check.ExpressionThreshold}s
+ * that reference other metrics.
+ */
+class CheckTargetIndex implements Metric2RegistryListener {
+
+	private final ConcurrentMap<MetricName, IndexedMetric> metrics = new ConcurrentHashMap<MetricName, IndexedMetric>();
+	private final ConcurrentMap<String, Metric> metricsByGraphiteName = new ConcurrentHashMap<String, Metric>();
+	private final ConcurrentMap<String, ResolvedCheck> resolvedChecks = new ConcurrentHashMap<String, ResolvedCheck>();
+
+	@Override
+	public void onMetricAdded(MetricName name, Metric metric) {
+		final MetricCategory category = MetricCategory.forMetric(metric);
+		if (category == null) {
+			return;
+		}
+		final IndexedMetric indexedMetric = new IndexedMetric(name.toGraphiteName(), category, metric);
+		metrics.put(name, indexedMetric);
+		metricsByGraphiteName.put(indexedMetric.graphiteName, metric);
+		for (ResolvedCheck resolvedCheck : resolvedChecks.values()) {
+			resolvedCheck.add(indexedMetric);
+		}
+	}
+
+	@Override
+	public void onMetricRemoved(MetricName name, Metric metric) {
+		final IndexedMetric indexedMetric = metrics.remove(name);
+		if (indexedMetric == null) {
+			return;
+		}
+		metricsByGraphiteName.remove(indexedMetric.graphiteName, metric);
+		for (ResolvedCheck resolvedCheck : resolvedChecks.values()) {
+			resolvedCheck.remove(indexedMetric);
+		}
+	}
+
+	/**
+	 * Returns the metrics that match the target and metric category of the check
+	 *
+	 * @param check the check
+	 * @return the matching metrics by their graphite name
+	 */
+	SortedMap<String, Metric> getTargets(Check check) {
+		ResolvedCheck resolvedCheck = resolvedChecks.get(check.getId());
+		if (resolvedCheck == null || !resolvedCheck.isResolvedFor(check)) {
+			resolvedCheck = new ResolvedCheck(check.getMetricCategory(), check.getTarget());
+			// publish before resolving, so that metrics that are added concurrently are not missed
+			resolvedChecks.put(check.getId(), resolvedCheck);
+			for (IndexedMetric indexedMetric : metrics.values()) {
+				resolvedCheck.add(indexedMetric);
+			}
+		}
+		return resolvedCheck.targets;
+	}
+
+	/**
+	 * Returns the metric with the graphite name
+	 *
+	 * @param graphiteName the graphite name of the metric
+	 * @return the metric or <code>null</code>, if there is no such metric
+	 */
+	Metric getMetric(String graphiteName) {
+		return metricsByGraphiteName.get(graphiteName);
+	}
+
+	/**
+	 * Forgets the resolved targets of checks that don't exist anymore
+	 *
+	 * @param checkIds the ids of the current checks
+	 */
+	void retainChecks(Collection<String> checkIds) {
+		resolvedChecks.keySet().retainAll(checkIds);
+	}
+
+	private static class IndexedMetric {
+		private final String graphiteName;
+		private final MetricCategory category;
+		private final Metric metric;
+
+		private IndexedMetric(String graphiteName, MetricCategory category, Metric metric) {
+			this.graphiteName = graphiteName;
+			this.category = category;
+			this.metric = metric;
+		}
+	}
+
+	private static class ResolvedCheck {
+		private final MetricCategory category;
+		private final Pattern target;
+		private final ConcurrentSkipListMap<String, Metric> targets = new ConcurrentSkipListMap<String, Metric>();
+
+		private ResolvedCheck(MetricCategory category, Pattern target) {
+			this.category = category;
+			this.target = target;
+		}
+
+		private boolean isResolvedFor(Check check) {
+			return category == check.getMetricCategory() && target.pattern().equals(check.getTarget().pattern())
+					&& target.flags() == check.getTarget().flags();
+		}
+
+		private void add(IndexedMetric indexedMetric) {
+			if (indexedMetric.category == category && target.matcher(indexedMetric.graphiteName).matches()) {
+				targets.put(indexedMetric.graphiteName, indexedMetric.metric);
+			}
+		}
+
+		private void remove(IndexedMetric indexedMetric) {
+			targets.remove(indexedMetric.graphiteName, indexedMetric.metric);
+		}
+	}
+}
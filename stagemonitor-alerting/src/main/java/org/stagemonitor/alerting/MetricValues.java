@@ -0,0 +1,168 @@
+package org.stagemonitor.alerting;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Sampling;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * The values of a {@link Metric} by their names (like <code>mean</code> or <code>m1_rate</code>).
+ * <p/>
+ * The names and units are the same as in the json representation of the metric (rates per second and durations in
+ * milliseconds), but the values are read directly from the metric, once they are requested. The {@link Snapshot} of
+ * a {@link Sampling} metric is only created once.
+ */
+class MetricValues extends AbstractMap<String, Double> {
+
+	private static final String[] GAUGE_VALUES = {"value"};
+	private static final String[] COUNTER_VALUES = {"count"};
+	private static final String[] HISTOGRAM_VALUES = {"count", "max", "mean", "min", "p50", "p75", "p95", "p98", "p99", "p999", "stddev"};
+	private static final String[] METER_VALUES = {"count", "m15_rate", "m1_rate", "m5_rate", "mean_rate"};
+	private static final String[] TIMER_VALUES = {"count", "max", "mean", "min", "p50", "p75", "p95", "p98", "p99", "p999", "stddev", "m15_rate", "m1_rate", "m5_rate", "mean_rate"};
+	private static final double DURATION_FACTOR = 1.0 / TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final Metric metric;
+	private Snapshot snapshot;
+
+	MetricValues(Metric metric) {
+		this.metric = metric;
+	}
+
+	@Override
+	public Double get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		final String valueName = (String) key;
+		if (metric instanceof Gauge) {
+			return "value".equals(valueName) ? getGaugeValue((Gauge) metric) : null;
+		} else if (metric instanceof Counter) {
+			return "count".equals(valueName) ? (double) ((Counter) metric).getCount() : null;
+		}
+		Double value = null;
+		if (metric instanceof Sampling) {
+			value = getSnapshotValue(valueName);
+			if (value != null && metric instanceof Timer && !"count".equals(valueName)) {
+				value *= DURATION_FACTOR;
+			}
+		}
+		if (value == null && metric instanceof Metered) {
+			value = getRate((Metered) metric, valueName);
+		}
+		return value;
+	}
+
+	private static Double getGaugeValue(Gauge gauge) {
+		final Object value;
+		try {
+			value = gauge.getValue();
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value instanceof Boolean) {
+			return ((Boolean) value) ? 1.0 : 0.0;
+		} else if (value instanceof String) {
+			try {
+				return Double.parseDouble(((String) value).trim());
+			} catch (NumberFormatException e) {
+				return 0.0;
+			}
+		}
+		return 0.0;
+	}
+
+	private Double getSnapshotValue(String valueName) {
+		if ("count".equals(valueName)) {
+			return metric instanceof Histogram ? (double) ((Histogram) metric).getCount() : null;
+		}
+		final Snapshot snapshot = getSnapshot();
+		if ("max".equals(valueName)) {
+			return (double) snapshot.getMax();
+		} else if ("mean".equals(valueName)) {
+			return snapshot.getMean();
+		} else if ("min".equals(valueName)) {
+			return (double) snapshot.getMin();
+		} else if ("p50".equals(valueName)) {
+			return snapshot.getMedian();
+		} else if ("p75".equals(valueName)) {
+			return snapshot.get75thPercentile();
+		} else if ("p95".equals(valueName)) {
+			return snapshot.get95thPercentile();
+		} else if ("p98".equals(valueName)) {
+			return snapshot.get98thPercentile();
+		} else if ("p99".equals(valueName)) {
+			return snapshot.get99thPercentile();
+		} else if ("p999".equals(valueName)) {
+			return snapshot.get999thPercentile();
+		} else if ("stddev".equals(valueName)) {
+			return snapshot.getStdDev();
+		}
+		return null;
+	}
+
+	private Snapshot getSnapshot() {
+		if (snapshot == null) {
+			snapshot = ((Sampling) metric).getSnapshot();
+		}
+		return snapshot;
+	}
+
+	private static Double getRate(Metered metered, String valueName) {
+		if ("count".equals(valueName)) {
+			return (double) metered.getCount();
+		} else if ("m15_rate".equals(valueName)) {
+			return metered.getFifteenMinuteRate();
+		} else if ("m1_rate".equals(valueName)) {
+			return metered.getOneMinuteRate();
+		} else if ("m5_rate".equals(valueName)) {
+			return metered.getFiveMinuteRate();
+		} else if ("mean_rate".equals(valueName)) {
+			return metered.getMeanRate();
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public Set<Entry<String, Double>> entrySet() {
+		final Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (String valueName : getValueNames()) {
+			final Double value = get(valueName);
+			if (value != null) {
+				values.put(valueName, value);
+			}
+		}
+		return values.entrySet();
+	}
+
+	private String[] getValueNames() {
+		if (metric instanceof Timer) {
+			return TIMER_VALUES;
+		} else if (metric instanceof Histogram) {
+			return HISTOGRAM_VALUES;
+		} else if (metric instanceof Metered) {
+			return METER_VALUES;
+		} else if (metric instanceof Counter) {
+			return COUNTER_VALUES;
+		} else if (metric instanceof Gauge) {
+			return GAUGE_VALUES;
+		}
+		return new String[0];
+	}
+}
@@ -1,7 +1,10 @@
 package org.stagemonitor.alerting;
 
+import java.io.Flushable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -12,72 +15,135 @@ import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.alerting.alerter.AlertSender;
+import org.stagemonitor.alerting.check.BaselineStore;
 import org.stagemonitor.alerting.check.Check;
 import org.stagemonitor.alerting.check.CheckResult;
-import org.stagemonitor.alerting.check.MetricCategory;
+import org.stagemonitor.alerting.check.MetricLookup;
 import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.alerting.incident.IncidentRepository;
+import org.stagemonitor.alerting.incident.WriteBehindElasticsearchIncidentRepository;
 import org.stagemonitor.core.MeasurementSession;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
-import org.stagemonitor.core.util.JsonUtils;
 
+/**
+ * Periodically evaluates the {@link Check}s of this application.
+ * <p/>
+ * The metrics a check targets are resolved by the {@link CheckTargetIndex} and their values are read directly from the
+ * {@link Metric} objects, so the cost of a evaluation only depends on the number of metrics that match the checks.
+ * <p/>
+ * The baselines of {@link org.stagemonitor.alerting.check.BaselineThreshold}s are kept in a {@link BaselineStore}
+ * that outlives the {@link Check} instances, so they are not lost when the configuration is reloaded.
+ * <p/>
+ * If the incidents are stored in a {@link WriteBehindElasticsearchIncidentRepository}, the alerts are only sent after
+ * the incident has been written. If the write is rejected because another instance has changed the incident in the
+ * meantime, the alert is discarded, as it is based on an outdated state of the incident.
+ */
 public class ThresholdMonitoringReporter extends ScheduledReporter {
 
 	public static final int OPTIMISTIC_CONCURRENCY_CONTROL_RETRIES = 10;
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
+	private final Metric2Registry registry;
 	private final AlertSender alertSender;
 	private final IncidentRepository incidentRepository;
 	private final MeasurementSession measurementSession;
 	private final AlertingPlugin alertingPlugin;
+	private final CheckTargetIndex checkTargetIndex = new CheckTargetIndex();
+	private final BaselineStore baselineStore;
+	/**
+	 * The alerts that wait for their incident to be written, by check id
+	 */
+	private final Map<String, PendingAlert> pendingAlerts = new LinkedHashMap<String, PendingAlert>();
 
 	protected ThresholdMonitoringReporter(Metric2Registry registry, AlertingPlugin alertingPlugin,
 										  AlertSender alertSender, IncidentRepository incidentRepository,
 										  MeasurementSession measurementSession) {
 		super(registry.getMetricRegistry(), "threshold-monitoring-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
+		this.registry = registry;
 		this.alertingPlugin = alertingPlugin;
 		this.alertSender = alertSender;
 		this.incidentRepository = incidentRepository;
 		this.measurementSession = measurementSession;
+		this.baselineStore = new BaselineStore(alertingPlugin.getMaxBaselines());
+		registry.addListener(checkTargetIndex);
 	}
 
 	@Override
-	public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
-					   SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
-					   SortedMap<String, Timer> timers) {
-		ObjectNode metrics = JsonUtils.getMapper().createObjectNode();
-		metrics.set(MetricCategory.GAUGE.getPath(), JsonUtils.toObjectNode(gauges));
-		metrics.set(MetricCategory.COUNTER.getPath(), JsonUtils.toObjectNode(counters));
-		metrics.set(MetricCategory.HISTOGRAM.getPath(), JsonUtils.toObjectNode(histograms));
-		metrics.set(MetricCategory.METER.getPath(), JsonUtils.toObjectNode(meters));
-		metrics.set(MetricCategory.TIMER.getPath(), JsonUtils.toObjectNode(timers));
-
-		for (Check check : alertingPlugin.getChecks().values()) {
+	public synchronized void report() {
+		final Map<String, Check> checks = alertingPlugin.getChecks();
+		checkTargetIndex.retainChecks(checks.keySet());
+		baselineStore.retainChecks(checks.keySet());
+		final long timestamp = System.currentTimeMillis();
+		final MetricLookup metricLookup = new CachingMetricLookup();
+		for (Check check : checks.values()) {
 			if (measurementSession.getApplicationName().equals(check.getApplication()) && check.isActive()) {
-				checkMetrics(metrics, check);
+				checkMetrics(check, metricLookup, timestamp);
 			}
 		}
+		flushIncidents();
 	}
 
-	private void checkMetrics(JsonNode metrics, Check check) {
-		List<CheckResult> checkResults = new LinkedList<CheckResult>();
+	private synchronized void flushIncidents() {
+		if (incidentRepository instanceof WriteBehindElasticsearchIncidentRepository) {
+			flushWriteBehindIncidents((WriteBehindElasticsearchIncidentRepository) incidentRepository);
+		} else if (incidentRepository instanceof Flushable) {
+			try {
+				((Flushable) incidentRepository).flush();
+			} catch (Exception e) {
+				logger.warn("Could not flush incidents: " + e.getMessage(), e);
+			}
+		}
+	}
 
-		Iterator<Map.Entry<String, JsonNode>> metricsOfCategory = metrics.get(check.getMetricCategory().getPath()).fields();
-		while (metricsOfCategory.hasNext()) {
-			Map.Entry<String, JsonNode> metricTypes = metricsOfCategory.next();
-			if (check.getTarget().matcher(metricTypes.getKey()).matches()) {
-				Map<String, Double> valuesByMetricType = getValuesByMetricType(metricTypes.getValue());
-				checkResults.addAll(check.check(metricTypes.getKey(), valuesByMetricType));
+	private void flushWriteBehindIncidents(WriteBehindElasticsearchIncidentRepository repository) {
+		List<Incident> writtenIncidents = Collections.emptyList();
+		try {
+			writtenIncidents = repository.flushIncidents();
+		} catch (Exception e) {
+			logger.warn("Could not flush incidents: " + e.getMessage(), e);
+		}
+		for (Incident incident : writtenIncidents) {
+			final PendingAlert pendingAlert = pendingAlerts.get(incident.getCheckId());
+			if (pendingAlert != null && pendingAlert.incident == incident) {
+				pendingAlerts.remove(incident.getCheckId());
+				alertSender.sendAlerts(pendingAlert.check, incident);
 			}
 		}
+		for (Iterator<PendingAlert> iterator = pendingAlerts.values().iterator(); iterator.hasNext(); ) {
+			final PendingAlert pendingAlert = iterator.next();
+			if (!repository.isWritePending(pendingAlert.incident)) {
+				logger.info("Not sending alert for check {}, because the incident could not be written",
+						pendingAlert.check.getId());
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Don't use this method
+	 *
+	 * @deprecated use {@link #report()}
+	 */
+	@Override
+	@Deprecated
+	public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+					   SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters,
+					   SortedMap<String, Timer> timers) {
+		// intentionally left blank
+	}
+
+	private void checkMetrics(Check check, MetricLookup metricLookup, long timestamp) {
+		List<CheckResult> checkResults = new LinkedList<CheckResult>();
+		for (Map.Entry<String, Metric> target : checkTargetIndex.getTargets(check).entrySet()) {
+			checkResults.addAll(check.check(target.getKey(), new MetricValues(target.getValue()), baselineStore, metricLookup, timestamp));
+		}
 		try {
 			addIncident(check, checkResults);
 		} catch (RuntimeException e) {
@@ -85,20 +151,22 @@ public class ThresholdMonitoringReporter extends ScheduledReporter {
 		}
 	}
 
-	private Map<String, Double> getValuesByMetricType(JsonNode metricTypes) {
-		Map<String, Double> metricTypesMap = new HashMap<String, Double>();
-		final Iterator<Map.Entry<String, JsonNode>> fields = metricTypes.fields();
-		while (fields.hasNext()) {
-			Map.Entry<String, JsonNode> stringJsonNodeEntry = fields.next();
-			metricTypesMap.put(stringJsonNodeEntry.getKey(), stringJsonNodeEntry.getValue().asDouble());
-		}
-		return metricTypesMap;
+	@Override
+	public void close() {
+		registry.removeListener(checkTargetIndex);
+		super.close();
+		flushIncidents();
 	}
 
 	private void addIncident(Check check, List<CheckResult> results) {
 		Incident incident = getAndPersistIncident(check, results);
 		if (incident != null) {
-			alertSender.sendAlerts(check, incident);
+			if (incidentRepository instanceof WriteBehindElasticsearchIncidentRepository) {
+				// replaces the alert of a previous incident whose write is still pending
+				pendingAlerts.put(check.getId(), new PendingAlert(check, incident));
+			} else {
+				alertSender.sendAlerts(check, incident);
+			}
 		}
 	}
 
@@ -107,6 +175,10 @@ public class ThresholdMonitoringReporter extends ScheduledReporter {
 		Incident incident = null;
 		for (int i = 0; i < OPTIMISTIC_CONCURRENCY_CONTROL_RETRIES && !sucessfullyPersisted; i++) {
 			incident = getOrCreateIncident(check, results);
+			if (incident != null && !incident.hasChanged(check)) {
+				// nothing to persist or alert
+				return null;
+			}
 			sucessfullyPersisted = trySaveOrDeleteIncident(check, incident);
 		}
 		if (!sucessfullyPersisted) {
@@ -153,4 +225,31 @@ public class ThresholdMonitoringReporter extends ScheduledReporter {
 		return true;
 	}
 
+	private static class PendingAlert {
+		private final Check check;
+		private final Incident incident;
+
+		private PendingAlert(Check check, Incident incident) {
+			this.check = check;
+			this.incident = incident;
+		}
+	}
+
+	/**
+	 * Resolves the metrics that are referenced by expressions. The values of a metric are only read once per
+	 * evaluation.
+	 */
+	private class CachingMetricLookup implements MetricLookup {
+		private final Map<String, Map<String, Double>> valuesByGraphiteName = new HashMap<String, Map<String, Double>>();
+
+		@Override
+		public Map<String, Double> getValues(String graphiteName) {
+			if (!valuesByGraphiteName.containsKey(graphiteName)) {
+				final Metric metric = checkTargetIndex.getMetric(graphiteName);
+				valuesByGraphiteName.put(graphiteName, metric != null ? new MetricValues(metric) : null);
+			}
+			return valuesByGraphiteName.get(graphiteName);
+		}
+	}
+
 }
@@ -0,0 +1,399 @@
+package org.stagemonitor.alerting.alerter;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.alerting.AlertingPlugin;
+import org.stagemonitor.alerting.incident.Incident;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+
+/**
+ * Sends the alerts of a single {@link Alerter} on a dedicated thread, so that a slow or unreachable channel neither
+ * delays the evaluation of the checks nor the alerts of the other alerters.
+ * <ul>
+ * <li>Pending alerts are queued per check and subscription. If an incident of the same check and subscription is
+ * still pending, it is replaced by the newer one. That way, a storm of status changes results in at most one
+ * pending incident per check.</li>
+ * <li>If the alerter is a {@link DigestAlerter}, the pending incidents of all checks are queued per subscription and
+ * sent as one digest. That way, a storm of incidents of many checks results in one alert per subscription.</li>
+ * <li>The number of alerts per minute is limited (see {@link AlertingPlugin#getMaxAlertsPerMinute()}). When the
+ * limit is reached, the alerts stay in the queue where they can still be coalesced. A digest counts as one alert.</li>
+ * <li>Each call to the alerter has a timeout. Failed or timed out alerts are retried with exponential backoff. An
+ * incident is not retried if a newer incident of the same check and subscription is pending. The backoff only
+ * applies to the failed alert, the other pending alerts are still sent.</li>
+ * <li>The alerts are sent on a bounded pool. If the threads of alerters that ignore the interrupt after a timeout use
+ * up the pool, further alerts are treated as failed until one of these threads returns.</li>
+ * </ul>
+ */
+class AlertDispatcher {
+
+	private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final double NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+	/**
+	 * Alerts are sent one after another, so only threads of timed out alerts can exceed one active thread
+	 */
+	private static final int MAX_ALERTER_THREADS = 4;
+	private static final String RETRY_SUFFIX = "|retry";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Alerter alerter;
+	private final AlertingPlugin alertingPlugin;
+	private final Metric2Registry metricRegistry;
+	private final long initialBackoffMillis;
+	private final int queueCapacity;
+	private final ScheduledExecutorService dispatchExecutor;
+	private final ExecutorService alerterExecutor;
+	private final MetricName queueSizeMetricName;
+	private final Gauge<Integer> queueSizeGauge;
+	private final Timer deliveryTime;
+	private final Meter failures;
+	private final Meter dropped;
+	private final Meter coalesced;
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Alerts that are retried are queued separately, so that new incidents are not delayed by the backoff
+	 */
+	private final Map<String, PendingAlert> pendingAlerts = new LinkedHashMap<String, PendingAlert>();
+	private int pendingIncidents;
+	private boolean drainScheduled;
+	private ScheduledFuture<?> delayedDrain;
+	private double permits;
+	private long lastRefill = System.nanoTime();
+
+	AlertDispatcher(Alerter alerter, AlertingPlugin alertingPlugin, Metric2Registry metricRegistry, long initialBackoffMillis) {
+		this.alerter = alerter;
+		this.alertingPlugin = alertingPlugin;
+		this.metricRegistry = metricRegistry;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.queueCapacity = alertingPlugin.getAlertQueueCapacity();
+		this.permits = alertingPlugin.getMaxAlertsPerMinute();
+		final String alerterType = alerter.getAlerterType();
+		this.dispatchExecutor = Executors.newSingleThreadScheduledExecutor(
+				new DaemonThreadFactory("stagemonitor-alert-dispatcher-" + alerterType));
+		this.alerterExecutor = new ThreadPoolExecutor(0, MAX_ALERTER_THREADS, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new DaemonThreadFactory("stagemonitor-alerter-" + alerterType),
+				new ThreadPoolExecutor.AbortPolicy());
+
+		queueSizeMetricName = name("alert_queue_size").tag("alerter", alerterType).build();
+		queueSizeGauge = new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return getQueueSize();
+			}
+		};
+		metricRegistry.remove(queueSizeMetricName);
+		metricRegistry.register(queueSizeMetricName, queueSizeGauge);
+		deliveryTime = metricRegistry.timer(name("alert_delivery_time").tag("alerter", alerterType).build());
+		failures = metricRegistry.meter(name("alert_delivery_failures").tag("alerter", alerterType).build());
+		dropped = metricRegistry.meter(name("alerts_dropped").tag("alerter", alerterType).build());
+		coalesced = metricRegistry.meter(name("alerts_coalesced").tag("alerter", alerterType).build());
+	}
+
+	/**
+	 * Queues an alert
+	 *
+	 * @param incident     the incident to report
+	 * @param subscription the corresponding subscription (may be <code>null</code>)
+	 */
+	synchronized void dispatch(Incident incident, Subscription subscription) {
+		final String checkId = incident.getCheckId();
+		final String key = getKey(checkId, subscription);
+		final boolean supersedesRetry = removeFromRetry(key, checkId);
+		PendingAlert pendingAlert = pendingAlerts.get(key);
+		if (pendingAlert == null || !pendingAlert.incidentsByCheckId.containsKey(checkId)) {
+			if (pendingIncidents >= queueCapacity) {
+				dropped.mark();
+				logger.warn("Dropping alert for check {} because the queue of the {} alerter is full",
+						checkId, alerter.getAlerterType());
+				return;
+			}
+			pendingIncidents++;
+		}
+		if (pendingAlert == null) {
+			pendingAlert = new PendingAlert(key);
+			pendingAlerts.put(key, pendingAlert);
+		}
+		if (supersedesRetry || !pendingAlert.incidentsByCheckId.isEmpty()) {
+			coalesced.mark();
+		}
+		pendingAlert.incidentsByCheckId.put(checkId, incident);
+		pendingAlert.subscription = subscription;
+		if (!drainScheduled || delayedDrain != null) {
+			// don't let the new alert wait for the backoff of other alerts
+			try {
+				dispatchExecutor.execute(drainTask);
+				drainScheduled = true;
+				cancelDelayedDrain();
+			} catch (RejectedExecutionException e) {
+				logger.warn("Can't send alert, because the {} alerter has already been shut down", alerter.getAlerterType());
+			}
+		}
+	}
+
+	private String getKey(String checkId, Subscription subscription) {
+		final String subscriptionId = subscription != null ? subscription.getId() : "";
+		if (alerter instanceof DigestAlerter) {
+			return subscriptionId;
+		}
+		return checkId + '|' + subscriptionId;
+	}
+
+	/**
+	 * Removes the incident of a check from the alert that waits to be retried, because a newer incident of the check
+	 * has been queued.
+	 *
+	 * @return <code>true</code>, if an incident has been removed
+	 */
+	private boolean removeFromRetry(String key, String checkId) {
+		final PendingAlert retry = pendingAlerts.get(key + RETRY_SUFFIX);
+		if (retry == null || retry.incidentsByCheckId.remove(checkId) == null) {
+			return false;
+		}
+		pendingIncidents--;
+		if (retry.incidentsByCheckId.isEmpty()) {
+			pendingAlerts.remove(retry.getMapKey());
+		}
+		return true;
+	}
+
+	synchronized int getQueueSize() {
+		return pendingIncidents;
+	}
+
+	private void drain() {
+		while (!Thread.currentThread().isInterrupted()) {
+			final PendingAlert alert;
+			synchronized (this) {
+				cancelDelayedDrain();
+				if (pendingAlerts.isEmpty()) {
+					drainScheduled = false;
+					return;
+				}
+				final long now = System.nanoTime();
+				alert = getFirstDueAlert(now);
+				if (alert == null) {
+					schedule(TimeUnit.NANOSECONDS.toMillis(getEarliestNotBefore() - now) + 1);
+					return;
+				}
+				final long waitMillis = acquirePermit();
+				if (waitMillis > 0) {
+					schedule(waitMillis);
+					return;
+				}
+				pendingAlerts.remove(alert.getMapKey());
+				pendingIncidents -= alert.incidentsByCheckId.size();
+			}
+			alert.attempts++;
+			if (tryAlert(alert)) {
+				deliveryTime.update(System.nanoTime() - alert.queuedAt, TimeUnit.NANOSECONDS);
+			} else {
+				failures.mark();
+				alert.notBefore = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getBackoffMillis(alert.attempts));
+				synchronized (this) {
+					retryIfNotSuperseded(alert);
+				}
+			}
+		}
+	}
+
+	private PendingAlert getFirstDueAlert(long now) {
+		for (PendingAlert alert : pendingAlerts.values()) {
+			if (alert.attempts == 0 || alert.notBefore - now <= 0) {
+				return alert;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Only called if no alert is due, which means that all pending alerts are backing off
+	 */
+	private long getEarliestNotBefore() {
+		final Iterator<PendingAlert> iterator = pendingAlerts.values().iterator();
+		long earliest = iterator.next().notBefore;
+		while (iterator.hasNext()) {
+			final long notBefore = iterator.next().notBefore;
+			if (notBefore - earliest < 0) {
+				earliest = notBefore;
+			}
+		}
+		return earliest;
+	}
+
+	private boolean tryAlert(PendingAlert alert) {
+		final List<Incident> incidents = new ArrayList<Incident>(alert.incidentsByCheckId.values());
+		final Subscription subscription = alert.subscription;
+		final Future<?> future;
+		try {
+			future = alerterExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					if (incidents.size() == 1) {
+						alerter.alert(incidents.get(0), subscription);
+					} else {
+						((DigestAlerter) alerter).alertDigest(incidents, subscription);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Can't send alert, because all {} threads of the {} alerter are still busy with timed out alerts",
+					MAX_ALERTER_THREADS, alerter.getAlerterType());
+			return false;
+		}
+		final long timeoutMillis = alertingPlugin.getAlertTimeoutMillis();
+		try {
+			future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			logger.warn("The {} alerter did not respond within {} ms", alerter.getAlerterType(), timeoutMillis);
+		} catch (ExecutionException e) {
+			logger.warn(e.getCause().getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	private void retryIfNotSuperseded(PendingAlert alert) {
+		final PendingAlert newerAlert = pendingAlerts.get(alert.key);
+		if (newerAlert != null) {
+			alert.incidentsByCheckId.keySet().removeAll(newerAlert.incidentsByCheckId.keySet());
+			if (alert.incidentsByCheckId.isEmpty()) {
+				return;
+			}
+		}
+		if (alert.attempts > alertingPlugin.getMaxAlertRetries()) {
+			logger.error("Giving up sending alert for check(s) {} via the {} alerter after {} attempts",
+					alert.incidentsByCheckId.keySet(), alerter.getAlerterType(), alert.attempts);
+			return;
+		}
+		final PendingAlert olderRetry = pendingAlerts.get(alert.getMapKey());
+		if (olderRetry != null) {
+			// the checks are disjoint, because a new incident removes the incident of the same check from the retry
+			olderRetry.incidentsByCheckId.putAll(alert.incidentsByCheckId);
+		} else {
+			pendingAlerts.put(alert.getMapKey(), alert);
+		}
+		pendingIncidents += alert.incidentsByCheckId.size();
+	}
+
+	private long getBackoffMillis(int attempts) {
+		return Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(attempts - 1, 30));
+	}
+
+	private void schedule(long delayMillis) {
+		try {
+			delayedDrain = dispatchExecutor.schedule(drainTask, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			drainScheduled = false;
+		}
+	}
+
+	private void cancelDelayedDrain() {
+		if (delayedDrain != null) {
+			delayedDrain.cancel(false);
+			delayedDrain = null;
+		}
+	}
+
+	/**
+	 * Takes a permit from a token bucket that holds up to {@link AlertingPlugin#getMaxAlertsPerMinute()} permits.
+	 *
+	 * @return 0, if a permit was acquired, otherwise the number of milliseconds until the next permit is available
+	 */
+	private long acquirePermit() {
+		final int maxAlertsPerMinute = alertingPlugin.getMaxAlertsPerMinute();
+		if (maxAlertsPerMinute <= 0) {
+			return 0;
+		}
+		final long now = System.nanoTime();
+		permits = Math.min(maxAlertsPerMinute, permits + (now - lastRefill) * maxAlertsPerMinute / NANOS_PER_MINUTE);
+		lastRefill = now;
+		if (permits >= 1) {
+			permits--;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((1 - permits) * TimeUnit.MINUTES.toMillis(1) / maxAlertsPerMinute));
+	}
+
+	/**
+	 * Stops the dispatcher. Alerts that are still pending are discarded.
+	 */
+	void close() {
+		dispatchExecutor.shutdownNow();
+		alerterExecutor.shutdownNow();
+		// a newer dispatcher for the same alerter type may have registered its own gauge in the meantime
+		metricRegistry.remove(queueSizeMetricName, queueSizeGauge);
+		final int queueSize = getQueueSize();
+		if (queueSize > 0) {
+			logger.warn("Discarding {} pending alerts of the {} alerter", queueSize, alerter.getAlerterType());
+		}
+	}
+
+	private static class PendingAlert {
+		private final String key;
+		private final long queuedAt = System.nanoTime();
+		private final Map<String, Incident> incidentsByCheckId = new LinkedHashMap<String, Incident>();
+		private Subscription subscription;
+		private int attempts;
+		private long notBefore;
+
+		private PendingAlert(String key) {
+			this.key = key;
+		}
+
+		private String getMapKey() {
+			return attempts == 0 ? key : key + RETRY_SUFFIX;
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String threadName;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		private DaemonThreadFactory(String threadName) {
+			this.threadName = threadName;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			thread.setName(threadName + "-" + threadCount.incrementAndGet());
+			return thread;
+		}
+	}
+}
@@ -18,22 +18,46 @@ import org.stagemonitor.alerting.check.MetricCategory;
 import org.stagemonitor.alerting.check.Threshold;
 import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.core.MeasurementSession;
+import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.configuration.Configuration;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.util.HttpClient;
 
 public class AlertSender {
 
+	private static final long INITIAL_RETRY_BACKOFF_MILLIS = 1000;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	private final AlertingPlugin alertingPlugin;
 	private final Map<String, Alerter> alerterByType;
 	private final List<Alerter> defaultAlerters;
+	private final Map<Alerter, AlertDispatcher> dispatchers = new HashMap<Alerter, AlertDispatcher>();
 
 	public AlertSender(Configuration configuration) {
-		this(configuration, ServiceLoader.load(Alerter.class));
+		this(configuration, ServiceLoader.load(Alerter.class), Stagemonitor.getMetric2Registry());
 	}
 
+	/**
+	 * Creates an {@link AlertSender} that calls the alerters synchronously on the thread that sends the alerts
+	 *
+	 * @param configuration   the configuration
+	 * @param alerterIterable the available alerters
+	 */
 	public AlertSender(Configuration configuration, Iterable<Alerter> alerterIterable) {
+		this(configuration, alerterIterable, null);
+	}
+
+	/**
+	 * Creates an {@link AlertSender} that queues the alerts and sends them asynchronously with a dedicated
+	 * {@link AlertDispatcher} per alerter
+	 *
+	 * @param configuration   the configuration
+	 * @param alerterIterable the available alerters
+	 * @param metricRegistry  the registry for the queue size and delivery metrics. If <code>null</code>, the alerts
+	 *                        are sent synchronously.
+	 */
+	public AlertSender(Configuration configuration, Iterable<Alerter> alerterIterable, Metric2Registry metricRegistry) {
 		this.alertingPlugin = configuration.getConfig(AlertingPlugin.class);
 		Map<String, Alerter> alerters = new HashMap<String, Alerter>();
 		for (Alerter alerter : alerterIterable) {
@@ -41,6 +65,14 @@ public class AlertSender {
 		}
 		alerterByType = Collections.unmodifiableMap(alerters);
 		defaultAlerters = Arrays.asList(new LogAlerter(), new ElasticsearchAlerter(configuration, new HttpClient()));
+		if (metricRegistry != null) {
+			for (Alerter alerter : alerterByType.values()) {
+				dispatchers.put(alerter, new AlertDispatcher(alerter, alertingPlugin, metricRegistry, INITIAL_RETRY_BACKOFF_MILLIS));
+			}
+			for (Alerter alerter : defaultAlerters) {
+				dispatchers.put(alerter, new AlertDispatcher(alerter, alertingPlugin, metricRegistry, INITIAL_RETRY_BACKOFF_MILLIS));
+			}
+		}
 	}
 
 	/**
@@ -69,7 +101,15 @@ public class AlertSender {
 		Incident testIncident = new Incident(check, new MeasurementSession("testApp", "testHost", "testInstance"),
 				Arrays.asList(new CheckResult("test", 10, status)));
 
-		tryAlert(testIncident, subscription, alerterByType.get(subscription.getAlerterType()));
+		// test alerts are always sent synchronously so that errors show up immediately
+		final Alerter alerter = alerterByType.get(subscription.getAlerterType());
+		if (isAvailable(alerter, subscription)) {
+			try {
+				alerter.alert(testIncident, subscription);
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
 		return testIncident;
 	}
 
@@ -88,18 +128,39 @@ public class AlertSender {
 	}
 
 	private void tryAlert(Incident incident, Subscription subscription, Alerter alerter) {
-		if (alerter != null && alerter.isAvailable()) {
+		if (!isAvailable(alerter, subscription)) {
+			return;
+		}
+		final AlertDispatcher dispatcher = dispatchers.get(alerter);
+		if (dispatcher != null) {
+			dispatcher.dispatch(incident, subscription);
+		} else {
 			try {
 				alerter.alert(incident, subscription);
 			} catch (Exception e) {
 				logger.error(e.getMessage(), e);
 			}
-		} else {
-			if (subscription != null) {
-				logger.warn("Alerter with type '{}' is not available. " +
-						"Either the name of the alerter is invalid or it is not configured correctly.",
-						subscription.getAlerterType());
-			}
+		}
+	}
+
+	private boolean isAvailable(Alerter alerter, Subscription subscription) {
+		if (alerter != null && alerter.isAvailable()) {
+			return true;
+		}
+		if (subscription != null) {
+			logger.warn("Alerter with type '{}' is not available. " +
+					"Either the name of the alerter is invalid or it is not configured correctly.",
+					subscription.getAlerterType());
+		}
+		return false;
+	}
+
+	/**
+	 * Stops the dispatch threads of all alerters
+	 */
+	public void close() {
+		for (AlertDispatcher dispatcher : dispatchers.values()) {
+			dispatcher.close();
 		}
 	}
 
@@ -2,6 +2,7 @@ package org.stagemonitor.alerting.alerter;
 
 import java.io.StringWriter;
 import java.util.Collections;
+import java.util.List;
 
 import freemarker.template.Configuration;
 import freemarker.template.Template;
@@ -33,6 +34,57 @@ public class AlertTemplateProcessor {
 		return processTemplate("alertsShortDescription.ftl", alertingPlugin.getShortDescriptionAlertTemplate(), incident);
 	}
 
+	/**
+	 * Renders the plain text template for each incident of a digest and separates the texts with an empty line
+	 *
+	 * @param incidents the incidents of the digest
+	 * @return the plain text of the digest
+	 */
+	public String processPlainTextDigest(List<Incident> incidents) {
+		final StringBuilder sb = new StringBuilder();
+		for (Incident incident : incidents) {
+			if (sb.length() > 0) {
+				sb.append("\n\n");
+			}
+			sb.append(processPlainTextTemplate(incident));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Renders the html template for each incident of a digest and separates the fragments with a horizontal line
+	 *
+	 * @param incidents the incidents of the digest
+	 * @return the html of the digest
+	 */
+	public String processHtmlDigest(List<Incident> incidents) {
+		final StringBuilder sb = new StringBuilder();
+		for (Incident incident : incidents) {
+			if (sb.length() > 0) {
+				sb.append("<hr>\n");
+			}
+			sb.append(processHtmlTemplate(incident));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Creates a short description of a digest, for example "3 incidents: Check A, Check B, Check C"
+	 *
+	 * @param incidents the incidents of the digest
+	 * @return the short description of the digest
+	 */
+	public String processShortDescriptionDigest(List<Incident> incidents) {
+		final StringBuilder sb = new StringBuilder().append(incidents.size()).append(" incidents: ");
+		for (int i = 0; i < incidents.size(); i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(incidents.get(i).getCheckName());
+		}
+		return sb.toString();
+	}
+
 	private String processTemplate(String templateName, String templateString, Incident incident) {
 		try {
 			Template template = new Template(templateName, templateString, cfg);
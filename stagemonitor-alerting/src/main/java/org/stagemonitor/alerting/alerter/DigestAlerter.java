@@ -0,0 +1,24 @@
+package org.stagemonitor.alerting.alerter;
+
+import java.util.List;
+
+import org.stagemonitor.alerting.incident.Incident;
+
+/**
+ * An {@link Alerter} that is able to report several incidents with a single alert.
+ * <p/>
+ * The incidents of different checks that are queued for the same subscription, for example while the rate limit is
+ * reached, are sent as one digest. That way, a storm of incidents results in one alert per subscription instead of
+ * one alert per check.
+ */
+public interface DigestAlerter extends Alerter {
+
+	/**
+	 * Triggers a single alert for several incidents
+	 *
+	 * @param incidents    the incidents to report in the order they have been queued (contains at least two incidents)
+	 * @param subscription the corresponding subscription
+	 */
+	void alertDigest(List<Incident> incidents, Subscription subscription);
+
+}
@@ -1,15 +1,18 @@
 package org.stagemonitor.alerting.alerter;
 
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.alerting.AlertingPlugin;
+import org.stagemonitor.alerting.check.CheckResult;
 import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.core.Stagemonitor;
 
 /**
  * An alerter that writes incidents to the log
  */
-public class LogAlerter implements Alerter {
+public class LogAlerter implements DigestAlerter {
 
 	private final Logger logger;
 	private final AlertTemplateProcessor alertTemplateProcessor;
@@ -25,8 +28,22 @@ public class LogAlerter implements Alerter {
 
 	@Override
 	public void alert(Incident incident, Subscription subscription) {
-		String message = alertTemplateProcessor.processPlainTextTemplate(incident);
-		switch (incident.getNewStatus()) {
+		log(alertTemplateProcessor.processPlainTextTemplate(incident), incident.getNewStatus());
+	}
+
+	@Override
+	public void alertDigest(List<Incident> incidents, Subscription subscription) {
+		CheckResult.Status worstStatus = CheckResult.Status.OK;
+		for (Incident incident : incidents) {
+			if (incident.getNewStatus().isMoreSevere(worstStatus)) {
+				worstStatus = incident.getNewStatus();
+			}
+		}
+		log(alertTemplateProcessor.processPlainTextDigest(incidents), worstStatus);
+	}
+
+	private void log(String message, CheckResult.Status status) {
+		switch (status) {
 			case CRITICAL:
 			case ERROR:
 				logger.error(message);
@@ -2,6 +2,7 @@ package org.stagemonitor.alerting.alerter;
 
 import static org.stagemonitor.core.util.StringUtils.isNotEmpty;
 
+import java.util.List;
 import java.util.Properties;
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -12,7 +13,7 @@ import org.stagemonitor.alerting.AlertingPlugin;
 import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.core.Stagemonitor;
 
-public class MailAlerter implements Alerter {
+public class MailAlerter implements DigestAlerter {
 
 	private final AlertingPlugin alertingPlugin;
 	private final AlertTemplateProcessor alertTemplateProcessor;
@@ -35,6 +36,15 @@ public class MailAlerter implements Alerter {
 		sendMail(mailRequest);
 	}
 
+	@Override
+	public void alertDigest(List<Incident> incidents, Subscription subscription) {
+		MailRequest mailRequest = new MailRequest(alertTemplateProcessor.processShortDescriptionDigest(incidents),
+				alertingPlugin.getSmtpFrom(), subscription.getTarget())
+				.textPart(alertTemplateProcessor.processPlainTextDigest(incidents))
+				.htmlPart(alertTemplateProcessor.processHtmlDigest(incidents));
+		sendMail(mailRequest);
+	}
+
 	private void sendMail(MailRequest mailRequest) {
 		try {
 			Session session = getSession();
@@ -1,6 +1,7 @@
 package org.stagemonitor.alerting.alerter;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.stagemonitor.alerting.AlertingPlugin;
@@ -9,7 +10,7 @@ import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.StringUtils;
 
-public class PushbulletAlerter implements Alerter {
+public class PushbulletAlerter implements DigestAlerter {
 
 	private final AlertTemplateProcessor alertTemplateProcessor;
 	private final AlertingPlugin alertingPlugin;
@@ -30,6 +31,13 @@ public class PushbulletAlerter implements Alerter {
 				alertTemplateProcessor.processPlainTextTemplate(incident));
 	}
 
+	@Override
+	public void alertDigest(List<Incident> incidents, Subscription subscription) {
+		sendPushbulletNotification(subscription.getTarget(),
+				alertTemplateProcessor.processShortDescriptionDigest(incidents),
+				alertTemplateProcessor.processPlainTextDigest(incidents));
+	}
+
 	public void sendPushbulletNotification(String channelTag, String subject, String content) {
 		HttpClient client = new HttpClient();
 		PushbulletNotification notification = new PushbulletNotification(subject, content, channelTag);
@@ -0,0 +1,82 @@
+package org.stagemonitor.alerting.check;
+
+/**
+ * The state of a rolling baseline for a single metric value.
+ * <p/>
+ * Each evaluation of a check first reads the expected value and the deviation and then adds the current value to the
+ * baseline. Observing the same timestamp more than once (for example because multiple {@link BaselineThreshold}s
+ * share the baseline) only updates the baseline once.
+ */
+abstract class Baseline {
+
+	/**
+	 * The smoothing factor of the exponentially weighted averages
+	 */
+	static final double ALPHA = 0.1;
+	/**
+	 * The number of values that are required before the deviation is considered meaningful
+	 */
+	static final int MIN_SAMPLES = 10;
+	/**
+	 * The minimal deviation relative to the expected value. This prevents alerts for tiny changes of metrics that have
+	 * been constant for a long time.
+	 */
+	static final double MIN_RELATIVE_DEVIATION = 0.01;
+
+	private long lastObservation = Long.MIN_VALUE;
+	private double expectedValue = Double.NaN;
+	private double deviation = Double.NaN;
+
+	final void observe(double value, long timestamp) {
+		if (timestamp == lastObservation) {
+			return;
+		}
+		lastObservation = timestamp;
+		expectedValue = computeExpectedValue(timestamp);
+		deviation = Math.max(computeDeviation(), Math.abs(expectedValue) * MIN_RELATIVE_DEVIATION);
+		if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+			update(value, expectedValue);
+		}
+	}
+
+	/**
+	 * @return <code>true</code>, if the baseline contains enough values to compare the current value against it
+	 */
+	final boolean isReady() {
+		return !Double.isNaN(expectedValue) && !Double.isNaN(deviation);
+	}
+
+	/**
+	 * @return the expected value before the current value was observed
+	 */
+	final double getExpectedValue() {
+		return expectedValue;
+	}
+
+	/**
+	 * @return the standard deviation before the current value was observed
+	 */
+	final double getDeviation() {
+		return deviation;
+	}
+
+	/**
+	 * @param timestamp the time of the current observation
+	 * @return the expected value or {@link Double#NaN}, if it is not known yet
+	 */
+	protected abstract double computeExpectedValue(long timestamp);
+
+	/**
+	 * @return the standard deviation or {@link Double#NaN}, if there are not enough values yet
+	 */
+	protected abstract double computeDeviation();
+
+	/**
+	 * Adds a value to the baseline
+	 *
+	 * @param value         the current value
+	 * @param expectedValue the value that was expected
+	 */
+	protected abstract void update(double value, double expectedValue);
+
+}
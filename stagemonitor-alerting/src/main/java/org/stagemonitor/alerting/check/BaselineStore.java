@@ -0,0 +1,133 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the baselines of the {@link BaselineThreshold}s by check id, target and baseline parameters. It also holds the
+ * state of {@link ExpressionThreshold}s, like the history of values or since when a condition is true.
+ * <p/>
+ * The baselines are not part of the {@link Check}s, so they survive a reload of the configuration. The number of
+ * baselines is limited. If the limit is exceeded, the least recently used baseline is discarded.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class BaselineStore {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final int maxBaselines;
+	private final Map<SeriesKey, Object> baselines;
+
+	/**
+	 * @param maxBaselines the maximum number of baselines. If 0, no baselines are kept and
+	 *                     {@link BaselineThreshold}s are never exceeded.
+	 */
+	public BaselineStore(final int maxBaselines) {
+		this.maxBaselines = maxBaselines;
+		this.baselines = new LinkedHashMap<SeriesKey, Object>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SeriesKey, Object> eldest) {
+				if (size() > maxBaselines) {
+					logger.debug("Discarding the baseline of {} because the limit of {} baselines is reached", eldest.getKey(), maxBaselines);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	Baseline getBaseline(String checkId, String target, BaselineThreshold threshold) {
+		if (maxBaselines <= 0) {
+			return null;
+		}
+		final SeriesKey key = new SeriesKey(checkId, target, threshold.getBaselineKey());
+		Baseline baseline = (Baseline) baselines.get(key);
+		if (baseline == null) {
+			baseline = threshold.createBaseline();
+			baselines.put(key, baseline);
+		}
+		return baseline;
+	}
+
+	/**
+	 * Returns the state that is stored under the key or <code>null</code>, if there is none or no state may be kept
+	 */
+	Object getState(String checkId, String target, String key) {
+		return baselines.get(new SeriesKey(checkId, target, key));
+	}
+
+	/**
+	 * Stores the state under the key. If the state is <code>null</code>, the current state is removed.
+	 *
+	 * @return <code>false</code>, if no state may be kept
+	 */
+	boolean putState(String checkId, String target, String key, Object state) {
+		if (maxBaselines <= 0) {
+			return false;
+		}
+		if (state == null) {
+			baselines.remove(new SeriesKey(checkId, target, key));
+		} else {
+			baselines.put(new SeriesKey(checkId, target, key), state);
+		}
+		return true;
+	}
+
+	/**
+	 * Discards the baselines of checks that don't exist anymore
+	 *
+	 * @param checkIds the ids of the current checks
+	 */
+	public void retainChecks(Collection<String> checkIds) {
+		for (Iterator<SeriesKey> iterator = baselines.keySet().iterator(); iterator.hasNext(); ) {
+			if (!checkIds.contains(iterator.next().checkId)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public int size() {
+		return baselines.size();
+	}
+
+	private static class SeriesKey {
+		private final String checkId;
+		private final String target;
+		private final String baselineKey;
+
+		private SeriesKey(String checkId, String target, String baselineKey) {
+			this.checkId = checkId;
+			this.target = target;
+			this.baselineKey = baselineKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			SeriesKey seriesKey = (SeriesKey) o;
+
+			return checkId.equals(seriesKey.checkId) && target.equals(seriesKey.target) && baselineKey.equals(seriesKey.baselineKey);
+		}
+
+		@Override
+		public int hashCode() {
+			int result = checkId.hashCode();
+			result = 31 * result + target.hashCode();
+			result = 31 * result + baselineKey.hashCode();
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return checkId + ' ' + target + ' ' + baselineKey;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A threshold that is relative to a rolling baseline of the metric value instead of a static value.
+ * <p/>
+ * The threshold is exceeded, if the current value deviates from the baseline by more than {@link #deviations}
+ * standard deviations. The {@link #operator} determines the direction: {@link Threshold.Operator#GREATER} and
+ * {@link Threshold.Operator#GREATER_EQUAL} check the upper band, {@link Threshold.Operator#LESS} and
+ * {@link Threshold.Operator#LESS_EQUAL} the lower band.
+ * <p/>
+ * Example: <code>p95 > 3 standard deviations above the EWMA baseline</code>
+ */
+public class BaselineThreshold {
+
+	public static final long DEFAULT_SEASON_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+	private final String metric;
+	private final Threshold.Operator operator;
+	private final double deviations;
+	private final Method method;
+	private final long seasonSeconds;
+
+	@JsonCreator
+	public BaselineThreshold(@JsonProperty("metric") String metric, @JsonProperty("operator") Threshold.Operator operator,
+							 @JsonProperty("deviations") double deviations, @JsonProperty("method") Method method,
+							 @JsonProperty("seasonSeconds") long seasonSeconds) {
+		if (operator == null) {
+			throw new IllegalArgumentException("Operator may not be null");
+		}
+		if (deviations <= 0) {
+			throw new IllegalArgumentException("Deviations must be greater than 0");
+		}
+		this.metric = metric;
+		this.operator = operator;
+		this.deviations = deviations;
+		this.method = method != null ? method : Method.EWMA;
+		if (this.method == Method.SEASONAL) {
+			this.seasonSeconds = seasonSeconds > 0 ? seasonSeconds : DEFAULT_SEASON_SECONDS;
+		} else {
+			this.seasonSeconds = 0;
+		}
+	}
+
+	public CheckResult check(CheckResult.Status severity, String checkId, String target,
+							 Map<String, Double> currentValuesByMetric, BaselineStore baselineStore, long timestamp) {
+		final Double actualValue = currentValuesByMetric.get(metric);
+		final Baseline baseline = baselineStore != null ? baselineStore.getBaseline(checkId, target, this) : null;
+		if (actualValue == null || baseline == null) {
+			return new CheckResult(null, actualValue != null ? actualValue : Double.NaN, CheckResult.Status.OK);
+		}
+		baseline.observe(actualValue, timestamp);
+		if (baseline.isReady() && isExceeded(actualValue, baseline.getExpectedValue(), baseline.getDeviation())) {
+			return new CheckResult(getCheckExpressionAsString(target), actualValue, severity);
+		}
+		return new CheckResult(null, actualValue, CheckResult.Status.OK);
+	}
+
+	boolean isExceeded(double actualValue, double expectedValue, double deviation) {
+		if (isUpperBand()) {
+			return operator.check(actualValue, expectedValue + deviations * deviation);
+		} else {
+			return operator.check(actualValue, expectedValue - deviations * deviation);
+		}
+	}
+
+	private boolean isUpperBand() {
+		return operator == Threshold.Operator.GREATER || operator == Threshold.Operator.GREATER_EQUAL;
+	}
+
+	/**
+	 * Thresholds that only differ in the operator or the number of deviations share the same baseline
+	 *
+	 * @return the key of the baseline
+	 */
+	String getBaselineKey() {
+		return metric + ' ' + method + ' ' + seasonSeconds;
+	}
+
+	Baseline createBaseline() {
+		if (method == Method.SEASONAL) {
+			return new SeasonalBaseline(TimeUnit.SECONDS.toMillis(seasonSeconds));
+		}
+		return new EwmaBaseline();
+	}
+
+	public String getMetric() {
+		return metric;
+	}
+
+	public Threshold.Operator getOperator() {
+		return operator;
+	}
+
+	public double getDeviations() {
+		return deviations;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public long getSeasonSeconds() {
+		return seasonSeconds;
+	}
+
+	public String toString() {
+		return metric + " " + operator.getOperatorString() + " " + deviations + " standard deviations "
+				+ (isUpperBand() ? "above" : "below") + " the " + method.label + " baseline";
+	}
+
+	public String getCheckExpressionAsString(String target) {
+		return target + '.' + toString();
+	}
+
+	public enum Method {
+		/**
+		 * An exponentially weighted moving average and variance of the values
+		 */
+		EWMA("EWMA"),
+		/**
+		 * The value at the same time one season (for example one week) ago. The deviation is the exponentially
+		 * weighted standard deviation of the difference between the actual and the seasonal value.
+		 */
+		SEASONAL("seasonal");
+
+		private final String label;
+
+		Method(String label) {
+			this.label = label;
+		}
+	}
+}
@@ -20,6 +20,9 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
  * Example: We have a check group named 'Search response time' with two checks both have the target
  * <code>requests.search.time</code>. The first check is that the 75th
  * percentile shall be < 4sec and the second one says the 99th percentile shall be < 10 sec.
+ * <p/>
+ * Additionally, a check can contain {@link BaselineThreshold}s that compare the values to a rolling baseline and
+ * {@link ExpressionThreshold}s that can combine multiple values and metrics.
  */
 @JsonAutoDetect(fieldVisibility = ANY, getterVisibility = NONE, setterVisibility = NONE)
 public class Check {
@@ -34,6 +37,16 @@ public class Check {
 		put(CheckResult.Status.ERROR, new LinkedList<Threshold>());
 		put(CheckResult.Status.WARN, new LinkedList<Threshold>());
 	}};
+	private Map<CheckResult.Status, List<BaselineThreshold>> baselineThresholds = new LinkedHashMap<CheckResult.Status, List<BaselineThreshold>>(){{
+		put(CheckResult.Status.CRITICAL, new LinkedList<BaselineThreshold>());
+		put(CheckResult.Status.ERROR, new LinkedList<BaselineThreshold>());
+		put(CheckResult.Status.WARN, new LinkedList<BaselineThreshold>());
+	}};
+	private Map<CheckResult.Status, List<ExpressionThreshold>> expressionThresholds = new LinkedHashMap<CheckResult.Status, List<ExpressionThreshold>>(){{
+		put(CheckResult.Status.CRITICAL, new LinkedList<ExpressionThreshold>());
+		put(CheckResult.Status.ERROR, new LinkedList<ExpressionThreshold>());
+		put(CheckResult.Status.WARN, new LinkedList<ExpressionThreshold>());
+	}};
 	private String application;
 	private boolean active = true;
 
@@ -45,13 +58,46 @@ public class Check {
 	 * @return a list of check results (results with OK statuses are omitted)
 	 */
 	public List<CheckResult> check(String actualTarget, Map<String, Double> currentValuesByMetric) {
+		return check(actualTarget, currentValuesByMetric, null, System.currentTimeMillis());
+	}
+
+	public List<CheckResult> check(String actualTarget, Map<String, Double> currentValuesByMetric,
+								   BaselineStore baselineStore, long timestamp) {
+		return check(actualTarget, currentValuesByMetric, baselineStore, null, timestamp);
+	}
+
+	/**
+	 * Performs threshold, baseline and expression checks for the whole check group
+	 * <p/>
+	 * The baselines and expressions of all severities are evaluated, even if a more severe threshold is already
+	 * exceeded, so that their state is updated with every evaluation.
+	 *
+	 * @param actualTarget the actual target that matched the {@link #target} pattern
+	 * @param currentValuesByMetric the values of the target
+	 * @param baselineStore the baselines of the {@link BaselineThreshold}s and the state of the
+	 *                      {@link ExpressionThreshold}s. If <code>null</code>, baseline thresholds are never exceeded.
+	 * @param metricLookup the lookup for metrics that are referenced by {@link ExpressionThreshold}s (may be
+	 *                     <code>null</code>)
+	 * @param timestamp the time of the evaluation
+	 * @return a list of check results (results with OK statuses are omitted)
+	 */
+	public List<CheckResult> check(String actualTarget, Map<String, Double> currentValuesByMetric,
+								   BaselineStore baselineStore, MetricLookup metricLookup, long timestamp) {
+		List<CheckResult> mostSevereResults = Collections.emptyList();
 		for (Map.Entry<CheckResult.Status, List<Threshold>> entry : thresholds.entrySet()) {
-			List<CheckResult> results = checkThresholds(entry.getValue(), entry.getKey(), actualTarget, currentValuesByMetric);
-			if (!results.isEmpty()) {
-				return results;
+			final CheckResult.Status severity = entry.getKey();
+			final List<CheckResult> baselineResults = checkBaselines(baselineThresholds.get(severity), severity,
+					actualTarget, currentValuesByMetric, baselineStore, timestamp);
+			final List<CheckResult> expressionResults = checkExpressions(expressionThresholds.get(severity), severity,
+					actualTarget, currentValuesByMetric, metricLookup, baselineStore, timestamp);
+			if (mostSevereResults.isEmpty()) {
+				List<CheckResult> results = checkThresholds(entry.getValue(), severity, actualTarget, currentValuesByMetric);
+				results.addAll(baselineResults);
+				results.addAll(expressionResults);
+				mostSevereResults = results;
 			}
 		}
-		return Collections.emptyList();
+		return mostSevereResults;
 	}
 
 	private List<CheckResult> checkThresholds(List<Threshold> thresholds, CheckResult.Status severity,
@@ -66,6 +112,38 @@ public class Check {
 		return results;
 	}
 
+	private List<CheckResult> checkBaselines(List<BaselineThreshold> thresholds, CheckResult.Status severity,
+											 String actualTarget, Map<String, Double> currentValuesByMetric,
+											 BaselineStore baselineStore, long timestamp) {
+		if (thresholds == null || thresholds.isEmpty() || baselineStore == null) {
+			return Collections.emptyList();
+		}
+		List<CheckResult> results = new ArrayList<CheckResult>(thresholds.size());
+		for (BaselineThreshold threshold : thresholds) {
+			CheckResult result = threshold.check(severity, id, actualTarget, currentValuesByMetric, baselineStore, timestamp);
+			if (result.getStatus() != CheckResult.Status.OK) {
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
+	private List<CheckResult> checkExpressions(List<ExpressionThreshold> thresholds, CheckResult.Status severity,
+											   String actualTarget, Map<String, Double> currentValuesByMetric,
+											   MetricLookup metricLookup, BaselineStore baselineStore, long timestamp) {
+		if (thresholds == null || thresholds.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<CheckResult> results = new ArrayList<CheckResult>(thresholds.size());
+		for (ExpressionThreshold threshold : thresholds) {
+			CheckResult result = threshold.check(severity, id, actualTarget, currentValuesByMetric, metricLookup, baselineStore, timestamp);
+			if (result.getStatus() != CheckResult.Status.OK) {
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
 	public String getId() {
 		return id;
 	}
@@ -134,4 +212,28 @@ public class Check {
 		return thresholds.get(CheckResult.Status.CRITICAL);
 	}
 
+	public List<BaselineThreshold> getWarnBaselines() {
+		return baselineThresholds.get(CheckResult.Status.WARN);
+	}
+
+	public List<BaselineThreshold> getErrorBaselines() {
+		return baselineThresholds.get(CheckResult.Status.ERROR);
+	}
+
+	public List<BaselineThreshold> getCriticalBaselines() {
+		return baselineThresholds.get(CheckResult.Status.CRITICAL);
+	}
+
+	public List<ExpressionThreshold> getWarnExpressions() {
+		return expressionThresholds.get(CheckResult.Status.WARN);
+	}
+
+	public List<ExpressionThreshold> getErrorExpressions() {
+		return expressionThresholds.get(CheckResult.Status.ERROR);
+	}
+
+	public List<ExpressionThreshold> getCriticalExpressions() {
+		return expressionThresholds.get(CheckResult.Status.CRITICAL);
+	}
+
 }
@@ -0,0 +1,37 @@
+package org.stagemonitor.alerting.check;
+
+/**
+ * A baseline that is the exponentially weighted moving average of the values. The deviation is the square root of the
+ * exponentially weighted moving variance.
+ */
+class EwmaBaseline extends Baseline {
+
+	private double mean;
+	private double variance;
+	private int samples;
+
+	@Override
+	protected double computeExpectedValue(long timestamp) {
+		return samples >= MIN_SAMPLES ? mean : Double.NaN;
+	}
+
+	@Override
+	protected double computeDeviation() {
+		return samples >= MIN_SAMPLES ? Math.sqrt(variance) : Double.NaN;
+	}
+
+	@Override
+	protected void update(double value, double expectedValue) {
+		if (samples == 0) {
+			mean = value;
+		} else {
+			final double diff = value - mean;
+			final double increment = ALPHA * diff;
+			mean += increment;
+			variance = (1 - ALPHA) * (variance + diff * increment);
+		}
+		if (samples < MIN_SAMPLES) {
+			samples++;
+		}
+	}
+}
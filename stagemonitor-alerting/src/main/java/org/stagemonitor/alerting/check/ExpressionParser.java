@@ -0,0 +1,274 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.stagemonitor.alerting.check.Expressions.Condition;
+import org.stagemonitor.alerting.check.Expressions.NumericNode;
+
+/**
+ * A recursive descent parser that compiles the expression of an {@link ExpressionThreshold} into a tree of
+ * {@link Expressions} nodes.
+ * <pre>
+ * condition  := orCond
+ * orCond     := andCond ('or' andCond)*
+ * andCond    := notCond ('and' notCond)*
+ * notCond    := 'not' notCond | primaryCond
+ * primaryCond:= ('(' condition ')' | comparison) ('for' INTEGER ('minute' | 'minutes'))?
+ * comparison := sum ('&lt;' | '&lt;=' | '&gt;' | '&gt;=' | '==' | '!=') sum
+ * sum        := product (('+' | '-') product)*
+ * product    := unary (('*' | '/') unary)*
+ * unary      := '-' unary | primary
+ * primary    := NUMBER | '(' sum ')' | ('ago' | 'delta') '(' sum ',' INTEGER ')'
+ *             | 'metric' '(' STRING ')' '.' IDENTIFIER | IDENTIFIER
+ * </pre>
+ */
+class ExpressionParser {
+
+	private static final int MAX_INTERVALS = 10000;
+
+	private final String expression;
+	private final List<String> tokens;
+	private int position;
+	private int statefulNodes;
+
+	private ExpressionParser(String expression) {
+		this.expression = expression;
+		this.tokens = tokenize(expression);
+	}
+
+	/**
+	 * Compiles an expression
+	 *
+	 * @param expression the expression, for example <code>p99 > 1.5 * ago(p99, 10) for 5 minutes</code>
+	 * @return the root of the evaluator tree
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	static Condition parse(String expression) {
+		if (expression == null) {
+			throw new IllegalArgumentException("Expression may not be null");
+		}
+		final ExpressionParser parser = new ExpressionParser(expression);
+		final Condition condition = parser.parseCondition();
+		if (parser.position < parser.tokens.size()) {
+			throw parser.error("Unexpected '" + parser.peek() + "'");
+		}
+		return condition;
+	}
+
+	private Condition parseCondition() {
+		Condition condition = parseAnd();
+		while (accept("or")) {
+			condition = new Expressions.Logical(condition, false, parseAnd());
+		}
+		return condition;
+	}
+
+	private Condition parseAnd() {
+		Condition condition = parseNot();
+		while (accept("and")) {
+			condition = new Expressions.Logical(condition, true, parseNot());
+		}
+		return condition;
+	}
+
+	private Condition parseNot() {
+		if (accept("not")) {
+			return new Expressions.Not(parseNot());
+		}
+		Condition condition = parsePrimaryCondition();
+		if (accept("for")) {
+			final int minutes = parseInteger();
+			if (!accept("minutes") && !accept("minute")) {
+				throw error("Expected 'minutes'");
+			}
+			condition = new Expressions.For(condition, minutes, nextStateKey());
+		}
+		return condition;
+	}
+
+	private Condition parsePrimaryCondition() {
+		if ("(".equals(peek())) {
+			// could also be the start of a numeric expression like (a + b) > c
+			final int start = position;
+			final int statefulNodesBefore = statefulNodes;
+			try {
+				position++;
+				final Condition condition = parseCondition();
+				expect(")");
+				return condition;
+			} catch (IllegalArgumentException e) {
+				position = start;
+				statefulNodes = statefulNodesBefore;
+			}
+		}
+		return parseComparison();
+	}
+
+	private Condition parseComparison() {
+		final NumericNode left = parseSum();
+		final String operator = next();
+		final NumericNode right = parseSum();
+		if ("==".equals(operator) || "!=".equals(operator)) {
+			return new Expressions.Equality(left, "==".equals(operator), right);
+		}
+		try {
+			return new Expressions.Comparison(left, Threshold.Operator.getByString(operator), right);
+		} catch (IllegalArgumentException e) {
+			throw error("Expected a comparison operator instead of '" + operator + "'");
+		}
+	}
+
+	private NumericNode parseSum() {
+		NumericNode node = parseProduct();
+		while ("+".equals(peek()) || "-".equals(peek())) {
+			node = new Expressions.Arithmetic(node, next().charAt(0), parseProduct());
+		}
+		return node;
+	}
+
+	private NumericNode parseProduct() {
+		NumericNode node = parseUnary();
+		while ("*".equals(peek()) || "/".equals(peek())) {
+			node = new Expressions.Arithmetic(node, next().charAt(0), parseUnary());
+		}
+		return node;
+	}
+
+	private NumericNode parseUnary() {
+		if (accept("-")) {
+			return new Expressions.Negate(parseUnary());
+		}
+		return parsePrimary();
+	}
+
+	private NumericNode parsePrimary() {
+		final String token = next();
+		if (token == null) {
+			throw error("Unexpected end of expression");
+		}
+		if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+			try {
+				return new Expressions.Constant(Double.parseDouble(token));
+			} catch (NumberFormatException e) {
+				throw error("Invalid number '" + token + "'");
+			}
+		}
+		if ("(".equals(token)) {
+			final NumericNode node = parseSum();
+			expect(")");
+			return node;
+		}
+		if (("ago".equals(token) || "delta".equals(token)) && "(".equals(peek())) {
+			expect("(");
+			final NumericNode node = parseSum();
+			expect(",");
+			final int intervals = parseInteger();
+			if (intervals < 1 || intervals > MAX_INTERVALS) {
+				throw error("The number of intervals must be between 1 and " + MAX_INTERVALS);
+			}
+			expect(")");
+			return new Expressions.History(node, intervals, "delta".equals(token), nextStateKey());
+		}
+		if ("metric".equals(token) && "(".equals(peek())) {
+			expect("(");
+			final String graphiteName = next();
+			if (graphiteName == null || !(graphiteName.startsWith("'") || graphiteName.startsWith("\""))) {
+				throw error("Expected the quoted name of a metric");
+			}
+			expect(")");
+			expect(".");
+			return new Expressions.MetricValue(graphiteName.substring(1, graphiteName.length() - 1), parseIdentifier());
+		}
+		position--;
+		return new Expressions.TargetValue(parseIdentifier());
+	}
+
+	private String parseIdentifier() {
+		final String token = next();
+		if (token == null || !Character.isJavaIdentifierStart(token.charAt(0))) {
+			throw error("Expected the name of a value instead of '" + token + "'");
+		}
+		return token;
+	}
+
+	private int parseInteger() {
+		final String token = next();
+		try {
+			return Integer.parseInt(token);
+		} catch (NumberFormatException e) {
+			throw error("Expected an integer instead of '" + token + "'");
+		}
+	}
+
+	private String nextStateKey() {
+		return expression + '#' + statefulNodes++;
+	}
+
+	private String peek() {
+		return position < tokens.size() ? tokens.get(position) : null;
+	}
+
+	private String next() {
+		return position < tokens.size() ? tokens.get(position++) : null;
+	}
+
+	private boolean accept(String token) {
+		if (token.equals(peek())) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String token) {
+		if (!accept(token)) {
+			throw error("Expected '" + token + "' instead of '" + peek() + "'");
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " in expression '" + expression + "'");
+	}
+
+	private static List<String> tokenize(String expression) {
+		final List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while (i < expression.length()) {
+			final char c = expression.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (Character.isDigit(c) || (c == '.' && i + 1 < expression.length() && Character.isDigit(expression.charAt(i + 1)))) {
+				int end = i + 1;
+				while (end < expression.length() && (Character.isDigit(expression.charAt(end)) || expression.charAt(end) == '.')) {
+					end++;
+				}
+				tokens.add(expression.substring(i, end));
+				i = end;
+			} else if (Character.isJavaIdentifierStart(c)) {
+				int end = i + 1;
+				while (end < expression.length() && Character.isJavaIdentifierPart(expression.charAt(end))) {
+					end++;
+				}
+				tokens.add(expression.substring(i, end));
+				i = end;
+			} else if (c == '\'' || c == '"') {
+				final int end = expression.indexOf(c, i + 1);
+				if (end < 0) {
+					throw new IllegalArgumentException("Unterminated string in expression '" + expression + "'");
+				}
+				tokens.add(expression.substring(i, end + 1));
+				i = end + 1;
+			} else if ((c == '<' || c == '>' || c == '=' || c == '!') && i + 1 < expression.length() && expression.charAt(i + 1) == '=') {
+				tokens.add(expression.substring(i, i + 2));
+				i += 2;
+			} else if ("<>+-*/(),.".indexOf(c) >= 0) {
+				tokens.add(String.valueOf(c));
+				i++;
+			} else {
+				throw new IllegalArgumentException("Unexpected character '" + c + "' in expression '" + expression + "'");
+			}
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,60 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A threshold that is defined by an expression. The expression is compiled once, when the threshold is created.
+ * <p/>
+ * Values without a metric name refer to the actual target of the check. Other metrics can be referenced by their
+ * graphite name. Examples:
+ * <ul>
+ * <li><code>metric('error_rate.All').m1_rate / metric('request_throughput.All').m1_rate > 0.05</code></li>
+ * <li><code>p99 > 1.5 * ago(p99, 10)</code> - the p99 has regressed by 50% compared to 10 check intervals ago</li>
+ * <li><code>delta(count, 5) > 100 for 10 minutes</code></li>
+ * <li><code>(mean > 500 or p99 > 2000) and not m1_rate < 1</code></li>
+ * </ul>
+ * <code>ago(value, n)</code> and <code>delta(value, n)</code> refer to the n-th previous evaluation of the check.
+ * <code>condition for n minutes</code> is only true, if the condition has been true for at least n minutes.
+ * The state of these functions is kept in the {@link BaselineStore}.
+ */
+public class ExpressionThreshold {
+
+	private final String expression;
+	private final Expressions.Condition condition;
+
+	/**
+	 * @param expression the expression
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	@JsonCreator
+	public ExpressionThreshold(@JsonProperty("expression") String expression) {
+		this.condition = ExpressionParser.parse(expression);
+		this.expression = expression;
+	}
+
+	public CheckResult check(CheckResult.Status severity, String checkId, String target,
+							 Map<String, Double> currentValuesByMetric, MetricLookup metricLookup,
+							 BaselineStore baselineStore, long timestamp) {
+		final Expressions.EvaluationContext context = new Expressions.EvaluationContext(checkId, target,
+				currentValuesByMetric, metricLookup, baselineStore, timestamp);
+		if (condition.isTrue(context)) {
+			return new CheckResult(getCheckExpressionAsString(target), context.currentValue, severity);
+		}
+		return new CheckResult(null, context.currentValue, CheckResult.Status.OK);
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	public String toString() {
+		return expression;
+	}
+
+	public String getCheckExpressionAsString(String target) {
+		return target + ": " + expression;
+	}
+}
@@ -0,0 +1,337 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The nodes of the evaluator tree of an {@link ExpressionThreshold}.
+ * <p/>
+ * Numeric nodes return {@link Double#NaN}, if a value is not available. Comparisons with {@link Double#NaN} are
+ * always <code>false</code>.
+ */
+final class Expressions {
+
+	private Expressions() {
+		// don't instantiate
+	}
+
+	/**
+	 * The context of the evaluation of an expression for one target
+	 */
+	static class EvaluationContext {
+		final String checkId;
+		final String target;
+		final Map<String, Double> values;
+		final MetricLookup metricLookup;
+		final BaselineStore stateStore;
+		final long timestamp;
+		/**
+		 * The value of the left hand side of the first comparison that has been evaluated
+		 */
+		double currentValue = Double.NaN;
+
+		EvaluationContext(String checkId, String target, Map<String, Double> values, MetricLookup metricLookup,
+						  BaselineStore stateStore, long timestamp) {
+			this.checkId = checkId;
+			this.target = target;
+			this.values = values;
+			this.metricLookup = metricLookup;
+			this.stateStore = stateStore;
+			this.timestamp = timestamp;
+		}
+
+		Object getState(String key) {
+			return stateStore != null ? stateStore.getState(checkId, target, key) : null;
+		}
+
+		boolean putState(String key, Object state) {
+			return stateStore != null && stateStore.putState(checkId, target, key, state);
+		}
+	}
+
+	abstract static class NumericNode {
+		abstract double evaluate(EvaluationContext context);
+	}
+
+	abstract static class Condition {
+		abstract boolean isTrue(EvaluationContext context);
+	}
+
+	static class Constant extends NumericNode {
+		private final double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		double evaluate(EvaluationContext context) {
+			return value;
+		}
+	}
+
+	/**
+	 * A value of the target of the check, for example <code>p99</code>
+	 */
+	static class TargetValue extends NumericNode {
+		private final String valueName;
+
+		TargetValue(String valueName) {
+			this.valueName = valueName;
+		}
+
+		@Override
+		double evaluate(EvaluationContext context) {
+			return toDouble(context.values.get(valueName));
+		}
+	}
+
+	/**
+	 * A value of a specific metric, for example <code>metric('error_rate.All').m1_rate</code>
+	 */
+	static class MetricValue extends NumericNode {
+		private final String graphiteName;
+		private final String valueName;
+
+		MetricValue(String graphiteName, String valueName) {
+			this.graphiteName = graphiteName;
+			this.valueName = valueName;
+		}
+
+		@Override
+		double evaluate(EvaluationContext context) {
+			if (context.metricLookup == null) {
+				return Double.NaN;
+			}
+			final Map<String, Double> values = context.metricLookup.getValues(graphiteName);
+			return values != null ? toDouble(values.get(valueName)) : Double.NaN;
+		}
+	}
+
+	static class Negate extends NumericNode {
+		private final NumericNode node;
+
+		Negate(NumericNode node) {
+			this.node = node;
+		}
+
+		@Override
+		double evaluate(EvaluationContext context) {
+			return -node.evaluate(context);
+		}
+	}
+
+	static class Arithmetic extends NumericNode {
+		private final NumericNode left;
+		private final char operator;
+		private final NumericNode right;
+
+		Arithmetic(NumericNode left, char operator, NumericNode right) {
+			this.left = left;
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		double evaluate(EvaluationContext context) {
+			final double l = left.evaluate(context);
+			final double r = right.evaluate(context);
+			switch (operator) {
+				case '+':
+					return l + r;
+				case '-':
+					return l - r;
+				case '*':
+					return l * r;
+				default:
+					return r != 0 ? l / r : Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * The value of a node <code>intervals</code> evaluations ago (<code>ago(p99, 10)</code>) or the difference of the
+	 * current value to it (<code>delta(p99, 10)</code>)
+	 */
+	static class History extends NumericNode {
+		private final NumericNode node;
+		private final int intervals;
+		private final boolean delta;
+		private final String stateKey;
+
+		History(NumericNode node, int intervals, boolean delta, String stateKey) {
+			this.node = node;
+			this.intervals = intervals;
+			this.delta = delta;
+			this.stateKey = stateKey;
+		}
+
+		@Override
+		double evaluate(EvaluationContext context) {
+			final double value = node.evaluate(context);
+			RingBuffer history = (RingBuffer) context.getState(stateKey);
+			if (history == null) {
+				history = new RingBuffer(intervals + 1);
+				if (!context.putState(stateKey, history)) {
+					return Double.NaN;
+				}
+			}
+			history.add(value, context.timestamp);
+			final double previous = history.get(intervals);
+			return delta ? value - previous : previous;
+		}
+	}
+
+	/**
+	 * A compact ring buffer of the last values of a node
+	 */
+	static class RingBuffer {
+		private final double[] values;
+		private long lastTimestamp = Long.MIN_VALUE;
+		private int next;
+		private int size;
+
+		RingBuffer(int capacity) {
+			this.values = new double[capacity];
+		}
+
+		void add(double value, long timestamp) {
+			if (timestamp == lastTimestamp) {
+				return;
+			}
+			lastTimestamp = timestamp;
+			values[next] = value;
+			next = (next + 1) % values.length;
+			size = Math.min(size + 1, values.length);
+		}
+
+		/**
+		 * @param age 0 for the most recent value
+		 * @return the value or {@link Double#NaN}, if there is no such value
+		 */
+		double get(int age) {
+			if (age >= size) {
+				return Double.NaN;
+			}
+			return values[(next - 1 - age + values.length) % values.length];
+		}
+	}
+
+	static class Comparison extends Condition {
+		private final NumericNode left;
+		private final Threshold.Operator operator;
+		private final NumericNode right;
+
+		Comparison(NumericNode left, Threshold.Operator operator, NumericNode right) {
+			this.left = left;
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		boolean isTrue(EvaluationContext context) {
+			final double l = left.evaluate(context);
+			final double r = right.evaluate(context);
+			if (Double.isNaN(context.currentValue)) {
+				context.currentValue = l;
+			}
+			return !Double.isNaN(l) && !Double.isNaN(r) && operator.check(l, r);
+		}
+	}
+
+	/**
+	 * <code>==</code> and <code>!=</code> are not part of {@link Threshold.Operator}
+	 */
+	static class Equality extends Condition {
+		private final NumericNode left;
+		private final boolean equal;
+		private final NumericNode right;
+
+		Equality(NumericNode left, boolean equal, NumericNode right) {
+			this.left = left;
+			this.equal = equal;
+			this.right = right;
+		}
+
+		@Override
+		boolean isTrue(EvaluationContext context) {
+			final double l = left.evaluate(context);
+			final double r = right.evaluate(context);
+			if (Double.isNaN(context.currentValue)) {
+				context.currentValue = l;
+			}
+			return !Double.isNaN(l) && !Double.isNaN(r) && (l == r) == equal;
+		}
+	}
+
+	/**
+	 * <code>and</code> and <code>or</code>. Both sides are always evaluated, so that the state of stateful nodes is
+	 * updated with every evaluation.
+	 */
+	static class Logical extends Condition {
+		private final Condition left;
+		private final boolean and;
+		private final Condition right;
+
+		Logical(Condition left, boolean and, Condition right) {
+			this.left = left;
+			this.and = and;
+			this.right = right;
+		}
+
+		@Override
+		boolean isTrue(EvaluationContext context) {
+			final boolean l = left.isTrue(context);
+			final boolean r = right.isTrue(context);
+			return and ? l && r : l || r;
+		}
+	}
+
+	static class Not extends Condition {
+		private final Condition condition;
+
+		Not(Condition condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		boolean isTrue(EvaluationContext context) {
+			return !condition.isTrue(context);
+		}
+	}
+
+	/**
+	 * <code>condition for N minutes</code> is true, if the condition has been true for at least N minutes
+	 */
+	static class For extends Condition {
+		private final Condition condition;
+		private final long durationMillis;
+		private final String stateKey;
+
+		For(Condition condition, long minutes, String stateKey) {
+			this.condition = condition;
+			this.durationMillis = TimeUnit.MINUTES.toMillis(minutes);
+			this.stateKey = stateKey;
+		}
+
+		@Override
+		boolean isTrue(EvaluationContext context) {
+			if (!condition.isTrue(context)) {
+				context.putState(stateKey, null);
+				return false;
+			}
+			Long trueSince = (Long) context.getState(stateKey);
+			if (trueSince == null) {
+				trueSince = context.timestamp;
+				if (!context.putState(stateKey, trueSince)) {
+					return false;
+				}
+			}
+			return context.timestamp - trueSince >= durationMillis;
+		}
+	}
+
+	private static double toDouble(Double value) {
+		return value != null ? value : Double.NaN;
+	}
+}
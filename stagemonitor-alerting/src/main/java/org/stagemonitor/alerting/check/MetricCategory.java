@@ -1,5 +1,12 @@
 package org.stagemonitor.alerting.check;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+
 public enum MetricCategory {
 
 	TIMER("timer"), HISTOGRAM("histograms"), COUNTER("counters"), GAUGE("gauges"), METER("meters");
@@ -13,4 +20,25 @@ public enum MetricCategory {
 	public String getPath() {
 		return path;
 	}
+
+	/**
+	 * Returns the category of a metric
+	 *
+	 * @param metric the metric
+	 * @return the category of the metric or <code>null</code>, if the type of the metric is unknown
+	 */
+	public static MetricCategory forMetric(Metric metric) {
+		if (metric instanceof Timer) {
+			return TIMER;
+		} else if (metric instanceof Histogram) {
+			return HISTOGRAM;
+		} else if (metric instanceof Meter) {
+			return METER;
+		} else if (metric instanceof Counter) {
+			return COUNTER;
+		} else if (metric instanceof Gauge) {
+			return GAUGE;
+		}
+		return null;
+	}
 }
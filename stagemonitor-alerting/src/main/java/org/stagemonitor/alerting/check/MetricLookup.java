@@ -0,0 +1,19 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.Map;
+
+/**
+ * Provides the values of arbitrary metrics for {@link ExpressionThreshold}s that reference other metrics than the
+ * target of the check (for example <code>metric('error_rate.All').m1_rate</code>).
+ */
+public interface MetricLookup {
+
+	/**
+	 * Returns the values of a metric
+	 *
+	 * @param graphiteName the graphite name of the metric (for example <code>error_rate.All</code>)
+	 * @return the values by their names (for example <code>m1_rate</code>) or <code>null</code>, if there is no such metric
+	 */
+	Map<String, Double> getValues(String graphiteName);
+
+}
@@ -0,0 +1,73 @@
+package org.stagemonitor.alerting.check;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A baseline that expects the same value as at the same time one season ago.
+ * <p/>
+ * The season is divided into buckets of at least one minute. The mean value of each bucket is stored in a ring
+ * buffer of <code>float</code>s that holds at most {@link #MAX_BUCKETS} values (about 8 KB), so a season of one week
+ * has a resolution of five minutes. The deviation is the exponentially weighted standard deviation of the difference
+ * between the actual and the expected values.
+ */
+class SeasonalBaseline extends Baseline {
+
+	static final int MAX_BUCKETS = 2016;
+	private static final long MIN_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private final float[] buckets;
+	private final long bucketMillis;
+	private long currentBucket = -1;
+	private double currentSum;
+	private int currentCount;
+	private double residualVariance;
+	private int residualSamples;
+
+	SeasonalBaseline(long seasonMillis) {
+		final int bucketCount = (int) Math.max(1, Math.min(MAX_BUCKETS, seasonMillis / MIN_BUCKET_MILLIS));
+		this.buckets = new float[bucketCount];
+		this.bucketMillis = Math.max(1, seasonMillis / bucketCount);
+		Arrays.fill(buckets, Float.NaN);
+	}
+
+	@Override
+	protected double computeExpectedValue(long timestamp) {
+		final long bucket = timestamp / bucketMillis;
+		if (bucket != currentBucket) {
+			if (currentCount > 0) {
+				buckets[index(currentBucket)] = (float) (currentSum / currentCount);
+			}
+			currentBucket = bucket;
+			currentSum = 0;
+			currentCount = 0;
+		}
+		return buckets[index(bucket)];
+	}
+
+	private int index(long bucket) {
+		return (int) (bucket % buckets.length);
+	}
+
+	@Override
+	protected double computeDeviation() {
+		return residualSamples >= MIN_SAMPLES ? Math.sqrt(residualVariance) : Double.NaN;
+	}
+
+	@Override
+	protected void update(double value, double expectedValue) {
+		currentSum += value;
+		currentCount++;
+		if (!Double.isNaN(expectedValue)) {
+			final double residual = value - expectedValue;
+			if (residualSamples == 0) {
+				residualVariance = residual * residual;
+			} else {
+				residualVariance = (1 - ALPHA) * residualVariance + ALPHA * residual * residual;
+			}
+			if (residualSamples < MIN_SAMPLES) {
+				residualSamples++;
+			}
+		}
+	}
+}
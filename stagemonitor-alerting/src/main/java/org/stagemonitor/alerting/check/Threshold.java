@@ -99,6 +99,10 @@ public class Threshold {
 			this.operatorString = operatorString;
 		}
 
+		String getOperatorString() {
+			return operatorString;
+		}
+
 		/**
 		 * Checks, whether <code>actualValue OPERATOR thresholdValue</code> is true or false
 		 *
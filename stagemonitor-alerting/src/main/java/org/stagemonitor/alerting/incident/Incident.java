@@ -33,6 +33,10 @@ public class Incident {
 	private int consecutiveFailures;
 	@JsonIgnore
 	private Map<String, CheckResults> checkResultsByMeasurementSessionId = new HashMap<String, CheckResults>();
+	@JsonIgnore
+	private boolean failingExpressionsChanged = true;
+	@JsonIgnore
+	private int previousConsecutiveFailures = -1;
 
 
 	public static CheckResult.Status getMostSevereStatus(Collection<Incident> incidents) {
@@ -71,9 +75,30 @@ public class Incident {
 		checkName = previousIncident.checkName;
 		checkResultsByMeasurementSessionId = previousIncident.checkResultsByMeasurementSessionId;
 		firstFailureAt = previousIncident.getFirstFailureAt();
+		failingExpressionsChanged = !hasSameFailingExpressions(checkResultsByMeasurementSessionId.get(measurementSession.getId()), checkResults);
+		previousConsecutiveFailures = previousIncident.consecutiveFailures;
 		setCheckResults(measurementSession, checkResults, previousIncident.consecutiveFailures);
 	}
 
+	private static boolean hasSameFailingExpressions(CheckResults previousResults, List<CheckResult> checkResults) {
+		if (previousResults == null) {
+			return checkResults.isEmpty();
+		}
+		final List<CheckResult> previous = previousResults.getResults();
+		if (previous.size() != checkResults.size()) {
+			return false;
+		}
+		for (int i = 0; i < previous.size(); i++) {
+			final String previousExpression = previous.get(i).getFailingExpression();
+			final String expression = checkResults.get(i).getFailingExpression();
+			if (previous.get(i).getStatus() != checkResults.get(i).getStatus() ||
+					!(previousExpression != null ? previousExpression.equals(expression) : expression == null)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void setCheckResults(MeasurementSession measurementSession, List<CheckResult> checkResults, int previousConsecutiveFailures) {
 		if (checkResults.isEmpty()) {
 			checkResultsByMeasurementSessionId.remove(measurementSession.getId());
@@ -237,6 +262,20 @@ public class Incident {
 		return incident;
 	}
 
+	/**
+	 * Returns whether this incident has changed compared to the incident it is based on.
+	 * <p/>
+	 * Changes of the current values and changes of the number of consecutive failures after the check has failed
+	 * often enough to alert are not considered, because they are not relevant for alerting.
+	 *
+	 * @param check the check of this incident
+	 * @return <code>true</code>, if this incident should be persisted
+	 */
+	public boolean hasChanged(Check check) {
+		return previousConsecutiveFailures < 0 || hasStageChange() || failingExpressionsChanged ||
+				(consecutiveFailures != previousConsecutiveFailures && previousConsecutiveFailures < check.getAlertAfterXFailures());
+	}
+
 	public boolean isAlertIncident(Check check) {
 		if (isBackToOk() && hasEnoughConsecutiveFailures(check)) {
 			return true;
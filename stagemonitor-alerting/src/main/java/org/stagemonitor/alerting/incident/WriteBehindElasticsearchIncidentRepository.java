@@ -0,0 +1,234 @@
+package org.stagemonitor.alerting.incident;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.util.JsonUtils;
+
+/**
+ * A {@link ElasticsearchIncidentRepository} that keeps the incidents in memory and writes changes to elasticsearch
+ * in a single _bulk request when {@link #flush()} is called.
+ * <p/>
+ * The optimistic concurrency control is performed against the in-memory state, so
+ * {@link #createIncident(Incident)}, {@link #updateIncident(Incident)} and {@link #deleteIncident(Incident)} don't
+ * block on elasticsearch. The versions are also sent to elasticsearch. If a write is rejected because of a version
+ * conflict (for example because another instance has updated the incident in the meantime), the cached incident is
+ * dropped, so that it is read from elasticsearch again the next time it is requested. Apart from that, the cache is
+ * never refreshed.
+ * <p/>
+ * Only one write per check is kept until the next flush. If a flush fails completely, the pending writes are retried
+ * with the next flush.
+ * <p/>
+ * As a write can still be rejected after the incident has been changed in memory, alerts for an incident should only
+ * be sent after {@link #flushIncidents()} has reported the incident as written.
+ */
+public class WriteBehindElasticsearchIncidentRepository extends ElasticsearchIncidentRepository implements Flushable {
+
+	private static final String INDEX = "stagemonitor";
+	private static final String TYPE = "incidents";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final ElasticsearchClient elasticsearchClient;
+	/**
+	 * The cached incidents by check id. A <code>null</code> value means that there is no incident for the check.
+	 */
+	private final Map<String, Incident> incidentsByCheckId = new HashMap<String, Incident>();
+	private Map<String, PendingWrite> pendingWrites = new LinkedHashMap<String, PendingWrite>();
+
+	public WriteBehindElasticsearchIncidentRepository(ElasticsearchClient elasticsearchClient) {
+		super(elasticsearchClient);
+		this.elasticsearchClient = elasticsearchClient;
+	}
+
+	@Override
+	public synchronized Incident getIncidentByCheckId(String checkId) {
+		if (!incidentsByCheckId.containsKey(checkId)) {
+			incidentsByCheckId.put(checkId, super.getIncidentByCheckId(checkId));
+		}
+		return incidentsByCheckId.get(checkId);
+	}
+
+	@Override
+	public synchronized boolean deleteIncident(Incident incident) {
+		if (!isNextVersion(incident)) {
+			return false;
+		}
+		incidentsByCheckId.put(incident.getCheckId(), null);
+		addPendingWrite(new PendingWrite(Operation.DELETE, incident));
+		return true;
+	}
+
+	@Override
+	public synchronized boolean createIncident(Incident incident) {
+		if (getIncidentByCheckId(incident.getCheckId()) != null) {
+			return false;
+		}
+		incidentsByCheckId.put(incident.getCheckId(), incident);
+		addPendingWrite(new PendingWrite(Operation.CREATE, incident));
+		return true;
+	}
+
+	@Override
+	public synchronized boolean updateIncident(Incident incident) {
+		if (!isNextVersion(incident)) {
+			return false;
+		}
+		incidentsByCheckId.put(incident.getCheckId(), incident);
+		addPendingWrite(new PendingWrite(Operation.INDEX, incident));
+		return true;
+	}
+
+	private boolean isNextVersion(Incident incident) {
+		final Incident current = getIncidentByCheckId(incident.getCheckId());
+		return current != null && current.getVersion() == incident.getVersion() - 1;
+	}
+
+	private void addPendingWrite(PendingWrite write) {
+		final PendingWrite previous = pendingWrites.remove(write.incident.getCheckId());
+		if (previous != null && previous.operation == Operation.CREATE) {
+			if (write.operation == Operation.DELETE) {
+				// the incident has never been written to elasticsearch
+				return;
+			} else if (write.operation == Operation.INDEX) {
+				write = new PendingWrite(Operation.CREATE, write.incident);
+			}
+		}
+		pendingWrites.put(write.incident.getCheckId(), write);
+	}
+
+	/**
+	 * Writes all pending changes to elasticsearch in a single _bulk request
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushIncidents();
+	}
+
+	/**
+	 * Writes all pending changes to elasticsearch in a single _bulk request
+	 *
+	 * @return the incidents that have been written successfully
+	 */
+	public List<Incident> flushIncidents() throws IOException {
+		final Map<String, PendingWrite> writes;
+		synchronized (this) {
+			if (pendingWrites.isEmpty()) {
+				return Collections.emptyList();
+			}
+			writes = pendingWrites;
+			pendingWrites = new LinkedHashMap<String, PendingWrite>();
+		}
+		final List<PendingWrite> writeList = new ArrayList<PendingWrite>(writes.values());
+		final JsonNode response = elasticsearchClient.sendBulkRequest(toBulkRequest(writeList));
+		if (response == null || !response.has("items")) {
+			retry(writes);
+			return Collections.emptyList();
+		}
+		return handleResponse(writeList, response.get("items"));
+	}
+
+	/**
+	 * @param incident the incident
+	 * @return <code>true</code>, if the write of exactly this incident is pending, for example because the last flush
+	 * failed and the write is retried
+	 */
+	public synchronized boolean isWritePending(Incident incident) {
+		final PendingWrite pendingWrite = pendingWrites.get(incident.getCheckId());
+		return pendingWrite != null && pendingWrite.incident == incident;
+	}
+
+	private byte[] toBulkRequest(List<PendingWrite> writes) throws IOException {
+		final ObjectMapper mapper = JsonUtils.getMapper();
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		for (PendingWrite write : writes) {
+			final JsonGenerator jg = mapper.getFactory().createGenerator(os);
+			jg.writeStartObject();
+			jg.writeObjectFieldStart(write.operation.action);
+			jg.writeStringField("_index", INDEX);
+			jg.writeStringField("_type", TYPE);
+			jg.writeStringField("_id", write.incident.getCheckId());
+			jg.writeNumberField("_version", write.incident.getVersion());
+			jg.writeStringField("_version_type", "external");
+			jg.writeEndObject();
+			jg.writeEndObject();
+			jg.close();
+			os.write('\n');
+			if (write.operation != Operation.DELETE) {
+				mapper.writeValue(os, write.incident);
+				os.write('\n');
+			}
+		}
+		return os.toByteArray();
+	}
+
+	private List<Incident> handleResponse(List<PendingWrite> writes, JsonNode items) {
+		final List<Incident> written = new ArrayList<Incident>(writes.size());
+		final Iterator<JsonNode> itemIterator = items.iterator();
+		for (PendingWrite write : writes) {
+			if (!itemIterator.hasNext()) {
+				break;
+			}
+			final JsonNode item = itemIterator.next().get(write.operation.action);
+			final int status = item != null ? item.path("status").asInt() : -1;
+			if (status == 409) {
+				logger.debug("Version conflict for incident of check {}, dropping cached incident", write.incident.getCheckId());
+				invalidate(write.incident.getCheckId());
+			} else if (status >= 400 && !(status == 404 && write.operation == Operation.DELETE)) {
+				logger.warn("Could not {} incident of check {}: {}", write.operation.action, write.incident.getCheckId(), item);
+				invalidate(write.incident.getCheckId());
+			} else if (item != null) {
+				written.add(write.incident);
+			}
+		}
+		return written;
+	}
+
+	private synchronized void invalidate(String checkId) {
+		if (!pendingWrites.containsKey(checkId)) {
+			incidentsByCheckId.remove(checkId);
+		}
+	}
+
+	private synchronized void retry(Map<String, PendingWrite> writes) {
+		for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+			// newer writes supersede the failed ones
+			if (!pendingWrites.containsKey(entry.getKey())) {
+				pendingWrites.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private enum Operation {
+		CREATE("create"), INDEX("index"), DELETE("delete");
+
+		private final String action;
+
+		Operation(String action) {
+			this.action = action;
+		}
+	}
+
+	private static class PendingWrite {
+		private final Operation operation;
+		private final Incident incident;
+
+		private PendingWrite(Operation operation, Incident incident) {
+			this.operation = operation;
+			this.incident = incident;
+		}
+	}
+}
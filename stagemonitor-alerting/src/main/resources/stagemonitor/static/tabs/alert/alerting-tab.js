@@ -383,6 +383,14 @@
 					check.thresholds.WARN = check.thresholds.WARN || [];
 					check.thresholds.ERROR = check.thresholds.ERROR || [];
 					check.thresholds.CRITICAL = check.thresholds.CRITICAL || [];
+					// the modal has no fields for baseline and expression thresholds, so keep the ones of the stored check
+					var storedCheck = check.id ? checksById[check.id] : undefined;
+					if (storedCheck && storedCheck.baselineThresholds) {
+						check.baselineThresholds = utils.clone(storedCheck.baselineThresholds);
+					}
+					if (storedCheck && storedCheck.expressionThresholds) {
+						check.expressionThresholds = utils.clone(storedCheck.expressionThresholds);
+					}
 					return check;
 				}
 
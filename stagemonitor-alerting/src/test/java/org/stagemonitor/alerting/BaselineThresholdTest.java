@@ -0,0 +1,126 @@
+package org.stagemonitor.alerting;
+
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.alerting.check.BaselineStore;
+import org.stagemonitor.alerting.check.BaselineThreshold;
+import org.stagemonitor.alerting.check.Check;
+import org.stagemonitor.alerting.check.CheckResult;
+import org.stagemonitor.alerting.check.Threshold;
+import org.stagemonitor.core.util.JsonUtils;
+
+public class BaselineThresholdTest {
+
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	private Check check;
+	private BaselineStore baselineStore;
+	private long timestamp;
+
+	@Before
+	public void setUp() throws Exception {
+		check = new Check();
+		baselineStore = new BaselineStore(10);
+	}
+
+	@Test
+	public void testEwmaBaseline() throws Exception {
+		check.getWarnBaselines().add(new BaselineThreshold("mean", Threshold.Operator.GREATER, 3, BaselineThreshold.Method.EWMA, 0));
+
+		for (int i = 0; i < 20; i++) {
+			assertEquals(0, check(i % 2 == 0 ? 100 : 110).size());
+		}
+		assertEquals(0, check(115).size());
+
+		final List<CheckResult> results = check(200);
+		assertEquals(1, results.size());
+		assertEquals(CheckResult.Status.WARN, results.get(0).getStatus());
+		assertEquals("test.mean > 3.0 standard deviations above the EWMA baseline", results.get(0).getFailingExpression());
+		assertEquals(200, results.get(0).getCurrentValue(), 0);
+	}
+
+	@Test
+	public void testNoAlertsBeforeBaselineIsEstablished() throws Exception {
+		check.getWarnBaselines().add(new BaselineThreshold("mean", Threshold.Operator.GREATER, 3, BaselineThreshold.Method.EWMA, 0));
+
+		assertEquals(0, check(1).size());
+		assertEquals(0, check(1000).size());
+	}
+
+	@Test
+	public void testLowerBand() throws Exception {
+		check.getErrorBaselines().add(new BaselineThreshold("mean", Threshold.Operator.LESS, 2, BaselineThreshold.Method.EWMA, 0));
+
+		for (int i = 0; i < 20; i++) {
+			check(i % 2 == 0 ? 100 : 110);
+		}
+		assertEquals(0, check(200).size());
+		assertEquals(CheckResult.Status.ERROR, check(0).get(0).getStatus());
+	}
+
+	@Test
+	public void testSeveritiesShareBaseline() throws Exception {
+		check.getCriticalBaselines().add(new BaselineThreshold("mean", Threshold.Operator.GREATER, 10, BaselineThreshold.Method.EWMA, 0));
+		check.getWarnBaselines().add(new BaselineThreshold("mean", Threshold.Operator.GREATER, 3, BaselineThreshold.Method.EWMA, 0));
+
+		for (int i = 0; i < 20; i++) {
+			check(i % 2 == 0 ? 100 : 110);
+		}
+		assertEquals(1, baselineStore.size());
+		assertEquals(CheckResult.Status.WARN, check(150).get(0).getStatus());
+		assertEquals(CheckResult.Status.CRITICAL, check(1000).get(0).getStatus());
+	}
+
+	@Test
+	public void testSeasonalBaseline() throws Exception {
+		final long season = TimeUnit.HOURS.toSeconds(1);
+		check.getWarnBaselines().add(new BaselineThreshold("mean", Threshold.Operator.GREATER, 3, BaselineThreshold.Method.SEASONAL, season));
+
+		// the value is high in the first half of the hour and low in the second half
+		for (int i = 0; i < 120; i++) {
+			assertEquals(0, check(i % 60 < 30 ? 1000 + i % 2 : 10 + i % 2).size());
+		}
+		// a value that would be normal in the first half is an anomaly in the second half
+		timestamp += 30 * MINUTE;
+		assertEquals(1, check(1000).size());
+	}
+
+	@Test
+	public void testBaselinesAreBounded() throws Exception {
+		baselineStore = new BaselineStore(2);
+		check.getWarnBaselines().add(new BaselineThreshold("mean", Threshold.Operator.GREATER, 3, BaselineThreshold.Method.EWMA, 0));
+
+		for (int i = 0; i < 5; i++) {
+			check.check("test" + i, singletonMap("mean", 1d), baselineStore, timestamp);
+		}
+		assertEquals(2, baselineStore.size());
+
+		baselineStore.retainChecks(Collections.<String>emptyList());
+		assertEquals(0, baselineStore.size());
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		check.getWarnBaselines().add(new BaselineThreshold("p95", Threshold.Operator.GREATER, 3, BaselineThreshold.Method.SEASONAL, 0));
+
+		final Check checkFromJson = JsonUtils.getMapper().readValue(JsonUtils.toJson(check), Check.class);
+		final BaselineThreshold threshold = checkFromJson.getWarnBaselines().get(0);
+		assertEquals("p95", threshold.getMetric());
+		assertEquals(BaselineThreshold.Method.SEASONAL, threshold.getMethod());
+		assertEquals(BaselineThreshold.DEFAULT_SEASON_SECONDS, threshold.getSeasonSeconds());
+		assertTrue(checkFromJson.getErrorBaselines().isEmpty());
+	}
+
+	private List<CheckResult> check(double value) {
+		timestamp += MINUTE;
+		return check.check("test", singletonMap("mean", value), baselineStore, timestamp);
+	}
+}
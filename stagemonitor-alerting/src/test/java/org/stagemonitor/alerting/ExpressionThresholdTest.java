@@ -0,0 +1,163 @@
+package org.stagemonitor.alerting;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.alerting.check.BaselineStore;
+import org.stagemonitor.alerting.check.Check;
+import org.stagemonitor.alerting.check.CheckResult;
+import org.stagemonitor.alerting.check.ExpressionThreshold;
+import org.stagemonitor.alerting.check.MetricLookup;
+import org.stagemonitor.core.util.JsonUtils;
+
+public class ExpressionThresholdTest {
+
+	private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+	private final Map<String, Map<String, Double>> metrics = new HashMap<String, Map<String, Double>>();
+	private final MetricLookup metricLookup = new MetricLookup() {
+		@Override
+		public Map<String, Double> getValues(String graphiteName) {
+			return metrics.get(graphiteName);
+		}
+	};
+	private Check check;
+	private BaselineStore baselineStore;
+	private long timestamp;
+
+	@Before
+	public void setUp() throws Exception {
+		check = new Check();
+		baselineStore = new BaselineStore(10);
+	}
+
+	@Test
+	public void testArithmeticAndPrecedence() throws Exception {
+		assertTrue(isTrue("1 + 2 * 3 == 7"));
+		assertTrue(isTrue("(1 + 2) * 3 == 9"));
+		assertTrue(isTrue("-2 * -2 >= 4"));
+		assertTrue(isTrue("10 / 4 == 2.5"));
+		assertTrue(isTrue("1 < 2 and 2 < 3"));
+		assertTrue(isTrue("1 > 2 or 2 < 3"));
+		assertTrue(isTrue("not 1 > 2"));
+		assertTrue(isTrue("(1 > 2 or 2 > 1) and 1 != 2"));
+		assertTrue(!isTrue("1 / 0 > 0"));
+	}
+
+	@Test
+	public void testRatioBetweenMetrics() throws Exception {
+		check.getCriticalExpressions().add(new ExpressionThreshold("metric('error_rate.All').m1_rate / metric(\"request_throughput.All\").m1_rate > 0.05"));
+		metrics.put("error_rate.All", singletonValue("m1_rate", 1));
+		metrics.put("request_throughput.All", singletonValue("m1_rate", 100));
+
+		assertEquals(0, check(0).size());
+
+		metrics.put("error_rate.All", singletonValue("m1_rate", 10));
+		final List<CheckResult> results = check(0);
+		assertEquals(1, results.size());
+		assertEquals(CheckResult.Status.CRITICAL, results.get(0).getStatus());
+		assertEquals(0.1, results.get(0).getCurrentValue(), 0.0001);
+		assertEquals("test: metric('error_rate.All').m1_rate / metric(\"request_throughput.All\").m1_rate > 0.05",
+				results.get(0).getFailingExpression());
+	}
+
+	@Test
+	public void testUnknownMetric() throws Exception {
+		check.getWarnExpressions().add(new ExpressionThreshold("metric('unknown').count >= 0"));
+		assertEquals(0, check(0).size());
+	}
+
+	@Test
+	public void testRegressionComparedToPreviousIntervals() throws Exception {
+		check.getWarnExpressions().add(new ExpressionThreshold("p99 > 1.5 * ago(p99, 3)"));
+
+		assertEquals(0, check(100).size());
+		assertEquals(0, check(200).size());
+		assertEquals(0, check(200).size());
+		// compared to 100
+		assertEquals(0, check(140).size());
+		// compared to 200
+		assertEquals(0, check(250).size());
+		assertEquals(1, check(301).size());
+	}
+
+	@Test
+	public void testDelta() throws Exception {
+		check.getWarnExpressions().add(new ExpressionThreshold("delta(p99, 1) > 10"));
+
+		assertEquals(0, check(100).size());
+		assertEquals(0, check(110).size());
+		assertEquals(1, check(121).size());
+	}
+
+	@Test
+	public void testForMinutes() throws Exception {
+		check.getWarnExpressions().add(new ExpressionThreshold("p99 > 100 for 2 minutes"));
+
+		assertEquals(0, check(200).size());
+		assertEquals(0, check(200).size());
+		assertEquals(1, check(200).size());
+		assertEquals(0, check(50).size());
+		assertEquals(0, check(200).size());
+	}
+
+	@Test
+	public void testStateIsUpdatedForAllSeverities() throws Exception {
+		check.getCriticalExpressions().add(new ExpressionThreshold("p99 > 1000"));
+		check.getWarnExpressions().add(new ExpressionThreshold("p99 > 100 for 1 minutes"));
+
+		assertEquals(CheckResult.Status.CRITICAL, check(2000).get(0).getStatus());
+		assertEquals(CheckResult.Status.WARN, check(200).get(0).getStatus());
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		check.getWarnExpressions().add(new ExpressionThreshold("p99 > 1.5 * ago(p99, 10) for 5 minutes"));
+
+		final Check checkFromJson = JsonUtils.getMapper().readValue(JsonUtils.toJson(check), Check.class);
+		assertEquals("p99 > 1.5 * ago(p99, 10) for 5 minutes", checkFromJson.getWarnExpressions().get(0).getExpression());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidOperator() throws Exception {
+		new ExpressionThreshold("p99 = 1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingParenthesis() throws Exception {
+		new ExpressionThreshold("(p99 > 1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoCondition() throws Exception {
+		new ExpressionThreshold("p99 + 1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTrailingTokens() throws Exception {
+		new ExpressionThreshold("p99 > 1 2");
+	}
+
+	private boolean isTrue(String expression) {
+		return new ExpressionThreshold(expression).check(CheckResult.Status.WARN, "id", "test", new HashMap<String, Double>(),
+				metricLookup, baselineStore, 0).getStatus() == CheckResult.Status.WARN;
+	}
+
+	private List<CheckResult> check(double p99) {
+		timestamp += MINUTE;
+		return check.check("test", singletonValue("p99", p99), baselineStore, metricLookup, timestamp);
+	}
+
+	private static Map<String, Double> singletonValue(String name, double value) {
+		final Map<String, Double> values = new HashMap<String, Double>();
+		values.put(name, value);
+		return values;
+	}
+}
@@ -10,8 +10,8 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
-import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.map;
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.timer;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -20,10 +20,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import com.codahale.metrics.Counter;
-import com.codahale.metrics.Gauge;
-import com.codahale.metrics.Histogram;
-import com.codahale.metrics.Meter;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -38,20 +34,24 @@ import org.stagemonitor.alerting.incident.CheckResults;
 import org.stagemonitor.alerting.incident.ConcurrentMapIncidentRepository;
 import org.stagemonitor.alerting.incident.Incident;
 import org.stagemonitor.alerting.incident.IncidentRepository;
+import org.stagemonitor.alerting.incident.WriteBehindElasticsearchIncidentRepository;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.MeasurementSession;
 import org.stagemonitor.core.configuration.Configuration;
-import org.stagemonitor.core.metrics.MetricsReporterTestHelper;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.util.JsonUtils;
 
 public class ThresholdMonitoringReporterTest {
 
 	private final MeasurementSession measurementSession = new MeasurementSession("testApp", "testHost", "testInstance");
+	private final Metric2Registry registry = new Metric2Registry();
 	private ThresholdMonitoringReporter thresholdMonitoringReporter;
 	private Alerter alerter;
 	private IncidentRepository incidentRepository;
 	private AlertingPlugin alertingPlugin;
+	private AlertSender alertSender;
 
 	@Before
 	public void setUp() throws Exception {
@@ -69,10 +69,10 @@ public class ThresholdMonitoringReporterTest {
 		alerter = mock(Alerter.class);
 		when(alerter.getAlerterType()).thenReturn("Test Alerter");
 		when(alerter.isAvailable()).thenReturn(true);
-		AlertSender alertSender = new AlertSender(configuration, Collections.singletonList(alerter));
+		alertSender = new AlertSender(configuration, Collections.singletonList(alerter));
 
 		incidentRepository = spy(new ConcurrentMapIncidentRepository(new ConcurrentHashMap<String, Incident>()));
-		thresholdMonitoringReporter = new ThresholdMonitoringReporter(new Metric2Registry(), alertingPlugin,
+		thresholdMonitoringReporter = new ThresholdMonitoringReporter(registry, alertingPlugin,
 				alertSender, incidentRepository, measurementSession);
 	}
 
@@ -101,6 +101,56 @@ public class ThresholdMonitoringReporterTest {
 		assertEquals(CheckResult.Status.WARN, result.getStatus());
 	}
 
+	@Test
+	public void testWriteBehindAlertIsSentAfterIncidentIsWritten() throws Exception {
+		final ElasticsearchClient elasticsearchClient = useWriteBehindRepository();
+		when(elasticsearchClient.sendBulkRequest(any(byte[].class)))
+				.thenReturn(JsonUtils.getMapper().readTree("{\"items\":[{\"create\":{\"status\":201}}]}"));
+		Check check = createCheckCheckingMean(1, 5);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+
+		checkMetrics();
+
+		verify(alerter).alert(any(Incident.class), any(Subscription.class));
+	}
+
+	@Test
+	public void testWriteBehindNoAlertOnVersionConflict() throws Exception {
+		final ElasticsearchClient elasticsearchClient = useWriteBehindRepository();
+		when(elasticsearchClient.sendBulkRequest(any(byte[].class)))
+				.thenReturn(JsonUtils.getMapper().readTree("{\"items\":[{\"create\":{\"status\":409}}]}"));
+		Check check = createCheckCheckingMean(1, 5);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+
+		checkMetrics();
+
+		verify(alerter, times(0)).alert(any(Incident.class), any(Subscription.class));
+	}
+
+	@Test
+	public void testWriteBehindAlertIsSentWhenFailedWriteIsRetried() throws Exception {
+		final ElasticsearchClient elasticsearchClient = useWriteBehindRepository();
+		when(elasticsearchClient.sendBulkRequest(any(byte[].class)))
+				.thenReturn(null)
+				.thenReturn(JsonUtils.getMapper().readTree("{\"items\":[{\"create\":{\"status\":201}}]}"));
+		Check check = createCheckCheckingMean(1, 5);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+
+		checkMetrics();
+		verify(alerter, times(0)).alert(any(Incident.class), any(Subscription.class));
+
+		checkMetrics();
+		verify(alerter).alert(any(Incident.class), any(Subscription.class));
+	}
+
+	private ElasticsearchClient useWriteBehindRepository() {
+		final ElasticsearchClient elasticsearchClient = mock(ElasticsearchClient.class);
+		incidentRepository = new WriteBehindElasticsearchIncidentRepository(elasticsearchClient);
+		thresholdMonitoringReporter = new ThresholdMonitoringReporter(registry, alertingPlugin,
+				alertSender, incidentRepository, measurementSession);
+		return elasticsearchClient;
+	}
+
 	@Test
 	public void testAlertAfter2Failures() throws Exception {
 		Check check = createCheckCheckingMean(2, 6);
@@ -221,20 +271,70 @@ public class ThresholdMonitoringReporterTest {
 		return check;
 	}
 
+	@Test
+	public void testUnchangedIncidentIsNotPersisted() throws Exception {
+		Check check = createCheckCheckingMean(1, 5);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+
+		checkMetrics();
+		checkMetrics(6, 4, 6);
+
+		verify(incidentRepository).createIncident(any(Incident.class));
+		verify(incidentRepository, times(0)).updateIncident(any(Incident.class));
+		verify(alerter, times(1)).alert(any(Incident.class), any(Subscription.class));
+
+		checkMetrics(6, 4, 1);
+		verify(incidentRepository).updateIncident(any(Incident.class));
+	}
+
+	@Test
+	public void testTargetsAreMaintainedIncrementally() throws Exception {
+		Check check = createCheckCheckingMean(1, 5);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+		thresholdMonitoringReporter.report();
+		verify(alerter, times(0)).alert(any(Incident.class), any(Subscription.class));
+
+		registry.register(name("test").tag("name", "timer4").build(), timer(TimeUnit.MILLISECONDS.toNanos(10)));
+		thresholdMonitoringReporter.report();
+
+		ArgumentCaptor<Incident> incident = ArgumentCaptor.forClass(Incident.class);
+		verify(alerter).alert(incident.capture(), any(Subscription.class));
+		CheckResult result = incident.getValue().getCheckResults().iterator().next().getResults().get(0);
+		assertEquals("test.timer4.mean >= 5.0", result.getFailingExpression());
+		assertEquals(10.0, result.getCurrentValue(), 0);
+
+		registry.remove(name("test").tag("name", "timer4").build());
+		thresholdMonitoringReporter.report();
+		assertNull(incidentRepository.getIncidentByCheckId(check.getId()));
+	}
+
+	@Test
+	public void testChangedTargetIsResolvedAgain() throws Exception {
+		Check check = createCheckCheckingMean(1, 5);
+		when(alertingPlugin.getChecks()).thenReturn(Collections.singletonMap(check.getId(), check));
+		checkMetrics(1, 1, 1);
+		assertNull(incidentRepository.getIncidentByCheckId(check.getId()));
+
+		check.setTarget(Pattern.compile("test.some.other.timer"));
+		thresholdMonitoringReporter.report();
+
+		assertEquals(CheckResult.Status.WARN, incidentRepository.getIncidentByCheckId(check.getId()).getNewStatus());
+	}
+
 	private void checkMetrics() {
 		checkMetrics(5, 4, 6);
 	}
 
 	private void checkMetrics(long timer1Mean, long timer2Mean, long timer3Mean) {
-		thresholdMonitoringReporter.report(
-				MetricsReporterTestHelper.<Gauge>map(),
-				MetricsReporterTestHelper.<Counter>map(),
-				MetricsReporterTestHelper.<Histogram>map(),
-				MetricsReporterTestHelper.<Meter>map(),
-				map("test.timer1", timer(TimeUnit.MILLISECONDS.toNanos(timer1Mean)))
-						.add("test.timer2", timer(TimeUnit.MILLISECONDS.toNanos(timer2Mean)))
-						.add("test.timer3", timer(TimeUnit.MILLISECONDS.toNanos(timer3Mean)))
-						.add("test.some.other.timer", timer(TimeUnit.MILLISECONDS.toNanos(999)))
-		);
+		setTimer(name("test").tag("name", "timer1").build(), timer1Mean);
+		setTimer(name("test").tag("name", "timer2").build(), timer2Mean);
+		setTimer(name("test").tag("name", "timer3").build(), timer3Mean);
+		setTimer(name("test").tag("a", "some").tag("b", "other").tag("c", "timer").build(), 999);
+		thresholdMonitoringReporter.report();
+	}
+
+	private void setTimer(MetricName name, long meanMs) {
+		registry.remove(name);
+		registry.register(name, timer(TimeUnit.MILLISECONDS.toNanos(meanMs)));
 	}
 }
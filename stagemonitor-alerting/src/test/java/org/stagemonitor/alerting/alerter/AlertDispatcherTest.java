@@ -0,0 +1,302 @@
+package org.stagemonitor.alerting.alerter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counting;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.stagemonitor.alerting.AlertingPlugin;
+import org.stagemonitor.alerting.incident.Incident;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+
+public class AlertDispatcherTest {
+
+	private final Metric2Registry registry = new Metric2Registry();
+	private final Subscription subscription = new Subscription();
+	private AlertingPlugin alertingPlugin;
+	private Alerter alerter;
+	private AlertDispatcher alertDispatcher;
+
+	@Before
+	public void setUp() throws Exception {
+		alertingPlugin = mock(AlertingPlugin.class);
+		when(alertingPlugin.getAlertQueueCapacity()).thenReturn(10);
+		when(alertingPlugin.getAlertTimeoutMillis()).thenReturn(1000L);
+		when(alertingPlugin.getMaxAlertRetries()).thenReturn(3);
+		when(alertingPlugin.getMaxAlertsPerMinute()).thenReturn(0);
+		alerter = mock(Alerter.class);
+		when(alerter.getAlerterType()).thenReturn("test");
+		subscription.setId("1");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		alertDispatcher.close();
+	}
+
+	private AlertDispatcher createAlertDispatcher() {
+		alertDispatcher = new AlertDispatcher(alerter, alertingPlugin, registry, 1);
+		return alertDispatcher;
+	}
+
+	@Test
+	public void testAlertsAreSentAsynchronously() throws Exception {
+		final CountDownLatch release = blockAlerter();
+		createAlertDispatcher();
+		final Incident incident = createIncident("check");
+
+		alertDispatcher.dispatch(incident, subscription);
+		verify(alerter, timeout(1000)).alert(same(incident), same(subscription));
+		assertEquals(0, alertDispatcher.getQueueSize());
+		release.countDown();
+
+		awaitCount(registry.timer(name("alert_delivery_time").tag("alerter", "test").build()), 1);
+	}
+
+	@Test
+	public void testPendingAlertsAreCoalesced() throws Exception {
+		final CountDownLatch release = blockAlerter();
+		createAlertDispatcher();
+		final Incident first = createIncident("check1");
+		final Incident outdated = createIncident("check2");
+		final Incident latest = createIncident("check2");
+
+		alertDispatcher.dispatch(first, subscription);
+		verify(alerter, timeout(1000)).alert(same(first), same(subscription));
+		alertDispatcher.dispatch(outdated, subscription);
+		alertDispatcher.dispatch(latest, subscription);
+		assertEquals(1, alertDispatcher.getQueueSize());
+		assertEquals(1, registry.meter(name("alerts_coalesced").tag("alerter", "test").build()).getCount());
+
+		release.countDown();
+		verify(alerter, timeout(1000)).alert(same(latest), same(subscription));
+		verify(alerter, never()).alert(same(outdated), any(Subscription.class));
+	}
+
+	@Test
+	public void testPendingAlertsOfDigestAlertersAreSentAsDigest() throws Exception {
+		final DigestAlerter digestAlerter = mock(DigestAlerter.class);
+		when(digestAlerter.getAlerterType()).thenReturn("test");
+		alerter = digestAlerter;
+		final CountDownLatch release = blockAlerter();
+		createAlertDispatcher();
+		final Incident first = createIncident("check1");
+		final Incident outdated = createIncident("check2");
+		final Incident second = createIncident("check3");
+		final Incident latest = createIncident("check2");
+
+		alertDispatcher.dispatch(first, subscription);
+		verify(alerter, timeout(1000)).alert(same(first), same(subscription));
+		alertDispatcher.dispatch(outdated, subscription);
+		alertDispatcher.dispatch(second, subscription);
+		alertDispatcher.dispatch(latest, subscription);
+		assertEquals(2, alertDispatcher.getQueueSize());
+		assertEquals(2, registry.meter(name("alerts_coalesced").tag("alerter", "test").build()).getCount());
+
+		release.countDown();
+		verify(digestAlerter, timeout(1000)).alertDigest(eq(Arrays.asList(latest, second)), same(subscription));
+		verify(alerter, times(1)).alert(any(Incident.class), any(Subscription.class));
+	}
+
+	@Test
+	public void testNewIncidentsOfDigestAlertersAreNotDelayedByRetries() throws Exception {
+		final DigestAlerter digestAlerter = mock(DigestAlerter.class);
+		when(digestAlerter.getAlerterType()).thenReturn("test");
+		alerter = digestAlerter;
+		final Incident failing = createIncident("check1");
+		doThrow(new RuntimeException("unavailable")).when(alerter).alert(same(failing), same(subscription));
+		alertDispatcher = new AlertDispatcher(alerter, alertingPlugin, registry, TimeUnit.MINUTES.toMillis(1));
+
+		alertDispatcher.dispatch(failing, subscription);
+		verify(alerter, timeout(1000)).alert(same(failing), same(subscription));
+		awaitCount(registry.meter(name("alert_delivery_failures").tag("alerter", "test").build()), 1);
+		final Incident second = createIncident("check2");
+		alertDispatcher.dispatch(second, subscription);
+
+		verify(alerter, timeout(1000)).alert(same(second), same(subscription));
+		verify(digestAlerter, never()).alertDigest(anyListOf(Incident.class), any(Subscription.class));
+		assertEquals(1, alertDispatcher.getQueueSize());
+
+		final Incident latest = createIncident("check1");
+		alertDispatcher.dispatch(latest, subscription);
+		verify(alerter, timeout(1000)).alert(same(latest), same(subscription));
+		verify(alerter, times(1)).alert(same(failing), same(subscription));
+		assertEquals(0, alertDispatcher.getQueueSize());
+	}
+
+	@Test
+	public void testFailedAlertsAreRetried() throws Exception {
+		final Incident incident = createIncident("check");
+		doThrow(new RuntimeException("unavailable")).doNothing().when(alerter).alert(incident, subscription);
+		createAlertDispatcher();
+
+		alertDispatcher.dispatch(incident, subscription);
+
+		verify(alerter, timeout(1000).times(2)).alert(same(incident), same(subscription));
+		assertEquals(1, registry.meter(name("alert_delivery_failures").tag("alerter", "test").build()).getCount());
+	}
+
+	@Test
+	public void testGiveUpAfterMaxRetries() throws Exception {
+		when(alertingPlugin.getMaxAlertRetries()).thenReturn(1);
+		final Incident incident = createIncident("check");
+		doThrow(new RuntimeException("unavailable")).when(alerter).alert(incident, subscription);
+		createAlertDispatcher();
+
+		alertDispatcher.dispatch(incident, subscription);
+
+		verify(alerter, timeout(1000).times(2)).alert(same(incident), same(subscription));
+		Thread.sleep(50);
+		verify(alerter, times(2)).alert(same(incident), same(subscription));
+		assertEquals(0, alertDispatcher.getQueueSize());
+	}
+
+	@Test
+	public void testBackoffIsPerAlert() throws Exception {
+		final Incident failing = createIncident("check1");
+		doThrow(new RuntimeException("unavailable")).when(alerter).alert(failing, subscription);
+		alertDispatcher = new AlertDispatcher(alerter, alertingPlugin, registry, TimeUnit.MINUTES.toMillis(1));
+		final Incident second = createIncident("check2");
+
+		alertDispatcher.dispatch(failing, subscription);
+		alertDispatcher.dispatch(second, subscription);
+		verify(alerter, timeout(1000)).alert(same(second), same(subscription));
+
+		final Incident third = createIncident("check3");
+		alertDispatcher.dispatch(third, subscription);
+		verify(alerter, timeout(1000)).alert(same(third), same(subscription));
+		verify(alerter, times(1)).alert(same(failing), same(subscription));
+		assertEquals(1, alertDispatcher.getQueueSize());
+	}
+
+	@Test
+	public void testAlerterThreadsAreBounded() throws Exception {
+		when(alertingPlugin.getAlertTimeoutMillis()).thenReturn(10L);
+		when(alertingPlugin.getMaxAlertRetries()).thenReturn(0);
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				// ignores interrupts
+				while (release.getCount() > 0) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				return null;
+			}
+		}).when(alerter).alert(any(Incident.class), any(Subscription.class));
+		createAlertDispatcher();
+
+		for (int i = 0; i < 6; i++) {
+			alertDispatcher.dispatch(createIncident("check" + i), subscription);
+		}
+
+		awaitCount(registry.meter(name("alert_delivery_failures").tag("alerter", "test").build()), 6);
+		verify(alerter, times(4)).alert(any(Incident.class), same(subscription));
+		release.countDown();
+	}
+
+	@Test
+	public void testCloseDoesNotRemoveGaugeOfOtherDispatcher() throws Exception {
+		final AlertDispatcher outdated = new AlertDispatcher(alerter, alertingPlugin, registry, 1);
+		createAlertDispatcher();
+
+		outdated.close();
+
+		assertNotNull(registry.getGauges().get(name("alert_queue_size").tag("alerter", "test").build()));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		when(alertingPlugin.getAlertTimeoutMillis()).thenReturn(10L);
+		when(alertingPlugin.getMaxAlertRetries()).thenReturn(0);
+		final CountDownLatch release = blockAlerter();
+		createAlertDispatcher();
+
+		alertDispatcher.dispatch(createIncident("check"), subscription);
+
+		awaitCount(registry.meter(name("alert_delivery_failures").tag("alerter", "test").build()), 1);
+		release.countDown();
+	}
+
+	@Test
+	public void testRateLimit() throws Exception {
+		when(alertingPlugin.getMaxAlertsPerMinute()).thenReturn(1);
+		createAlertDispatcher();
+
+		alertDispatcher.dispatch(createIncident("check1"), subscription);
+		alertDispatcher.dispatch(createIncident("check2"), subscription);
+
+		verify(alerter, timeout(1000)).alert(any(Incident.class), same(subscription));
+		Thread.sleep(50);
+		verify(alerter, times(1)).alert(any(Incident.class), same(subscription));
+		assertEquals(1, alertDispatcher.getQueueSize());
+	}
+
+	@Test
+	public void testDropAlertsWhenQueueIsFull() throws Exception {
+		when(alertingPlugin.getAlertQueueCapacity()).thenReturn(1);
+		final CountDownLatch release = blockAlerter();
+		createAlertDispatcher();
+		final Incident first = createIncident("check1");
+
+		alertDispatcher.dispatch(first, subscription);
+		verify(alerter, timeout(1000)).alert(same(first), same(subscription));
+		alertDispatcher.dispatch(createIncident("check2"), subscription);
+		alertDispatcher.dispatch(createIncident("check3"), subscription);
+
+		assertEquals(1, alertDispatcher.getQueueSize());
+		assertEquals(1, registry.meter(name("alerts_dropped").tag("alerter", "test").build()).getCount());
+		release.countDown();
+	}
+
+	private void awaitCount(Counting counting, long expectedCount) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		while (counting.getCount() < expectedCount && System.currentTimeMillis() - start < 1000) {
+			Thread.sleep(1);
+		}
+		assertEquals(expectedCount, counting.getCount());
+	}
+
+	private CountDownLatch blockAlerter() {
+		final CountDownLatch release = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				release.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		}).when(alerter).alert(any(Incident.class), any(Subscription.class));
+		return release;
+	}
+
+	private Incident createIncident(String checkId) {
+		final Incident incident = new Incident();
+		incident.setCheckId(checkId);
+		return incident;
+	}
+}
@@ -0,0 +1,82 @@
+package org.stagemonitor.alerting.incident;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.stagemonitor.alerting.incident.IncidentRepositoryTest.createIncidentWithVersion;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.configuration.AbstractElasticsearchTest;
+
+public class WriteBehindElasticsearchIncidentRepositoryTest extends AbstractElasticsearchTest {
+
+	private WriteBehindElasticsearchIncidentRepository writeBehindRepository;
+	private ElasticsearchIncidentRepository elasticsearchRepository;
+
+	@Before
+	public void setUp() throws Exception {
+		writeBehindRepository = new WriteBehindElasticsearchIncidentRepository(elasticsearchClient);
+		elasticsearchRepository = new ElasticsearchIncidentRepository(elasticsearchClient);
+	}
+
+	@Test
+	public void testWritesAreDeferredUntilFlush() throws Exception {
+		assertTrue(writeBehindRepository.createIncident(createIncidentWithVersion("id1", 1)));
+		assertTrue(writeBehindRepository.updateIncident(createIncidentWithVersion("id1", 2)));
+		assertEquals(2, writeBehindRepository.getIncidentByCheckId("id1").getVersion());
+		assertNull(elasticsearchRepository.getIncidentByCheckId("id1"));
+
+		writeBehindRepository.flush();
+		refresh();
+
+		assertEquals(2, elasticsearchRepository.getIncidentByCheckId("id1").getVersion());
+
+		assertTrue(writeBehindRepository.deleteIncident(createIncidentWithVersion("id1", 3)));
+		writeBehindRepository.flush();
+		refresh();
+
+		assertNull(elasticsearchRepository.getIncidentByCheckId("id1"));
+	}
+
+	@Test
+	public void testCreateAndDeleteBeforeFlush() throws Exception {
+		assertTrue(writeBehindRepository.createIncident(createIncidentWithVersion("id1", 1)));
+		assertTrue(writeBehindRepository.deleteIncident(createIncidentWithVersion("id1", 2)));
+
+		writeBehindRepository.flush();
+		refresh();
+
+		assertNull(writeBehindRepository.getIncidentByCheckId("id1"));
+		assertNull(elasticsearchRepository.getIncidentByCheckId("id1"));
+	}
+
+	@Test
+	public void testOptimisticLockingAgainstCache() throws Exception {
+		assertTrue(writeBehindRepository.createIncident(createIncidentWithVersion("id1", 2)));
+		assertFalse(writeBehindRepository.createIncident(createIncidentWithVersion("id1", 3)));
+		assertFalse(writeBehindRepository.updateIncident(createIncidentWithVersion("id1", 2)));
+		assertFalse(writeBehindRepository.deleteIncident(createIncidentWithVersion("id1", 1)));
+		assertTrue(writeBehindRepository.updateIncident(createIncidentWithVersion("id1", 3)));
+	}
+
+	@Test
+	public void testVersionConflictRefreshesCache() throws Exception {
+		assertTrue(writeBehindRepository.createIncident(createIncidentWithVersion("id1", 1)));
+		writeBehindRepository.flush();
+		// another instance updates the incident
+		assertTrue(elasticsearchRepository.updateIncident(createIncidentWithVersion("id1", 2)));
+		refresh();
+
+		assertTrue(writeBehindRepository.updateIncident(createIncidentWithVersion("id1", 2)));
+		writeBehindRepository.flush();
+		refresh();
+
+		assertEquals(2, writeBehindRepository.getIncidentByCheckId("id1").getVersion());
+		assertTrue(writeBehindRepository.updateIncident(createIncidentWithVersion("id1", 3)));
+		writeBehindRepository.flush();
+		refresh();
+		assertEquals(3, elasticsearchRepository.getIncidentByCheckId("id1").getVersion());
+	}
+}
@@ -0,0 +1,60 @@
+package org.stagemonitor.benchmark.requestmonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.requestmonitor.profiler.CallStackElement;
+import org.stagemonitor.requestmonitor.profiler.CompactCallStackSerializer;
+
+/**
+ * Compares the compact binary call stack serialization with the JSON and ascii representations
+ */
+@State(value = Scope.Benchmark)
+public class CallStackSerializationBenchmark {
+
+	@Param({"100", "5000"})
+	private int nodes;
+
+	private CallStackElement callStack;
+	private byte[] serialized;
+
+	@Setup
+	public void init() throws Exception {
+		callStack = new CallStackElement(null, "total", 0);
+		callStack.setExecutionTime(nodes * 1000L);
+		CallStackElement parent = callStack;
+		for (int i = 0; i < nodes; i++) {
+			if (i % 10 == 0) {
+				parent = callStack;
+			}
+			final CallStackElement element = new CallStackElement(parent,
+					"public void org.stagemonitor.benchmark.profiler.ClassToProfile.method" + (i % 20) + "()", 0);
+			element.setExecutionTime(1000L);
+			parent = element;
+		}
+		serialized = CompactCallStackSerializer.serialize(callStack);
+	}
+
+	@Benchmark
+	public byte[] compact() {
+		return CompactCallStackSerializer.serialize(callStack);
+	}
+
+	@Benchmark
+	public CallStackElement compactDeserialize() throws Exception {
+		return CompactCallStackSerializer.deserialize(serialized);
+	}
+
+	@Benchmark
+	public String json() {
+		return JsonUtils.toJson(callStack);
+	}
+
+	@Benchmark
+	public String ascii() {
+		return callStack.toString(true);
+	}
+}
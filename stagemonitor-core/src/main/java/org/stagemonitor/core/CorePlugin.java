@@ -4,6 +4,7 @@ import static com.codahale.metrics.MetricRegistry.name;
 import static org.stagemonitor.core.util.GraphiteSanitizer.sanitizeGraphiteMetricSegment;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Collection;
@@ -15,7 +16,6 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-import com.codahale.metrics.Clock;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricFilter;
@@ -23,12 +23,12 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.graphite.Graphite;
 import com.codahale.metrics.graphite.GraphiteReporter;
+import com.codahale.metrics.graphite.GraphiteSender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.configuration.Configuration;
 import org.stagemonitor.core.configuration.ConfigurationOption;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
-import org.stagemonitor.core.elasticsearch.IndexSelector;
 import org.stagemonitor.core.grafana.GrafanaClient;
 import org.stagemonitor.core.metrics.MetricsAggregationReporter;
 import org.stagemonitor.core.metrics.MetricsWithCountFilter;
@@ -36,11 +36,14 @@ import org.stagemonitor.core.metrics.OrMetricFilter;
 import org.stagemonitor.core.metrics.RegexMetricFilter;
 import org.stagemonitor.core.metrics.SimpleElasticsearchReporter;
 import org.stagemonitor.core.metrics.SortedTableLogReporter;
+import org.stagemonitor.core.metrics.SpoolingGraphiteSender;
+import org.stagemonitor.core.metrics.metrics2.ElasticsearchMetricsRollup;
 import org.stagemonitor.core.metrics.metrics2.ElasticsearchReporter;
 import org.stagemonitor.core.metrics.metrics2.InfluxDbReporter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Filter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.core.spool.Spool;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.IOUtils;
 import org.stagemonitor.core.util.StringUtils;
@@ -166,6 +169,43 @@ public class CorePlugin extends StagemonitorPlugin {
 			.tags("metrics-store", "elasticsearch")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.build();
+	private final ConfigurationOption<Boolean> elasticsearchGzipBulkRequests = ConfigurationOption.booleanOption()
+			.key("stagemonitor.reporting.elasticsearch.gzip")
+			.dynamic(true)
+			.label("Gzip metrics sent to Elasticsearch")
+			.description("If set to `true`, the bulk requests that contain the metrics are gzip compressed. " +
+					"Elasticsearch accepts compressed requests only if http.compression is enabled.")
+			.defaultValue(false)
+			.tags("metrics-store", "elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> elasticsearchRetryBufferSizeMB = ConfigurationOption.integerOption()
+			.key("stagemonitor.elasticsearch.retryBufferSizeMB")
+			.dynamic(true)
+			.label("Elasticsearch retry buffer size (MB)")
+			.description("The maximum size of the buffer that holds documents (like metrics or request traces) which " +
+					"could not be indexed because Elasticsearch was not reachable or rejected them. The buffered " +
+					"documents are retried with an increasing backoff. If the buffer is full, the oldest documents are " +
+					"dropped. There is one buffer for the metrics and one for all other documents. " +
+					"Set to 0 to disable retries.")
+			.defaultValue(10)
+			.tags("elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> elasticsearchSamplesPerDocument = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.samplesPerDocument")
+			.dynamic(false)
+			.label("Samples per Elasticsearch document")
+			.description("The number of consecutive samples of a metric that are grouped into one document. " +
+					"The values are stored as arrays and the @timestamp is the time of the first sample. " +
+					"Aggregations like avg, min and max work on arrays as well, so dashboards still work as long as the " +
+					"interval of the date histogram is not smaller than samplesPerDocument * reporting interval. " +
+					"A value greater than 1 reduces the number of documents and the size of the index, but delays " +
+					"the metrics accordingly.")
+			.defaultValue(1)
+			.tags("metrics-store", "elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
 	private final ConfigurationOption<Integer> deleteElasticsearchMetricsAfterDays = ConfigurationOption.integerOption()
 			.key("stagemonitor.reporting.elasticsearch.deleteMetricsAfterDays")
 			.dynamic(false)
@@ -175,6 +215,36 @@ public class CorePlugin extends StagemonitorPlugin {
 			.tags("metrics-store", "elasticsearch")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.build();
+	private final ConfigurationOption<Integer> rollupElasticsearchMetricsAfterDays = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.rollupMetricsAfterDays")
+			.dynamic(false)
+			.label("Roll up ES metrics after (days)")
+			.description("The number of days after which the metrics stored in elasticsearch are aggregated into " +
+					"1-minute documents (stagemonitor-metrics-1m-YYYY.MM.DD) and 1-hour documents " +
+					"(stagemonitor-metrics-1h-YYYY.MM.DD). To keep the rolled up metrics, this value has to be lower " +
+					"than stagemonitor.reporting.elasticsearch.deleteMetricsAfterDays. Set below 1 to deactivate.")
+			.defaultValue(-1)
+			.tags("metrics-store", "elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> deleteElasticsearchMinuteRollupsAfterDays = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.deleteMinuteRollupsAfterDays")
+			.dynamic(false)
+			.label("Delete ES 1-minute rollups after (days)")
+			.description("The number of days after the 1-minute rollups of the metrics should be deleted. Set below 1 to deactivate.")
+			.defaultValue(-1)
+			.tags("metrics-store", "elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
+	private final ConfigurationOption<Integer> deleteElasticsearchHourRollupsAfterDays = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.elasticsearch.deleteHourRollupsAfterDays")
+			.dynamic(false)
+			.label("Delete ES 1-hour rollups after (days)")
+			.description("The number of days after the 1-hour rollups of the metrics should be deleted. Set below 1 to deactivate.")
+			.defaultValue(-1)
+			.tags("metrics-store", "elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
 	private final ConfigurationOption<Integer> moveToColdNodesAfterDays = ConfigurationOption.integerOption()
 			.key("stagemonitor.elasticsearch.hotColdArchitecture.moveToColdNodesAfterDays")
 			.dynamic(false)
@@ -188,6 +258,18 @@ public class CorePlugin extends StagemonitorPlugin {
 			.tags("metrics-store", "elasticsearch")
 			.configurationCategory(CORE_PLUGIN_NAME)
 			.build();
+	private final ConfigurationOption<Integer> indexManagementMaxConcurrentActions = ConfigurationOption.integerOption()
+			.key("stagemonitor.elasticsearch.indexManagement.maxConcurrentActions")
+			.dynamic(false)
+			.label("Max concurrent index management actions")
+			.description("The maximum number of index management actions (deleting, optimizing and moving indices to " +
+					"the cold nodes) that are executed at the same time. The actions are computed for each index once a " +
+					"day at a random time between 00:00 and 04:00, so that multiple instances don't optimize the same " +
+					"indices at the same time.")
+			.defaultValue(1)
+			.tags("elasticsearch")
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.build();
 	private final ConfigurationOption<String> applicationName = ConfigurationOption.stringOption()
 			.key("stagemonitor.applicationName")
 			.dynamic(false)
@@ -418,13 +500,36 @@ public class CorePlugin extends StagemonitorPlugin {
 			.tags("advanced")
 			.build();
 
+	private final ConfigurationOption<String> spoolDirectory = ConfigurationOption.stringOption()
+			.key("stagemonitor.reporting.spool.directory")
+			.dynamic(false)
+			.label("Spool directory")
+			.description("If set, the reporters for Elasticsearch, InfluxDB and Graphite write the data they could not " +
+					"send to memory-mapped files in this directory while the backend is unreachable. The data is " +
+					"replayed in order as soon as the backend is reachable again, even after a restart. " +
+					"Every reporter uses its own sub directory. The directory must not be shared by multiple JVMs.")
+			.defaultValue(null)
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics-store")
+			.build();
+	private final ConfigurationOption<Integer> spoolMaxSizeMB = ConfigurationOption.integerOption()
+			.key("stagemonitor.reporting.spool.maxSizeMB")
+			.dynamic(false)
+			.label("Maximum spool size (MB)")
+			.description("The maximum size of the spool of each reporter. If the limit is reached, the oldest data " +
+					"is discarded.")
+			.defaultValue(100)
+			.configurationCategory(CORE_PLUGIN_NAME)
+			.tags("metrics-store")
+			.build();
+
 	private static MetricsAggregationReporter aggregationReporter;
 
 	private List<Closeable> reporters = new CopyOnWriteArrayList<Closeable>();
+	private volatile Snapshot snapshot;
 
 	private ElasticsearchClient elasticsearchClient;
 	private GrafanaClient grafanaClient;
-	private IndexSelector indexSelector = new IndexSelector(new Clock.UserTimeClock());
 
 	@Override
 	public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) {
@@ -440,6 +545,11 @@ public class CorePlugin extends StagemonitorPlugin {
 			}
 		});
 
+		registerReporters(metricRegistry, configuration);
+	}
+
+	@Override
+	public void initializeRemoteResources(Configuration configuration) {
 		ElasticsearchClient elasticsearchClient = getElasticsearchClient();
 		if (isReportToGraphite()) {
 			elasticsearchClient.sendGrafana1DashboardAsync("Grafana1GraphiteCustomMetrics.json");
@@ -449,7 +559,11 @@ public class CorePlugin extends StagemonitorPlugin {
 			final GrafanaClient grafanaClient = getGrafanaClient();
 			grafanaClient.createElasticsearchDatasource(getElasticsearchUrl());
 		}
-		registerReporters(metricRegistry, configuration);
+	}
+
+	@Override
+	public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+		return Collections.emptyList();
 	}
 
 	private void registerReporters(Metric2Registry metric2Registry, Configuration configuration) {
@@ -490,12 +604,17 @@ public class CorePlugin extends StagemonitorPlugin {
 										 MetricFilter filter) {
 		String graphiteHostName = getGraphiteHostName();
 		if (isReportToGraphite()) {
+			GraphiteSender graphite = new Graphite(new InetSocketAddress(graphiteHostName, getGraphitePort()));
+			final Spool spool = createSpool("graphite");
+			if (spool != null) {
+				graphite = new SpoolingGraphiteSender(graphite, spool);
+			}
 			final GraphiteReporter graphiteReporter = GraphiteReporter.forRegistry(metricRegistry)
 					.prefixedWith(getGraphitePrefix(measurementSession))
 					.convertRatesTo(TimeUnit.SECONDS)
 					.convertDurationsTo(TimeUnit.MILLISECONDS)
 					.filter(filter)
-					.build(new Graphite(new InetSocketAddress(graphiteHostName, getGraphitePort())));
+					.build(graphite);
 
 			graphiteReporter.start(reportingInterval, TimeUnit.SECONDS);
 			reporters.add(graphiteReporter);
@@ -534,6 +653,13 @@ public class CorePlugin extends StagemonitorPlugin {
 			reporters.add(reporter);
 			elasticsearchClient.scheduleIndexManagement(ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX,
 					moveToColdNodesAfterDays.getValue(), deleteElasticsearchMetricsAfterDays.getValue());
+			if (rollupElasticsearchMetricsAfterDays.getValue() > 0) {
+				elasticsearchClient.scheduleDailyTask(new ElasticsearchMetricsRollup(elasticsearchClient, rollupElasticsearchMetricsAfterDays.getValue()));
+				elasticsearchClient.scheduleIndexManagement(ElasticsearchMetricsRollup.MINUTE_ROLLUP_INDEX_PREFIX,
+						moveToColdNodesAfterDays.getValue(), deleteElasticsearchMinuteRollupsAfterDays.getValue());
+				elasticsearchClient.scheduleIndexManagement(ElasticsearchMetricsRollup.HOUR_ROLLUP_INDEX_PREFIX,
+						moveToColdNodesAfterDays.getValue(), deleteElasticsearchHourRollupsAfterDays.getValue());
+			}
 		} else {
 			logger.info("Not sending metrics to Elasticsearch (url={}, interval={}s)", getElasticsearchUrl(), reportingInterval);
 		}
@@ -608,7 +734,21 @@ public class CorePlugin extends StagemonitorPlugin {
 	}
 
 	public boolean isStagemonitorActive() {
-		return Stagemonitor.isDisabled() ? false : stagemonitorActive.getValue();
+		return Stagemonitor.isDisabled() ? false : getSnapshot().stagemonitorActive;
+	}
+
+	@Override
+	protected void onConfigurationReloaded() {
+		snapshot = new Snapshot(this);
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			snapshot = new Snapshot(this);
+			this.snapshot = snapshot;
+		}
+		return snapshot;
 	}
 
 	public boolean isInternalMonitoringActive() {
@@ -726,15 +866,70 @@ public class CorePlugin extends StagemonitorPlugin {
 		return threadPoolQueueCapacityLimit.getValue();
 	}
 
-	public IndexSelector getIndexSelector() {
-		return indexSelector;
-	}
-
 	public int getElasticsearchReportingInterval() {
 		return reportingIntervalElasticsearch.getValue();
 	}
 
+	public boolean isElasticsearchGzipBulkRequests() {
+		return elasticsearchGzipBulkRequests.getValue();
+	}
+
+	public int getElasticsearchSamplesPerDocument() {
+		return elasticsearchSamplesPerDocument.getValue();
+	}
+
+	public int getElasticsearchRetryBufferSizeMB() {
+		return elasticsearchRetryBufferSizeMB.getValue();
+	}
+
+	public int getElasticsearchIndexManagementMaxConcurrentActions() {
+		return indexManagementMaxConcurrentActions.getValue();
+	}
+
+	public String getSpoolDirectory() {
+		return spoolDirectory.getValue();
+	}
+
+	public int getSpoolMaxSizeMB() {
+		return spoolMaxSizeMB.getValue();
+	}
+
+	/**
+	 * Opens the spool of a reporter. The spool is closed when stagemonitor shuts down.
+	 *
+	 * @param name the name of the reporter, which is also the name of the sub directory of the spool
+	 * @return the spool or <code>null</code>, if spooling is disabled or the spool could not be opened
+	 */
+	public Spool createSpool(String name) {
+		if (StringUtils.isEmpty(getSpoolDirectory())) {
+			return null;
+		}
+		try {
+			final Spool spool = new Spool(new File(getSpoolDirectory(), name), getSpoolMaxSizeMB() * 1024L * 1024L);
+			reporters.add(spool);
+			return spool;
+		} catch (IOException e) {
+			logger.warn("Could not open the spool " + name + ", data that can't be reported will be lost: " + e.getMessage(), e);
+			return null;
+		} catch (RuntimeException e) {
+			logger.warn("Could not open the spool " + name + ", data that can't be reported will be lost: " + e.getMessage(), e);
+			return null;
+		}
+	}
+
 	public Integer getMoveToColdNodesAfterDays() {
 		return moveToColdNodesAfterDays.getValue();
 	}
+
+	/**
+	 * The values that are checked for each request, so that they can be read without going through the
+	 * {@link ConfigurationOption}s
+	 */
+	private static class Snapshot {
+		private final boolean stagemonitorActive;
+
+		private Snapshot(CorePlugin corePlugin) {
+			stagemonitorActive = corePlugin.stagemonitorActive.getValue();
+		}
+	}
 }
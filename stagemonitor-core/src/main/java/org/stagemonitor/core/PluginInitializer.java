@@ -0,0 +1,199 @@
+package org.stagemonitor.core;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.stagemonitor.core.configuration.Configuration;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.ExecutorUtils;
+
+/**
+ * Initializes the {@link StagemonitorPlugin}s.
+ * <p/>
+ * Plugins that don't depend on each other (see {@link StagemonitorPlugin#dependsOn()}) are initialized in parallel.
+ * The time it takes to initialize a plugin is recorded in the timer <code>internal_plugin_init_time</code>.
+ * After all plugins are initialized, {@link StagemonitorPlugin#initializeRemoteResources(Configuration)} is called in
+ * a background thread.
+ */
+class PluginInitializer {
+
+	private final Metric2Registry metricRegistry;
+	private final Configuration configuration;
+	private final Logger logger;
+	private final int threads;
+
+	PluginInitializer(Metric2Registry metricRegistry, Configuration configuration, Logger logger, int threads) {
+		this.metricRegistry = metricRegistry;
+		this.configuration = configuration;
+		this.logger = logger;
+		this.threads = threads;
+	}
+
+	/**
+	 * Initializes the plugins and blocks until all plugins are initialized
+	 *
+	 * @param plugins the plugins to initialize
+	 * @return the plugins that have been initialized successfully in the order they have been initialized
+	 */
+	List<StagemonitorPlugin> initializePlugins(Collection<StagemonitorPlugin> plugins) throws InterruptedException {
+		final Map<StagemonitorPlugin, List<StagemonitorPlugin>> dependents = new IdentityHashMap<StagemonitorPlugin, List<StagemonitorPlugin>>();
+		final Map<StagemonitorPlugin, AtomicInteger> pendingDependencies = getPendingDependencies(plugins, dependents);
+
+		final List<StagemonitorPlugin> initializedPlugins = new CopyOnWriteArrayList<StagemonitorPlugin>();
+		final CountDownLatch latch = new CountDownLatch(plugins.size());
+		final ExecutorService executor = ExecutorUtils.createFixedThreadDeamonPool("stagemonitor-plugin-initializer",
+				Math.max(1, Math.min(threads, plugins.size())));
+		try {
+			for (StagemonitorPlugin plugin : plugins) {
+				if (pendingDependencies.get(plugin).get() == 0) {
+					submit(executor, plugin, dependents, pendingDependencies, initializedPlugins, latch);
+				}
+			}
+			latch.await();
+		} finally {
+			executor.shutdown();
+		}
+		return new ArrayList<StagemonitorPlugin>(initializedPlugins);
+	}
+
+	private void submit(final ExecutorService executor, final StagemonitorPlugin plugin,
+						final Map<StagemonitorPlugin, List<StagemonitorPlugin>> dependents,
+						final Map<StagemonitorPlugin, AtomicInteger> pendingDependencies,
+						final List<StagemonitorPlugin> initializedPlugins, final CountDownLatch latch) {
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (initializePlugin(plugin)) {
+						initializedPlugins.add(plugin);
+					}
+				} finally {
+					for (StagemonitorPlugin dependent : dependents.get(plugin)) {
+						if (pendingDependencies.get(dependent).decrementAndGet() == 0) {
+							submit(executor, dependent, dependents, pendingDependencies, initializedPlugins, latch);
+						}
+					}
+					latch.countDown();
+				}
+			}
+		});
+	}
+
+	private boolean initializePlugin(StagemonitorPlugin plugin) {
+		final String pluginName = plugin.getClass().getSimpleName();
+		logger.info("Initializing plugin {}", pluginName);
+		final Timer.Context time = metricRegistry.timer(name("internal_plugin_init_time").tag("plugin", pluginName).build()).time();
+		try {
+			plugin.initializePlugin(metricRegistry.getMetricRegistry(), configuration);
+			plugin.initializePlugin(metricRegistry, configuration);
+			return true;
+		} catch (Throwable e) {
+			// also catches LinkageErrors caused by missing optional dependencies, as they would otherwise only end
+			// up in the Future of the init executor
+			logger.warn("Error while initializing plugin " + pluginName + " (this exception is ignored)", e);
+			return false;
+		} finally {
+			time.stop();
+		}
+	}
+
+	/**
+	 * Calculates the number of dependencies each plugin has to wait for. Dependencies on plugins that are not part of
+	 * <code>plugins</code> are ignored. If the dependencies are cyclic, all dependencies are ignored.
+	 */
+	private Map<StagemonitorPlugin, AtomicInteger> getPendingDependencies(Collection<StagemonitorPlugin> plugins,
+																		  Map<StagemonitorPlugin, List<StagemonitorPlugin>> dependents) {
+		final Map<Class<?>, StagemonitorPlugin> pluginsByClass = new HashMap<Class<?>, StagemonitorPlugin>();
+		for (StagemonitorPlugin plugin : plugins) {
+			pluginsByClass.put(plugin.getClass(), plugin);
+			dependents.put(plugin, new ArrayList<StagemonitorPlugin>());
+		}
+		final Map<StagemonitorPlugin, AtomicInteger> pendingDependencies = new IdentityHashMap<StagemonitorPlugin, AtomicInteger>();
+		for (StagemonitorPlugin plugin : plugins) {
+			pendingDependencies.put(plugin, new AtomicInteger());
+		}
+		for (StagemonitorPlugin plugin : plugins) {
+			for (Class<? extends StagemonitorPlugin> dependencyClass : plugin.dependsOn()) {
+				final StagemonitorPlugin dependency = pluginsByClass.get(dependencyClass);
+				if (dependency != null && dependency != plugin) {
+					dependents.get(dependency).add(plugin);
+					pendingDependencies.get(plugin).incrementAndGet();
+				}
+			}
+		}
+		if (isCyclic(plugins, dependents, pendingDependencies)) {
+			logger.warn("The dependencies between the plugins are cyclic. Ignoring all dependencies.");
+			for (StagemonitorPlugin plugin : plugins) {
+				dependents.get(plugin).clear();
+				pendingDependencies.get(plugin).set(0);
+			}
+		}
+		return pendingDependencies;
+	}
+
+	private static boolean isCyclic(Collection<StagemonitorPlugin> plugins,
+									Map<StagemonitorPlugin, List<StagemonitorPlugin>> dependents,
+									Map<StagemonitorPlugin, AtomicInteger> pendingDependencies) {
+		final Map<StagemonitorPlugin, Integer> remaining = new IdentityHashMap<StagemonitorPlugin, Integer>();
+		final LinkedList<StagemonitorPlugin> initializable = new LinkedList<StagemonitorPlugin>();
+		for (StagemonitorPlugin plugin : plugins) {
+			remaining.put(plugin, pendingDependencies.get(plugin).get());
+			if (pendingDependencies.get(plugin).get() == 0) {
+				initializable.add(plugin);
+			}
+		}
+		int initialized = 0;
+		while (!initializable.isEmpty()) {
+			initialized++;
+			for (StagemonitorPlugin dependent : dependents.get(initializable.removeFirst())) {
+				final int remainingDependencies = remaining.get(dependent) - 1;
+				remaining.put(dependent, remainingDependencies);
+				if (remainingDependencies == 0) {
+					initializable.add(dependent);
+				}
+			}
+		}
+		return initialized < plugins.size();
+	}
+
+	/**
+	 * Calls {@link StagemonitorPlugin#initializeRemoteResources(Configuration)} for each plugin in a background thread
+	 *
+	 * @param plugins the initialized plugins
+	 * @return a {@link Future} that completes when all remote resources are initialized
+	 */
+	Future<?> initializeRemoteResourcesAsync(final List<StagemonitorPlugin> plugins) {
+		final ExecutorService executor = ExecutorUtils.createFixedThreadDeamonPool("stagemonitor-remote-resources-initializer", 1);
+		try {
+			return executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (StagemonitorPlugin plugin : plugins) {
+						try {
+							plugin.initializeRemoteResources(configuration);
+						} catch (Throwable e) {
+							logger.warn("Error while initializing the remote resources of plugin " +
+									plugin.getClass().getSimpleName() + " (this exception is ignored)", e);
+						}
+					}
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
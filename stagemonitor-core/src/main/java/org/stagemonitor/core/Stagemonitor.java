@@ -98,8 +98,11 @@ public final class Stagemonitor {
 	}
 
 	private static void start() {
-		initializePlugins();
+		final PluginInitializer pluginInitializer = new PluginInitializer(metric2Registry, getConfiguration(), logger,
+				Runtime.getRuntime().availableProcessors());
+		final List<StagemonitorPlugin> initializedPlugins = initializePlugins(pluginInitializer);
 		started = true;
+		pluginInitializer.initializeRemoteResourcesAsync(initializedPlugins);
 		// in case the application does not directly call shutDown
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 			public void run() {
@@ -108,27 +111,30 @@ public final class Stagemonitor {
 		}));
 	}
 
-	private static void initializePlugins() {
+	private static List<StagemonitorPlugin> initializePlugins(PluginInitializer pluginInitializer) {
 		final CorePlugin corePlugin = getConfiguration(CorePlugin.class);
 		final Collection<String> disabledPlugins = corePlugin.getDisabledPlugins();
 		pathsOfWidgetMetricTabPlugins = new CopyOnWriteArrayList<String>();
 		pathsOfWidgetTabPlugins = new CopyOnWriteArrayList<String>();
+		final List<StagemonitorPlugin> enabledPlugins = new ArrayList<StagemonitorPlugin>();
 		for (StagemonitorPlugin stagemonitorPlugin : plugins) {
 			final String pluginName = stagemonitorPlugin.getClass().getSimpleName();
 
 			if (disabledPlugins.contains(pluginName)) {
 				logger.info("Not initializing disabled plugin {}", pluginName);
 			} else {
-				initializePlugin(stagemonitorPlugin, pluginName);
+				enabledPlugins.add(stagemonitorPlugin);
 			}
 		}
-	}
 
-	private static void initializePlugin(final StagemonitorPlugin stagemonitorPlugin, String pluginName) {
-		logger.info("Initializing plugin {}", pluginName);
+		final List<StagemonitorPlugin> initializedPlugins;
 		try {
-			stagemonitorPlugin.initializePlugin(getMetricRegistry(), getConfiguration());
-			stagemonitorPlugin.initializePlugin(metric2Registry, getConfiguration());
+			initializedPlugins = pluginInitializer.initializePlugins(enabledPlugins);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while initializing the plugins", e);
+		}
+		for (final StagemonitorPlugin stagemonitorPlugin : initializedPlugins) {
 			pathsOfWidgetMetricTabPlugins.addAll(stagemonitorPlugin.getPathsOfWidgetMetricTabPlugins());
 			pathsOfWidgetTabPlugins.addAll(stagemonitorPlugin.getPathsOfWidgetTabPlugins());
 			onShutdownActions.add(new Runnable() {
@@ -136,9 +142,8 @@ public final class Stagemonitor {
 					stagemonitorPlugin.onShutDown();
 				}
 			});
-		} catch (Exception e) {
-			logger.warn("Error while initializing plugin " + pluginName + " (this exception is ignored)", e);
 		}
+		return initializedPlugins;
 	}
 
 	/**
@@ -13,6 +13,11 @@ import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
  *
  * The {@link #initializePlugin(Metric2Registry, Configuration)} )} method serves as a initialisation callback
  * for plugins.
+ * <p/>
+ * Plugins are initialized in parallel. Use {@link #dependsOn()} to declare which plugins have to be initialized before
+ * this plugin. Interactions with remote systems like Elasticsearch or Grafana that are not required for monitoring
+ * (for example sending dashboards or mappings) should be performed in {@link #initializeRemoteResources(Configuration)}
+ * which is called in the background after all plugins are initialized.
  */
 public abstract class StagemonitorPlugin extends ConfigurationOptionProvider {
 
@@ -33,6 +38,26 @@ public abstract class StagemonitorPlugin extends ConfigurationOptionProvider {
 	public void initializePlugin(MetricRegistry metricRegistry, Configuration configuration) throws Exception {
 	}
 
+	/**
+	 * Returns the plugins that have to be initialized before this plugin.
+	 * <p/>
+	 * Plugins that are not present or disabled are ignored. By default, plugins depend on the {@link CorePlugin}.
+	 *
+	 * @return the plugins this plugin depends on
+	 */
+	public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+		return Collections.<Class<? extends StagemonitorPlugin>>singletonList(CorePlugin.class);
+	}
+
+	/**
+	 * Is called in a background thread after all plugins have been initialized.
+	 * <p/>
+	 * Implementing classes should send their dashboards, index templates and mappings here, so that this does not
+	 * delay the startup of stagemonitor.
+	 */
+	public void initializeRemoteResources(Configuration configuration) throws Exception {
+	}
+
 	public void onShutDown() {
 	}
 
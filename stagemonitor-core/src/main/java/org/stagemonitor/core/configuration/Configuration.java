@@ -16,6 +16,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.configuration.source.AbstractConfigurationSource;
 import org.stagemonitor.core.configuration.source.ConfigurationSource;
 
 public class Configuration {
@@ -23,6 +24,10 @@ public class Configuration {
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	private final String updateConfigPasswordKey;
 	private final List<ConfigurationSource> configurationSources = new CopyOnWriteArrayList<ConfigurationSource>();
+	/**
+	 * Set when a configuration source has been added so that the next reload is not skipped
+	 */
+	private volatile boolean configurationSourcesAdded = false;
 
 	private Map<Class<? extends ConfigurationOptionProvider>, ConfigurationOptionProvider> optionProvidersByClass = new HashMap<Class<? extends ConfigurationOptionProvider>, ConfigurationOptionProvider>();
 	private Map<String, ConfigurationOption<?>> configurationOptionsByKey = new LinkedHashMap<String, ConfigurationOption<?>>();
@@ -104,6 +109,7 @@ public class Configuration {
 		for (ConfigurationOption<?> configurationOption : configurationOptionProvider.getConfigurationOptions()) {
 			add(configurationOption);
 		}
+		configurationOptionProvider.onConfigurationReloaded();
 	}
 
 	/**
@@ -199,8 +205,8 @@ public class Configuration {
 	 * @param key the key of the configuration option
 	 */
 	public void reload(String key) {
-		if (configurationOptionsByKey.containsKey(key)) {
-			configurationOptionsByKey.get(key).reload(false);
+		if (configurationOptionsByKey.containsKey(key) && configurationOptionsByKey.get(key).reload(false)) {
+			publishSnapshots();
 		}
 	}
 
@@ -221,16 +227,54 @@ public class Configuration {
 		reload(false);
 	}
 
+	/**
+	 * Reloads the configuration sources and - if at least one of them has changed - the values of the
+	 * {@link ConfigurationOption}s. Only options whose raw value has changed are converted again and the snapshots of the
+	 * {@link ConfigurationOptionProvider}s are only swapped if at least one value has changed.
+	 */
+	private static boolean reload(ConfigurationSource configurationSource) {
+		if (configurationSource instanceof AbstractConfigurationSource) {
+			return ((AbstractConfigurationSource) configurationSource).reloadIfChanged();
+		}
+		configurationSource.reload();
+		return true;
+	}
+
 	private void reload(final boolean reloadNonDynamicValues) {
+		boolean sourcesChanged = reloadNonDynamicValues || configurationSourcesAdded;
+		configurationSourcesAdded = false;
 		for (ConfigurationSource configurationSource : configurationSources) {
 			try {
-				configurationSource.reload();
+				sourcesChanged |= reload(configurationSource);
 			} catch (Exception e) {
+				sourcesChanged = true;
 				logger.warn(e.getMessage() + " (this exception is ignored)", e);
 			}
 		}
+		if (!sourcesChanged) {
+			logger.debug("No configuration source has changed, skipping reload of configuration options");
+			return;
+		}
+		boolean valuesChanged = false;
 		for (ConfigurationOption<?> configurationOption : configurationOptionsByKey.values()) {
-			configurationOption.reload(reloadNonDynamicValues);
+			valuesChanged |= configurationOption.reload(reloadNonDynamicValues);
+		}
+		if (valuesChanged) {
+			publishSnapshots();
+		}
+	}
+
+	/**
+	 * Lets the {@link ConfigurationOptionProvider}s swap in the new snapshots of their values
+	 * (see {@link ConfigurationOptionProvider#onConfigurationReloaded()})
+	 */
+	private void publishSnapshots() {
+		for (ConfigurationOptionProvider configurationOptionProvider : optionProvidersByClass.values()) {
+			try {
+				configurationOptionProvider.onConfigurationReloaded();
+			} catch (RuntimeException e) {
+				logger.warn(e.getMessage() + " (this exception is ignored)", e);
+			}
 		}
 	}
 
@@ -264,6 +308,7 @@ public class Configuration {
 		} else {
 			configurationSources.add(configurationSource);
 		}
+		configurationSourcesAdded = true;
 	}
 
 	/**
@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -45,11 +46,13 @@ public class ConfigurationOption<T> {
 	private final String configurationCategory;
 	private final ValueConverter<T> valueConverter;
 	private final Class<? super T> valueType;
-	private String valueAsString;
-	private T value;
+	/**
+	 * The current value, its string representation, source and error message are published together, so that readers
+	 * always see a consistent state without locking, even while the option is reloaded
+	 */
+	private volatile OptionValue<T> current;
 	private List<ConfigurationSource> configurationSources;
-	private String nameOfCurrentConfigurationSource;
-	private String errorMessage;
+	private final List<ChangeListener<T>> changeListeners = new CopyOnWriteArrayList<ChangeListener<T>>();
 
 	public static <T> ConfigurationOptionBuilder<T> builder(ValueConverter<T> valueConverter, Class<? super T> valueType) {
 		return new ConfigurationOptionBuilder<T>(valueConverter, valueType);
@@ -186,7 +189,7 @@ public class ConfigurationOption<T> {
 		this.valueConverter = valueConverter;
 		this.valueType = valueType;
 		this.sensitive = sensitive;
-		setToDefault();
+		this.current = getDefault(null);
 	}
 
 	/**
@@ -240,7 +243,7 @@ public class ConfigurationOption<T> {
 	 * @return the current value as string
 	 */
 	public String getValueAsString() {
-		return valueAsString;
+		return current.valueAsString;
 	}
 
 	/**
@@ -261,7 +264,7 @@ public class ConfigurationOption<T> {
 	 */
 	@JsonIgnore
 	public T getValue() {
-		return value;
+		return current.value;
 	}
 
 	void setConfigurationSources(List<ConfigurationSource> configurationSources) {
@@ -275,7 +278,7 @@ public class ConfigurationOption<T> {
 	 * @return the name of the configuration source that provided the current value
 	 */
 	public String getNameOfCurrentConfigurationSource() {
-		return nameOfCurrentConfigurationSource;
+		return current.nameOfCurrentConfigurationSource;
 	}
 
 
@@ -313,17 +316,47 @@ public class ConfigurationOption<T> {
 	 * @return a error message or null if there was no error
 	 */
 	public String getErrorMessage() {
-		return errorMessage;
+		return current.errorMessage;
+	}
+
+	/**
+	 * Registers a {@link ChangeListener} that is notified whenever the value of this option changes.
+	 * <p/>
+	 * Use this to rebuild structures that are derived from the value (like compiled patterns) only when the value
+	 * actually changes instead of on every access.
+	 *
+	 * @param changeListener the listener to add
+	 */
+	public void addChangeListener(ChangeListener<T> changeListener) {
+		changeListeners.add(changeListener);
+	}
+
+	/**
+	 * Removes a previously added {@link ChangeListener}
+	 *
+	 * @param changeListener the listener to remove
+	 * @return <code>true</code>, if the listener was registered, <code>false</code> otherwise
+	 */
+	public boolean removeChangeListener(ChangeListener<T> changeListener) {
+		return changeListeners.remove(changeListener);
 	}
 
-	synchronized void reload(boolean reloadNonDynamicValues) {
+	/**
+	 * Reloads the value from the configuration sources
+	 *
+	 * @param reloadNonDynamicValues whether non dynamic options should be reloaded as well
+	 * @return <code>true</code>, if the value has changed, <code>false</code> otherwise
+	 */
+	synchronized boolean reload(boolean reloadNonDynamicValues) {
 		if (dynamic || reloadNonDynamicValues) {
-			loadValue();
+			return loadValue();
 		}
+		return false;
 	}
 
-	private void loadValue() {
+	private synchronized boolean loadValue() {
 		String newValue = null;
+		String nameOfCurrentConfigurationSource = null;
 		for (ConfigurationSource configurationSource : configurationSources) {
 			newValue = configurationSource.getValue(key);
 			nameOfCurrentConfigurationSource = configurationSource.getName();
@@ -331,37 +364,48 @@ public class ConfigurationOption<T> {
 				break;
 			}
 		}
-		if (newValue == null || !trySetValue(newValue)) {
-			setToDefault();
+		final OptionValue<T> oldValue = current;
+		current = newValue != null ? convert(newValue.trim(), nameOfCurrentConfigurationSource) : getDefault(oldValue.errorMessage);
+		if (hasChanges(oldValue, current.valueAsString)) {
+			notifyChangeListeners(oldValue.value, current.value);
+			return true;
 		}
+		return false;
 	}
 
-	private boolean trySetValue(String newValue) {
-		newValue = newValue.trim();
-		if (hasChanges(newValue)) {
-			this.valueAsString = newValue;
+	private void notifyChangeListeners(T oldValue, T newValue) {
+		for (ChangeListener<T> changeListener : changeListeners) {
 			try {
-				value = valueConverter.convert(newValue);
-				errorMessage = null;
-				return true;
-			} catch (IllegalArgumentException e) {
-				errorMessage = "Error in " + nameOfCurrentConfigurationSource + ": " + e.getMessage();
-				logger.warn(errorMessage + " Default value '" + defaultValueAsString + "' for '" + key + "' will be applied.");
-				return false;
+				changeListener.onChange(this, oldValue, newValue);
+			} catch (RuntimeException e) {
+				logger.warn(e.getMessage() + " (this exception is ignored)", e);
 			}
-		} else {
-			return true;
 		}
 	}
 
-	private void setToDefault() {
-		valueAsString = defaultValueAsString;
-		value = defaultValue;
-		nameOfCurrentConfigurationSource = "Default Value";
+	private OptionValue<T> convert(String newValue, String nameOfCurrentConfigurationSource) {
+		final OptionValue<T> current = this.current;
+		if (!hasChanges(current, newValue)) {
+			if (nameOfCurrentConfigurationSource != null && nameOfCurrentConfigurationSource.equals(current.nameOfCurrentConfigurationSource)) {
+				return current;
+			}
+			return new OptionValue<T>(current.value, current.valueAsString, nameOfCurrentConfigurationSource, current.errorMessage);
+		}
+		try {
+			return new OptionValue<T>(valueConverter.convert(newValue), newValue, nameOfCurrentConfigurationSource, null);
+		} catch (IllegalArgumentException e) {
+			final String errorMessage = "Error in " + nameOfCurrentConfigurationSource + ": " + e.getMessage();
+			logger.warn(errorMessage + " Default value '" + defaultValueAsString + "' for '" + key + "' will be applied.");
+			return getDefault(errorMessage);
+		}
+	}
+
+	private OptionValue<T> getDefault(String errorMessage) {
+		return new OptionValue<T>(defaultValue, defaultValueAsString, "Default Value", errorMessage);
 	}
 
-	private boolean hasChanges(String property) {
-		return !property.equals(valueAsString);
+	private static boolean hasChanges(OptionValue<?> current, String property) {
+		return property == null ? current.valueAsString != null : !property.equals(current.valueAsString);
 	}
 
 	/**
@@ -374,6 +418,39 @@ public class ConfigurationOption<T> {
 		valueConverter.convert(value);
 	}
 
+	/**
+	 * Is notified when the value of a {@link ConfigurationOption} has changed
+	 *
+	 * @param <T> the type of the configuration value
+	 */
+	public interface ChangeListener<T> {
+
+		/**
+		 * Called after the value of a {@link ConfigurationOption} has changed.
+		 * <p/>
+		 * This is called from the thread that reloaded the configuration.
+		 *
+		 * @param configurationOption the option whose value has changed
+		 * @param oldValue            the previous value
+		 * @param newValue            the new value
+		 */
+		void onChange(ConfigurationOption<?> configurationOption, T oldValue, T newValue);
+	}
+
+	private static class OptionValue<T> {
+		private final T value;
+		private final String valueAsString;
+		private final String nameOfCurrentConfigurationSource;
+		private final String errorMessage;
+
+		private OptionValue(T value, String valueAsString, String nameOfCurrentConfigurationSource, String errorMessage) {
+			this.value = value;
+			this.valueAsString = valueAsString;
+			this.nameOfCurrentConfigurationSource = nameOfCurrentConfigurationSource;
+			this.errorMessage = errorMessage;
+		}
+	}
+
 	public static class ConfigurationOptionBuilder<T> {
 		private boolean dynamic = false;
 		private boolean sensitive = false;
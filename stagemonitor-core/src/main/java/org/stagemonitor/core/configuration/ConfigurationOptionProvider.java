@@ -26,4 +26,14 @@ public abstract class ConfigurationOptionProvider {
 		return configurationOptions;
 	}
 
+	/**
+	 * Called after the values of the {@link ConfigurationOption}s have been loaded or reloaded.
+	 * <p/>
+	 * Override this method to publish an immutable snapshot of the values that are read on hot paths (for example on
+	 * each request). Reading from the snapshot is a plain field read and the values of a snapshot are consistent with
+	 * each other, even if the configuration is reloaded concurrently.
+	 */
+	protected void onConfigurationReloaded() {
+	}
+
 }
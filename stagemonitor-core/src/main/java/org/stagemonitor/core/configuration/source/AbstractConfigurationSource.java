@@ -18,6 +18,22 @@ public abstract class AbstractConfigurationSource implements ConfigurationSource
 	public void reload() {
 	}
 
+	/**
+	 * Reloads the configuration to pick up the latest changes
+	 * <p/>
+	 * Sources that are able to tell whether they have changed since the last reload (for example by comparing a
+	 * version number or the modification date of a file) should override this method and return <code>false</code> if
+	 * nothing has changed. That way, the values of the {@link org.stagemonitor.core.configuration.ConfigurationOption}s
+	 * don't have to be reloaded when no configuration source has changed. The default implementation calls
+	 * {@link #reload()} and assumes that the configuration has changed.
+	 *
+	 * @return <code>true</code>, if the configuration might have changed, <code>false</code> otherwise
+	 */
+	public boolean reloadIfChanged() {
+		reload();
+		return true;
+	}
+
 	@Override
 	public boolean isSavingPersistent() {
 		return false;
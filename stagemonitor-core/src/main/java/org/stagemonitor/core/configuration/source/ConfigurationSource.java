@@ -14,6 +14,9 @@ public interface ConfigurationSource {
 
 	/**
 	 * Reloads the configuration to pick up the latest changes
+	 * <p/>
+	 * Sources that are able to tell whether they have changed since the last reload should extend
+	 * {@link AbstractConfigurationSource} and override {@link AbstractConfigurationSource#reloadIfChanged()}.
 	 */
 	void reload();
 
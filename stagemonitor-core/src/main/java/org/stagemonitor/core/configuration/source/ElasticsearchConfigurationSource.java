@@ -18,6 +18,10 @@ public class ElasticsearchConfigurationSource extends AbstractConfigurationSourc
 	private final ElasticsearchClient elasticsearchClient;
 	private final String configurationId;
 	private Map<String, String> configuration = new ConcurrentHashMap<String, String>();
+	/**
+	 * The <code>_version</code> of the configuration document that was loaded last
+	 */
+	private volatile long version = -1;
 
 	public ElasticsearchConfigurationSource(ElasticsearchClient elasticsearchClient, String configurationId) {
 		this.elasticsearchClient = elasticsearchClient;
@@ -56,8 +60,20 @@ public class ElasticsearchConfigurationSource extends AbstractConfigurationSourc
 
 	@Override
 	public void reload() {
+		reloadIfChanged();
+	}
+
+	@Override
+	public boolean reloadIfChanged() {
 		try {
-			final JsonNode source = elasticsearchClient.getJson(path).get("_source");
+			// only fetch the _version first so that the whole document is not transferred on every reload
+			final long currentVersion = elasticsearchClient.getJson(path + "?_source=false").path("_version").asLong(-1);
+			if (currentVersion != -1 && currentVersion == version) {
+				return false;
+			}
+			final JsonNode document = elasticsearchClient.getJson(path);
+			final long newVersion = document.path("_version").asLong(-1);
+			final JsonNode source = document.get("_source");
 			Map<String, String> conf = new HashMap<String, String>((int) Math.ceil(source.size() / 0.75));
 			final Iterator<Map.Entry<String, JsonNode>> it = source.fields();
 			while (it.hasNext()) {
@@ -65,8 +81,11 @@ public class ElasticsearchConfigurationSource extends AbstractConfigurationSourc
 				conf.put(next.getKey(), next.getValue().asText());
 			}
 			configuration = conf;
+			version = newVersion;
+			return true;
 		} catch (IOException e) {
 			logger.warn("{}: {}", e.getClass().getSimpleName(), e.getMessage());
+			return false;
 		}
 	}
 }
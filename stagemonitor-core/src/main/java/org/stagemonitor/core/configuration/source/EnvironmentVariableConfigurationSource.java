@@ -47,6 +47,14 @@ public class EnvironmentVariableConfigurationSource extends AbstractConfiguratio
 
 	@Override
 	public void reload() {
-		this.env = System.getenv();
+		reloadIfChanged();
+	}
+
+	@Override
+	public boolean reloadIfChanged() {
+		final Map<String, String> newEnv = System.getenv();
+		final boolean changed = !newEnv.equals(env);
+		this.env = newEnv;
+		return changed;
 	}
 }
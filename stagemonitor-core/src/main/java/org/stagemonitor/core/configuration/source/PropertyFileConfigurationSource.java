@@ -9,13 +9,17 @@ import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Properties;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Loads a properties file from classpath. Falls back to loading from file system.
- *
+ * <p/>
+ * The properties are only reloaded if the modification date, the size or the checksum of the file has changed. The
+ * checksum is needed because the resolution of the modification date is as coarse as one or two seconds on some file
+ * systems. Properties files inside a war, ear or jar are only loaded once.
  */
 public final class PropertyFileConfigurationSource extends AbstractConfigurationSource {
 
@@ -25,6 +29,17 @@ public final class PropertyFileConfigurationSource extends AbstractConfiguration
 
 	private final String location;
 
+	/**
+	 * The file the properties have been loaded from or <code>null</code>, if the properties are not stored in a file
+	 */
+	private File file;
+
+	private long lastModified;
+
+	private long length;
+
+	private long checksum;
+
 	public PropertyFileConfigurationSource(String location) {
 		this.location = location;
 		reload();
@@ -32,11 +47,61 @@ public final class PropertyFileConfigurationSource extends AbstractConfiguration
 
 	@Override
 	public void reload() {
+		reloadIfChanged();
+	}
+
+	@Override
+	public synchronized boolean reloadIfChanged() {
+		final URL resource = getResource(location);
+		final File file = getFile(resource);
+		final long lastModified = file != null ? file.lastModified() : 0;
+		final long length = file != null ? file.length() : 0;
+		final long checksum = file != null ? getChecksum(file) : 0;
+		if (properties != null && resource != null && isUnchanged(file, lastModified, length, checksum)) {
+			return false;
+		}
 		properties = getProperties(location);
 		if (properties == null) {
 			logger.warn("Could not load {}", location);
 			properties = new Properties();
 		}
+		this.file = file;
+		this.lastModified = lastModified;
+		this.length = length;
+		this.checksum = checksum;
+		return true;
+	}
+
+	private boolean isUnchanged(File file, long lastModified, long length, long checksum) {
+		if (file == null) {
+			// the properties are located inside a war, ear or jar which does not change at runtime
+			return this.file == null;
+		}
+		return file.equals(this.file) && lastModified == this.lastModified && length == this.length && checksum == this.checksum;
+	}
+
+	private static long getChecksum(File file) {
+		final CRC32 crc = new CRC32();
+		InputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			final byte[] buffer = new byte[4096];
+			for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+				crc.update(buffer, 0, read);
+			}
+			return crc.getValue();
+		} catch (IOException e) {
+			// the problem is logged when loading the properties
+			return -1;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					logger.warn(e.getMessage() + " (this exception is ignored)", e);
+				}
+			}
+		}
 	}
 
 	@Override
@@ -53,6 +118,36 @@ public final class PropertyFileConfigurationSource extends AbstractConfiguration
 		return getProperties(location) != null;
 	}
 
+	private static URL getResource(String location) {
+		if (location == null) {
+			return null;
+		}
+		final URL resource = PropertyFileConfigurationSource.class.getClassLoader().getResource(location);
+		if (resource != null) {
+			return resource;
+		}
+		final File file = new File(location);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			return file.toURI().toURL();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static File getFile(URL resource) {
+		if (resource == null || !"file".equals(resource.getProtocol())) {
+			return null;
+		}
+		try {
+			return new File(resource.toURI());
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
 	private static Properties getProperties(String location) {
 		if (location == null) {
 			return null;
@@ -134,6 +229,10 @@ public final class PropertyFileConfigurationSource extends AbstractConfiguration
 				properties.store(out, null);
 				out.flush();
 				out.close();
+				this.file = file;
+				this.lastModified = file.lastModified();
+				this.length = file.length();
+				this.checksum = getChecksum(file);
 			} catch (URISyntaxException e) {
 				throw new IOException(e);
 			}
@@ -0,0 +1,421 @@
+package org.stagemonitor.core.elasticsearch;
+
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.core.spool.Spool;
+import org.stagemonitor.core.util.HttpClient;
+import org.stagemonitor.core.util.IOUtils;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.StringUtils;
+
+/**
+ * Sends _bulk requests to Elasticsearch and buffers the items that could not be indexed, so that they can be retried.
+ * <p/>
+ * If Elasticsearch can't be reached or responds with 429 or 5xx, all items of the request are buffered. Otherwise,
+ * only the items that have been rejected (for example, because the bulk thread pool of Elasticsearch is exhausted)
+ * are buffered. Items that can't be indexed at all, like documents that don't match the mapping, are dropped.
+ * <p/>
+ * The buffered items are sent along with the next bulk request, once the backoff has elapsed. The backoff doubles
+ * with every consecutive failure. While it is active, new items are buffered without contacting Elasticsearch.
+ * The size of the buffer is limited by {@link CorePlugin#getElasticsearchRetryBufferSizeMB()}. If the limit is
+ * exceeded, the oldest items are dropped. If the size is 0 and no spool is configured, retries are disabled: there is
+ * no backoff and the items that could not be indexed are dropped.
+ * <p/>
+ * If a spool is configured (see {@link CorePlugin#getSpoolDirectory()}), requests that fail because Elasticsearch is
+ * unreachable are appended to the {@link Spool} instead of the buffer. As long as the spool is not empty, new requests
+ * are appended to the spool as well, so that the drainer of the spool can replay them in order.
+ */
+public class BulkRetryBuffer {
+
+	static final int MAX_ATTEMPTS = 10;
+	private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final HttpClient httpClient;
+	private final CorePlugin corePlugin;
+	private final Metric2Registry registry;
+	private final MetricName bufferSizeName;
+	private final Gauge<Long> bufferSizeGauge = new Gauge<Long>() {
+		@Override
+		public Long getValue() {
+			return getBufferedBytes();
+		}
+	};
+	private final long initialBackoffMillis;
+	private final Meter retriedItems;
+	private final Meter droppedItems;
+	private final Spool spool;
+	private final LinkedList<BulkItem> bufferedItems = new LinkedList<BulkItem>();
+	private long bufferedBytes;
+	private int consecutiveFailures;
+	private long retryAt;
+
+	/**
+	 * @param httpClient the client that is used to send the bulk requests
+	 * @param corePlugin the core plugin
+	 * @param registry   the registry of the retried and dropped items meters
+	 * @param buffer     the name of the buffer, which is the value of the <code>buffer</code> tag of the metrics
+	 */
+	public BulkRetryBuffer(HttpClient httpClient, CorePlugin corePlugin, Metric2Registry registry, String buffer) {
+		this(httpClient, corePlugin, registry, buffer, TimeUnit.SECONDS.toMillis(1));
+	}
+
+	BulkRetryBuffer(HttpClient httpClient, CorePlugin corePlugin, Metric2Registry registry, String buffer,
+					long initialBackoffMillis) {
+		this.httpClient = httpClient;
+		this.corePlugin = corePlugin;
+		this.registry = registry;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.retriedItems = registry.meter(name("elasticsearch_bulk_items_retried").tag("buffer", buffer).build());
+		this.droppedItems = registry.meter(name("elasticsearch_bulk_items_dropped").tag("buffer", buffer).build());
+		this.bufferSizeName = name("elasticsearch_retry_buffer_size").tag("buffer", buffer).build();
+		try {
+			registry.register(bufferSizeName, bufferSizeGauge);
+		} catch (IllegalArgumentException e) {
+			// another buffer with the same name has not been closed yet, don't take away its gauge
+			logger.warn("The size of the {} retry buffer is not reported, because a retry buffer with the same name " +
+					"is still open", buffer);
+		}
+		this.spool = corePlugin.createSpool("elasticsearch-" + buffer);
+		if (spool != null) {
+			spool.startDraining("elasticsearch-" + buffer + "-spool", new Spool.RecordHandler() {
+				@Override
+				public boolean replay(byte[] record) {
+					return BulkRetryBuffer.this.replay(record);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends a _bulk request. The buffered items are sent along with the request, if the backoff has elapsed.
+	 * Otherwise, the request is spooled or its items are buffered.
+	 *
+	 * @param bulkRequest the body of the _bulk request, each line has to be terminated by a newline
+	 * @param gzip        whether the request should be gzip compressed
+	 */
+	public void send(final byte[] bulkRequest, final boolean gzip) {
+		final String elasticsearchUrl = corePlugin.getElasticsearchUrl();
+		if (StringUtils.isEmpty(elasticsearchUrl)) {
+			return;
+		}
+		final List<BulkItem> retries;
+		synchronized (this) {
+			final boolean backoff = consecutiveFailures > 0 && System.currentTimeMillis() < retryAt && !isRetryDisabled();
+			if (backoff || (spool != null && !spool.isEmpty())) {
+				if (spool == null || !spool(Collections.<BulkItem>emptyList(), bulkRequest)) {
+					buffer(BulkItem.parse(bulkRequest));
+				}
+				return;
+			}
+			retries = new ArrayList<BulkItem>(bufferedItems);
+			bufferedItems.clear();
+			bufferedBytes = 0;
+		}
+		retriedItems.mark(retries.size());
+
+		final BulkResult result = post(elasticsearchUrl, retries, bulkRequest, gzip);
+		if (result == BulkResult.RETRY_ALL && spool != null) {
+			synchronized (this) {
+				onFailure();
+				if (spool(retries, bulkRequest)) {
+					return;
+				}
+			}
+		}
+		handleResult(result, retries, bulkRequest);
+	}
+
+	/**
+	 * Replays a request of the spool
+	 *
+	 * @return <code>false</code>, if Elasticsearch is still unreachable
+	 */
+	private boolean replay(byte[] bulkRequest) {
+		final String elasticsearchUrl = corePlugin.getElasticsearchUrl();
+		if (StringUtils.isEmpty(elasticsearchUrl)) {
+			return false;
+		}
+		final BulkResult result = post(elasticsearchUrl, Collections.<BulkItem>emptyList(), bulkRequest, false);
+		if (result == BulkResult.RETRY_ALL) {
+			return false;
+		}
+		handleResult(result, Collections.<BulkItem>emptyList(), bulkRequest);
+		return true;
+	}
+
+	private BulkResult post(String elasticsearchUrl, final List<BulkItem> retries, final byte[] bulkRequest, final boolean gzip) {
+		final BulkResult result = httpClient.send("POST", elasticsearchUrl + "/_bulk",
+				gzip ? Collections.singletonMap("Content-Encoding", "gzip") : null, new HttpClient.OutputStreamHandler() {
+			@Override
+			public void withHttpURLConnection(OutputStream os) throws IOException {
+				final OutputStream out = gzip ? new GZIPOutputStream(os) : os;
+				for (BulkItem retry : retries) {
+					out.write(retry.bytes);
+				}
+				out.write(bulkRequest);
+				out.close();
+			}
+		}, new BulkResponseHandler());
+		return result != null ? result : BulkResult.RETRY_ALL;
+	}
+
+	private boolean spool(List<BulkItem> retries, byte[] bulkRequest) {
+		final ByteArrayOutputStream record = new ByteArrayOutputStream(bulkRequest.length);
+		for (BulkItem retry : retries) {
+			record.write(retry.bytes, 0, retry.bytes.length);
+		}
+		record.write(bulkRequest, 0, bulkRequest.length);
+		return spool.append(record.toByteArray());
+	}
+
+	private void handleResult(BulkResult result, List<BulkItem> retries, byte[] bulkRequest) {
+		if (result == BulkResult.SUCCESS) {
+			synchronized (this) {
+				consecutiveFailures = 0;
+			}
+			return;
+		}
+		final List<BulkItem> items = new ArrayList<BulkItem>(retries);
+		items.addAll(BulkItem.parse(bulkRequest));
+		if (result == BulkResult.DROP_ALL) {
+			droppedItems.mark(items.size());
+			return;
+		}
+		final List<BulkItem> rejected;
+		if (result == BulkResult.RETRY_ALL) {
+			rejected = items;
+		} else {
+			rejected = new ArrayList<BulkItem>();
+			for (int i = result.rejectedItems.nextSetBit(0); i >= 0 && i < items.size(); i = result.rejectedItems.nextSetBit(i + 1)) {
+				rejected.add(items.get(i));
+			}
+			droppedItems.mark(result.failedItems);
+		}
+		synchronized (this) {
+			if (isRetryDisabled()) {
+				consecutiveFailures = 0;
+				droppedItems.mark(rejected.size());
+			} else if (rejected.isEmpty()) {
+				consecutiveFailures = 0;
+			} else {
+				onFailure();
+				buffer(rejected);
+			}
+		}
+	}
+
+	private boolean isRetryDisabled() {
+		return spool == null && corePlugin.getElasticsearchRetryBufferSizeMB() <= 0;
+	}
+
+	private void onFailure() {
+		consecutiveFailures++;
+		final long backoff = Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(consecutiveFailures - 1, 20));
+		retryAt = System.currentTimeMillis() + backoff;
+	}
+
+	private void buffer(List<BulkItem> items) {
+		final long maxBytes = corePlugin.getElasticsearchRetryBufferSizeMB() * 1024L * 1024L;
+		int dropped = 0;
+		for (BulkItem item : items) {
+			if (++item.attempts > MAX_ATTEMPTS || item.bytes.length > maxBytes) {
+				dropped++;
+				continue;
+			}
+			bufferedItems.add(item);
+			bufferedBytes += item.bytes.length;
+		}
+		for (Iterator<BulkItem> iterator = bufferedItems.iterator(); bufferedBytes > maxBytes && iterator.hasNext(); ) {
+			bufferedBytes -= iterator.next().bytes.length;
+			iterator.remove();
+			dropped++;
+		}
+		if (dropped > 0) {
+			logger.warn("Dropped {} item(s) of a _bulk request because the retry buffer is full or the items have " +
+					"been retried {} times", dropped, MAX_ATTEMPTS);
+			droppedItems.mark(dropped);
+		}
+	}
+
+	/**
+	 * Stops draining the spool and removes the buffer size gauge (but not the gauge of another buffer with the same name)
+	 */
+	public void close() {
+		registry.remove(bufferSizeName, bufferSizeGauge);
+		if (spool != null) {
+			spool.close();
+		}
+	}
+
+	public synchronized long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	synchronized int getBufferedItemCount() {
+		return bufferedItems.size();
+	}
+
+	/**
+	 * Returns the result of an item of a _bulk response, regardless of the action (index, create, update or delete)
+	 */
+	static JsonNode getItemResult(JsonNode item) {
+		return item.elements().next();
+	}
+
+	/**
+	 * Returns a description of the error of a bulk item. Elasticsearch 1.x describes errors as strings, later versions
+	 * as objects that contain the type and reason of the error.
+	 */
+	static String getErrorMessage(JsonNode error) {
+		if (error.isTextual()) {
+			return error.asText();
+		}
+		return error.path("type").asText() + ": " + error.path("reason").asText();
+	}
+
+	private static boolean isRetryable(int status) {
+		// too many requests (rejected execution) or service unavailable
+		return status == 429 || status == 503;
+	}
+
+	/**
+	 * An action line and the corresponding source line (if any) of a _bulk request
+	 */
+	static class BulkItem {
+		private final byte[] bytes;
+		private int attempts;
+
+		private BulkItem(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		static List<BulkItem> parse(byte[] bulkRequest) {
+			final List<BulkItem> items = new ArrayList<BulkItem>();
+			int itemStart = 0;
+			boolean actionLine = true;
+			for (int i = 0; i < bulkRequest.length; i++) {
+				if (bulkRequest[i] != '\n') {
+					continue;
+				}
+				if (!actionLine || isDelete(bulkRequest, itemStart)) {
+					final byte[] bytes = new byte[i + 1 - itemStart];
+					System.arraycopy(bulkRequest, itemStart, bytes, 0, bytes.length);
+					items.add(new BulkItem(bytes));
+					itemStart = i + 1;
+					actionLine = true;
+				} else {
+					actionLine = false;
+				}
+			}
+			return items;
+		}
+
+		/**
+		 * Delete actions are the only ones that are not followed by a source line
+		 */
+		private static boolean isDelete(byte[] bulkRequest, int actionStart) {
+			int i = actionStart;
+			while (i < bulkRequest.length && (bulkRequest[i] == '{' || Character.isWhitespace(bulkRequest[i]))) {
+				i++;
+			}
+			final byte[] delete = {'"', 'd', 'e', 'l', 'e', 't', 'e', '"'};
+			for (int j = 0; j < delete.length; j++, i++) {
+				if (i >= bulkRequest.length || bulkRequest[i] != delete[j]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class BulkResult {
+		private static final BulkResult SUCCESS = new BulkResult();
+		private static final BulkResult RETRY_ALL = new BulkResult();
+		private static final BulkResult DROP_ALL = new BulkResult();
+
+		private final BitSet rejectedItems = new BitSet();
+		private int failedItems;
+	}
+
+	private class BulkResponseHandler implements HttpClient.ResponseHandler<BulkResult> {
+
+		@Override
+		public BulkResult handleResponse(InputStream is, Integer statusCode) throws IOException {
+			if (statusCode == null || statusCode == 429 || statusCode >= 500) {
+				logger.warn("Error while sending a _bulk request to elasticsearch, retrying later: {} {}", statusCode,
+						is != null ? IOUtils.toString(is) : "");
+				return BulkResult.RETRY_ALL;
+			}
+			if (statusCode >= 400) {
+				logger.warn("Error while sending a _bulk request to elasticsearch: {} {}", statusCode, IOUtils.toString(is));
+				return BulkResult.DROP_ALL;
+			}
+			final JsonParser jp = JsonUtils.getMapper().getFactory().createParser(is);
+			if (jp.nextToken() != JsonToken.START_OBJECT) {
+				return BulkResult.SUCCESS;
+			}
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = jp.getCurrentName();
+				jp.nextToken();
+				if ("errors".equals(field) && !jp.getBooleanValue()) {
+					// Elasticsearch writes the errors flag before the items
+					return BulkResult.SUCCESS;
+				} else if ("items".equals(field)) {
+					return getResult(jp.<JsonNode>readValueAsTree());
+				} else {
+					jp.skipChildren();
+				}
+			}
+			return BulkResult.SUCCESS;
+		}
+
+		private BulkResult getResult(JsonNode items) {
+			final BulkResult result = new BulkResult();
+			final StringBuilder errors = new StringBuilder();
+			int position = 0;
+			for (JsonNode item : items) {
+				final JsonNode itemResult = getItemResult(item);
+				final int status = itemResult.path("status").asInt();
+				final JsonNode error = itemResult.get("error");
+				if (isRetryable(status)) {
+					result.rejectedItems.set(position);
+				} else if (error != null || status >= 400) {
+					if (result.failedItems++ < 10) {
+						errors.append("\n - ").append(error != null ? getErrorMessage(error) : status);
+					}
+				}
+				position++;
+			}
+			if (result.failedItems > 0) {
+				logger.warn("Dropped {} item(s) of a _bulk request that could not be indexed:{}", result.failedItems, errors);
+			}
+			return result.rejectedItems.isEmpty() && result.failedItems == 0 ? BulkResult.SUCCESS : result;
+		}
+	}
+
+}
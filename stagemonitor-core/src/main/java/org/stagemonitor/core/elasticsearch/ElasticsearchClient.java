@@ -2,6 +2,7 @@ package org.stagemonitor.core.elasticsearch;
 
 import static org.stagemonitor.core.util.StringUtils.slugify;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,12 +13,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 
+import com.codahale.metrics.Clock;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
@@ -29,7 +29,6 @@ import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.pool.JavaThreadPoolMetricsCollectorImpl;
 import org.stagemonitor.core.pool.PooledResourceMetricsRegisterer;
 import org.stagemonitor.core.util.CompletedFuture;
-import org.stagemonitor.core.util.DateUtils;
 import org.stagemonitor.core.util.ExecutorUtils;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.IOUtils;
@@ -44,6 +43,8 @@ public class ElasticsearchClient {
 	private final CorePlugin corePlugin;
 
 	private final ThreadPoolExecutor asyncRestPool;
+	private final BulkRetryBuffer bulkRetryBuffer;
+	private final IndexLifecycleManager indexLifecycleManager;
 
 	public ElasticsearchClient() {
 		this(Stagemonitor.getConfiguration().getConfig(CorePlugin.class));
@@ -58,6 +59,13 @@ public class ElasticsearchClient {
 			PooledResourceMetricsRegisterer.registerPooledResource(pooledResource, Stagemonitor.getMetric2Registry());
 		}
 		this.httpClient = new HttpClient();
+		this.bulkRetryBuffer = new BulkRetryBuffer(httpClient, corePlugin, Stagemonitor.getMetric2Registry(), "documents");
+		this.indexLifecycleManager = new IndexLifecycleManager(this, Clock.defaultClock(),
+				corePlugin.getElasticsearchIndexManagementMaxConcurrentActions());
+	}
+
+	String getElasticsearchUrl() {
+		return corePlugin.getElasticsearchUrl();
 	}
 
 	public JsonNode getJson(final String path) throws IOException {
@@ -100,8 +108,31 @@ public class ElasticsearchClient {
 		return httpClient.sendAsJson(method, corePlugin.getElasticsearchUrl() + path, requestBody);
 	}
 
+	/**
+	 * Asynchronously indexes a document via the _bulk API. If the document can't be indexed because Elasticsearch is
+	 * not available or rejects it, the document is retried later (see {@link BulkRetryBuffer}).
+	 */
 	public void index(final String index, final String type, final Object document) {
-		sendAsJsonAsync("POST", "/" + index + "/" + type, document);
+		if (StringUtils.isNotEmpty(corePlugin.getElasticsearchUrl())) {
+			try {
+				asyncRestPool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							final ByteArrayOutputStream bulkRequest = new ByteArrayOutputStream();
+							bulkRequest.write(("{\"index\":{\"_index\":\"" + index + "\",\"_type\":\"" + type + "\"}}\n").getBytes("UTF-8"));
+							JsonUtils.writeJsonToOutputStream(document, bulkRequest);
+							bulkRequest.write('\n');
+							bulkRetryBuffer.send(bulkRequest.toByteArray(), false);
+						} catch (IOException e) {
+							logger.warn(e.getMessage(), e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				ExecutorUtils.logRejectionWarning(e);
+			}
+		}
 	}
 
 	public void index(final String index, final String type, String id, final Object document) {
@@ -206,14 +237,78 @@ public class ElasticsearchClient {
 		});
 	}
 
+	/**
+	 * Synchronously sends a _bulk request and returns the response, so that the caller can inspect the status
+	 * of each item (for example to detect version conflicts).
+	 *
+	 * @param bulkRequest the body of the _bulk request
+	 * @return the parsed response or <code>null</code>, if the request failed
+	 */
+	public JsonNode sendBulkRequest(final byte[] bulkRequest) {
+		if (StringUtils.isEmpty(corePlugin.getElasticsearchUrl())) {
+			return null;
+		}
+		return httpClient.send("POST", corePlugin.getElasticsearchUrl() + "/_bulk", null, new HttpClient.OutputStreamHandler() {
+			@Override
+			public void withHttpURLConnection(OutputStream os) throws IOException {
+				os.write(bulkRequest);
+				os.close();
+			}
+		}, new HttpClient.ResponseHandler<JsonNode>() {
+			@Override
+			public JsonNode handleResponse(InputStream is, Integer statusCode) throws IOException {
+				if (statusCode == null || statusCode >= 400) {
+					logger.warn("Error while sending a _bulk request to elasticsearch: {} {}", statusCode,
+							is != null ? IOUtils.toString(is) : "");
+					return null;
+				}
+				return JsonUtils.getMapper().readTree(is);
+			}
+		});
+	}
+
+	/**
+	 * Synchronously sends a POST request, for example a search request, and returns the response
+	 *
+	 * @param path        the path of the request
+	 * @param requestBody the body of the request (a {@link String} is sent as is, other objects are serialized as JSON)
+	 * @return the parsed response or <code>null</code>, if the request failed
+	 */
+	public JsonNode postJson(final String path, final Object requestBody) {
+		if (StringUtils.isEmpty(corePlugin.getElasticsearchUrl())) {
+			return null;
+		}
+		return httpClient.send("POST", corePlugin.getElasticsearchUrl() + path, null, new HttpClient.OutputStreamHandler() {
+			@Override
+			public void withHttpURLConnection(OutputStream os) throws IOException {
+				if (requestBody instanceof String) {
+					os.write(((String) requestBody).getBytes("UTF-8"));
+				} else {
+					JsonUtils.writeJsonToOutputStream(requestBody, os);
+				}
+				os.close();
+			}
+		}, new HttpClient.ResponseHandler<JsonNode>() {
+			@Override
+			public JsonNode handleResponse(InputStream is, Integer statusCode) throws IOException {
+				if (statusCode == null || statusCode >= 400) {
+					logger.warn("Error while sending a request to elasticsearch ({}): {} {}", path, statusCode,
+							is != null ? IOUtils.toString(is) : "");
+					return null;
+				}
+				return JsonUtils.getMapper().readTree(is);
+			}
+		});
+	}
+
 	private void reportBulkErrors(JsonNode items) {
 		final StringBuilder sb = new StringBuilder("Error(s) while sending a _bulk request to elasticsearch:");
 		for (JsonNode item : items) {
-			final JsonNode error = item.get("index").get("error");
+			final JsonNode error = BulkRetryBuffer.getItemResult(item).get("error");
 			if (error != null) {
 				sb.append("\n - ");
-				sb.append(error.get("reason").asText());
-				if (error.get("type").asText().equals("version_conflict_engine_exception")) {
+				sb.append(BulkRetryBuffer.getErrorMessage(error));
+				if (BulkRetryBuffer.getItemResult(item).path("status").asInt() == 409) {
 					sb.append(": Probably you updated a dashboard in Kibana. ")
 							.append("Please don't override the stagemonitor dashboards. ")
 							.append("If you want to customize a dashboard, save it under a different name. ")
@@ -278,36 +373,47 @@ public class ElasticsearchClient {
 
 	public void close() {
 		asyncRestPool.shutdown();
+		indexLifecycleManager.close();
+		bulkRetryBuffer.close();
 	}
 
 	/**
-	 * Performs an optimize and delete on logstash-style index patterns [prefix]YYYY.MM.DD
+	 * Deletes, optimizes and moves logstash-style indices [prefix]YYYY.MM.DD to the cold nodes
+	 * (see {@link IndexLifecycleManager})
 	 *
 	 * @param indexPrefix the prefix of the logstash-style index pattern
 	 */
 	public void scheduleIndexManagement(String indexPrefix, int optimizeAndMoveIndicesToColdNodesOlderThanDays, int deleteIndicesOlderThanDays) {
-		Timer timer = new Timer(indexPrefix + "elasticsearch-tasks", true);
-
-		if (deleteIndicesOlderThanDays > 0) {
-			final TimerTask deleteIndicesTask = new DeleteIndicesTask(corePlugin.getIndexSelector(), indexPrefix,
-					deleteIndicesOlderThanDays, this);
-			deleteIndicesTask.run();
-			timer.schedule(deleteIndicesTask, DateUtils.getNextDateAtHour(0), DateUtils.getDayInMillis());
-		}
+		indexLifecycleManager.manage(indexPrefix, optimizeAndMoveIndicesToColdNodesOlderThanDays, deleteIndicesOlderThanDays);
+	}
 
-		if (optimizeAndMoveIndicesToColdNodesOlderThanDays > 0) {
-			final TimerTask shardAllocationTask = new ShardAllocationTask(corePlugin.getIndexSelector(), indexPrefix,
-					optimizeAndMoveIndicesToColdNodesOlderThanDays, this, "cold");
-			shardAllocationTask.run();
-			timer.schedule(shardAllocationTask, DateUtils.getNextDateAtHour(0), DateUtils.getDayInMillis());
-		}
+	/**
+	 * Executes a task once a day before the indices are managed (see {@link IndexLifecycleManager#addDailyTask(Runnable)})
+	 *
+	 * @param task the task
+	 */
+	public void scheduleDailyTask(Runnable task) {
+		indexLifecycleManager.addDailyTask(task);
+	}
 
-		if (optimizeAndMoveIndicesToColdNodesOlderThanDays > 0) {
-			final TimerTask optimizeIndicesTask = new OptimizeIndicesTask(corePlugin.getIndexSelector(), indexPrefix,
-					optimizeAndMoveIndicesToColdNodesOlderThanDays, this);
-			timer.schedule(optimizeIndicesTask, DateUtils.getNextDateAtHour(3), DateUtils.getDayInMillis());
-		}
+	/**
+	 * Rolls the index of the current day over to a new generation as soon as it exceeds the maximum size
+	 *
+	 * @param indexPrefix  the prefix of the logstash-style index pattern
+	 * @param maxSizeBytes the maximum size of the primary shards of an index (disabled if not greater than 0)
+	 */
+	public void rollOverBySize(String indexPrefix, long maxSizeBytes) {
+		indexLifecycleManager.rollOverBySize(indexPrefix, maxSizeBytes);
+	}
 
+	/**
+	 * Returns the index documents should be indexed into
+	 *
+	 * @param indexPrefix the prefix of the logstash-style index pattern
+	 * @return [prefix]YYYY.MM.DD or [prefix]YYYY.MM.DD-[generation], if the index has been rolled over
+	 */
+	public String getCurrentIndex(String indexPrefix) {
+		return indexLifecycleManager.getCurrentIndex(indexPrefix);
 	}
 
 }
@@ -0,0 +1,372 @@
+package org.stagemonitor.core.elasticsearch;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Clock;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.util.DateUtils;
+import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.core.util.StringUtils;
+
+/**
+ * Manages the lifecycle of logstash-style indices ([prefix]YYYY.MM.DD or [prefix]YYYY.MM.DD-[generation]) on one
+ * shared scheduled executor.
+ * <p/>
+ * Once a day, the existing indices of each prefix are listed once and the actions for each index are computed:
+ * <ul>
+ * <li>indices that are older than <code>deleteAfterDays</code> are deleted</li>
+ * <li>indices that are older than <code>moveToColdNodesAfterDays</code> are moved to the cold nodes (unless they
+ * already are) and optimized (unless they already consist of only one segment per shard)</li>
+ * </ul>
+ * The actions are executed by the executor, so that at most <code>maxConcurrentActions</code> actions run at the same
+ * time. The daily run starts at a random time between 00:00 and 04:00, so that the instances of a fleet don't
+ * optimize the same indices at the same time. The actions that are performed when the instance starts don't include
+ * the expensive optimization.
+ * <p/>
+ * Optionally, the index of the current day is rolled over to a new generation if it exceeds a maximum size
+ * (see {@link #rollOverBySize(String, long)}). The size is checked on a separate thread, so that long running actions
+ * like optimizations don't delay the rollover.
+ */
+public class IndexLifecycleManager {
+
+	private static final Pattern DATE_AND_GENERATION = Pattern.compile("(\\d{4}\\.\\d{2}\\.\\d{2})(?:-(\\d+))?");
+	static final long ROLLOVER_CHECK_INTERVAL_MINUTES = 5;
+	private static final String BOX_TYPE_SETTING = "index.routing.allocation.require.box_type";
+	private static final String COLD = "cold";
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ElasticsearchClient elasticsearchClient;
+	private final Clock clock;
+	private final ScheduledThreadPoolExecutor executor;
+	private ScheduledExecutorService rolloverExecutor;
+	private final List<Policy> policies = new CopyOnWriteArrayList<Policy>();
+	private final List<Runnable> dailyTasks = new CopyOnWriteArrayList<Runnable>();
+	private final Map<String, Long> maxSizeByPrefix = new ConcurrentHashMap<String, Long>();
+	private final Map<String, String> currentIndexByPrefix = new ConcurrentHashMap<String, String>();
+	private boolean dailyRunScheduled;
+
+	/**
+	 * @param elasticsearchClient  the client
+	 * @param clock                the clock that determines the age of the indices
+	 * @param maxConcurrentActions the maximum number of actions (like optimizing an index) that run concurrently
+	 */
+	public IndexLifecycleManager(ElasticsearchClient elasticsearchClient, Clock clock, int maxConcurrentActions) {
+		this.elasticsearchClient = elasticsearchClient;
+		this.clock = clock;
+		this.executor = new ScheduledThreadPoolExecutor(Math.max(1, maxConcurrentActions), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				thread.setName("elasticsearch-index-management");
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Manages the indices with the given prefix. The indices are immediately deleted and moved to the cold nodes, if
+	 * necessary. Afterwards, the indices are managed daily.
+	 *
+	 * @param indexPrefix              the prefix of the logstash-style index pattern
+	 * @param moveToColdNodesAfterDays the number of days after which the indices are moved to the cold nodes and
+	 *                                 optimized (disabled if not greater than 0)
+	 * @param deleteAfterDays          the number of days after which the indices are deleted (disabled if not greater
+	 *                                 than 0)
+	 */
+	public synchronized void manage(String indexPrefix, int moveToColdNodesAfterDays, int deleteAfterDays) {
+		if (moveToColdNodesAfterDays <= 0 && deleteAfterDays <= 0) {
+			return;
+		}
+		final Policy policy = new Policy(indexPrefix, moveToColdNodesAfterDays, deleteAfterDays);
+		policies.add(policy);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				executeActions(getActions(policy, false));
+			}
+		});
+		scheduleDailyRun();
+	}
+
+	/**
+	 * Adds a task that is executed once a day before the indices are managed, for example to aggregate the documents
+	 * of an index before it is deleted.
+	 *
+	 * @param task the task
+	 */
+	public synchronized void addDailyTask(Runnable task) {
+		dailyTasks.add(task);
+		scheduleDailyRun();
+	}
+
+	private void scheduleDailyRun() {
+		if (dailyRunScheduled) {
+			return;
+		}
+		dailyRunScheduled = true;
+		final long jitter = (long) (new Random().nextDouble() * TimeUnit.HOURS.toMillis(4));
+		final long initialDelay = DateUtils.getNextDateAtHour(0).getTime() - System.currentTimeMillis() + jitter;
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				for (Runnable task : dailyTasks) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.warn(e.getMessage(), e);
+					}
+				}
+				for (Policy policy : policies) {
+					executeActions(getActions(policy, true));
+				}
+			}
+		}, initialDelay, DateUtils.getDayInMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Rolls the index of the current day over to a new generation (for example from
+	 * <code>stagemonitor-requests-2016.01.01</code> to <code>stagemonitor-requests-2016.01.01-1</code>) as soon as it
+	 * exceeds the maximum size. Documents should be indexed into {@link #getCurrentIndex(String)}.
+	 *
+	 * @param indexPrefix  the prefix of the logstash-style index pattern
+	 * @param maxSizeBytes the maximum size of the primary shards of an index
+	 */
+	public synchronized void rollOverBySize(final String indexPrefix, long maxSizeBytes) {
+		if (maxSizeBytes <= 0 || maxSizeByPrefix.put(indexPrefix, maxSizeBytes) != null) {
+			return;
+		}
+		if (rolloverExecutor == null) {
+			rolloverExecutor = ExecutorUtils.createSingleThreadSchedulingDeamonPool("elasticsearch-index-rollover");
+		}
+		rolloverExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				updateCurrentIndex(indexPrefix);
+			}
+		}, 0, ROLLOVER_CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Returns the index documents should be indexed into
+	 *
+	 * @param indexPrefix the prefix of the logstash-style index pattern
+	 * @return the index of the current day, including the generation if the index has been rolled over
+	 */
+	public String getCurrentIndex(String indexPrefix) {
+		final String today = indexPrefix + getDate(clock.getTime());
+		final String currentIndex = currentIndexByPrefix.get(indexPrefix);
+		if (currentIndex != null && currentIndex.startsWith(today)) {
+			return currentIndex;
+		}
+		return today;
+	}
+
+	void updateCurrentIndex(String indexPrefix) {
+		final Long maxSizeBytes = maxSizeByPrefix.get(indexPrefix);
+		final String today = getDate(clock.getTime());
+		final JsonNode stats = getJson("/" + indexPrefix + today + "*/_stats/store");
+		if (maxSizeBytes == null || stats == null) {
+			return;
+		}
+		int generation = 0;
+		long size = 0;
+		for (Iterator<Map.Entry<String, JsonNode>> it = stats.path("indices").fields(); it.hasNext(); ) {
+			final Map.Entry<String, JsonNode> index = it.next();
+			final Matcher matcher = DATE_AND_GENERATION.matcher(index.getKey().substring(indexPrefix.length()));
+			if (!matcher.matches() || !today.equals(matcher.group(1))) {
+				continue;
+			}
+			final int indexGeneration = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+			if (indexGeneration >= generation) {
+				generation = indexGeneration;
+				size = index.getValue().path("primaries").path("store").path("size_in_bytes").asLong();
+			}
+		}
+		if (size > maxSizeBytes) {
+			generation++;
+			logger.info("Rolling over {}{} to generation {}, because it exceeds {} bytes", indexPrefix, today, generation, maxSizeBytes);
+		}
+		currentIndexByPrefix.put(indexPrefix, indexPrefix + today + (generation > 0 ? "-" + generation : ""));
+	}
+
+	/**
+	 * Lists the indices of the policy and computes the actions that are necessary for each index
+	 *
+	 * @param policy   the policy
+	 * @param optimize whether optimize actions should be included
+	 * @return the actions
+	 */
+	List<Action> getActions(Policy policy, boolean optimize) {
+		final JsonNode stats = getJson("/" + policy.indexPrefix + "*/_stats/docs,store,segments");
+		if (stats == null) {
+			return Collections.emptyList();
+		}
+		final JsonNode settings = policy.moveToColdNodesAfterDays > 0 ? getJson("/" + policy.indexPrefix + "*/_settings") : null;
+		final long now = clock.getTime();
+		final List<Action> actions = new ArrayList<Action>();
+		for (Iterator<Map.Entry<String, JsonNode>> it = stats.path("indices").fields(); it.hasNext(); ) {
+			final Map.Entry<String, JsonNode> indexStats = it.next();
+			final String index = indexStats.getKey();
+			final long ageInDays = getAgeInDays(policy.indexPrefix, index, now);
+			if (ageInDays < 0) {
+				continue;
+			}
+			if (policy.deleteAfterDays > 0 && ageInDays > policy.deleteAfterDays) {
+				actions.add(new Action(Action.Type.DELETE, index));
+			} else if (policy.moveToColdNodesAfterDays > 0 && ageInDays > policy.moveToColdNodesAfterDays) {
+				final String boxType = settings != null ? settings.path(index).path("settings").path(BOX_TYPE_SETTING).asText() : "";
+				final String nestedBoxType = settings != null ? settings.path(index).path("settings").path("index")
+						.path("routing").path("allocation").path("require").path("box_type").asText() : "";
+				if (!COLD.equals(boxType) && !COLD.equals(nestedBoxType)) {
+					actions.add(new Action(Action.Type.MOVE_TO_COLD_NODES, index));
+				}
+				if (optimize && isOptimizationNecessary(indexStats.getValue())) {
+					actions.add(new Action(Action.Type.OPTIMIZE, index));
+				}
+			}
+		}
+		return actions;
+	}
+
+	/**
+	 * An index that has already been optimized has only one segment per primary shard
+	 */
+	private boolean isOptimizationNecessary(JsonNode indexStats) {
+		final JsonNode primaries = indexStats.path("primaries");
+		final long segments = primaries.path("segments").path("count").asLong();
+		final long shards = Math.max(1, indexStats.path("shards").size());
+		return primaries.path("docs").path("count").asLong() > 0 && segments > shards;
+	}
+
+	/**
+	 * @return the age of the index in days or -1, if the index does not match the pattern [prefix]YYYY.MM.DD
+	 */
+	private long getAgeInDays(String indexPrefix, String index, long now) {
+		if (!index.startsWith(indexPrefix)) {
+			return -1;
+		}
+		final Matcher matcher = DATE_AND_GENERATION.matcher(index.substring(indexPrefix.length()));
+		if (!matcher.matches()) {
+			return -1;
+		}
+		try {
+			final long date = getDateFormat().parse(matcher.group(1)).getTime();
+			return Math.max(0, (getDateFormat().parse(getDate(now)).getTime() - date) / DateUtils.getDayInMillis());
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	private void executeActions(List<Action> actions) {
+		for (final Action action : actions) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						action.execute(elasticsearchClient);
+					} catch (RuntimeException e) {
+						logger.warn("Could not " + action + ": " + e.getMessage(), e);
+					}
+				}
+			});
+		}
+	}
+
+	private JsonNode getJson(String path) {
+		if (StringUtils.isEmpty(elasticsearchClient.getElasticsearchUrl())) {
+			return null;
+		}
+		try {
+			return elasticsearchClient.getJson(path);
+		} catch (FileNotFoundException e) {
+			// there are no indices with this prefix
+			return null;
+		} catch (IOException e) {
+			logger.warn("Could not list the indices: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	private static String getDate(long time) {
+		return getDateFormat().format(time);
+	}
+
+	private static SimpleDateFormat getDateFormat() {
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return dateFormat;
+	}
+
+	public synchronized void close() {
+		executor.shutdownNow();
+		if (rolloverExecutor != null) {
+			rolloverExecutor.shutdownNow();
+		}
+	}
+
+	static class Policy {
+		private final String indexPrefix;
+		private final int moveToColdNodesAfterDays;
+		private final int deleteAfterDays;
+
+		Policy(String indexPrefix, int moveToColdNodesAfterDays, int deleteAfterDays) {
+			this.indexPrefix = indexPrefix;
+			this.moveToColdNodesAfterDays = moveToColdNodesAfterDays;
+			this.deleteAfterDays = deleteAfterDays;
+		}
+	}
+
+	static class Action {
+		enum Type {
+			DELETE, MOVE_TO_COLD_NODES, OPTIMIZE
+		}
+
+		private final Type type;
+		private final String index;
+
+		Action(Type type, String index) {
+			this.type = type;
+			this.index = index;
+		}
+
+		void execute(ElasticsearchClient elasticsearchClient) {
+			switch (type) {
+				case DELETE:
+					elasticsearchClient.deleteIndices(index);
+					break;
+				case MOVE_TO_COLD_NODES:
+					elasticsearchClient.updateIndexSettings(index, Collections.singletonMap(BOX_TYPE_SETTING, COLD));
+					break;
+				default:
+					elasticsearchClient.optimizeIndices(index);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return type.name().toLowerCase().replace('_', ' ') + " " + index;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.stagemonitor.core.metrics;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.graphite.GraphiteSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.spool.Spool;
+
+/**
+ * A {@link GraphiteSender} that collects the metrics of a report and sends them on {@link #flush()}. If graphite is
+ * unreachable or the spool still contains metrics of previous reports, the metrics are appended to the {@link Spool}
+ * and replayed by its drainer once graphite is reachable again.
+ * <p/>
+ * The metrics are flushed to graphite every {@value #LINES_PER_FLUSH} lines. If sending fails, only the lines after
+ * the last successful flush are spooled.
+ */
+public class SpoolingGraphiteSender implements GraphiteSender {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
+	static final int LINES_PER_FLUSH = 100;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final GraphiteSender graphite;
+	private final Spool spool;
+	private StringBuilder batch = new StringBuilder();
+	private boolean connected;
+
+	public SpoolingGraphiteSender(GraphiteSender graphite, Spool spool) {
+		this.graphite = graphite;
+		this.spool = spool;
+		spool.startDraining("graphite-spool", new Spool.RecordHandler() {
+			@Override
+			public boolean replay(byte[] record) {
+				// a record can only be removed as a whole, graphite overwrites the values that are sent twice
+				return sendToGraphite(new String(record, UTF_8)).isEmpty();
+			}
+		});
+	}
+
+	/**
+	 * Does not connect to graphite, because the metrics are sent on {@link #flush()}
+	 */
+	@Override
+	public void connect() {
+		connected = true;
+	}
+
+	@Override
+	public void send(String name, String value, long timestamp) {
+		batch.append(sanitize(name)).append(' ').append(sanitize(value)).append(' ').append(timestamp).append('\n');
+	}
+
+	@Override
+	public void flush() {
+		String lines = batch.toString();
+		batch = new StringBuilder(lines.length());
+		if (lines.isEmpty()) {
+			return;
+		}
+		if (spool.isEmpty()) {
+			lines = sendToGraphite(lines);
+			if (lines.isEmpty()) {
+				return;
+			}
+		}
+		if (!spool.append(lines.getBytes(UTF_8))) {
+			logger.warn("Could not spool the metrics for graphite");
+		}
+	}
+
+	/**
+	 * Sends the lines to graphite
+	 *
+	 * @param lines the lines, each line has to be terminated by a newline
+	 * @return the lines that have not been flushed to graphite or an empty string, if all lines have been sent
+	 */
+	private synchronized String sendToGraphite(String lines) {
+		int flushedUntil = 0;
+		try {
+			if (!graphite.isConnected()) {
+				graphite.connect();
+			}
+			int linesSinceFlush = 0;
+			for (int lineStart = 0; lineStart < lines.length(); ) {
+				final int lineEnd = lines.indexOf('\n', lineStart);
+				final String[] nameValueTimestamp = lines.substring(lineStart, lineEnd).split(" ");
+				graphite.send(nameValueTimestamp[0], nameValueTimestamp[1], Long.parseLong(nameValueTimestamp[2]));
+				lineStart = lineEnd + 1;
+				if (++linesSinceFlush == LINES_PER_FLUSH || lineStart == lines.length()) {
+					graphite.flush();
+					flushedUntil = lineStart;
+					linesSinceFlush = 0;
+				}
+			}
+			return "";
+		} catch (IOException e) {
+			logger.warn("Unable to report to graphite: {}", e.getMessage());
+			closeGraphite();
+			return lines.substring(flushedUntil);
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public int getFailures() {
+		return graphite.getFailures();
+	}
+
+	@Override
+	public void close() {
+		connected = false;
+	}
+
+	private synchronized void closeGraphite() {
+		try {
+			graphite.close();
+		} catch (IOException e) {
+			logger.debug(e.getMessage(), e);
+		}
+	}
+
+	private static String sanitize(String s) {
+		return WHITESPACE.matcher(s).replaceAll("-");
+	}
+}
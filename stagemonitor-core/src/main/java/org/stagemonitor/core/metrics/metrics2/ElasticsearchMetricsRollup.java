@@ -0,0 +1,576 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Clock;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.util.DateUtils;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.StringUtils;
+
+/**
+ * Aggregates the metrics of the daily stagemonitor-metrics-YYYY.MM.DD indices that are older than a number of days into
+ * 1-minute documents (stagemonitor-metrics-1m-YYYY.MM.DD) and 1-hour documents (stagemonitor-metrics-1h-YYYY.MM.DD).
+ * <p/>
+ * The documents of an index are read in the order of their @timestamp via the scroll API. As the _source of the
+ * metric documents is disabled, the values are read from the doc values. The documents are grouped by their name and
+ * tags, so the memory usage only depends on the number of metrics and not on the size of the index.
+ * <p/>
+ * The values are merged as follows:
+ * <ul>
+ * <li>count: the last value, as counts are cumulative</li>
+ * <li>min and max: the minimum and maximum</li>
+ * <li>mean and std: weighted by the number of events of each sample</li>
+ * <li>median and percentiles: the quantiles of the mixture of the distributions of the samples, weighted by the number
+ * of events of each sample (the distribution of a sample is interpolated between its min, percentiles and max)</li>
+ * <li>rates and gauge values: the average</li>
+ * </ul>
+ * The 1-hour documents are aggregated from the 1-minute documents. When an index is rolled up completely, a marker
+ * document is stored in the 1-hour index, so that an index is not rolled up again.
+ */
+public class ElasticsearchMetricsRollup implements Runnable {
+
+	public static final String MINUTE_ROLLUP_INDEX_PREFIX = ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX + "1m-";
+	public static final String HOUR_ROLLUP_INDEX_PREFIX = ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX + "1h-";
+	private static final Pattern DAILY_INDEX = Pattern.compile(Pattern.quote(ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX) + "\\d{4}\\.\\d{2}\\.\\d{2}");
+	private static final String COMPLETED_MARKER = "/rollups/completed";
+	private static final int SCROLL_SIZE = 1000;
+	private static final int BULK_SIZE = 1000;
+
+	static final String[] QUANTILE_FIELDS = {"min", "p25", "median", "p75", "p95", "p98", "p99", "p999", "max"};
+	static final double[] QUANTILES = {0, 0.25, 0.5, 0.75, 0.95, 0.98, 0.99, 0.999, 1};
+	private static final Set<String> QUANTILE_FIELD_SET = new HashSet<String>(Arrays.asList(QUANTILE_FIELDS));
+	private static final Set<String> NUMERIC_TYPES = new HashSet<String>(Arrays.asList("integer", "long", "float", "double", "short", "byte"));
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final ElasticsearchClient elasticsearchClient;
+	private final int rollupAfterDays;
+	private final Clock clock;
+
+	/**
+	 * @param elasticsearchClient the client
+	 * @param rollupAfterDays     the number of days after which a daily metrics index is rolled up
+	 */
+	public ElasticsearchMetricsRollup(ElasticsearchClient elasticsearchClient, int rollupAfterDays) {
+		this(elasticsearchClient, rollupAfterDays, Clock.defaultClock());
+	}
+
+	ElasticsearchMetricsRollup(ElasticsearchClient elasticsearchClient, int rollupAfterDays, Clock clock) {
+		this.elasticsearchClient = elasticsearchClient;
+		this.rollupAfterDays = rollupAfterDays;
+		this.clock = clock;
+	}
+
+	@Override
+	public void run() {
+		for (String index : getIndicesToRollUp()) {
+			try {
+				rollUp(index);
+			} catch (IOException e) {
+				logger.warn("Could not roll up " + index + ": " + e.getMessage(), e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the daily metrics indices that are older than {@link #rollupAfterDays} and that have not been rolled up yet
+	 */
+	List<String> getIndicesToRollUp() {
+		final JsonNode stats;
+		try {
+			stats = elasticsearchClient.getJson("/" + ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX + "*/_stats/docs");
+		} catch (IOException e) {
+			logger.warn("Could not list the metrics indices: {}", e.getMessage());
+			return Collections.emptyList();
+		}
+		final String newestIndexToRollUp = ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX +
+				StringUtils.getLogstashStyleDate(clock.getTime() - rollupAfterDays * DateUtils.getDayInMillis());
+		final List<String> indices = new ArrayList<String>();
+		for (Iterator<String> it = stats.path("indices").fieldNames(); it.hasNext(); ) {
+			final String index = it.next();
+			// the dates are zero padded, so the index names can be compared lexicographically
+			if (DAILY_INDEX.matcher(index).matches() && index.compareTo(newestIndexToRollUp) < 0 && !isRolledUp(index)) {
+				indices.add(index);
+			}
+		}
+		Collections.sort(indices);
+		return indices;
+	}
+
+	private boolean isRolledUp(String index) {
+		try {
+			return elasticsearchClient.getJson("/" + getRollupIndex(HOUR_ROLLUP_INDEX_PREFIX, index) + COMPLETED_MARKER).path("found").asBoolean();
+		} catch (FileNotFoundException e) {
+			return false;
+		} catch (IOException e) {
+			// try again tomorrow
+			return true;
+		}
+	}
+
+	private static String getRollupIndex(String rollupIndexPrefix, String index) {
+		return rollupIndexPrefix + index.substring(ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX.length());
+	}
+
+	void rollUp(String index) throws IOException {
+		logger.info("Rolling up {}", index);
+		final Map<String, String> fieldTypes = getFieldTypes(index);
+		final BulkWriter minuteWriter = new BulkWriter(getRollupIndex(MINUTE_ROLLUP_INDEX_PREFIX, index));
+		final BulkWriter hourWriter = new BulkWriter(getRollupIndex(HOUR_ROLLUP_INDEX_PREFIX, index));
+		final Aggregator aggregator = new Aggregator(fieldTypes, minuteWriter, hourWriter);
+
+		final Map<String, Object> search = new LinkedHashMap<String, Object>();
+		search.put("size", SCROLL_SIZE);
+		search.put("sort", Collections.singletonList("@timestamp"));
+		search.put("fielddata_fields", fieldTypes.keySet());
+		JsonNode response = elasticsearchClient.postJson("/" + index + "/" + ElasticsearchReporter.METRICS_TYPE + "/_search?scroll=5m", search);
+		while (response != null && response.path("hits").path("hits").size() > 0) {
+			for (JsonNode hit : response.path("hits").path("hits")) {
+				aggregator.add(hit.path("fields"));
+			}
+			response = elasticsearchClient.postJson("/_search/scroll?scroll=5m", response.path("_scroll_id").asText());
+		}
+		if (response == null) {
+			throw new IOException("Could not read the metrics of " + index);
+		}
+		aggregator.flush();
+		minuteWriter.flush();
+		hourWriter.flush();
+		elasticsearchClient.sendAsJson("PUT", "/" + getRollupIndex(HOUR_ROLLUP_INDEX_PREFIX, index) + COMPLETED_MARKER,
+				Collections.singletonMap("@timestamp", clock.getTime()));
+		logger.info("Rolled up {} into {} 1-minute and {} 1-hour documents", index, minuteWriter.documents, hourWriter.documents);
+	}
+
+	/**
+	 * @return the type of each field of the metric documents of the index, for example <code>{"name":"string","count":"integer"}</code>
+	 */
+	private Map<String, String> getFieldTypes(String index) throws IOException {
+		final JsonNode properties = elasticsearchClient.getJson("/" + index + "/_mapping/" + ElasticsearchReporter.METRICS_TYPE)
+				.path(index).path("mappings").path(ElasticsearchReporter.METRICS_TYPE).path("properties");
+		final Map<String, String> fieldTypes = new HashMap<String, String>();
+		for (Iterator<Map.Entry<String, JsonNode>> it = properties.fields(); it.hasNext(); ) {
+			final Map.Entry<String, JsonNode> property = it.next();
+			fieldTypes.put(property.getKey(), property.getValue().path("type").asText());
+		}
+		return fieldTypes;
+	}
+
+	interface DocumentWriter {
+		void write(long timestamp, Map<String, String> tags, Map<String, Object> values) throws IOException;
+	}
+
+	private class BulkWriter implements DocumentWriter {
+		private final String index;
+		private final ByteArrayOutputStream bulkRequest = new ByteArrayOutputStream();
+		private int bufferedDocuments;
+		private int documents;
+
+		private BulkWriter(String index) {
+			this.index = index;
+		}
+
+		@Override
+		public void write(long timestamp, Map<String, String> tags, Map<String, Object> values) throws IOException {
+			final ObjectNode document = JsonUtils.getMapper().createObjectNode();
+			document.put("@timestamp", timestamp);
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				document.put(tag.getKey(), tag.getValue());
+			}
+			for (Map.Entry<String, Object> value : values.entrySet()) {
+				document.putPOJO(value.getKey(), value.getValue());
+			}
+			// the id is derived from the name, tags and timestamp, so that rolling up an index again overrides the documents
+			final String id = UUID.nameUUIDFromBytes((tags.toString() + timestamp).getBytes("UTF-8")).toString();
+			bulkRequest.write(("{\"index\":{\"_index\":\"" + index + "\",\"_type\":\"" + ElasticsearchReporter.METRICS_TYPE +
+					"\",\"_id\":\"" + id + "\"}}\n").getBytes("UTF-8"));
+			JsonUtils.writeJsonToOutputStream(document, bulkRequest);
+			bulkRequest.write('\n');
+			documents++;
+			if (++bufferedDocuments >= BULK_SIZE) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			if (bufferedDocuments == 0) {
+				return;
+			}
+			final JsonNode response = elasticsearchClient.sendBulkRequest(bulkRequest.toByteArray());
+			if (response == null || response.path("errors").asBoolean()) {
+				throw new IOException("Could not index the rolled up metrics into " + index);
+			}
+			bulkRequest.reset();
+			bufferedDocuments = 0;
+		}
+	}
+
+	/**
+	 * Groups the documents by their name and tags and aggregates them into 1-minute and 1-hour buckets. The documents
+	 * have to be added in the order of their timestamps.
+	 */
+	static class Aggregator {
+		private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+		private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+		private final Map<String, String> fieldTypes;
+		private final DocumentWriter minuteWriter;
+		private final DocumentWriter hourWriter;
+		private final Map<Map<String, String>, Series> seriesByTags = new HashMap<Map<String, String>, Series>();
+
+		/**
+		 * @param fieldTypes the type of each field (see the mapping of the metric documents)
+		 */
+		Aggregator(Map<String, String> fieldTypes, DocumentWriter minuteWriter, DocumentWriter hourWriter) {
+			this.fieldTypes = fieldTypes;
+			this.minuteWriter = minuteWriter;
+			this.hourWriter = hourWriter;
+		}
+
+		/**
+		 * @param fields the doc values of a metric document, for example <code>{"@timestamp":[1451606400000],"name":["cpu"],"value":[0.5]}</code>
+		 */
+		void add(JsonNode fields) throws IOException {
+			final long timestamp = fields.path("@timestamp").path(0).asLong();
+			final Map<String, String> tags = new TreeMap<String, String>();
+			final Map<String, Double> values = new HashMap<String, Double>();
+			final Map<String, Object> otherValues = new HashMap<String, Object>();
+			for (Iterator<Map.Entry<String, JsonNode>> it = fields.fields(); it.hasNext(); ) {
+				final Map.Entry<String, JsonNode> field = it.next();
+				final String name = field.getKey();
+				final JsonNode fieldValues = field.getValue();
+				if ("@timestamp".equals(name) || fieldValues.size() == 0) {
+					continue;
+				}
+				final String type = fieldTypes.get(name);
+				if ("string".equals(type) && !"value_string".equals(name)) {
+					tags.put(name, fieldValues.path(0).asText());
+				} else if (NUMERIC_TYPES.contains(type)) {
+					values.put(name, reduce(name, fieldValues));
+				} else if ("boolean".equals(type)) {
+					// the doc values of boolean fields are T or F
+					otherValues.put(name, "T".equals(fieldValues.path(fieldValues.size() - 1).asText()));
+				} else {
+					otherValues.put(name, JsonUtils.getMapper().treeToValue(fieldValues.path(fieldValues.size() - 1), Object.class));
+				}
+			}
+			Series series = seriesByTags.get(tags);
+			if (series == null) {
+				series = new Series(tags);
+				seriesByTags.put(tags, series);
+			}
+			series.add(timestamp, values, otherValues);
+		}
+
+		/**
+		 * Reduces the values of a document that contains multiple samples (see
+		 * {@link org.stagemonitor.core.CorePlugin#getElasticsearchSamplesPerDocument()}) to one value
+		 */
+		private static double reduce(String field, JsonNode fieldValues) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			double sum = 0;
+			for (JsonNode value : fieldValues) {
+				min = Math.min(min, value.asDouble());
+				max = Math.max(max, value.asDouble());
+				sum += value.asDouble();
+			}
+			if ("min".equals(field)) {
+				return min;
+			} else if ("max".equals(field) || "count".equals(field)) {
+				return max;
+			}
+			return sum / fieldValues.size();
+		}
+
+		void flush() throws IOException {
+			for (Series series : seriesByTags.values()) {
+				series.flushMinute();
+				series.flushHour();
+			}
+			seriesByTags.clear();
+		}
+
+		private class Series {
+			private final Map<String, String> tags;
+			private Bucket minute;
+			private Bucket hour;
+			private double lastCount = Double.NaN;
+
+			private Series(Map<String, String> tags) {
+				this.tags = tags;
+			}
+
+			private void add(long timestamp, Map<String, Double> values, Map<String, Object> otherValues) throws IOException {
+				if (minute != null && timestamp - timestamp % MINUTE != minute.timestamp) {
+					flushMinute();
+				}
+				if (hour != null && timestamp - timestamp % HOUR != hour.timestamp) {
+					flushHour();
+				}
+				if (minute == null) {
+					minute = new Bucket(timestamp - timestamp % MINUTE);
+				}
+				minute.add(values, otherValues, getWeight(values.get("count")));
+			}
+
+			/**
+			 * The weight of a sample is the number of events since the previous sample
+			 */
+			private double getWeight(Double count) {
+				if (count == null) {
+					return 1;
+				}
+				final double weight;
+				if (Double.isNaN(lastCount)) {
+					weight = 1;
+				} else if (count < lastCount) {
+					// the application has been restarted
+					weight = count;
+				} else {
+					weight = count - lastCount;
+				}
+				lastCount = count;
+				return weight;
+			}
+
+			private void flushMinute() throws IOException {
+				if (minute == null) {
+					return;
+				}
+				final Map<String, Double> values = minute.getValues();
+				minuteWriter.write(minute.timestamp, tags, minute.toDocument(values));
+				if (hour == null) {
+					hour = new Bucket(minute.timestamp - minute.timestamp % HOUR);
+				}
+				hour.add(values, minute.otherValues, minute.weight);
+				minute = null;
+			}
+
+			private void flushHour() throws IOException {
+				if (hour == null) {
+					return;
+				}
+				hourWriter.write(hour.timestamp, tags, hour.toDocument(hour.getValues()));
+				hour = null;
+			}
+		}
+	}
+
+	/**
+	 * Aggregates the samples of a metric within a time interval
+	 */
+	private static class Bucket {
+		private final long timestamp;
+		private final Map<String, Double> sums = new HashMap<String, Double>();
+		private final Map<String, Integer> counts = new HashMap<String, Integer>();
+		private final Map<String, Double> weightedSums = new HashMap<String, Double>();
+		private final Map<String, Double> unweightedSums = new HashMap<String, Double>();
+		private final Map<String, Object> otherValues = new HashMap<String, Object>();
+		private final List<double[]> quantiles = new ArrayList<double[]>();
+		private final List<Double> quantileWeights = new ArrayList<Double>();
+		private double min = Double.POSITIVE_INFINITY;
+		private double max = Double.NEGATIVE_INFINITY;
+		private double count = Double.NaN;
+		private double weight;
+		private int samples;
+
+		private Bucket(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		private void add(Map<String, Double> values, Map<String, Object> otherValues, double weight) {
+			samples++;
+			this.weight += weight;
+			this.otherValues.putAll(otherValues);
+			final double[] sampleQuantiles = new double[QUANTILE_FIELDS.length];
+			boolean hasQuantiles = false;
+			for (int i = 0; i < QUANTILE_FIELDS.length; i++) {
+				final Double value = values.get(QUANTILE_FIELDS[i]);
+				sampleQuantiles[i] = value != null ? value : Double.NaN;
+				hasQuantiles |= value != null;
+			}
+			if (hasQuantiles) {
+				quantiles.add(sampleQuantiles);
+				quantileWeights.add(weight);
+			}
+			for (Map.Entry<String, Double> entry : values.entrySet()) {
+				final String field = entry.getKey();
+				final double value = entry.getValue();
+				if ("count".equals(field)) {
+					count = value;
+				} else if ("min".equals(field)) {
+					min = Math.min(min, value);
+				} else if ("max".equals(field)) {
+					max = Math.max(max, value);
+				} else if ("mean".equals(field)) {
+					addTo(weightedSums, "mean", value * weight);
+					addTo(unweightedSums, "mean", value);
+				} else if ("std".equals(field)) {
+					final Double mean = values.get("mean");
+					// E[X^2] = Var[X] + E[X]^2
+					final double meanOfSquares = value * value + (mean != null ? mean * mean : 0);
+					addTo(weightedSums, "square", meanOfSquares * weight);
+					addTo(unweightedSums, "square", meanOfSquares);
+				} else if (!QUANTILE_FIELD_SET.contains(field)) {
+					addTo(sums, field, value);
+					counts.put(field, counts.containsKey(field) ? counts.get(field) + 1 : 1);
+				}
+			}
+		}
+
+		private static void addTo(Map<String, Double> map, String key, double value) {
+			map.put(key, map.containsKey(key) ? map.get(key) + value : value);
+		}
+
+		/**
+		 * @return the aggregated numeric values
+		 */
+		private Map<String, Double> getValues() {
+			final Map<String, Double> values = new HashMap<String, Double>();
+			for (Map.Entry<String, Double> sum : sums.entrySet()) {
+				values.put(sum.getKey(), sum.getValue() / counts.get(sum.getKey()));
+			}
+			if (!Double.isNaN(count)) {
+				values.put("count", count);
+			}
+			if (min != Double.POSITIVE_INFINITY) {
+				values.put("min", min);
+			}
+			if (max != Double.NEGATIVE_INFINITY) {
+				values.put("max", max);
+			}
+			// if no events have been recorded during the interval, all samples are weighted equally
+			final boolean equalWeights = weight <= 0;
+			final Map<String, Double> sumsOfMoments = equalWeights ? unweightedSums : weightedSums;
+			final double totalWeight = equalWeights ? samples : weight;
+			if (sumsOfMoments.containsKey("mean")) {
+				final double mean = sumsOfMoments.get("mean") / totalWeight;
+				values.put("mean", mean);
+				if (sumsOfMoments.containsKey("square")) {
+					final double meanOfSquares = sumsOfMoments.get("square") / totalWeight;
+					values.put("std", Math.sqrt(Math.max(0, meanOfSquares - mean * mean)));
+				}
+			}
+			if (!quantiles.isEmpty()) {
+				final double[] weights = new double[quantileWeights.size()];
+				for (int i = 0; i < weights.length; i++) {
+					weights[i] = equalWeights ? 1 : quantileWeights.get(i);
+				}
+				for (int i = 1; i < QUANTILE_FIELDS.length - 1; i++) {
+					final double value = getMixtureQuantile(quantiles, weights, QUANTILES[i]);
+					if (!Double.isNaN(value)) {
+						values.put(QUANTILE_FIELDS[i], value);
+					}
+				}
+			}
+			return values;
+		}
+
+		private Map<String, Object> toDocument(Map<String, Double> values) {
+			final Map<String, Object> document = new TreeMap<String, Object>(otherValues);
+			document.putAll(values);
+			return document;
+		}
+	}
+
+	/**
+	 * Computes the quantile of a mixture of distributions. Each distribution is described by the values at the
+	 * {@link #QUANTILES} and is linearly interpolated between them.
+	 *
+	 * @param samples  the values at the {@link #QUANTILES} of each distribution ({@link Double#NaN} if unknown)
+	 * @param weights  the weight of each distribution
+	 * @param quantile the quantile to compute
+	 * @return the value at the quantile
+	 */
+	static double getMixtureQuantile(List<double[]> samples, double[] weights, double quantile) {
+		final TreeSet<Double> breakpointSet = new TreeSet<Double>();
+		double totalWeight = 0;
+		for (int i = 0; i < samples.size(); i++) {
+			for (double value : samples.get(i)) {
+				if (!Double.isNaN(value)) {
+					breakpointSet.add(value);
+				}
+			}
+			totalWeight += weights[i];
+		}
+		if (breakpointSet.isEmpty() || totalWeight <= 0) {
+			return Double.NaN;
+		}
+		final Double[] breakpoints = breakpointSet.toArray(new Double[breakpointSet.size()]);
+		// the cumulative distribution function is monotonic, so the first breakpoint at which it reaches the quantile
+		// can be found with a binary search
+		int low = 0;
+		int high = breakpoints.length - 1;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (getMixtureCdf(samples, weights, totalWeight, breakpoints[middle]) >= quantile) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		if (low == 0) {
+			return breakpoints[0];
+		}
+		// the cumulative distribution function is linear between two breakpoints
+		final double x0 = breakpoints[low - 1];
+		final double x1 = breakpoints[low];
+		final double f0 = getMixtureCdf(samples, weights, totalWeight, x0);
+		final double f1 = getMixtureCdf(samples, weights, totalWeight, x1);
+		if (f1 <= f0) {
+			return x1;
+		}
+		return x0 + (quantile - f0) / (f1 - f0) * (x1 - x0);
+	}
+
+	private static double getMixtureCdf(List<double[]> samples, double[] weights, double totalWeight, double x) {
+		double cdf = 0;
+		for (int i = 0; i < samples.size(); i++) {
+			cdf += weights[i] * getCdf(samples.get(i), x);
+		}
+		return cdf / totalWeight;
+	}
+
+	private static double getCdf(double[] sample, double x) {
+		double previousValue = Double.NaN;
+		double previousQuantile = 0;
+		for (int i = 0; i < sample.length; i++) {
+			final double value = sample[i];
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			if (x < value) {
+				if (Double.isNaN(previousValue)) {
+					return 0;
+				}
+				return previousQuantile + (x - previousValue) / (value - previousValue) * (QUANTILES[i] - previousQuantile);
+			}
+			previousValue = value;
+			previousQuantile = QUANTILES[i];
+		}
+		return 1;
+	}
+}
@@ -2,10 +2,15 @@ package org.stagemonitor.core.metrics.metrics2;
 
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -21,19 +26,36 @@ import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.elasticsearch.BulkRetryBuffer;
 import org.stagemonitor.core.util.HttpClient;
 import org.stagemonitor.core.util.JsonUtils;
 import org.stagemonitor.core.util.StringUtils;
 
+/**
+ * Reports the metrics to the stagemonitor-metrics-* indices via the _bulk API.
+ * <p/>
+ * All documents of a report are written by a single {@link JsonGenerator}. The name, tags and global tags of a
+ * {@link MetricName} are serialized only once and are reused as long as the metric is reported. Optionally, the bulk
+ * request is gzip compressed (see {@link CorePlugin#isElasticsearchGzipBulkRequests()}) and multiple consecutive
+ * samples of a metric are grouped in one document (see {@link CorePlugin#getElasticsearchSamplesPerDocument()}).
+ * Metrics that could not be indexed are retried by a {@link BulkRetryBuffer}.
+ */
 public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 
 	public static final String STAGEMONITOR_METRICS_INDEX_PREFIX = "stagemonitor-metrics-";
 	public static final String METRICS_TYPE = "metrics";
 	private final Map<String, String> globalTags;
-	private HttpClient httpClient;
+	private final BulkRetryBuffer bulkRetryBuffer;
 	private final Clock clock;
 	private final CorePlugin corePlugin;
 	private JsonFactory jfactory = new JsonFactory();
+	/**
+	 * The serialized name and tags of the metrics by metric name, for example <code>,"name":"cpu_usage","app":"test"</code>
+	 */
+	private Map<MetricName, String> tagPrefixes = new HashMap<MetricName, String>();
+	private Map<MetricName, String> usedTagPrefixes = new HashMap<MetricName, String>();
+	private final Map<MetricName, GroupedSamples> groupedSamples = new LinkedHashMap<MetricName, GroupedSamples>();
+	private int collectedSamples;
 
 	public ElasticsearchReporter(Metric2Registry registry,
 								 Metric2Filter filter,
@@ -57,9 +79,10 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 		super(registry, filter, rateUnit, durationUnit);
 		this.corePlugin = corePlugin;
 		this.globalTags = Collections.unmodifiableMap(new HashMap<String, String>(globalTags));
-		this.httpClient = httpClient;
+		this.bulkRetryBuffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "metrics");
 		this.clock = clock;
 		jfactory.setCodec(JsonUtils.getMapper());
+		jfactory.setRootValueSeparator(null);
 	}
 
 	@Override
@@ -69,121 +92,355 @@ public class ElasticsearchReporter extends ScheduledMetrics2Reporter {
 							  final Map<MetricName, Meter> meters,
 							  final Map<MetricName, Timer> timers) {
 		final Timer.Context time = registry.timer(name("reporting_time").tag("reporter", "elasticsearch").build()).time();
-		httpClient.send("POST", corePlugin.getElasticsearchUrl() + "/_bulk", null, new HttpClient.OutputStreamHandler() {
-			@Override
-			public void withHttpURLConnection(OutputStream os) throws IOException {
-				String bulkAction = "{ \"index\" : " +
-						"{ \"_index\" : \"" + STAGEMONITOR_METRICS_INDEX_PREFIX + StringUtils.getLogstashStyleDate() + "\", " +
-						"\"_type\" : \"" + METRICS_TYPE + "\" } " +
-						"}\n";
-				byte[] bulkActionBytes = bulkAction.getBytes("UTF-8");
-				reportMetrics(gauges, counters, histograms, meters, timers, os, bulkActionBytes);
-				os.close();
+		final boolean groupSamples = corePlugin.getElasticsearchSamplesPerDocument() > 1;
+		if (groupSamples) {
+			try {
+				writeMetrics(gauges, counters, histograms, meters, timers, new SampleCollector(clock.getTime()));
+			} catch (IOException e) {
+				// the SampleCollector does not perform any I/O
+				throw new IllegalStateException(e);
 			}
-		});
+			if (++collectedSamples >= corePlugin.getElasticsearchSamplesPerDocument()) {
+				flushGroupedSamples();
+			}
+		} else {
+			// the number of samples per document might have been changed at runtime
+			flushGroupedSamples();
+			final ByteArrayOutputStream bulkRequest = new ByteArrayOutputStream();
+			try {
+				reportMetrics(gauges, counters, histograms, meters, timers, bulkRequest, getBulkAction(System.currentTimeMillis()));
+			} catch (IOException e) {
+				// a ByteArrayOutputStream does not throw IOExceptions
+				throw new IllegalStateException(e);
+			}
+			bulkRetryBuffer.send(bulkRequest.toByteArray(), corePlugin.isElasticsearchGzipBulkRequests());
+		}
 		time.stop();
 	}
 
+	/**
+	 * Sends the samples that have been collected so far, so that they are not lost when the reporter is stopped
+	 * before {@link CorePlugin#getElasticsearchSamplesPerDocument()} samples have been collected
+	 */
+	private void flushGroupedSamples() {
+		if (groupedSamples.isEmpty()) {
+			return;
+		}
+		final ByteArrayOutputStream bulkRequest = new ByteArrayOutputStream();
+		try {
+			writeGroupedSamples(bulkRequest);
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw IOExceptions
+			throw new IllegalStateException(e);
+		}
+		bulkRetryBuffer.send(bulkRequest.toByteArray(), corePlugin.isElasticsearchGzipBulkRequests());
+		groupedSamples.clear();
+		collectedSamples = 0;
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		flushGroupedSamples();
+		bulkRetryBuffer.close();
+	}
+
+	private static String getBulkAction(long timestamp) {
+		return "{ \"index\" : " +
+				"{ \"_index\" : \"" + STAGEMONITOR_METRICS_INDEX_PREFIX + StringUtils.getLogstashStyleDate(timestamp) + "\", " +
+				"\"_type\" : \"" + METRICS_TYPE + "\" } " +
+				"}\n";
+	}
+
 	public void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
 							  Map<MetricName, Histogram> histograms, final Map<MetricName, Meter> meters,
 							  Map<MetricName, Timer> timers, OutputStream os, byte[] bulkActionBytes) throws IOException {
-		long timestamp = clock.getTime();
+		reportMetrics(gauges, counters, histograms, meters, timers, os, new String(bulkActionBytes, "UTF-8"));
+	}
+
+	private void reportMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+							   Map<MetricName, Histogram> histograms, final Map<MetricName, Meter> meters,
+							   Map<MetricName, Timer> timers, OutputStream os, String bulkAction) throws IOException {
+		final JsonGenerator jg = jfactory.createGenerator(os);
+		writeMetrics(gauges, counters, histograms, meters, timers, new DocumentWriter(jg, bulkAction, clock.getTime()));
+		jg.flush();
+		swapTagPrefixes();
+	}
 
-		reportMetric(gauges, timestamp, new ValueWriter<Gauge>() {
-			public void writeValues(Gauge gauge, JsonGenerator jg) throws IOException {
+	private void writeMetrics(Map<MetricName, Gauge> gauges, Map<MetricName, Counter> counters,
+							  Map<MetricName, Histogram> histograms, Map<MetricName, Meter> meters,
+							  Map<MetricName, Timer> timers, MetricWriter metricWriter) throws IOException {
+		reportMetric(gauges, new ValueWriter<Gauge>() {
+			public void writeValues(Gauge gauge, Fields fields) throws IOException {
 				final Object value = gauge.getValue();
 				if (value == null) {
 					return;
 				}
 				if (value instanceof Number) {
-					writeDoubleUnlessNaN(jg, "value", ((Number)value).doubleValue());
+					fields.writeDoubleUnlessNaN("value", ((Number)value).doubleValue());
 				} else if (value instanceof Boolean) {
-					jg.writeBooleanField("value_boolean", (Boolean) value);
+					fields.writeBoolean("value_boolean", (Boolean) value);
 				} else {
-					jg.writeStringField("value_string", value.toString());
+					fields.writeString("value_string", value.toString());
 				}
 			}
-		}, os, bulkActionBytes);
-		reportMetric(counters, timestamp, new ValueWriter<Counter>() {
-			public void writeValues(Counter counter, JsonGenerator jg) throws IOException {
-				jg.writeObjectField("count", counter.getCount());
+		}, metricWriter);
+		reportMetric(counters, new ValueWriter<Counter>() {
+			public void writeValues(Counter counter, Fields fields) throws IOException {
+				fields.writeLong("count", counter.getCount());
 			}
-		}, os, bulkActionBytes);
-		reportMetric(histograms, timestamp, new ValueWriter<Histogram>() {
-			public void writeValues(Histogram histogram, JsonGenerator jg) throws IOException {
+		}, metricWriter);
+		reportMetric(histograms, new ValueWriter<Histogram>() {
+			public void writeValues(Histogram histogram, Fields fields) throws IOException {
 				final Snapshot snapshot = histogram.getSnapshot();
-				jg.writeNumberField("count", histogram.getCount());
-				writeSnapshot(snapshot, jg);
+				fields.writeLong("count", histogram.getCount());
+				writeSnapshot(snapshot, fields);
 			}
-		}, os, bulkActionBytes);
-		reportMetric(meters, timestamp, new ValueWriter<Meter>() {
-			public void writeValues(Meter meter, JsonGenerator jg) throws IOException {
-				writeMetered(meter, jg);
+		}, metricWriter);
+		reportMetric(meters, new ValueWriter<Meter>() {
+			public void writeValues(Meter meter, Fields fields) throws IOException {
+				writeMetered(meter, fields);
 			}
-		}, os, bulkActionBytes);
-		reportMetric(timers, timestamp, new ValueWriter<Timer>() {
-			public void writeValues(Timer timer, JsonGenerator jg) throws IOException {
-				writeMetered(timer, jg);
-				writeSnapshot(timer.getSnapshot(), jg);
+		}, metricWriter);
+		reportMetric(timers, new ValueWriter<Timer>() {
+			public void writeValues(Timer timer, Fields fields) throws IOException {
+				writeMetered(timer, fields);
+				writeSnapshot(timer.getSnapshot(), fields);
 			}
-		}, os, bulkActionBytes);
+		}, metricWriter);
 	}
 
-	private void writeSnapshot(Snapshot snapshot, JsonGenerator jg) throws IOException {
-		writeDoubleUnlessNaN(jg, "min", convertDuration(snapshot.getMin()));
-		writeDoubleUnlessNaN(jg, "max", convertDuration(snapshot.getMax()));
-		writeDoubleUnlessNaN(jg, "mean", convertDuration(snapshot.getMean()));
-		writeDoubleUnlessNaN(jg, "median", convertDuration(snapshot.getMedian()));
-		writeDoubleUnlessNaN(jg, "std", convertDuration(snapshot.getStdDev()));
-		writeDoubleUnlessNaN(jg, "p25", convertDuration(snapshot.getValue(0.25)));
-		writeDoubleUnlessNaN(jg, "p75", convertDuration(snapshot.get75thPercentile()));
-		writeDoubleUnlessNaN(jg, "p95", convertDuration(snapshot.get95thPercentile()));
-		writeDoubleUnlessNaN(jg, "p98", convertDuration(snapshot.get98thPercentile()));
-		writeDoubleUnlessNaN(jg, "p99", convertDuration(snapshot.get99thPercentile()));
-		writeDoubleUnlessNaN(jg, "p999", convertDuration(snapshot.get999thPercentile()));
+	private void writeSnapshot(Snapshot snapshot, Fields fields) throws IOException {
+		fields.writeDoubleUnlessNaN("min", convertDuration(snapshot.getMin()));
+		fields.writeDoubleUnlessNaN("max", convertDuration(snapshot.getMax()));
+		fields.writeDoubleUnlessNaN("mean", convertDuration(snapshot.getMean()));
+		fields.writeDoubleUnlessNaN("median", convertDuration(snapshot.getMedian()));
+		fields.writeDoubleUnlessNaN("std", convertDuration(snapshot.getStdDev()));
+		fields.writeDoubleUnlessNaN("p25", convertDuration(snapshot.getValue(0.25)));
+		fields.writeDoubleUnlessNaN("p75", convertDuration(snapshot.get75thPercentile()));
+		fields.writeDoubleUnlessNaN("p95", convertDuration(snapshot.get95thPercentile()));
+		fields.writeDoubleUnlessNaN("p98", convertDuration(snapshot.get98thPercentile()));
+		fields.writeDoubleUnlessNaN("p99", convertDuration(snapshot.get99thPercentile()));
+		fields.writeDoubleUnlessNaN("p999", convertDuration(snapshot.get999thPercentile()));
 	}
 
-	private void writeMetered(Metered metered, JsonGenerator jg) throws IOException {
-		jg.writeNumberField("count", metered.getCount());
-		writeDoubleUnlessNaN(jg, "m1_rate", convertRate(metered.getOneMinuteRate()));
-		writeDoubleUnlessNaN(jg, "m5_rate", convertRate(metered.getFiveMinuteRate()));
-		writeDoubleUnlessNaN(jg, "m15_rate", convertRate(metered.getFifteenMinuteRate()));
-		writeDoubleUnlessNaN(jg, "mean_rate", convertRate(metered.getMeanRate()));
+	private void writeMetered(Metered metered, Fields fields) throws IOException {
+		fields.writeLong("count", metered.getCount());
+		fields.writeDoubleUnlessNaN("m1_rate", convertRate(metered.getOneMinuteRate()));
+		fields.writeDoubleUnlessNaN("m5_rate", convertRate(metered.getFiveMinuteRate()));
+		fields.writeDoubleUnlessNaN("m15_rate", convertRate(metered.getFifteenMinuteRate()));
+		fields.writeDoubleUnlessNaN("mean_rate", convertRate(metered.getMeanRate()));
 	}
 
-	private <T extends Metric> void reportMetric(Map<MetricName, T> metrics, long timestamp, ValueWriter<T> valueWriter,
-												 OutputStream os, byte[] bulkActionBytes) throws IOException {
-
+	private <T extends Metric> void reportMetric(Map<MetricName, T> metrics, ValueWriter<T> valueWriter,
+												 MetricWriter metricWriter) throws IOException {
 		for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
-			os.write(bulkActionBytes);
-			final JsonGenerator jg = jfactory.createGenerator(os);
+			metricWriter.writeMetric(entry.getKey(), entry.getValue(), valueWriter);
+		}
+	}
+
+	/**
+	 * Writes one document per metric. The index of a document is derived from the timestamp of its first sample, so
+	 * that groups that span midnight don't end up in the index of the next day.
+	 */
+	private void writeGroupedSamples(OutputStream os) throws IOException {
+		final JsonGenerator jg = jfactory.createGenerator(os);
+		long bulkActionTimestamp = -1;
+		String bulkAction = null;
+		for (Map.Entry<MetricName, GroupedSamples> entry : groupedSamples.entrySet()) {
+			final GroupedSamples samples = entry.getValue();
+			if (samples.timestamp != bulkActionTimestamp) {
+				bulkActionTimestamp = samples.timestamp;
+				bulkAction = getBulkAction(bulkActionTimestamp);
+			}
+			startDocument(jg, bulkAction, samples.timestamp, entry.getKey());
+			for (Map.Entry<String, List<Object>> field : samples.valuesByField.entrySet()) {
+				final List<Object> values = field.getValue();
+				if (values.size() == 1) {
+					jg.writeObjectField(field.getKey(), values.get(0));
+				} else {
+					jg.writeArrayFieldStart(field.getKey());
+					for (Object value : values) {
+						jg.writeObject(value);
+					}
+					jg.writeEndArray();
+				}
+			}
+			endDocument(jg);
+		}
+		jg.flush();
+		swapTagPrefixes();
+	}
+
+	private void startDocument(JsonGenerator jg, String bulkAction, long timestamp, MetricName metricName) throws IOException {
+		jg.writeRaw(bulkAction);
+		jg.writeStartObject();
+		jg.writeNumberField("@timestamp", timestamp);
+		jg.writeRaw(getTagPrefix(metricName));
+	}
+
+	private static void endDocument(JsonGenerator jg) throws IOException {
+		jg.writeEndObject();
+		jg.writeRaw('\n');
+	}
+
+	private String getTagPrefix(MetricName metricName) throws IOException {
+		String tagPrefix = tagPrefixes.get(metricName);
+		if (tagPrefix == null) {
+			final StringWriter writer = new StringWriter();
+			final JsonGenerator jg = jfactory.createGenerator(writer);
 			jg.writeStartObject();
-			MetricName metricName = entry.getKey();
-			jg.writeNumberField("@timestamp", timestamp);
 			jg.writeStringField("name", metricName.getName());
 			writeMap(jg, metricName.getTags());
 			writeMap(jg, globalTags);
-			valueWriter.writeValues(entry.getValue(), jg);
 			jg.writeEndObject();
-			jg.flush();
-			os.write('\n');
+			jg.close();
+			final String json = writer.toString();
+			// the generator has already written the @timestamp field, so the prefix starts with a comma
+			tagPrefix = "," + json.substring(1, json.length() - 1);
 		}
+		usedTagPrefixes.put(metricName, tagPrefix);
+		return tagPrefix;
 	}
 
-	private static void writeDoubleUnlessNaN(JsonGenerator jg, String key, double value) throws IOException {
-		if (!Double.isNaN(value)) {
-			jg.writeNumberField(key, value);
-		}
+	/**
+	 * Only keeps the tag prefixes of the metrics that have been reported
+	 */
+	private void swapTagPrefixes() {
+		tagPrefixes = usedTagPrefixes;
+		usedTagPrefixes = new HashMap<MetricName, String>(tagPrefixes.size());
 	}
 
 	private void writeMap(JsonGenerator jg, Map<String, String> map) throws IOException {
 		for (Map.Entry<String, String> entry : map.entrySet()) {
-			jg.writeObjectField(entry.getKey(), entry.getValue());
+			jg.writeStringField(entry.getKey(), entry.getValue());
 		}
 	}
 
 	private interface ValueWriter<T extends Metric> {
-		void writeValues(T value, JsonGenerator jg) throws IOException;
+		void writeValues(T value, Fields fields) throws IOException;
+	}
+
+	private interface MetricWriter {
+		<T extends Metric> void writeMetric(MetricName metricName, T metric, ValueWriter<T> valueWriter) throws IOException;
+	}
+
+	private abstract static class Fields {
+		abstract void writeLong(String field, long value) throws IOException;
+
+		abstract void writeDouble(String field, double value) throws IOException;
+
+		abstract void writeBoolean(String field, boolean value) throws IOException;
+
+		abstract void writeString(String field, String value) throws IOException;
+
+		void writeDoubleUnlessNaN(String field, double value) throws IOException {
+			if (!Double.isNaN(value)) {
+				writeDouble(field, value);
+			}
+		}
+	}
+
+	/**
+	 * Writes one document per metric
+	 */
+	private class DocumentWriter extends Fields implements MetricWriter {
+		private final JsonGenerator jg;
+		private final String bulkAction;
+		private final long timestamp;
+
+		private DocumentWriter(JsonGenerator jg, String bulkAction, long timestamp) {
+			this.jg = jg;
+			this.bulkAction = bulkAction;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public <T extends Metric> void writeMetric(MetricName metricName, T metric, ValueWriter<T> valueWriter) throws IOException {
+			startDocument(jg, bulkAction, timestamp, metricName);
+			valueWriter.writeValues(metric, this);
+			endDocument(jg);
+		}
+
+		@Override
+		void writeLong(String field, long value) throws IOException {
+			jg.writeNumberField(field, value);
+		}
+
+		@Override
+		void writeDouble(String field, double value) throws IOException {
+			jg.writeNumberField(field, value);
+		}
+
+		@Override
+		void writeBoolean(String field, boolean value) throws IOException {
+			jg.writeBooleanField(field, value);
+		}
+
+		@Override
+		void writeString(String field, String value) throws IOException {
+			jg.writeStringField(field, value);
+		}
+	}
+
+	/**
+	 * Adds the values of the metrics to the {@link #groupedSamples}
+	 */
+	private class SampleCollector extends Fields implements MetricWriter {
+		private final long timestamp;
+		private GroupedSamples currentSamples;
+
+		private SampleCollector(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public <T extends Metric> void writeMetric(MetricName metricName, T metric, ValueWriter<T> valueWriter) throws IOException {
+			currentSamples = groupedSamples.get(metricName);
+			if (currentSamples == null) {
+				currentSamples = new GroupedSamples(timestamp);
+				groupedSamples.put(metricName, currentSamples);
+			}
+			valueWriter.writeValues(metric, this);
+		}
+
+		@Override
+		void writeLong(String field, long value) {
+			currentSamples.add(field, value);
+		}
+
+		@Override
+		void writeDouble(String field, double value) {
+			currentSamples.add(field, value);
+		}
+
+		@Override
+		void writeBoolean(String field, boolean value) {
+			currentSamples.add(field, value);
+		}
+
+		@Override
+		void writeString(String field, String value) {
+			currentSamples.add(field, value);
+		}
+	}
+
+	private static class GroupedSamples {
+		private final long timestamp;
+		private final Map<String, List<Object>> valuesByField = new LinkedHashMap<String, List<Object>>();
+
+		private GroupedSamples(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		private void add(String field, Object value) {
+			List<Object> values = valuesByField.get(field);
+			if (values == null) {
+				values = new ArrayList<Object>(2);
+				valuesByField.put(field, values);
+			}
+			values.add(value);
+		}
 	}
 
 }
@@ -2,6 +2,9 @@ package org.stagemonitor.core.metrics.metrics2;
 
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -15,18 +18,24 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.spool.Spool;
 import org.stagemonitor.core.util.HttpClient;
 
 public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 
 	private static final int MAX_BATCH_SIZE = 5000;
 
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
 	private List<String> batchLines = new ArrayList<String>(MAX_BATCH_SIZE);
 	private final String globalTags;
 	private HttpClient httpClient;
 	private final Clock clock;
 	private final CorePlugin corePlugin;
+	private final Spool spool;
 
 	public InfluxDbReporter(Metric2Registry registry,
 							   Metric2Filter filter,
@@ -52,6 +61,15 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 		this.globalTags = MetricName.getInfluxDbTags(globalTags);
 		this.httpClient = httpClient;
 		this.clock = clock;
+		this.spool = corePlugin.createSpool("influxdb");
+		if (spool != null) {
+			spool.startDraining("influxdb-spool", new Spool.RecordHandler() {
+				@Override
+				public boolean replay(byte[] record) {
+					return !isUnavailable(send(record));
+				}
+			});
+		}
 	}
 
 	@Override
@@ -146,10 +164,46 @@ public class InfluxDbReporter extends ScheduledMetrics2Reporter {
 	}
 
 	private void flush() {
-		httpClient.send("POST", corePlugin.getInfluxDbUrl() + "/write?precision=ms&db=" + corePlugin.getInfluxDbDb(), batchLines);
+		if (spool == null) {
+			httpClient.send("POST", getWriteUrl(), batchLines);
+		} else if (!spool.isEmpty() || isUnavailable(httpClient.send("POST", getWriteUrl(), batchLines))) {
+			// the lines are appended to the spool as long as it is not empty to preserve the order
+			if (!spool.append(getRequestBody(batchLines))) {
+				logger.warn("Could not spool the metrics for InfluxDB");
+			}
+		}
 		batchLines = new ArrayList<String>(MAX_BATCH_SIZE);
 	}
 
+	private String getWriteUrl() {
+		return corePlugin.getInfluxDbUrl() + "/write?precision=ms&db=" + corePlugin.getInfluxDbDb();
+	}
+
+	private int send(final byte[] requestBody) {
+		return httpClient.send("POST", getWriteUrl(), null, new HttpClient.OutputStreamHandler() {
+			@Override
+			public void withHttpURLConnection(OutputStream os) throws IOException {
+				os.write(requestBody);
+				os.flush();
+			}
+		});
+	}
+
+	private static byte[] getRequestBody(List<String> lines) {
+		final StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString().getBytes(Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * InfluxDB is unreachable (-1) or temporarily unavailable (5xx). Requests that fail with 4xx are never retried.
+	 */
+	private static boolean isUnavailable(int status) {
+		return status < 0 || status >= 500;
+	}
+
 	private String getGaugeValueForInfluxDb(Object value) {
 		if (value == null) {
 			return null;
@@ -3,10 +3,12 @@ package org.stagemonitor.core.metrics.metrics2;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.ExponentiallyDecayingReservoir;
@@ -26,6 +28,7 @@ public class Metric2Registry implements Metric2Set {
 
 	private final ConcurrentMap<MetricName, Metric> metrics;
 	private final MetricRegistryAdapter metricRegistryAdapter;
+	private final List<Metric2RegistryListener> listeners = new CopyOnWriteArrayList<Metric2RegistryListener>();
 
 	public Metric2Registry() {
 		this(new ConcurrentHashMap<MetricName, Metric>());
@@ -54,6 +57,9 @@ public class Metric2Registry implements Metric2Set {
 			if (existing != null) {
 				throw new IllegalArgumentException("A metric named " + name + " already exists");
 			}
+			for (Metric2RegistryListener listener : listeners) {
+				listener.onMetricAdded(name, metric);
+			}
 		}
 		return metric;
 	}
@@ -123,11 +129,57 @@ public class Metric2Registry implements Metric2Set {
 	public boolean remove(MetricName name) {
 		final Metric metric = metrics.remove(name);
 		if (metric != null) {
+			for (Metric2RegistryListener listener : listeners) {
+				listener.onMetricRemoved(name, metric);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the metric with the given name, but only if it is the given metric.
+	 *
+	 * @param name   the name of the metric
+	 * @param metric the metric that is expected to be registered under this name
+	 * @return whether or not the metric was removed
+	 */
+	public boolean remove(MetricName name, Metric metric) {
+		if (metrics.remove(name, metric)) {
+			for (Metric2RegistryListener listener : listeners) {
+				listener.onMetricRemoved(name, metric);
+			}
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Adds a {@link Metric2RegistryListener} to a collection of listeners that will be notified on
+	 * metric creation and removal.
+	 * <p/>
+	 * Listeners will be notified in the order in which they are added.
+	 * <p/>
+	 * <b>N.B.:</b> The listener will be notified of all existing metrics when it first registers.
+	 *
+	 * @param listener the listener that will be notified
+	 */
+	public void addListener(Metric2RegistryListener listener) {
+		listeners.add(listener);
+		for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+			listener.onMetricAdded(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Removes a {@link Metric2RegistryListener} from this registry's collection of listeners.
+	 *
+	 * @param listener the listener that will be removed
+	 */
+	public void removeListener(Metric2RegistryListener listener) {
+		listeners.remove(listener);
+	}
+
 	/**
 	 * Returns a set of the names of all the metrics in the registry.
 	 *
@@ -0,0 +1,25 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import com.codahale.metrics.Metric;
+
+/**
+ * Listeners for events from the registry. Listeners must be thread-safe.
+ */
+public interface Metric2RegistryListener {
+
+	/**
+	 * Called when a metric is added to the registry.
+	 *
+	 * @param name   the metric's name
+	 * @param metric the metric
+	 */
+	void onMetricAdded(MetricName name, Metric metric);
+
+	/**
+	 * Called when a metric is removed from the registry.
+	 *
+	 * @param name   the metric's name
+	 * @param metric the metric
+	 */
+	void onMetricRemoved(MetricName name, Metric metric);
+}
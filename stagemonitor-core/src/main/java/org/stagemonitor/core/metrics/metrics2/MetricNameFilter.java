@@ -0,0 +1,45 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.codahale.metrics.Metric;
+
+/**
+ * A {@link Metric2Filter} that matches the name and tags of a {@link MetricName} directly,
+ * without converting it to a graphite name first.
+ */
+public class MetricNameFilter implements Metric2Filter {
+
+	private final Set<String> names;
+	private final Map<String, String> tags;
+
+	/**
+	 * @param names the names of the metrics to match (see {@link MetricName#getName()}).
+	 *              If empty, all names are matched.
+	 * @param tags  the tags a metric has to have in order to match
+	 */
+	public MetricNameFilter(Collection<String> names, Map<String, String> tags) {
+		this.names = new HashSet<String>(names);
+		this.tags = new LinkedHashMap<String, String>(tags);
+	}
+
+	@Override
+	public boolean matches(MetricName name, Metric metric) {
+		if (!names.isEmpty() && !names.contains(name.getName())) {
+			return false;
+		}
+		if (!tags.isEmpty()) {
+			final Map<String, String> metricTags = name.getTags();
+			for (Map.Entry<String, String> tag : tags.entrySet()) {
+				if (!tag.getValue().equals(metricTags.get(tag.getKey()))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
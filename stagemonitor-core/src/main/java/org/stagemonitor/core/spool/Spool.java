@@ -0,0 +1,470 @@
+package org.stagemonitor.core.spool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.util.ExecutorUtils;
+
+/**
+ * A local, append-only queue of records that is stored in memory-mapped segment files.
+ * <p/>
+ * Reporters append the data they could not send to the spool while their backend is unreachable. A background drainer
+ * replays the records in the order they were appended, once the backend is reachable again.
+ * <p/>
+ * Each segment file has a fixed size. The first four bytes of a segment hold the position of the next record to read,
+ * so that records that have already been replayed are not replayed again after a restart. A record consists of its
+ * length (an int) and its bytes. The length is written after the bytes, so that a record can't be read before it is
+ * completely written. A length of 0 marks the end of the written records, a length of -1 marks the end of a segment.
+ * <p/>
+ * When a segment is recovered, the header and the record lengths are validated. If a segment is corrupt, for example
+ * because of a torn write, it is truncated before the first invalid record and sealed.
+ * <p/>
+ * The total size of the segments is limited. If the limit is reached, the oldest segment is discarded.
+ * <p/>
+ * A spool directory can only be used by one spool at a time. The spool holds a lock on the file
+ * {@value #LOCK_FILE_NAME} in the directory until it is closed, so that two processes that are configured with the
+ * same directory don't corrupt each other's segments.
+ */
+public class Spool implements Closeable {
+
+	public static final int DRAIN_INTERVAL_SECONDS = 10;
+	static final String SEGMENT_FILE_SUFFIX = ".spool";
+	static final String LOCK_FILE_NAME = "spool.lock";
+	private static final int HEADER_SIZE = 4;
+	private static final int END_OF_SEGMENT = -1;
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+	private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+	private long nextSegmentId;
+	private ScheduledExecutorService drainer;
+	private boolean closed;
+
+	/**
+	 * Opens a spool and recovers the records that have been spooled but not yet replayed.
+	 *
+	 * @param directory the directory of the segment files
+	 * @param maxBytes  the maximum size of all segment files
+	 * @throws IOException if the directory could not be created, is locked by another spool or a segment could not be
+	 *                     mapped
+	 */
+	public Spool(File directory, long maxBytes) throws IOException {
+		this(directory, maxBytes, (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxBytes / 8)));
+	}
+
+	Spool(File directory, long maxBytes, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentSize);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the spool directory " + directory);
+		}
+		lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+		lock = tryLock(lockFile.getChannel());
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("The spool directory " + directory + " is already in use by another process");
+		}
+		try {
+			recoverSegments();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the lock or <code>null</code>, if the lock is held by another process or another spool of this process
+	 */
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null;
+		}
+	}
+
+	private void recoverSegments() throws IOException {
+		final File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SEGMENT_FILE_SUFFIX);
+			}
+		});
+		// the names of the segment files are zero padded, so they can be sorted lexicographically
+		Arrays.sort(files);
+		for (File file : files) {
+			final String name = file.getName();
+			final long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+			final Segment segment = new Segment(file, segmentSize);
+			if (segment.isCorrupt()) {
+				logger.warn("The spool segment {} is corrupt, the records after the corrupt part are discarded", file);
+			}
+			if (segment.isConsumed()) {
+				segment.delete();
+			} else {
+				segments.add(segment);
+			}
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+		}
+		if (!segments.isEmpty()) {
+			logger.info("Recovered {} spool segment(s) from {}", segments.size(), directory);
+		}
+	}
+
+	/**
+	 * Appends a record to the spool
+	 *
+	 * @param record the record
+	 * @return <code>false</code>, if the record could not be spooled because it is larger than a segment or because
+	 * of an I/O error
+	 */
+	public synchronized boolean append(byte[] record) {
+		if (closed || record.length == 0 || record.length > segmentSize - HEADER_SIZE - 8) {
+			return false;
+		}
+		try {
+			Segment segment = segments.isEmpty() ? null : segments.getLast();
+			if (segment == null || !segment.append(record)) {
+				if (segment != null) {
+					segment.seal();
+				}
+				segment = newSegment();
+				segment.append(record);
+			}
+			return true;
+		} catch (IOException e) {
+			logger.warn("Could not spool a record to " + directory + ": " + e.getMessage(), e);
+			return false;
+		}
+	}
+
+	private Segment newSegment() throws IOException {
+		while (segments.size() >= maxSegments) {
+			final Segment oldest = segments.removeFirst();
+			logger.warn("The spool {} is full, discarding {} record(s)", directory, oldest.countRecords());
+			oldest.delete();
+		}
+		final Segment segment = new Segment(new File(directory, String.format("%019d%s", nextSegmentId++, SEGMENT_FILE_SUFFIX)), segmentSize);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Returns the oldest record that has not been removed yet
+	 *
+	 * @return the oldest record or <code>null</code>, if the spool is empty
+	 */
+	public synchronized byte[] peek() {
+		final Segment head = getHeadWithRecords();
+		return head != null ? head.peek() : null;
+	}
+
+	/**
+	 * Removes the oldest record. Should be called after the record returned by {@link #peek()} has been replayed.
+	 */
+	public synchronized void remove() {
+		final Segment head = getHeadWithRecords();
+		if (head != null) {
+			head.remove();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return getHeadWithRecords() == null;
+	}
+
+	/**
+	 * Discards the segments that have been replayed completely
+	 *
+	 * @return the oldest segment that contains records or <code>null</code>, if the spool is empty
+	 */
+	private Segment getHeadWithRecords() {
+		while (!segments.isEmpty()) {
+			final Segment head = segments.getFirst();
+			if (head.hasRecords()) {
+				return head;
+			}
+			if (!head.isSealed()) {
+				return null;
+			}
+			segments.removeFirst();
+			head.delete();
+		}
+		return null;
+	}
+
+	/**
+	 * Replays the records in the background. Every {@link #DRAIN_INTERVAL_SECONDS} seconds, the drainer replays the
+	 * records until the spool is empty or the handler fails to replay a record.
+	 *
+	 * @param name    the name of the drainer thread
+	 * @param handler replays the records
+	 */
+	public synchronized void startDraining(String name, final RecordHandler handler) {
+		if (drainer != null) {
+			return;
+		}
+		drainer = ExecutorUtils.createSingleThreadSchedulingDeamonPool(name);
+		drainer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					drain(handler);
+				} catch (RuntimeException e) {
+					logger.warn(e.getMessage(), e);
+				}
+			}
+		}, DRAIN_INTERVAL_SECONDS, DRAIN_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Replays the records in order until the spool is empty or the handler fails to replay a record
+	 *
+	 * @return the number of records that have been replayed
+	 */
+	public int drain(RecordHandler handler) {
+		int replayed = 0;
+		for (byte[] record = peek(); record != null; record = peek()) {
+			if (!handler.replay(record)) {
+				break;
+			}
+			remove();
+			replayed++;
+		}
+		if (replayed > 0) {
+			logger.info("Replayed {} record(s) from the spool {}", replayed, directory);
+		}
+		return replayed;
+	}
+
+	/**
+	 * Stops the drainer, unmaps the segments and releases the lock of the spool directory
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (drainer != null) {
+			drainer.shutdown();
+		}
+		for (Segment segment : segments) {
+			segment.force();
+			segment.unmap();
+		}
+		segments.clear();
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			logger.warn(e.getMessage(), e);
+		}
+	}
+
+	public interface RecordHandler {
+		/**
+		 * @param record the record to replay
+		 * @return <code>true</code>, if the record has been replayed or can never be replayed,
+		 * <code>false</code>, if it should be replayed later
+		 */
+		boolean replay(byte[] record);
+	}
+
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int readPosition;
+		private int writePosition;
+		private boolean sealed;
+		private boolean corrupt;
+
+		private Segment(File file, int size) throws IOException {
+			this.file = file;
+			final boolean exists = file.exists();
+			final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				// the mapping stays valid after the channel is closed
+				buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, exists ? randomAccessFile.length() : size);
+			} finally {
+				randomAccessFile.close();
+			}
+			if (exists) {
+				recover();
+			} else {
+				readPosition = HEADER_SIZE;
+				writePosition = HEADER_SIZE;
+				buffer.putInt(0, readPosition);
+			}
+		}
+
+		/**
+		 * Determines the read and write position of an existing segment. The records are validated from the beginning
+		 * of the segment, because the header and the records may be corrupt.
+		 */
+		private void recover() {
+			final int capacity = buffer.capacity();
+			if (capacity < HEADER_SIZE + 4) {
+				corrupt = true;
+				sealed = true;
+				return;
+			}
+			final int headerReadPosition = buffer.getInt(0);
+			boolean validReadPosition = headerReadPosition == HEADER_SIZE;
+			writePosition = HEADER_SIZE;
+			while (writePosition + 4 <= capacity) {
+				final int length = buffer.getInt(writePosition);
+				if (length == 0) {
+					break;
+				} else if (length == END_OF_SEGMENT) {
+					sealed = true;
+					break;
+				} else if (length < 0 || length > capacity - writePosition - 4) {
+					corrupt = true;
+					break;
+				}
+				writePosition += 4 + length;
+				validReadPosition = validReadPosition || headerReadPosition == writePosition;
+			}
+			if (corrupt) {
+				// truncates the segment before the invalid record
+				seal();
+			}
+			if (validReadPosition) {
+				readPosition = headerReadPosition;
+			} else {
+				// it is unknown which records have already been replayed
+				corrupt = true;
+				readPosition = writePosition;
+				buffer.putInt(0, readPosition);
+			}
+			sealed = sealed || writePosition + 4 > capacity;
+		}
+
+		private boolean isCorrupt() {
+			return corrupt;
+		}
+
+		private boolean append(byte[] record) {
+			if (sealed || writePosition + 4 + record.length + 4 > buffer.capacity()) {
+				return false;
+			}
+			final int recordPosition = writePosition;
+			buffer.position(recordPosition + 4);
+			buffer.put(record);
+			// the end of the written records
+			buffer.putInt(recordPosition + 4 + record.length, 0);
+			// publishes the record
+			buffer.putInt(recordPosition, record.length);
+			writePosition = recordPosition + 4 + record.length;
+			return true;
+		}
+
+		private void seal() {
+			if (writePosition + 4 <= buffer.capacity()) {
+				buffer.putInt(writePosition, END_OF_SEGMENT);
+			}
+			sealed = true;
+		}
+
+		private boolean isSealed() {
+			return sealed;
+		}
+
+		private boolean hasRecords() {
+			return readPosition < writePosition;
+		}
+
+		private byte[] peek() {
+			final byte[] record = new byte[buffer.getInt(readPosition)];
+			buffer.position(readPosition + 4);
+			buffer.get(record);
+			return record;
+		}
+
+		private void remove() {
+			readPosition += 4 + buffer.getInt(readPosition);
+			buffer.putInt(0, readPosition);
+		}
+
+		private boolean isConsumed() {
+			return sealed && readPosition >= writePosition;
+		}
+
+		private int countRecords() {
+			int count = 0;
+			for (int position = readPosition; position < writePosition; position += 4 + buffer.getInt(position)) {
+				count++;
+			}
+			return count;
+		}
+
+		private void force() {
+			buffer.force();
+		}
+
+		/**
+		 * Releases the mapping right away instead of when the buffer is garbage collected. Otherwise, the address space
+		 * and the file handles of discarded segments are only released by a GC and a mapped file can't be deleted on
+		 * Windows. The buffer must not be accessed afterwards.
+		 */
+		private void unmap() {
+			try {
+				final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				try {
+					// Java 9+
+					final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+					final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+					theUnsafe.setAccessible(true);
+					invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				} catch (NoSuchMethodException e) {
+					final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					final Object cleaner = cleanerMethod.invoke(buffer);
+					if (cleaner != null) {
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+					}
+				}
+			} catch (Exception e) {
+				// the mapping is released when the buffer is garbage collected
+			}
+		}
+
+		private void delete() {
+			// marks the segment as consumed, in case the file can't be deleted while it is mapped
+			readPosition = writePosition;
+			if (buffer.capacity() >= HEADER_SIZE) {
+				buffer.putInt(0, readPosition);
+			}
+			seal();
+			unmap();
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
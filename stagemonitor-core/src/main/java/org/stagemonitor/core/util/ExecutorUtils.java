@@ -1,7 +1,10 @@
 package org.stagemonitor.core.util;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -19,7 +22,25 @@ public final class ExecutorUtils {
 	}
 
 	public static ThreadPoolExecutor createSingleThreadDeamonPool(final String threadName, int queueCapacity) {
-		final ThreadFactory daemonThreadFactory = new ThreadFactory() {
+		final ThreadFactory daemonThreadFactory = createDaemonThreadFactory(threadName);
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity), daemonThreadFactory) {
+			@Override
+			public String toString() {
+				return super.toString() + "(thread name = " + threadName + ")";
+			}
+		};
+	}
+
+	public static ExecutorService createFixedThreadDeamonPool(final String threadName, int threads) {
+		return Executors.newFixedThreadPool(threads, createDaemonThreadFactory(threadName));
+	}
+
+	public static ScheduledExecutorService createSingleThreadSchedulingDeamonPool(final String threadName) {
+		return Executors.newSingleThreadScheduledExecutor(createDaemonThreadFactory(threadName));
+	}
+
+	private static ThreadFactory createDaemonThreadFactory(final String threadName) {
+		return new ThreadFactory() {
 			@Override
 			public Thread newThread(Runnable r) {
 				Thread thread = new Thread(r);
@@ -28,12 +49,6 @@ public final class ExecutorUtils {
 				return thread;
 			}
 		};
-		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(queueCapacity), daemonThreadFactory) {
-			@Override
-			public String toString() {
-				return super.toString() + "(thread name = " + threadName + ")";
-			}
-		};
 	}
 
 	public static void logRejectionWarning(RejectedExecutionException e) {
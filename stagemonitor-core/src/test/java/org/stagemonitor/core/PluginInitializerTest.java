@@ -0,0 +1,145 @@
+package org.stagemonitor.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.stagemonitor.core.configuration.Configuration;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+
+public class PluginInitializerTest {
+
+	private final List<String> initialized = new CopyOnWriteArrayList<String>();
+	private final Metric2Registry metricRegistry = new Metric2Registry();
+	private final PluginInitializer pluginInitializer = new PluginInitializer(metricRegistry, mock(Configuration.class), mock(Logger.class), 4);
+
+	@Test
+	public void testDependenciesAreInitializedFirst() throws Exception {
+		final List<StagemonitorPlugin> initializedPlugins = pluginInitializer.initializePlugins(Arrays.<StagemonitorPlugin>asList(
+				new SecondPlugin(), new FirstPlugin(), new RecordingCorePlugin()));
+
+		assertEquals(Arrays.asList("RecordingCorePlugin", "FirstPlugin", "SecondPlugin"), initialized);
+		assertEquals(3, initializedPlugins.size());
+	}
+
+	@Test
+	public void testMissingDependenciesAreIgnored() throws Exception {
+		pluginInitializer.initializePlugins(Arrays.<StagemonitorPlugin>asList(new SecondPlugin()));
+
+		assertEquals(Arrays.asList("SecondPlugin"), initialized);
+	}
+
+	@Test
+	public void testCyclicDependencies() throws Exception {
+		pluginInitializer.initializePlugins(Arrays.<StagemonitorPlugin>asList(new CyclicPlugin1(), new CyclicPlugin2()));
+
+		assertEquals(2, initialized.size());
+	}
+
+	@Test
+	public void testFailingPluginIsNotReturned() throws Exception {
+		final List<StagemonitorPlugin> initializedPlugins = pluginInitializer.initializePlugins(Arrays.<StagemonitorPlugin>asList(
+				new TestExceptionPlugin(), new FirstPlugin()));
+
+		assertEquals(1, initializedPlugins.size());
+		assertTrue(initializedPlugins.get(0) instanceof FirstPlugin);
+	}
+
+	@Test
+	public void testLinkageErrorIsLogged() throws Exception {
+		final Logger logger = mock(Logger.class);
+		final List<StagemonitorPlugin> initializedPlugins = new PluginInitializer(metricRegistry, mock(Configuration.class), logger, 4)
+				.initializePlugins(Arrays.<StagemonitorPlugin>asList(new StagemonitorPlugin() {
+					@Override
+					public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) {
+						throw new NoClassDefFoundError("This is a expected test error");
+					}
+				}, new FirstPlugin()));
+
+		assertEquals(1, initializedPlugins.size());
+		assertTrue(initializedPlugins.get(0) instanceof FirstPlugin);
+		verify(logger).warn(anyString(), any(NoClassDefFoundError.class));
+	}
+
+	@Test
+	public void testInitTimeIsRecorded() throws Exception {
+		pluginInitializer.initializePlugins(Arrays.<StagemonitorPlugin>asList(new FirstPlugin(), new TestExceptionPlugin()));
+
+		assertEquals(1, metricRegistry.timer(name("internal_plugin_init_time").tag("plugin", "FirstPlugin").build()).getCount());
+		assertEquals(1, metricRegistry.timer(name("internal_plugin_init_time").tag("plugin", "TestExceptionPlugin").build()).getCount());
+	}
+
+	@Test
+	public void testInitializeRemoteResources() throws Exception {
+		final List<String> remoteResources = new ArrayList<String>();
+		pluginInitializer.initializeRemoteResourcesAsync(Arrays.<StagemonitorPlugin>asList(new StagemonitorPlugin() {
+			@Override
+			public void initializeRemoteResources(Configuration configuration) {
+				throw new RuntimeException("This is a expected test exception");
+			}
+		}, new StagemonitorPlugin() {
+			@Override
+			public void initializeRemoteResources(Configuration configuration) {
+				remoteResources.add("dashboard");
+			}
+		})).get();
+
+		assertEquals(Arrays.asList("dashboard"), remoteResources);
+	}
+
+	private abstract class RecordingPlugin extends StagemonitorPlugin {
+		@Override
+		public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) throws Exception {
+			// give plugins without dependencies the chance to overtake this plugin
+			Thread.sleep(10);
+			initialized.add(getClass().getSimpleName());
+		}
+	}
+
+	private class RecordingCorePlugin extends RecordingPlugin {
+		@Override
+		public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+			return Collections.emptyList();
+		}
+	}
+
+	private class FirstPlugin extends RecordingPlugin {
+		@Override
+		public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+			return Collections.<Class<? extends StagemonitorPlugin>>singletonList(RecordingCorePlugin.class);
+		}
+	}
+
+	private class SecondPlugin extends RecordingPlugin {
+		@Override
+		public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+			return Collections.<Class<? extends StagemonitorPlugin>>singletonList(FirstPlugin.class);
+		}
+	}
+
+	private class CyclicPlugin1 extends RecordingPlugin {
+		@Override
+		public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+			return Collections.<Class<? extends StagemonitorPlugin>>singletonList(CyclicPlugin2.class);
+		}
+	}
+
+	private class CyclicPlugin2 extends RecordingPlugin {
+		@Override
+		public List<Class<? extends StagemonitorPlugin>> dependsOn() {
+			return Collections.<Class<? extends StagemonitorPlugin>>singletonList(CyclicPlugin1.class);
+		}
+	}
+}
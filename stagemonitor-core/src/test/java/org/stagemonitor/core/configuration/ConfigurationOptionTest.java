@@ -2,10 +2,12 @@ package org.stagemonitor.core.configuration;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -105,6 +107,30 @@ public class ConfigurationOptionTest {
 		assertEquals("testCaching2", testCaching.getValue());
 	}
 
+	@Test
+	public void testUnchangedValuesAreNotConvertedAgain() {
+		final Collection<String> value = strings.getValue();
+		configuration.reloadAllConfigurationOptions();
+		assertSame(value, strings.getValue());
+	}
+
+	@Test
+	public void testChangeListener() {
+		final List<String> changes = new ArrayList<String>();
+		string.addChangeListener(new ConfigurationOption.ChangeListener<String>() {
+			@Override
+			public void onChange(ConfigurationOption<?> configurationOption, String oldValue, String newValue) {
+				changes.add(configurationOption.getKey() + ": " + oldValue + " -> " + newValue);
+			}
+		});
+		configuration.reloadAllConfigurationOptions();
+		assertEquals(Collections.<String>emptyList(), changes);
+
+		configSource.add("string", "barFoo");
+		configuration.reloadAllConfigurationOptions();
+		assertEquals(Arrays.asList("string: fooBar -> barFoo"), changes);
+	}
+
 	@Test
 	public void testGetBoolean() {
 		assertTrue(booleanTrue.getValue());
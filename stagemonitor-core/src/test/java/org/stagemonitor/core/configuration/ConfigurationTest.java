@@ -12,6 +12,7 @@ import static org.stagemonitor.core.Stagemonitor.STAGEMONITOR_PASSWORD;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -160,6 +161,52 @@ public class ConfigurationTest {
 		assertTrue(corePlugin.isInternalMonitoringActive());
 	}
 
+	@Test
+	public void testSnapshotIsSwappedOnReload() throws IOException {
+		final SimpleSource source = SimpleSource.forTest(STAGEMONITOR_PASSWORD, "");
+		configuration.addConfigurationSource(source);
+		configuration.reloadAllConfigurationOptions();
+		assertTrue(corePlugin.isStagemonitorActive());
+
+		source.add("stagemonitor.active", "false");
+		assertTrue(corePlugin.isStagemonitorActive());
+		configuration.reloadDynamicConfigurationOptions();
+		assertFalse(corePlugin.isStagemonitorActive());
+
+		configuration.save("stagemonitor.active", "true", "Test Configuration Source");
+		assertTrue(corePlugin.isStagemonitorActive());
+	}
+
+	@Test
+	public void testOnConfigurationReloaded() throws Exception {
+		final int[] reloads = new int[1];
+		final ConfigurationOption<String> option = ConfigurationOption.stringOption().key("foo").dynamic(true).build();
+		final ConfigurationOptionProvider optionProvider = new ConfigurationOptionProvider() {
+			@Override
+			public List<ConfigurationOption<?>> getConfigurationOptions() {
+				return Collections.<ConfigurationOption<?>>singletonList(option);
+			}
+
+			@Override
+			protected void onConfigurationReloaded() {
+				reloads[0]++;
+			}
+		};
+		final SimpleSource source = SimpleSource.forTest("foo", "bar");
+		final Configuration configuration = new Configuration(Collections.singletonList(optionProvider),
+				Collections.<ConfigurationSource>singletonList(source), null);
+		assertEquals(1, reloads[0]);
+
+		// nothing has changed
+		configuration.reloadDynamicConfigurationOptions();
+		assertEquals(1, reloads[0]);
+
+		source.add("foo", "baz");
+		configuration.reloadDynamicConfigurationOptions();
+		assertEquals(2, reloads[0]);
+		assertEquals("baz", option.getValue());
+	}
+
 	@Test
 	public void testAddConfigurationSource() {
 		Configuration configuration = new Configuration("");
@@ -1,6 +1,7 @@
 package org.stagemonitor.core.configuration.source;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.InputStream;
@@ -44,6 +45,18 @@ public class ElasticsearchConfigurationSourceTest extends AbstractElasticsearchT
 		assertEquals("bar", configurationSource.getValue("foo"));
 	}
 
+	@Test
+	public void testReloadOnlyIfVersionChanged() throws Exception {
+		configurationSource.save("foo", "bar");
+		assertTrue(configurationSource.reloadIfChanged());
+		assertFalse(configurationSource.reloadIfChanged());
+
+		configurationSource.save("foo", "baz");
+		assertTrue(configurationSource.reloadIfChanged());
+		assertEquals("baz", configurationSource.getValue("foo"));
+		assertFalse(configurationSource.reloadIfChanged());
+	}
+
 	@Test
 	public void testGetName() throws Exception {
 		assertEquals("Elasticsearch (test)", configurationSource.getName());
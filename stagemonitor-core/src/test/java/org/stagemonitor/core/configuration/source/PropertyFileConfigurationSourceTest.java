@@ -1,8 +1,12 @@
 package org.stagemonitor.core.configuration.source;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
 
 import org.junit.Test;
 
@@ -22,4 +26,49 @@ public class PropertyFileConfigurationSourceTest {
 		propertyFileConfigurationSource.save("foo2", "bar2");
 		assertEquals("bar2", propertyFileConfigurationSource.getValue("foo2"));
 	}
+
+	@Test
+	public void testReloadOnlyIfModified() throws Exception {
+		File file = File.createTempFile("filesystem-test", ".properties");
+		file.deleteOnExit();
+		store(file, "foo", "bar");
+		PropertyFileConfigurationSource propertyFileConfigurationSource = new PropertyFileConfigurationSource(file.getAbsolutePath());
+		assertFalse(propertyFileConfigurationSource.reloadIfChanged());
+
+		store(file, "foo", "baz");
+		file.setLastModified(file.lastModified() + 2000);
+		assertTrue(propertyFileConfigurationSource.reloadIfChanged());
+		assertEquals("baz", propertyFileConfigurationSource.getValue("foo"));
+		assertFalse(propertyFileConfigurationSource.reloadIfChanged());
+	}
+
+	@Test
+	public void testReloadIfModifiedWithinTheResolutionOfTheModificationDate() throws Exception {
+		File file = File.createTempFile("filesystem-test", ".properties");
+		file.deleteOnExit();
+		store(file, "foo", "bar");
+		final long lastModified = file.lastModified();
+		PropertyFileConfigurationSource propertyFileConfigurationSource = new PropertyFileConfigurationSource(file.getAbsolutePath());
+
+		store(file, "foo", "baz");
+		file.setLastModified(lastModified);
+		assertTrue(propertyFileConfigurationSource.reloadIfChanged());
+		assertEquals("baz", propertyFileConfigurationSource.getValue("foo"));
+		assertFalse(propertyFileConfigurationSource.reloadIfChanged());
+	}
+
+	@Test
+	public void testDontReloadFromJar() throws Exception {
+		PropertyFileConfigurationSource propertyFileConfigurationSource = new PropertyFileConfigurationSource("META-INF/maven/com.fasterxml.jackson.core/jackson-databind/pom.properties");
+		assertEquals("jackson-databind", propertyFileConfigurationSource.getValue("artifactId"));
+		assertFalse(propertyFileConfigurationSource.reloadIfChanged());
+	}
+
+	private static void store(File file, String key, String value) throws Exception {
+		final Properties properties = new Properties();
+		properties.put(key, value);
+		final FileOutputStream out = new FileOutputStream(file);
+		properties.store(out, null);
+		out.close();
+	}
 }
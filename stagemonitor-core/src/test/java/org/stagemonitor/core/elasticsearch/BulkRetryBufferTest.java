@@ -0,0 +1,240 @@
+package org.stagemonitor.core.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.codahale.metrics.Gauge;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.core.spool.Spool;
+import org.stagemonitor.core.util.HttpClient;
+
+public class BulkRetryBufferTest {
+
+	private static final String ITEM_1 = "{\"index\":{\"_index\":\"test\",\"_type\":\"test\"}}\n{\"value\":1}\n";
+	private static final String ITEM_2 = "{\"index\":{\"_index\":\"test\",\"_type\":\"test\"}}\n{\"value\":2}\n";
+	private static final String ITEM_3 = "{\"index\":{\"_index\":\"test\",\"_type\":\"test\"}}\n{\"value\":3}\n";
+	private static final String SUCCESS = "{\"took\":1,\"errors\":false,\"items\":[]}";
+
+	private HttpClient httpClient;
+	private CorePlugin corePlugin;
+	private Metric2Registry registry;
+	private final List<String> requests = new ArrayList<String>();
+	private final LinkedList<Object[]> responses = new LinkedList<Object[]>();
+
+	@Before
+	public void setUp() throws Exception {
+		httpClient = mock(HttpClient.class);
+		when(httpClient.send(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.OutputStreamHandler.class), Matchers.<HttpClient.ResponseHandler<Object>>any())).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				final ByteArrayOutputStream os = new ByteArrayOutputStream();
+				((HttpClient.OutputStreamHandler) invocation.getArguments()[3]).withHttpURLConnection(os);
+				requests.add(os.toString("UTF-8"));
+				final Object[] response = responses.removeFirst();
+				final ByteArrayInputStream is = response[1] != null ? new ByteArrayInputStream(((String) response[1]).getBytes("UTF-8")) : null;
+				return ((HttpClient.ResponseHandler<?>) invocation.getArguments()[4]).handleResponse(is, (Integer) response[0]);
+			}
+		});
+		corePlugin = mock(CorePlugin.class);
+		when(corePlugin.getElasticsearchUrl()).thenReturn("http://localhost:9200");
+		when(corePlugin.getElasticsearchRetryBufferSizeMB()).thenReturn(1);
+		registry = new Metric2Registry();
+	}
+
+	@Test
+	public void testRetryOnlyRejectedItems() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		respond(200, "{\"took\":1,\"errors\":true,\"items\":[" +
+				"{\"create\":{\"_index\":\"test\",\"status\":201}}," +
+				"{\"create\":{\"_index\":\"test\",\"status\":429,\"error\":\"EsRejectedExecutionException[rejected execution (queue capacity 50)]\"}}]}");
+		buffer.send(bytes(ITEM_1 + ITEM_2), false);
+		assertEquals(1, buffer.getBufferedItemCount());
+		assertEquals(ITEM_2.length(), buffer.getBufferedBytes());
+
+		respond(200, SUCCESS);
+		buffer.send(bytes(ITEM_3), false);
+		assertEquals(ITEM_2 + ITEM_3, requests.get(1));
+		assertEquals(0, buffer.getBufferedItemCount());
+		assertEquals(1, getCount("elasticsearch_bulk_items_retried"));
+		assertEquals(0, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testDropItemsThatCantBeIndexed() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		respond(200, "{\"took\":1,\"errors\":true,\"items\":[" +
+				"{\"index\":{\"_index\":\"test\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}," +
+				"{\"index\":{\"_index\":\"test\",\"status\":503,\"error\":{\"type\":\"unavailable_shards_exception\",\"reason\":\"primary shard is not active\"}}}]}");
+		buffer.send(bytes(ITEM_1 + ITEM_2), false);
+
+		assertEquals(1, buffer.getBufferedItemCount());
+		assertEquals(ITEM_2.length(), buffer.getBufferedBytes());
+		assertEquals(1, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testBufferWhileElasticsearchIsUnavailable() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 60000);
+		respond(null, null);
+		buffer.send(bytes(ITEM_1), false);
+		// the backoff is active, so Elasticsearch is not contacted
+		buffer.send(bytes(ITEM_2), false);
+
+		verify(httpClient, times(1)).send(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.OutputStreamHandler.class), Matchers.<HttpClient.ResponseHandler<Object>>any());
+		assertEquals(2, buffer.getBufferedItemCount());
+		assertEquals(0, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testRetryAfterBackoff() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		respond(503, "{\"error\":\"ClusterBlockException\",\"status\":503}");
+		buffer.send(bytes(ITEM_1), false);
+		respond(200, SUCCESS);
+		buffer.send(bytes(ITEM_2), false);
+
+		assertEquals(ITEM_1 + ITEM_2, requests.get(1));
+		assertEquals(0, buffer.getBufferedItemCount());
+	}
+
+	@Test
+	public void testRetriesDisabled() throws Exception {
+		when(corePlugin.getElasticsearchRetryBufferSizeMB()).thenReturn(0);
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 60000);
+		respond(null, null);
+		buffer.send(bytes(ITEM_1), false);
+		// there is no backoff if retries are disabled
+		respond(200, SUCCESS);
+		buffer.send(bytes(ITEM_2), false);
+
+		assertEquals(ITEM_2, requests.get(1));
+		assertEquals(0, buffer.getBufferedItemCount());
+		assertEquals(1, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testDropAllOnBadRequest() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		respond(400, "{\"error\":\"ActionRequestValidationException\",\"status\":400}");
+		buffer.send(bytes(ITEM_1 + ITEM_2), false);
+
+		assertEquals(0, buffer.getBufferedItemCount());
+		assertEquals(2, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testDropOldestItemsIfBufferIsFull() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 60000);
+		final StringBuilder largeValue = new StringBuilder();
+		for (int i = 0; i < 600 * 1024; i++) {
+			largeValue.append('x');
+		}
+		final String largeItem = "{\"index\":{\"_index\":\"test\",\"_type\":\"test\"}}\n{\"value\":\"" + largeValue + "\"}\n";
+		respond(null, null);
+		buffer.send(bytes(largeItem + ITEM_1), false);
+		buffer.send(bytes(largeItem), false);
+
+		assertEquals(2, buffer.getBufferedItemCount());
+		assertEquals(ITEM_1.length() + largeItem.length(), buffer.getBufferedBytes());
+		assertEquals(1, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testMaxAttempts() throws Exception {
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		respond(null, null);
+		buffer.send(bytes(ITEM_1), false);
+		for (int i = 1; i < BulkRetryBuffer.MAX_ATTEMPTS; i++) {
+			respond(null, null);
+			buffer.send(bytes(""), false);
+			assertEquals(1, buffer.getBufferedItemCount());
+		}
+		respond(null, null);
+		buffer.send(bytes(""), false);
+		assertEquals(0, buffer.getBufferedItemCount());
+		assertEquals(1, getCount("elasticsearch_bulk_items_dropped"));
+	}
+
+	@Test
+	public void testSpoolWhileElasticsearchIsUnreachable() throws Exception {
+		final File spoolDirectory = File.createTempFile("elasticsearch-spool", "");
+		spoolDirectory.delete();
+		final Spool spool = new Spool(spoolDirectory, 1024 * 1024);
+		try {
+			when(corePlugin.createSpool("elasticsearch-test")).thenReturn(spool);
+			final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+			respond(null, null);
+			buffer.send(bytes(ITEM_1), false);
+			// the spool is not empty, so the request is spooled to preserve the order
+			buffer.send(bytes(ITEM_2), false);
+
+			verify(httpClient, times(1)).send(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.OutputStreamHandler.class), Matchers.<HttpClient.ResponseHandler<Object>>any());
+			assertEquals(0, buffer.getBufferedItemCount());
+			assertEquals(ITEM_1, new String(spool.peek(), "UTF-8"));
+			spool.remove();
+			assertEquals(ITEM_2, new String(spool.peek(), "UTF-8"));
+		} finally {
+			spool.close();
+			for (File file : spoolDirectory.listFiles()) {
+				file.delete();
+			}
+			spoolDirectory.delete();
+		}
+	}
+
+	@Test
+	public void testCloseOnlyRemovesOwnGauge() throws Exception {
+		final MetricName bufferSizeName = name("elasticsearch_retry_buffer_size").tag("buffer", "test").build();
+		final BulkRetryBuffer buffer = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		final Gauge<?> gauge = registry.getGauges().get(bufferSizeName);
+		final BulkRetryBuffer other = new BulkRetryBuffer(httpClient, corePlugin, registry, "test", 0);
+		assertSame(gauge, registry.getGauges().get(bufferSizeName));
+
+		other.close();
+		assertSame(gauge, registry.getGauges().get(bufferSizeName));
+		buffer.close();
+		assertNull(registry.getGauges().get(bufferSizeName));
+	}
+
+	@Test
+	public void testParseDeleteActions() throws Exception {
+		final String delete = "{ \"delete\" : { \"_index\" : \"test\", \"_type\" : \"test\", \"_id\" : \"1\" } }\n";
+		final List<BulkRetryBuffer.BulkItem> items = BulkRetryBuffer.BulkItem.parse(bytes(ITEM_1 + delete + ITEM_2));
+		assertEquals(3, items.size());
+	}
+
+	private void respond(Integer status, String body) {
+		responses.add(new Object[]{status, body});
+	}
+
+	private long getCount(String metricName) {
+		return registry.meter(name(metricName).tag("buffer", "test").build()).getCount();
+	}
+
+	private static byte[] bytes(String s) throws Exception {
+		return s.getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,141 @@
+package org.stagemonitor.core.elasticsearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.FileNotFoundException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.stagemonitor.core.util.JsonUtils;
+
+public class IndexLifecycleManagerTest {
+
+	private ElasticsearchClient elasticsearchClient;
+	private IndexLifecycleManager indexLifecycleManager;
+
+	@Before
+	public void setUp() throws Exception {
+		elasticsearchClient = mock(ElasticsearchClient.class);
+		when(elasticsearchClient.getElasticsearchUrl()).thenReturn("http://localhost:9200");
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd HH:mm");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final long now = dateFormat.parse("2016.01.10 12:00").getTime();
+		indexLifecycleManager = new IndexLifecycleManager(elasticsearchClient, new Clock() {
+			@Override
+			public long getTick() {
+				return now * 1000000;
+			}
+
+			@Override
+			public long getTime() {
+				return now;
+			}
+		}, 1);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		indexLifecycleManager.close();
+	}
+
+	@Test
+	public void testComputeActionsPerIndex() throws Exception {
+		when(elasticsearchClient.getJson("/test-*/_stats/docs,store,segments")).thenReturn(JsonUtils.getMapper().readTree("{\"indices\":{" +
+				indexStats("test-2016.01.01", 10, 5) + "," +
+				indexStats("test-2016.01.05", 10, 5) + "," +
+				indexStats("test-2016.01.06", 1, 1) + "," +
+				indexStats("test-2016.01.07", 10, 5) + "," +
+				indexStats("test-2016.01.07-1", 10, 5) + "," +
+				indexStats("test-2016.01.09", 10, 5) + "," +
+				indexStats("test-kibana", 10, 5) + "}}"));
+		when(elasticsearchClient.getJson("/test-*/_settings")).thenReturn(JsonUtils.getMapper().readTree("{" +
+				"\"test-2016.01.05\":{\"settings\":{\"index\":{\"routing\":{\"allocation\":{\"require\":{\"box_type\":\"cold\"}}}}}}," +
+				"\"test-2016.01.07\":{\"settings\":{\"index\":{\"routing\":{\"allocation\":{\"require\":{\"box_type\":\"hot\"}}}}}}}"));
+
+		assertEquals("[delete test-2016.01.01, " +
+				"optimize test-2016.01.05, " +
+				"move to cold nodes test-2016.01.06, " +
+				"move to cold nodes test-2016.01.07, optimize test-2016.01.07, " +
+				"move to cold nodes test-2016.01.07-1, optimize test-2016.01.07-1]",
+				indexLifecycleManager.getActions(new IndexLifecycleManager.Policy("test-", 2, 7), true).toString());
+	}
+
+	@Test
+	public void testDontOptimizeOnStartup() throws Exception {
+		when(elasticsearchClient.getJson("/test-*/_stats/docs,store,segments")).thenReturn(JsonUtils.getMapper().readTree("{\"indices\":{" +
+				indexStats("test-2016.01.07", 10, 5) + "}}"));
+		when(elasticsearchClient.getJson("/test-*/_settings")).thenReturn(JsonUtils.getMapper().readTree("{}"));
+
+		assertEquals("[move to cold nodes test-2016.01.07]",
+				indexLifecycleManager.getActions(new IndexLifecycleManager.Policy("test-", 2, 7), false).toString());
+	}
+
+	@Test
+	public void testNoIndices() throws Exception {
+		when(elasticsearchClient.getJson("/test-*/_stats/docs,store,segments")).thenThrow(new FileNotFoundException());
+
+		assertEquals("[]", indexLifecycleManager.getActions(new IndexLifecycleManager.Policy("test-", 2, 7), true).toString());
+	}
+
+	@Test
+	public void testRollOverIsNotBlockedByActions() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		when(elasticsearchClient.getJson("/test-*/_stats/docs,store,segments")).thenAnswer(new Answer<JsonNode>() {
+			@Override
+			public JsonNode answer(InvocationOnMock invocation) throws Throwable {
+				// a long running action that occupies the only thread of the action pool
+				release.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+		when(elasticsearchClient.getJson("/test-2016.01.10*/_stats/store")).thenReturn(JsonUtils.getMapper().readTree("{\"indices\":{" +
+				indexSize("test-2016.01.10", 2000) + "}}"));
+
+		indexLifecycleManager.manage("test-", 2, 7);
+		indexLifecycleManager.rollOverBySize("test-", 1000);
+
+		verify(elasticsearchClient, timeout(1000)).getJson("/test-2016.01.10*/_stats/store");
+		release.countDown();
+	}
+
+	@Test
+	public void testRollOverBySize() throws Exception {
+		assertEquals("test-2016.01.10", indexLifecycleManager.getCurrentIndex("test-"));
+		when(elasticsearchClient.getJson("/test-2016.01.10*/_stats/store")).thenReturn(JsonUtils.getMapper().readTree("{\"indices\":{" +
+				indexSize("test-2016.01.10", 2000) + "," + indexSize("test-2016.01.10-1", 500) + "}}"));
+		indexLifecycleManager.rollOverBySize("test-", 1000);
+		indexLifecycleManager.updateCurrentIndex("test-");
+		assertEquals("test-2016.01.10-1", indexLifecycleManager.getCurrentIndex("test-"));
+
+		when(elasticsearchClient.getJson("/test-2016.01.10*/_stats/store")).thenReturn(JsonUtils.getMapper().readTree("{\"indices\":{" +
+				indexSize("test-2016.01.10", 2000) + "," + indexSize("test-2016.01.10-1", 1500) + "}}"));
+		indexLifecycleManager.updateCurrentIndex("test-");
+		assertEquals("test-2016.01.10-2", indexLifecycleManager.getCurrentIndex("test-"));
+	}
+
+	private static String indexStats(String index, int segments, int shards) {
+		final StringBuilder shardStats = new StringBuilder();
+		for (int i = 0; i < shards; i++) {
+			shardStats.append(i > 0 ? "," : "").append("\"").append(i).append("\":[]");
+		}
+		return "\"" + index + "\":{\"primaries\":{\"docs\":{\"count\":100},\"segments\":{\"count\":" + segments + "}}," +
+				"\"shards\":{" + shardStats + "}}";
+	}
+
+	private static String indexSize(String index, long bytes) {
+		return "\"" + index + "\":{\"primaries\":{\"store\":{\"size_in_bytes\":" + bytes + "}}}";
+	}
+}
@@ -34,6 +34,7 @@ public class SimpleElasticsearchReporterTest extends AbstractElasticsearchTest {
 		final CorePlugin corePlugin = new CorePlugin();
 		corePlugin.setElasticsearchClient(elasticsearchClient);
 		corePlugin.initializePlugin(new Metric2Registry(), configuration);
+		corePlugin.initializeRemoteResources(configuration);
 		while (!elasticsearchClient.isPoolQueueEmpty()) {
 			// give the async tasks time to complete
 			Thread.sleep(10);
@@ -0,0 +1,66 @@
+package org.stagemonitor.core.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import com.codahale.metrics.graphite.GraphiteSender;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.stagemonitor.core.spool.Spool;
+
+public class SpoolingGraphiteSenderTest {
+
+	private GraphiteSender graphite;
+	private Spool spool;
+	private SpoolingGraphiteSender sender;
+
+	@Before
+	public void setUp() throws Exception {
+		graphite = mock(GraphiteSender.class);
+		spool = mock(Spool.class);
+		when(spool.isEmpty()).thenReturn(true);
+		when(spool.append(any(byte[].class))).thenReturn(true);
+		sender = new SpoolingGraphiteSender(graphite, spool);
+	}
+
+	@Test
+	public void testSendWithoutSpooling() throws Exception {
+		sender.send("a", "1", 1);
+		sender.send("b", "2", 1);
+		sender.flush();
+
+		verify(graphite).send("a", "1", 1);
+		verify(graphite).send("b", "2", 1);
+		verify(graphite).flush();
+		verify(spool, never()).append(any(byte[].class));
+	}
+
+	@Test
+	public void testOnlySpoolLinesThatHaveNotBeenFlushed() throws Exception {
+		doThrow(new IOException("connection reset")).when(graphite).send(eq("m150"), anyString(), anyLong());
+		final int lines = SpoolingGraphiteSender.LINES_PER_FLUSH + 100;
+		for (int i = 0; i < lines; i++) {
+			sender.send("m" + i, "1", 1);
+		}
+		sender.flush();
+
+		final ArgumentCaptor<byte[]> spooled = ArgumentCaptor.forClass(byte[].class);
+		verify(spool).append(spooled.capture());
+		final StringBuilder expected = new StringBuilder();
+		for (int i = SpoolingGraphiteSender.LINES_PER_FLUSH; i < lines; i++) {
+			expected.append('m').append(i).append(" 1 1\n");
+		}
+		assertEquals(expected.toString(), new String(spooled.getValue(), "UTF-8"));
+	}
+}
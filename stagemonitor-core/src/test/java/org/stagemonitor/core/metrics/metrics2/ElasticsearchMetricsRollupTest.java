@@ -0,0 +1,189 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.codahale.metrics.Clock;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
+import org.stagemonitor.core.util.JsonUtils;
+
+public class ElasticsearchMetricsRollupTest {
+
+	private final List<Object[]> minuteDocuments = new ArrayList<Object[]>();
+	private final List<Object[]> hourDocuments = new ArrayList<Object[]>();
+	private ElasticsearchMetricsRollup.Aggregator aggregator;
+
+	@Before
+	public void setUp() throws Exception {
+		final Map<String, String> fieldTypes = new HashMap<String, String>();
+		fieldTypes.put("name", "string");
+		fieldTypes.put("host", "string");
+		for (String field : Arrays.asList("count", "max", "mean")) {
+			fieldTypes.put(field, "integer");
+		}
+		for (String field : Arrays.asList("min", "median", "std", "p25", "p75", "p95", "p98", "p99", "p999", "m1_rate", "value")) {
+			fieldTypes.put(field, "float");
+		}
+		fieldTypes.put("value_boolean", "boolean");
+		aggregator = new ElasticsearchMetricsRollup.Aggregator(fieldTypes, new CollectingWriter(minuteDocuments), new CollectingWriter(hourDocuments));
+	}
+
+	@Test
+	public void testMixtureQuantileOfOneDistribution() throws Exception {
+		final List<double[]> samples = new ArrayList<double[]>();
+		samples.add(new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+		for (int i = 0; i < ElasticsearchMetricsRollup.QUANTILES.length; i++) {
+			assertEquals(i + 1, ElasticsearchMetricsRollup.getMixtureQuantile(samples, new double[]{1}, ElasticsearchMetricsRollup.QUANTILES[i]), 0.0001);
+		}
+	}
+
+	@Test
+	public void testMixtureQuantile() throws Exception {
+		final List<double[]> samples = new ArrayList<double[]>();
+		// uniform distributions between 0 and 10 and between 10 and 20
+		samples.add(uniform(0, 10));
+		samples.add(uniform(10, 20));
+
+		assertEquals(10, ElasticsearchMetricsRollup.getMixtureQuantile(samples, new double[]{1, 1}, 0.5), 0.0001);
+		assertEquals(5, ElasticsearchMetricsRollup.getMixtureQuantile(samples, new double[]{1, 1}, 0.25), 0.0001);
+		assertEquals(15, ElasticsearchMetricsRollup.getMixtureQuantile(samples, new double[]{1, 1}, 0.75), 0.0001);
+		// the second distribution contains three times as many events
+		assertEquals(13.3333, ElasticsearchMetricsRollup.getMixtureQuantile(samples, new double[]{1, 3}, 0.5), 0.0001);
+	}
+
+	@Test
+	public void testMixtureQuantileWithMissingValues() throws Exception {
+		final List<double[]> samples = new ArrayList<double[]>();
+		samples.add(new double[]{0, Double.NaN, 5, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, 10});
+
+		assertEquals(2.5, ElasticsearchMetricsRollup.getMixtureQuantile(samples, new double[]{1}, 0.25), 0.0001);
+	}
+
+	@Test
+	public void testRollUpTimer() throws Exception {
+		aggregator.add(timer(0, 10, 1, 2, 5));
+		aggregator.add(timer(30000, 40, 3, 4, 7));
+		aggregator.add(timer(60000, 50, 5, 6, 9));
+		aggregator.add(timer(3600000, 60, 5, 6, 9));
+		aggregator.flush();
+
+		assertEquals(3, minuteDocuments.size());
+		assertEquals(2, hourDocuments.size());
+
+		final Map<String, Object> firstMinute = getValues(minuteDocuments.get(0));
+		assertEquals(0L, minuteDocuments.get(0)[0]);
+		assertEquals(40.0, firstMinute.get("count"));
+		assertEquals(1.0, firstMinute.get("min"));
+		assertEquals(7.0, firstMinute.get("max"));
+		// the first sample has the weight 1, the second the weight 30 (40 - 10)
+		assertEquals((2 * 1 + 4 * 30) / 31.0, (Double) firstMinute.get("mean"), 0.0001);
+		// rates are averaged
+		assertEquals(2.5, (Double) firstMinute.get("m1_rate"), 0.0001);
+
+		final Map<String, Object> firstHour = getValues(hourDocuments.get(0));
+		assertEquals(0L, hourDocuments.get(0)[0]);
+		assertEquals(50.0, firstHour.get("count"));
+		assertEquals(1.0, firstHour.get("min"));
+		assertEquals(9.0, firstHour.get("max"));
+		assertEquals((2 * 1 + 4 * 30 + 6 * 10) / 41.0, (Double) firstHour.get("mean"), 0.0001);
+		assertEquals(3600000L, hourDocuments.get(1)[0]);
+	}
+
+	@Test
+	public void testGroupByNameAndTags() throws Exception {
+		aggregator.add(gauge(0, "cpu", "host1", 0.5));
+		aggregator.add(gauge(0, "cpu", "host2", 1));
+		aggregator.add(gauge(10000, "cpu", "host1", 0.7));
+		aggregator.add(gauge(10000, "cpu", "host2", 0.5));
+		aggregator.flush();
+
+		assertEquals(2, minuteDocuments.size());
+		for (Object[] document : minuteDocuments) {
+			final String host = ((Map<?, ?>) document[1]).get("host").toString();
+			assertEquals("host1".equals(host) ? 0.6 : 0.75, (Double) getValues(document).get("value"), 0.0001);
+		}
+	}
+
+	@Test
+	public void testBooleanValues() throws Exception {
+		aggregator.add(JsonUtils.getMapper().readTree("{\"@timestamp\":[0],\"name\":[\"healthy\"],\"value_boolean\":[\"T\"]}"));
+		aggregator.add(JsonUtils.getMapper().readTree("{\"@timestamp\":[10000],\"name\":[\"healthy\"],\"value_boolean\":[\"F\"]}"));
+		aggregator.flush();
+
+		assertEquals(false, getValues(minuteDocuments.get(0)).get("value_boolean"));
+	}
+
+	@Test
+	public void testGetIndicesToRollUp() throws Exception {
+		final ElasticsearchClient elasticsearchClient = mock(ElasticsearchClient.class);
+		when(elasticsearchClient.getJson("/stagemonitor-metrics-*/_stats/docs")).thenReturn(JsonUtils.getMapper().readTree("{\"indices\":{" +
+				"\"stagemonitor-metrics-2016.01.01\":{},\"stagemonitor-metrics-2016.01.02\":{},\"stagemonitor-metrics-2016.01.08\":{}," +
+				"\"stagemonitor-metrics-2016.01.09\":{},\"stagemonitor-metrics-1h-2016.01.01\":{}}}"));
+		when(elasticsearchClient.getJson("/stagemonitor-metrics-1h-2016.01.01/rollups/completed")).thenReturn(JsonUtils.getMapper().readTree("{\"found\":true}"));
+		when(elasticsearchClient.getJson("/stagemonitor-metrics-1h-2016.01.02/rollups/completed")).thenThrow(new FileNotFoundException());
+		when(elasticsearchClient.getJson("/stagemonitor-metrics-1h-2016.01.08/rollups/completed")).thenThrow(new FileNotFoundException());
+		final long now = 1452427200000L; // 2016-01-10T12:00:00Z
+
+		final ElasticsearchMetricsRollup rollup = new ElasticsearchMetricsRollup(elasticsearchClient, 2, new Clock() {
+			@Override
+			public long getTick() {
+				return now * 1000000;
+			}
+
+			@Override
+			public long getTime() {
+				return now;
+			}
+		});
+
+		assertEquals(Arrays.asList("stagemonitor-metrics-2016.01.02"), rollup.getIndicesToRollUp());
+	}
+
+	private static double[] uniform(double min, double max) {
+		final double[] sample = new double[ElasticsearchMetricsRollup.QUANTILES.length];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = min + ElasticsearchMetricsRollup.QUANTILES[i] * (max - min);
+		}
+		return sample;
+	}
+
+	private static JsonNode timer(long timestamp, long count, double min, double mean, double max) throws Exception {
+		return JsonUtils.getMapper().readTree("{\"@timestamp\":[" + timestamp + "],\"name\":[\"response_time\"],\"host\":[\"host1\"]," +
+				"\"count\":[" + count + "],\"min\":[" + min + "],\"mean\":[" + mean + "],\"median\":[" + mean + "],\"max\":[" + max + "]," +
+				"\"std\":[1],\"m1_rate\":[" + min * 1.25 + "]}");
+	}
+
+	private static JsonNode gauge(long timestamp, String name, String host, double value) throws Exception {
+		return JsonUtils.getMapper().readTree("{\"@timestamp\":[" + timestamp + "],\"name\":[\"" + name + "\"],\"host\":[\"" + host + "\"]," +
+				"\"value\":[" + value + "]}");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getValues(Object[] document) {
+		return (Map<String, Object>) document[2];
+	}
+
+	private static class CollectingWriter implements ElasticsearchMetricsRollup.DocumentWriter {
+		private final List<Object[]> documents;
+
+		private CollectingWriter(List<Object[]> documents) {
+			this.documents = documents;
+		}
+
+		@Override
+		public void write(long timestamp, Map<String, String> tags, Map<String, Object> values) {
+			documents.add(new Object[]{timestamp, tags, values});
+		}
+	}
+}
@@ -3,7 +3,7 @@ package org.stagemonitor.core.metrics.metrics2;
 import static java.util.Collections.singletonMap;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -17,11 +17,16 @@ import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.objectMap;
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.timer;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
@@ -31,6 +36,7 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.stagemonitor.core.CorePlugin;
@@ -43,26 +49,31 @@ public class ElasticsearchReporterTest {
 	private ElasticsearchReporter elasticsearchReporter;
 	private long timestamp;
 	private ByteArrayOutputStream out;
+	private CorePlugin corePlugin;
+	private Clock clock;
 
 	@Before
 	public void setUp() throws Exception {
-		final Clock clock = mock(Clock.class);
+		clock = mock(Clock.class);
 		timestamp = System.currentTimeMillis();
 		when(clock.getTime()).thenReturn(timestamp);
 		final HttpClient httpClient = mock(HttpClient.class);
-		when(httpClient.send(anyString(), anyString(), anyMap(), any(HttpClient.OutputStreamHandler.class))).thenAnswer(new Answer<Integer>() {
+		when(httpClient.send(anyString(), anyString(), anyMapOf(String.class, String.class), any(HttpClient.OutputStreamHandler.class), Matchers.<HttpClient.ResponseHandler<Object>>any())).thenAnswer(new Answer<Object>() {
 			@Override
-			public Integer answer(InvocationOnMock invocation) throws Throwable {
+			public Object answer(InvocationOnMock invocation) throws Throwable {
 				HttpClient.OutputStreamHandler handler = (HttpClient.OutputStreamHandler) invocation.getArguments()[3];
 				final HttpURLConnection connection = mock(HttpURLConnection.class);
 				when(connection.getOutputStream()).thenReturn(out);
 				handler.withHttpURLConnection(connection.getOutputStream());
-				return 200;
+				HttpClient.ResponseHandler<?> responseHandler = (HttpClient.ResponseHandler<?>) invocation.getArguments()[4];
+				return responseHandler.handleResponse(new ByteArrayInputStream("{\"took\":1,\"errors\":false}".getBytes()), 200);
 			}
 		});
+		corePlugin = mock(CorePlugin.class);
+		when(corePlugin.getElasticsearchUrl()).thenReturn("http://localhost:9200");
 		elasticsearchReporter = new ElasticsearchReporter(new Metric2Registry(),
 				Metric2Filter.ALL, TimeUnit.SECONDS, TimeUnit.NANOSECONDS, singletonMap("app", "test"),
-				httpClient, clock, mock(CorePlugin.class));
+				httpClient, clock, corePlugin);
 		out = new ByteArrayOutputStream();
 	}
 
@@ -240,6 +251,120 @@ public class ElasticsearchReporterTest {
 				asMap(out));
 	}
 
+	@Test
+	public void testReportMultipleMetricsWithEscapedTags() throws Exception {
+		final Map<MetricName, Gauge> gauges = new LinkedHashMap<MetricName, Gauge>();
+		gauges.put(name("gauge").tag("quote", "\"a\"").build(), gauge(1));
+		gauges.put(name("gauge").tag("quote", "b").build(), gauge(2));
+		for (int i = 0; i < 2; i++) {
+			out = new ByteArrayOutputStream();
+			elasticsearchReporter.reportMetrics(gauges,
+					metricNameMap(Counter.class),
+					metricNameMap(Histogram.class),
+					metricNameMap(Meter.class),
+					metricNameMap(Timer.class));
+
+			final String[] lines = new String(out.toByteArray()).split("\n");
+			assertEquals(4, lines.length);
+			assertEquals(objectMap("@timestamp", timestamp)
+							.add("name", "gauge")
+							.add("app", "test")
+							.add("quote", "\"a\"")
+							.add("value", 1.0),
+					asMap(lines[1]));
+			assertEquals(objectMap("@timestamp", timestamp)
+							.add("name", "gauge")
+							.add("app", "test")
+							.add("quote", "b")
+							.add("value", 2.0),
+					asMap(lines[3]));
+		}
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		when(corePlugin.isElasticsearchGzipBulkRequests()).thenReturn(true);
+		elasticsearchReporter.reportMetrics(
+				metricNameMap(Gauge.class),
+				metricNameMap(name("web_sessions").build(), counter(123)),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class));
+
+		final GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+		final String json = new Scanner(gzipInputStream, "UTF-8").useDelimiter("\\A").next();
+		assertEquals(
+				map("@timestamp", timestamp, Object.class)
+						.add("name", "web_sessions")
+						.add("app", "test")
+						.add("count", 123),
+				asMap(json.split("\n")[1]));
+	}
+
+	@Test
+	public void testGroupSamples() throws Exception {
+		when(corePlugin.getElasticsearchSamplesPerDocument()).thenReturn(2);
+		final Counter counter = new Counter();
+		final Map<MetricName, Counter> counters = metricNameMap(name("web_sessions").build(), counter);
+
+		counter.inc(1);
+		elasticsearchReporter.reportMetrics(metricNameMap(Gauge.class), counters, metricNameMap(Histogram.class),
+				metricNameMap(Meter.class), metricNameMap(Timer.class));
+		assertEquals(0, out.size());
+
+		counter.inc(2);
+		elasticsearchReporter.reportMetrics(metricNameMap(Gauge.class), counters, metricNameMap(Histogram.class),
+				metricNameMap(Meter.class), metricNameMap(Timer.class));
+		assertEquals(
+				map("@timestamp", timestamp, Object.class)
+						.add("name", "web_sessions")
+						.add("app", "test")
+						.add("count", Arrays.asList(1, 3)),
+				asMap(out));
+
+		out = new ByteArrayOutputStream();
+		elasticsearchReporter.reportMetrics(metricNameMap(Gauge.class), counters, metricNameMap(Histogram.class),
+				metricNameMap(Meter.class), metricNameMap(Timer.class));
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void testFlushGroupedSamplesOnStop() throws Exception {
+		when(corePlugin.getElasticsearchSamplesPerDocument()).thenReturn(2);
+		final Counter counter = new Counter();
+		counter.inc(1);
+		elasticsearchReporter.reportMetrics(metricNameMap(Gauge.class), metricNameMap(name("web_sessions").build(), counter),
+				metricNameMap(Histogram.class), metricNameMap(Meter.class), metricNameMap(Timer.class));
+		assertEquals(0, out.size());
+
+		elasticsearchReporter.stop();
+
+		assertEquals(
+				map("@timestamp", timestamp, Object.class)
+						.add("name", "web_sessions")
+						.add("app", "test")
+						.add("count", 1),
+				asMap(out));
+	}
+
+	@Test
+	public void testGroupedSamplesAreIndexedByTheDateOfTheFirstSample() throws Exception {
+		when(corePlugin.getElasticsearchSamplesPerDocument()).thenReturn(2);
+		final long beforeMidnight = 1451692790000L;
+		final Map<MetricName, Counter> counters = metricNameMap(name("web_sessions").build(), new Counter());
+
+		when(clock.getTime()).thenReturn(beforeMidnight);
+		elasticsearchReporter.reportMetrics(metricNameMap(Gauge.class), counters, metricNameMap(Histogram.class),
+				metricNameMap(Meter.class), metricNameMap(Timer.class));
+		when(clock.getTime()).thenReturn(beforeMidnight + TimeUnit.SECONDS.toMillis(20));
+		elasticsearchReporter.reportMetrics(metricNameMap(Gauge.class), counters, metricNameMap(Histogram.class),
+				metricNameMap(Meter.class), metricNameMap(Timer.class));
+
+		assertEquals("2016.01.01", StringUtils.getLogstashStyleDate(beforeMidnight));
+		assertEquals(ElasticsearchReporter.STAGEMONITOR_METRICS_INDEX_PREFIX + "2016.01.01",
+				JsonUtils.getMapper().readTree(new String(out.toByteArray()).split("\n")[0]).get("index").get("_index").asText());
+	}
+
 	private Map<String, Object> asMap(ByteArrayOutputStream os) throws java.io.IOException {
 		return asMap(new String(os.toByteArray()).split("\n")[1]);
 	}
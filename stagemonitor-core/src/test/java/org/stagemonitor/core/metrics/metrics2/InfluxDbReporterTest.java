@@ -3,8 +3,12 @@ package org.stagemonitor.core.metrics.metrics2;
 import static java.lang.String.format;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.counter;
@@ -15,6 +19,7 @@ import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.metricName
 import static org.stagemonitor.core.metrics.MetricsReporterTestHelper.timer;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
@@ -27,6 +32,7 @@ import com.codahale.metrics.Timer;
 import org.junit.Before;
 import org.junit.Test;
 import org.stagemonitor.core.CorePlugin;
+import org.stagemonitor.core.spool.Spool;
 import org.stagemonitor.core.util.HttpClient;
 
 public class InfluxDbReporterTest {
@@ -34,11 +40,12 @@ public class InfluxDbReporterTest {
 	private InfluxDbReporter influxDbReporter;
 	private HttpClient httpClient;
 	private long timestamp;
+	private Clock clock;
 
 	@Before
 	public void setUp() throws Exception {
 		httpClient = mock(HttpClient.class);
-		Clock clock = mock(Clock.class);
+		clock = mock(Clock.class);
 		timestamp = System.currentTimeMillis();
 		when(clock.getTime()).thenReturn(timestamp);
 		final CorePlugin corePlugin = mock(CorePlugin.class);
@@ -163,4 +170,42 @@ public class InfluxDbReporterTest {
 		verify(httpClient).send(eq("POST"), eq("http://localhost:8086/write?precision=ms&db=stm"),
 				eq(singletonList(format("response_time,app=test count=1i,m1_rate=3.0,m5_rate=4.0,m15_rate=5.0,mean_rate=2.0,min=4.0,max=2.0,mean=4.0,median=6.0,std=5.0,p25=0.0,p75=7.0,p95=8.0,p98=9.0,p99=10.0,p999=11.0 %d", timestamp))));
 	}
+
+	@Test
+	public void testSpoolWhileInfluxDbIsUnreachable() throws Exception {
+		final File spoolDirectory = File.createTempFile("influxdb-spool", "");
+		spoolDirectory.delete();
+		final Spool spool = new Spool(spoolDirectory, 1024 * 1024);
+		try {
+			final CorePlugin corePlugin = mock(CorePlugin.class);
+			when(corePlugin.getInfluxDbUrl()).thenReturn("http://localhost:8086");
+			when(corePlugin.getInfluxDbDb()).thenReturn("stm");
+			when(corePlugin.createSpool("influxdb")).thenReturn(spool);
+			when(httpClient.send(anyString(), anyString(), anyListOf(String.class))).thenReturn(-1);
+			influxDbReporter = new InfluxDbReporter(new Metric2Registry(), null, TimeUnit.SECONDS, TimeUnit.NANOSECONDS, singletonMap("app", "test"), httpClient, clock, corePlugin);
+
+			reportCounter(1);
+			assertEquals(format("web_sessions,app=test count=1i %d\n", timestamp), new String(spool.peek(), "UTF-8"));
+			// as long as the spool is not empty, the metrics are appended to the spool to preserve the order
+			reportCounter(2);
+			verify(httpClient, times(1)).send(anyString(), anyString(), anyListOf(String.class));
+			spool.remove();
+			assertEquals(format("web_sessions,app=test count=2i %d\n", timestamp), new String(spool.peek(), "UTF-8"));
+		} finally {
+			spool.close();
+			for (File file : spoolDirectory.listFiles()) {
+				file.delete();
+			}
+			spoolDirectory.delete();
+		}
+	}
+
+	private void reportCounter(long count) {
+		influxDbReporter.reportMetrics(
+				metricNameMap(Gauge.class),
+				metricNameMap(name("web_sessions").build(), counter(count)),
+				metricNameMap(Histogram.class),
+				metricNameMap(Meter.class),
+				metricNameMap(Timer.class));
+	}
 }
@@ -0,0 +1,65 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+import org.junit.Test;
+
+public class Metric2RegistryTest {
+
+	private final Metric2Registry registry = new Metric2Registry();
+
+	@Test
+	public void testListenerIsNotifiedOfExistingMetrics() throws Exception {
+		final Counter counter = registry.counter(name("counter").build());
+		final Metric2RegistryListener listener = mock(Metric2RegistryListener.class);
+
+		registry.addListener(listener);
+
+		verify(listener).onMetricAdded(name("counter").build(), counter);
+	}
+
+	@Test
+	public void testListenerIsNotifiedOnAddAndRemove() throws Exception {
+		final Metric2RegistryListener listener = mock(Metric2RegistryListener.class);
+		registry.addListener(listener);
+
+		final Timer timer = registry.timer(name("timer").build());
+		registry.timer(name("timer").build());
+		registry.remove(name("timer").build());
+		registry.remove(name("timer").build());
+
+		verify(listener).onMetricAdded(name("timer").build(), timer);
+		verify(listener).onMetricRemoved(name("timer").build(), timer);
+		verifyNoMoreInteractions(listener);
+	}
+
+	@Test
+	public void testRemoveOnlyIfSameMetric() throws Exception {
+		final Counter counter = registry.counter(name("counter").build());
+
+		assertFalse(registry.remove(name("counter").build(), new Counter()));
+		assertSame(counter, registry.getMetrics().get(name("counter").build()));
+		assertTrue(registry.remove(name("counter").build(), counter));
+		assertNull(registry.getMetrics().get(name("counter").build()));
+	}
+
+	@Test
+	public void testRemovedListenerIsNotNotified() throws Exception {
+		final Metric2RegistryListener listener = mock(Metric2RegistryListener.class);
+		registry.addListener(listener);
+		registry.removeListener(listener);
+
+		registry.counter(name("counter").build());
+
+		verifyNoMoreInteractions(listener);
+	}
+}
@@ -0,0 +1,35 @@
+package org.stagemonitor.core.metrics.metrics2;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class MetricNameFilterTest {
+
+	@Test
+	public void testMatchAll() throws Exception {
+		final MetricNameFilter filter = new MetricNameFilter(Collections.<String>emptyList(), Collections.<String, String>emptyMap());
+		assertTrue(filter.matches(name("foo").tag("bar", "baz").build(), null));
+	}
+
+	@Test
+	public void testMatchName() throws Exception {
+		final MetricNameFilter filter = new MetricNameFilter(Arrays.asList("foo", "bar"), Collections.<String, String>emptyMap());
+		assertTrue(filter.matches(name("foo").build(), null));
+		assertTrue(filter.matches(name("bar").tag("baz", "qux").build(), null));
+		assertFalse(filter.matches(name("baz").build(), null));
+	}
+
+	@Test
+	public void testMatchTags() throws Exception {
+		final MetricNameFilter filter = new MetricNameFilter(Collections.<String>emptyList(), Collections.singletonMap("layer", "All"));
+		assertTrue(filter.matches(name("foo").tag("layer", "All").tag("request_name", "Search").build(), null));
+		assertFalse(filter.matches(name("foo").tag("layer", "jdbc").build(), null));
+		assertFalse(filter.matches(name("foo").build(), null));
+	}
+}
@@ -0,0 +1,212 @@
+package org.stagemonitor.core.spool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpoolTest {
+
+	private File directory;
+	private Spool spool;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("spool-test", "");
+		directory.delete();
+		spool = new Spool(directory, 1024, 256);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		spool.close();
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testReplayInOrderAcrossSegments() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			assertTrue(spool.append(record(i, 50)));
+		}
+		assertTrue(getSegmentFiles().length > 1);
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(record(i, 50), spool.peek());
+			spool.remove();
+		}
+		assertNull(spool.peek());
+		assertTrue(spool.isEmpty());
+		assertEquals(1, getSegmentFiles().length);
+	}
+
+	@Test
+	public void testRecoverAfterRestart() throws Exception {
+		spool.append(record(1, 10));
+		spool.append(record(2, 10));
+		spool.append(record(3, 10));
+		spool.remove();
+		spool.close();
+
+		spool = new Spool(directory, 1024, 256);
+		assertArrayEquals(record(2, 10), spool.peek());
+		spool.remove();
+		spool.append(record(4, 10));
+		assertArrayEquals(record(3, 10), spool.peek());
+		spool.remove();
+		assertArrayEquals(record(4, 10), spool.peek());
+	}
+
+	@Test
+	public void testDiscardOldestSegmentIfFull() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			spool.append(record(i, 50));
+		}
+		assertTrue(getSegmentFiles().length <= 4);
+		final List<Integer> replayed = new ArrayList<Integer>();
+		spool.drain(new Spool.RecordHandler() {
+			@Override
+			public boolean replay(byte[] record) {
+				replayed.add((int) record[0]);
+				return true;
+			}
+		});
+		assertEquals(Integer.valueOf(99), replayed.get(replayed.size() - 1));
+		assertTrue(replayed.size() < 100);
+		for (int i = 1; i < replayed.size(); i++) {
+			assertEquals(replayed.get(i - 1) + 1, (int) replayed.get(i));
+		}
+	}
+
+	@Test
+	public void testDrainStopsIfReplayFails() throws Exception {
+		spool.append(record(1, 10));
+		spool.append(record(2, 10));
+		final List<Integer> replayed = new ArrayList<Integer>();
+		final int replayedRecords = spool.drain(new Spool.RecordHandler() {
+			@Override
+			public boolean replay(byte[] record) {
+				replayed.add((int) record[0]);
+				return false;
+			}
+		});
+		assertEquals(0, replayedRecords);
+		assertEquals(1, replayed.size());
+		assertArrayEquals(record(1, 10), spool.peek());
+	}
+
+	@Test
+	public void testRecoverCorruptRecordLength() throws Exception {
+		spool.append(record(1, 10));
+		spool.append(record(2, 10));
+		spool.append(record(3, 10));
+		spool.close();
+		// the length of the second record
+		writeInt(getSegmentFiles()[0], 4 + 4 + 10, 1000);
+
+		spool = new Spool(directory, 1024, 256);
+		assertArrayEquals(record(1, 10), spool.peek());
+		spool.remove();
+		spool.append(record(4, 10));
+		assertArrayEquals(record(4, 10), spool.peek());
+		spool.remove();
+		assertTrue(spool.isEmpty());
+	}
+
+	@Test
+	public void testRecoverCorruptHeader() throws Exception {
+		spool.append(record(1, 10));
+		spool.close();
+		writeInt(getSegmentFiles()[0], 0, Integer.MAX_VALUE);
+
+		spool = new Spool(directory, 1024, 256);
+		assertTrue(spool.isEmpty());
+		spool.append(record(2, 10));
+		assertArrayEquals(record(2, 10), spool.peek());
+	}
+
+	@Test
+	public void testRecoverNegativeRecordLength() throws Exception {
+		spool.append(record(1, 10));
+		spool.close();
+		writeInt(getSegmentFiles()[0], 4, -5);
+
+		spool = new Spool(directory, 1024, 256);
+		assertTrue(spool.isEmpty());
+	}
+
+	@Test
+	public void testDirectoryIsLocked() throws Exception {
+		try {
+			new Spool(directory, 1024, 256);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("already in use"));
+		}
+		spool.close();
+
+		spool = new Spool(directory, 1024, 256);
+		assertTrue(spool.append(record(1, 10)));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		spool.append(record(1, 10));
+		spool.close();
+
+		assertTrue(spool.isEmpty());
+		assertFalse(spool.append(record(2, 10)));
+		spool.close();
+	}
+
+	@Test
+	public void testRecordLargerThanSegment() throws Exception {
+		assertFalse(spool.append(record(1, 256)));
+		assertTrue(spool.isEmpty());
+	}
+
+	private static void writeInt(File file, long position, int value) throws Exception {
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.seek(position);
+			randomAccessFile.writeInt(value);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private File[] getSegmentFiles() {
+		return directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(Spool.SEGMENT_FILE_SUFFIX);
+			}
+		});
+	}
+
+	private static byte[] record(int id, int length) {
+		final byte[] record = new byte[length];
+		record[0] = (byte) id;
+		for (int i = 1; i < length; i++) {
+			record[i] = (byte) i;
+		}
+		return record;
+	}
+}
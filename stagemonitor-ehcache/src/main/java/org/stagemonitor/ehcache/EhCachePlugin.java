@@ -48,7 +48,10 @@ public class EhCachePlugin extends StagemonitorPlugin {
 			cache.registerCacheUsageListener(cacheUsageListener);
 			metricRegistry.registerAll(new EhCacheMetricSet(cache.getName(), cache, cacheUsageListener));
 		}
+	}
 
+	@Override
+	public void initializeRemoteResources(Configuration configuration) {
 		final CorePlugin corePlugin = configuration.getConfig(CorePlugin.class);
 		ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
 		final GrafanaClient grafanaClient = corePlugin.getGrafanaClient();
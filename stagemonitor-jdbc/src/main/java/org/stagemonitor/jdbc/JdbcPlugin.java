@@ -11,7 +11,6 @@ import org.stagemonitor.core.configuration.ConfigurationOption;
 import org.stagemonitor.core.configuration.converter.SetValueConverter;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.grafana.GrafanaClient;
-import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 
 public class JdbcPlugin extends StagemonitorPlugin {
 	public static final String JDBC_PLUGIN = "JDBC Plugin";
@@ -58,7 +57,7 @@ public class JdbcPlugin extends StagemonitorPlugin {
 			.build();
 
 	@Override
-	public void initializePlugin(Metric2Registry metricRegistry, Configuration config) {
+	public void initializeRemoteResources(Configuration config) {
 		final CorePlugin corePlugin = config.getConfig(CorePlugin.class);
 		ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
 		final GrafanaClient grafanaClient = corePlugin.getGrafanaClient();
@@ -57,6 +57,8 @@ public class ConnectionMonitoringInstrumenterTest {
 		when(requestMonitorPlugin.isCollectRequestStats()).thenReturn(true);
 		when(requestMonitorPlugin.getCallStackEveryXRequestsToGroup()).thenReturn(1);
 		when(requestMonitorPlugin.isProfilerActive()).thenReturn(true);
+		when(requestMonitorPlugin.getMaxCallTreeNodes()).thenReturn(Integer.MAX_VALUE);
+		when(requestMonitorPlugin.getMaxCallTreeDepth()).thenReturn(Integer.MAX_VALUE);
 
 		Stagemonitor.getMetric2Registry().removeMatching(MetricFilter.ALL);
 
@@ -61,7 +61,10 @@ public class JvmPlugin extends StagemonitorPlugin {
 		} catch (Exception e) {
 			logger.warn("Could not register cpu usage. ({})", e.getMessage());
 		}
+	}
 
+	@Override
+	public void initializeRemoteResources(Configuration configuration) {
 		final CorePlugin config = configuration.getConfig(CorePlugin.class);
 		ElasticsearchClient elasticsearchClient = config.getElasticsearchClient();
 		final GrafanaClient grafanaClient = config.getGrafanaClient();
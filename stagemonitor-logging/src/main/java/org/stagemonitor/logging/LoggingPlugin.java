@@ -8,13 +8,12 @@ import org.stagemonitor.core.StagemonitorPlugin;
 import org.stagemonitor.core.configuration.Configuration;
 import org.stagemonitor.core.elasticsearch.ElasticsearchClient;
 import org.stagemonitor.core.grafana.GrafanaClient;
-import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.util.IOUtils;
 
 public class LoggingPlugin extends StagemonitorPlugin {
 
 	@Override
-	public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) {
+	public void initializeRemoteResources(Configuration configuration) {
 		final CorePlugin corePlugin = configuration.getConfig(CorePlugin.class);
 		final ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
 		final GrafanaClient grafanaClient = corePlugin.getGrafanaClient();
@@ -38,7 +38,7 @@ public class OsPlugin extends StagemonitorPlugin implements StagemonitorConfigur
 	private Sigar sigar;
 
 	@Override
-	public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) throws Exception {
+	public void initializeRemoteResources(Configuration configuration) {
 		final CorePlugin corePlugin = configuration.getConfig(CorePlugin.class);
 
 		ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
@@ -54,7 +54,10 @@ public class OsPlugin extends StagemonitorPlugin implements StagemonitorConfigur
 			grafanaClient.sendGrafanaDashboardAsync("grafana/ElasticsearchHostDashboard.json");
 			elasticsearchClient.sendBulkAsync("kibana/HostDashboard.bulk");
 		}
+	}
 
+	@Override
+	public void initializePlugin(Metric2Registry metricRegistry, Configuration configuration) throws Exception {
 		if (sigar == null) {
 			if (!SigarNativeBindingLoader.loadNativeSigarBindings()) {
 				// redeploys are a problem, because the native libs can only be loaded by one class loader
@@ -0,0 +1,80 @@
+package org.stagemonitor.requestmonitor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.stagemonitor.requestmonitor.profiler.AggregatedCallTree;
+
+/**
+ * An implementation of {@link RequestTraceReporter} that merges the call trees of all requests with the same name into
+ * an {@link AggregatedCallTree}.
+ * <p/>
+ * The call trees are merged in the thread that reports the request traces, so that merging does not slow down the
+ * requests.
+ * <p/>
+ * Both the number of nodes per call tree and the number of request names are limited, so that the memory usage is
+ * bounded, even if the request names are not grouped (for example one name per URL). When the maximum number of
+ * request names is reached, the call trees of requests with new names are discarded.
+ */
+public class AggregatedCallTreeReporter implements RequestTraceReporter {
+
+	private final ConcurrentMap<String, AggregatedCallTree> callTreesByRequestName = new ConcurrentHashMap<String, AggregatedCallTree>();
+	private final int maxNodesPerRequestName;
+	private final int maxRequestNames;
+
+	/**
+	 * @param maxNodesPerRequestName the maximum number of nodes of the aggregated call tree of a request name
+	 * @param maxRequestNames        the maximum number of request names (and call trees)
+	 */
+	public AggregatedCallTreeReporter(int maxNodesPerRequestName, int maxRequestNames) {
+		this.maxNodesPerRequestName = maxNodesPerRequestName;
+		this.maxRequestNames = maxRequestNames;
+	}
+
+	@Override
+	public <T extends RequestTrace> void reportRequestTrace(T requestTrace) {
+		if (requestTrace.getCallStack() == null) {
+			return;
+		}
+		final String name = requestTrace.getName();
+		AggregatedCallTree callTree = callTreesByRequestName.get(name);
+		if (callTree == null) {
+			if (callTreesByRequestName.size() >= maxRequestNames) {
+				return;
+			}
+			callTreesByRequestName.putIfAbsent(name, new AggregatedCallTree(name, maxNodesPerRequestName));
+			callTree = callTreesByRequestName.get(name);
+		}
+		callTree.merge(requestTrace.getCallStack());
+	}
+
+	@Override
+	public <T extends RequestTrace> boolean isActive(T requestTrace) {
+		return true;
+	}
+
+	/**
+	 * @param name the name of the requests
+	 * @return the aggregated call tree of the requests or <code>null</code>, if no call tree of a request with this
+	 * name has been reported
+	 */
+	public AggregatedCallTree getCallTree(String name) {
+		return callTreesByRequestName.get(name);
+	}
+
+	/**
+	 * @return the aggregated call trees by request name, ordered by request name
+	 */
+	public Map<String, AggregatedCallTree> getCallTrees() {
+		return new TreeMap<String, AggregatedCallTree>(callTreesByRequestName);
+	}
+
+	/**
+	 * Removes all aggregated call trees
+	 */
+	public void reset() {
+		callTreesByRequestName.clear();
+	}
+}
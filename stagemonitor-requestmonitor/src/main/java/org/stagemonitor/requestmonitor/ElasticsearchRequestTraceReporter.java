@@ -35,7 +35,7 @@ public class ElasticsearchRequestTraceReporter implements RequestTraceReporter {
 		final String requestTraceName = requestTrace.getName();
 		if (isReportRequestTraceName(requestTraceName) && !isReportingRateExceeded()) {
 			reportingRate.mark();
-			elasticsearchClient.index("stagemonitor-requests-" + StringUtils.getLogstashStyleDate(), "requests", requestTrace);
+			elasticsearchClient.index(elasticsearchClient.getCurrentIndex("stagemonitor-requests-"), "requests", requestTrace);
 		}
 	}
 
@@ -0,0 +1,146 @@
+package org.stagemonitor.requestmonitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.requestmonitor.profiler.CallStackElement;
+import org.stagemonitor.requestmonitor.profiler.CompactCallStackSerializer;
+
+/**
+ * An implementation of {@link RequestTraceReporter} that keeps the most recent request traces in a
+ * {@link RequestTraceRingBuffer}, so that they can be analyzed without Elasticsearch.
+ * <p/>
+ * The request traces are stored off-heap, so that no {@link RequestTrace} object graphs are retained on the heap. The
+ * attributes of a request trace are stored as deflated JSON and the call stack is stored in the format of the
+ * {@link CompactCallStackSerializer}. The JSON representation of the call stack is only generated when a request trace
+ * is queried.
+ */
+public class RecentRequestTraceReporter implements RequestTraceReporter {
+
+	/**
+	 * Serializes request traces without rendering the call stack, because it is serialized separately
+	 */
+	private static final ObjectWriter REQUEST_TRACE_WRITER = JsonUtils.getMapper().copy()
+			.addMixIn(RequestTrace.class, ExcludeCallStack.class)
+			.writer();
+
+	private final RequestTraceRingBuffer ringBuffer;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final byte[] deflateBuffer = new byte[8192];
+
+	/**
+	 * @param capacityBytes the size of the off-heap buffer in bytes
+	 */
+	public RecentRequestTraceReporter(int capacityBytes) {
+		this.ringBuffer = new RequestTraceRingBuffer(capacityBytes);
+	}
+
+	@Override
+	public <T extends RequestTrace> void reportRequestTrace(T requestTrace) throws IOException {
+		final byte[] json = deflate(REQUEST_TRACE_WRITER.writeValueAsBytes(requestTrace));
+		final byte[] callStack = requestTrace.getCallStack() != null
+				? CompactCallStackSerializer.serialize(requestTrace.getCallStack()) : new byte[0];
+		final byte[] payload = ByteBuffer.allocate(4 + json.length + callStack.length)
+				.putInt(json.length)
+				.put(json)
+				.put(callStack)
+				.array();
+		ringBuffer.add(requestTrace.getTimestampEnd(), requestTrace.getExecutionTime(), requestTrace.isError(),
+				requestTrace.getName(), payload);
+	}
+
+	@Override
+	public <T extends RequestTrace> boolean isActive(T requestTrace) {
+		return true;
+	}
+
+	/**
+	 * Returns the slowest recent request traces
+	 *
+	 * @param name  the name of the requests or <code>null</code> for all requests
+	 * @param limit the maximum number of request traces to return
+	 * @return the request traces as JSON, ordered by execution time descending
+	 */
+	public List<String> getSlowest(String name, int limit) throws IOException {
+		return toJson(ringBuffer.getSlowest(name, limit));
+	}
+
+	/**
+	 * Returns the recent request traces of erroneous requests
+	 *
+	 * @param since the minimum timestamp of the request traces in milliseconds
+	 * @return the request traces as JSON, newest first
+	 */
+	public List<String> getErrors(long since) throws IOException {
+		return toJson(ringBuffer.getErrors(since));
+	}
+
+	public RequestTraceRingBuffer getRingBuffer() {
+		return ringBuffer;
+	}
+
+	private synchronized byte[] deflate(byte[] bytes) {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(bytes.length / 4);
+		while (!deflater.finished()) {
+			os.write(deflateBuffer, 0, deflater.deflate(deflateBuffer));
+		}
+		return os.toByteArray();
+	}
+
+	private static List<String> toJson(List<RequestTraceRingBuffer.Record> records) throws IOException {
+		final List<String> json = new ArrayList<String>(records.size());
+		for (RequestTraceRingBuffer.Record record : records) {
+			json.add(toJson(record.getPayload()));
+		}
+		return json;
+	}
+
+	private static String toJson(byte[] payload) throws IOException {
+		final int jsonLength = ByteBuffer.wrap(payload).getInt();
+		final ObjectNode requestTrace = (ObjectNode) JsonUtils.getMapper().readTree(inflate(payload, 4, jsonLength));
+		final int callStackOffset = 4 + jsonLength;
+		if (callStackOffset < payload.length) {
+			final CallStackElement callStack = CompactCallStackSerializer.deserialize(payload, callStackOffset);
+			requestTrace.put("callStackJson", JsonUtils.toJson(callStack));
+		}
+		return requestTrace.toString();
+	}
+
+	private static byte[] inflate(byte[] bytes, int offset, int length) throws IOException {
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes, offset, length);
+			final ByteArrayOutputStream os = new ByteArrayOutputStream(length * 4);
+			final byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				final int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && inflater.needsInput()) {
+					throw new IOException("Unexpected end of deflated request trace");
+				}
+				os.write(buffer, 0, inflated);
+			}
+			return os.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@JsonIgnoreProperties({"callStack", "callStackJson"})
+	private static abstract class ExcludeCallStack {
+	}
+}
@@ -26,8 +26,10 @@ import org.stagemonitor.core.configuration.Configuration;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
 import org.stagemonitor.core.util.ExecutorUtils;
+import org.stagemonitor.requestmonitor.profiler.AllocatedBytes;
 import org.stagemonitor.requestmonitor.profiler.CallStackElement;
 import org.stagemonitor.requestmonitor.profiler.Profiler;
+import org.stagemonitor.requestmonitor.profiler.SamplingProfiler;
 
 public class RequestMonitor {
 
@@ -64,6 +66,8 @@ public class RequestMonitor {
 
 	private Date endOfWarmup;
 
+	private final SamplingProfiler samplingProfiler;
+
 	public RequestMonitor() {
 		this(Stagemonitor.getConfiguration());
 	}
@@ -84,6 +88,11 @@ public class RequestMonitor {
 		endOfWarmup = new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(requestMonitorPlugin.getWarmupSeconds()));
 		asyncRequestTraceReporterPool = ExecutorUtils
 				.createSingleThreadDeamonPool("async-request-reporter", corePlugin.getThreadPoolQueueCapacityLimit());
+		if (requestMonitorPlugin.isSamplingProfilerActive()) {
+			samplingProfiler = new SamplingProfiler(requestMonitorPlugin.getSamplingIntervalMs());
+		} else {
+			samplingProfiler = null;
+		}
 	}
 
 	public <T extends RequestTrace> void monitorStart(MonitoredRequest<T> monitoredRequest) {
@@ -152,6 +161,9 @@ public class RequestMonitor {
 	private <T extends RequestTrace> void cleanUpAfter(RequestInformation<T> info) {
 		if (info.requestTrace != null) {
 			Profiler.clearMethodCallParent();
+			if (info.sampled && info.requestTrace.getCallStack() != null) {
+				samplingProfiler.stopSampling(info.requestTrace.getCallStack());
+			}
 		}
 	}
 
@@ -208,7 +220,16 @@ public class RequestMonitor {
 		info.requestTrace = monitoredRequest.createRequestTrace();
 		try {
 			if (info.profileThisRequest()) {
-				final CallStackElement root = Profiler.activateProfiling("total");
+				final CallStackElement root;
+				if (samplingProfiler != null) {
+					root = samplingProfiler.startSampling("total", requestMonitorPlugin.getMaxCallTreeNodes(),
+							requestMonitorPlugin.getMaxCallTreeDepth());
+					info.sampled = true;
+				} else {
+					root = Profiler.activateProfiling("total", requestMonitorPlugin.getMaxCallTreeNodes(),
+							requestMonitorPlugin.getMaxCallTreeDepth(), requestMonitorPlugin.isAggregateRepeatedCalls(),
+							requestMonitorPlugin.isAllocatedBytesPerCall());
+				}
 				info.requestTrace.setCallStack(root);
 			}
 		} catch (RuntimeException e) {
@@ -235,12 +256,22 @@ public class RequestMonitor {
 		final T requestTrace = info.requestTrace;
 		final long executionTime = System.nanoTime() - info.start;
 		final long cpuTime = getCpuTime() - info.startCpu;
+		final long allocatedBytes = AllocatedBytes.getCurrentThreadAllocatedBytes() - info.startAllocatedBytes;
 		requestTrace.setExecutionTime(NANOSECONDS.toMillis(executionTime));
 		requestTrace.setExecutionTimeCpu(NANOSECONDS.toMillis(cpuTime));
+		requestTrace.setAllocatedBytes(allocatedBytes);
 		monitoredRequest.onPostExecute(info);
 
-		if (requestTrace.getCallStack() != null) {
+		if (info.sampled) {
+			samplingProfiler.stopSampling(requestTrace.getCallStack());
+			if (requestTrace.getCallStack().getExecutionTime() == 0) {
+				// the request was faster than the sampling interval
+				requestTrace.setCallStack(null);
+			}
+		} else if (requestTrace.getCallStack() != null) {
 			Profiler.stop();
+		}
+		if (requestTrace.getCallStack() != null) {
 			requestTrace.getCallStack().setSignature(requestTrace.getName());
 			final CallStackElement callTree = requestTrace.getCallStack();
 			final double minExecutionTimeMultiplier = requestMonitorPlugin.getMinExecutionTimePercent() / 100;
@@ -273,6 +304,11 @@ public class RequestMonitor {
 			metricRegistry.timer(name("response_time_cpu").tag("request_name", "All").layer("All").build()).update(cpuTime, NANOSECONDS);
 		}
 
+		if (requestMonitorPlugin.isCollectAllocatedBytes() && AllocatedBytes.isSupported()) {
+			metricRegistry.histogram(name("allocated_bytes").tag("request_name", requestName).layer("All").build()).update(requestTrace.getAllocatedBytes());
+			metricRegistry.histogram(name("allocated_bytes").tag("request_name", "All").layer("All").build()).update(requestTrace.getAllocatedBytes());
+		}
+
 		if (requestTrace.isError()) {
 			metricRegistry.meter(name("error_rate_server").tag("request_name", requestName).layer("All").build()).mark();
 			metricRegistry.meter(name("error_rate_server").tag("request_name", "All").layer("All").build()).mark();
@@ -333,11 +369,13 @@ public class RequestMonitor {
 		T requestTrace = null;
 		private long start = System.nanoTime();
 		private long startCpu = getCpuTime();
+		private long startAllocatedBytes = AllocatedBytes.getCurrentThreadAllocatedBytes();
 		private Object executionResult = null;
 		private Future<?> startup;
 		private long overhead1;
 		private MonitoredRequest<T> monitoredRequest;
 		private boolean firstRequest;
+		private boolean sampled;
 		private RequestInformation<T> parent;
 		private RequestInformation<T> child;
 
@@ -476,6 +514,9 @@ public class RequestMonitor {
 	 */
 	public void close() {
 		asyncRequestTraceReporterPool.shutdown();
+		if (samplingProfiler != null) {
+			samplingProfiler.close();
+		}
 		request.remove();
 	}
 
@@ -4,6 +4,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.StagemonitorPlugin;
 import org.stagemonitor.core.configuration.Configuration;
@@ -14,6 +16,8 @@ import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 
 public class RequestMonitorPlugin extends StagemonitorPlugin {
 
+	private static final Logger logger = LoggerFactory.getLogger(RequestMonitorPlugin.class);
+
 	public static final String REQUEST_MONITOR_PLUGIN = "Request Monitor Plugin";
 	private final ConfigurationOption<Integer> noOfWarmupRequests = ConfigurationOption.integerOption()
 			.key("stagemonitor.requestmonitor.noOfWarmupRequests")
@@ -47,6 +51,17 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 			.defaultValue(false)
 			.configurationCategory(REQUEST_MONITOR_PLUGIN)
 			.build();
+	private final ConfigurationOption<Boolean> collectAllocatedBytes = ConfigurationOption.booleanOption()
+			.key("stagemonitor.requestmonitor.allocatedBytes")
+			.dynamic(true)
+			.label("Collect allocated bytes")
+			.description("Whether or not a histogram for the number of bytes that are allocated on the heap by the " +
+					"executions should be created. The allocation rate is what drives the garbage collection, so this " +
+					"shows which requests cause it. The allocated bytes are always recorded in the request trace if the " +
+					"JVM supports measuring them (com.sun.management.ThreadMXBean).")
+			.defaultValue(false)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
 	private final ConfigurationOption<Boolean> profilerActive = ConfigurationOption.booleanOption()
 			.key("stagemonitor.profiler.active")
 			.dynamic(false)
@@ -71,6 +86,59 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 			.defaultValue(0.5)
 			.configurationCategory(REQUEST_MONITOR_PLUGIN)
 			.build();
+	private final ConfigurationOption<Integer> maxCallTreeNodes = ConfigurationOption.integerOption()
+			.key("stagemonitor.profiler.maxCallTreeNodes")
+			.dynamic(true)
+			.label("Max call tree nodes")
+			.description("The maximum number of method calls a call tree can contain. Further method calls are not " +
+					"added to the call tree, their execution time is part of the self time of the calling method. " +
+					"This limits the memory that is needed to profile requests that call lots of methods, like batch jobs.")
+			.defaultValue(10000)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+	private final ConfigurationOption<Integer> maxCallTreeDepth = ConfigurationOption.integerOption()
+			.key("stagemonitor.profiler.maxCallTreeDepth")
+			.dynamic(true)
+			.label("Max call tree depth")
+			.description("Method calls that are nested deeper than this value are not added to the call tree, their " +
+					"execution time is part of the self time of the calling method.")
+			.defaultValue(100)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+	private final ConfigurationOption<Boolean> aggregateRepeatedCalls = ConfigurationOption.booleanOption()
+			.key("stagemonitor.profiler.aggregateRepeatedCalls")
+			.dynamic(true)
+			.label("Aggregate repeated calls")
+			.description("When set to true, consecutive calls of the same method (for example in a loop) are " +
+					"aggregated into one node of the call tree that shows the number of calls and their total execution time.")
+			.defaultValue(true)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+	private final ConfigurationOption<Boolean> allocatedBytesPerCall = ConfigurationOption.booleanOption()
+			.key("stagemonitor.profiler.allocatedBytesPerCall")
+			.dynamic(true)
+			.label("Measure allocated bytes per call")
+			.description("When set to true, the number of bytes that are allocated on the heap by each method call of " +
+					"the call tree is measured. This adds some overhead to each profiled method call. " +
+					"Not supported by the sampling profiler.")
+			.defaultValue(false)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+	private final ConfigurationOption<Integer> samplingIntervalMs = ConfigurationOption.integerOption()
+			.key("stagemonitor.profiler.sampling.intervalMs")
+			.dynamic(false)
+			.label("Sampling profiler interval (ms)")
+			.description("When set, the call trees are created by periodically sampling the stack traces of the threads " +
+					"that execute a monitored request instead of instrumenting the methods of the classes defined in " +
+					"stagemonitor.instrument.include. This has a low overhead that only depends on the interval and " +
+					"the number of concurrent requests, which makes it suitable for always-on profiling in production. " +
+					"The call trees are statistical, methods that are faster than the interval may be missing. " +
+					"SQL statements and other IO calls are not part of the sampled call trees, but they are still " +
+					"counted in the request traces and metrics. " +
+					"Set to a value below 1 to use instrumentation.")
+			.defaultValue(0)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
 	private final ConfigurationOption<Integer> callStackEveryXRequestsToGroup = ConfigurationOption.integerOption()
 			.key("stagemonitor.profiler.callStackEveryXRequestsToGroup")
 			.dynamic(true)
@@ -96,6 +164,18 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 			.defaultValue(7)
 			.configurationCategory(REQUEST_MONITOR_PLUGIN)
 			.build();
+	private final ConfigurationOption<Integer> maxRequestTraceIndexSizeMB = ConfigurationOption.integerOption()
+			.key("stagemonitor.requestmonitor.elasticsearch.maxIndexSizeMB")
+			.dynamic(false)
+			.label("Max size of a request trace index (MB)")
+			.description("When set, the daily request trace index is rolled over to a new index as soon as its primary " +
+					"shards exceed the specified size. For example, stagemonitor-requests-2016.01.01 is followed by " +
+					"stagemonitor-requests-2016.01.01-1. The bundled Kibana dashboards use the index pattern " +
+					"stagemonitor-requests-*, which also matches the rolled over indices. " +
+					"Set to a value below 1 to deactivate.")
+			.defaultValue(-1)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
 	private final ConfigurationOption<Boolean> collectDbTimePerRequest = ConfigurationOption.booleanOption()
 			.key("stagemonitor.jdbc.collectDbTimePerRequest")
 			.dynamic(true)
@@ -145,16 +225,81 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 			.configurationCategory(REQUEST_MONITOR_PLUGIN)
 			.build();
 
+	private final ConfigurationOption<Integer> recentRequestTracesBufferSizeMB = ConfigurationOption.integerOption()
+			.key("stagemonitor.requestmonitor.recentRequestTraces.bufferSizeMB")
+			.dynamic(false)
+			.label("Size of the buffer for recent request traces (MB)")
+			.description("When set, the most recent request traces are kept in an off-heap ring buffer of the specified " +
+					"size. The slowest request traces per request name and the recent errors can then be queried via " +
+					"/stagemonitor/recent-request-traces without Elasticsearch. Note that call stacks are collected for " +
+					"all requests as long as the buffer is active (see stagemonitor.profiler.callStackEveryXRequestsToGroup). " +
+					"The maximum size is 2047 MB. Set to a value below 1 to deactivate.")
+			.defaultValue(0)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+	private final ConfigurationOption<Integer> aggregatedCallTreeMaxNodes = ConfigurationOption.integerOption()
+			.key("stagemonitor.profiler.aggregatedCallTrees.maxNodes")
+			.dynamic(false)
+			.label("Max nodes of aggregated call trees")
+			.description("When set, the call trees of all requests with the same name are merged into one call tree " +
+					"with at most the specified number of nodes. The aggregated call trees can be downloaded in the " +
+					"collapsed stack format for flame graphs via /stagemonitor/aggregated-call-trees. Note that call " +
+					"stacks are collected for all requests as long as the call trees are aggregated " +
+					"(see stagemonitor.profiler.callStackEveryXRequestsToGroup). Set to a value below 1 to deactivate.")
+			.defaultValue(0)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+	private final ConfigurationOption<Integer> aggregatedCallTreeMaxRequestNames = ConfigurationOption.integerOption()
+			.key("stagemonitor.profiler.aggregatedCallTrees.maxRequestNames")
+			.dynamic(false)
+			.label("Max request names of aggregated call trees")
+			.description("The maximum number of request names for which call trees are aggregated. Together with " +
+					"stagemonitor.profiler.aggregatedCallTrees.maxNodes, this limits the memory that the aggregated " +
+					"call trees use. When the limit is reached, the call trees of requests with new names are not " +
+					"aggregated.")
+			.defaultValue(200)
+			.configurationCategory(REQUEST_MONITOR_PLUGIN)
+			.build();
+
 	private static RequestMonitor requestMonitor;
+	private volatile Snapshot snapshot;
+	private RecentRequestTraceReporter recentRequestTraceReporter;
+	private AggregatedCallTreeReporter aggregatedCallTreeReporter;
 
 	@Override
 	public void initializePlugin(Metric2Registry metricRegistry, Configuration config) {
 		final CorePlugin corePlugin = config.getConfig(CorePlugin.class);
+		final long recentRequestTracesBufferSize = recentRequestTracesBufferSizeMB.getValue() * 1024L * 1024L;
+		if (recentRequestTracesBufferSize > Integer.MAX_VALUE) {
+			logger.warn("{} must be smaller than 2048, recent request traces are not buffered",
+					recentRequestTracesBufferSizeMB.getKey());
+		} else if (recentRequestTracesBufferSize > 0) {
+			recentRequestTraceReporter = new RecentRequestTraceReporter((int) recentRequestTracesBufferSize);
+			RequestMonitor.addRequestTraceReporter(recentRequestTraceReporter);
+		}
+		if (aggregatedCallTreeMaxNodes.getValue() > 0) {
+			aggregatedCallTreeReporter = new AggregatedCallTreeReporter(aggregatedCallTreeMaxNodes.getValue(),
+					aggregatedCallTreeMaxRequestNames.getValue());
+			RequestMonitor.addRequestTraceReporter(aggregatedCallTreeReporter);
+		}
 		final ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
-		final GrafanaClient grafanaClient = corePlugin.getGrafanaClient();
+		// not sent in initializeRemoteResources, because the template has to be queued before the first request trace
+		// is indexed (the async pool of the elasticsearch client is single threaded)
 		final String mappingJson = ElasticsearchClient.requireBoxTypeHotIfHotColdAritectureActive(
 				"stagemonitor-elasticsearch-request-index-template.json", corePlugin.getMoveToColdNodesAfterDays());
 		elasticsearchClient.sendMappingTemplateAsync(mappingJson, "stagemonitor-requests");
+		if (corePlugin.isReportToElasticsearch()) {
+			elasticsearchClient.scheduleIndexManagement("stagemonitor-requests-",
+					corePlugin.getMoveToColdNodesAfterDays(), deleteRequestTracesAfterDays.getValue());
+			elasticsearchClient.rollOverBySize("stagemonitor-requests-", maxRequestTraceIndexSizeMB.getValue() * 1024L * 1024L);
+		}
+	}
+
+	@Override
+	public void initializeRemoteResources(Configuration config) {
+		final CorePlugin corePlugin = config.getConfig(CorePlugin.class);
+		final ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
+		final GrafanaClient grafanaClient = corePlugin.getGrafanaClient();
 		elasticsearchClient.sendKibanaDashboardAsync("kibana/Kibana3RecentRequests.json");
 		if (corePlugin.isReportToGraphite()) {
 			elasticsearchClient.sendGrafana1DashboardAsync("grafana/Grafana1GraphiteRequestDashboard.json");
@@ -163,8 +308,6 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 			elasticsearchClient.sendBulkAsync("kibana/RequestDashboard.bulk");
 			elasticsearchClient.sendBulkAsync("kibana/RequestAnalysis.bulk");
 			grafanaClient.sendGrafanaDashboardAsync("grafana/ElasticsearchRequestDashboard.json");
-			elasticsearchClient.scheduleIndexManagement("stagemonitor-requests-",
-					corePlugin.getMoveToColdNodesAfterDays(), deleteRequestTracesAfterDays.getValue());
 		}
 	}
 
@@ -180,6 +323,26 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 		return requestMonitor;
 	}
 
+	/**
+	 * Returns the {@link RecentRequestTraceReporter} that buffers the most recent request traces
+	 *
+	 * @return the {@link RecentRequestTraceReporter} or <code>null</code>, if
+	 * <code>stagemonitor.requestmonitor.recentRequestTraces.bufferSizeMB</code> is not set
+	 */
+	public RecentRequestTraceReporter getRecentRequestTraceReporter() {
+		return recentRequestTraceReporter;
+	}
+
+	/**
+	 * Returns the {@link AggregatedCallTreeReporter} that merges the call trees of requests with the same name
+	 *
+	 * @return the {@link AggregatedCallTreeReporter} or <code>null</code>, if
+	 * <code>stagemonitor.profiler.aggregatedCallTrees.maxNodes</code> is not set
+	 */
+	public AggregatedCallTreeReporter getAggregatedCallTreeReporter() {
+		return aggregatedCallTreeReporter;
+	}
+
 	public int getNoOfWarmupRequests() {
 		return noOfWarmupRequests.getValue();
 	}
@@ -189,19 +352,47 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 	}
 
 	public boolean isCollectRequestStats() {
-		return collectRequestStats.getValue();
+		return getSnapshot().collectRequestStats;
 	}
 
 	public boolean isCollectCpuTime() {
-		return collectCpuTime.getValue();
+		return getSnapshot().collectCpuTime;
+	}
+
+	public boolean isCollectAllocatedBytes() {
+		return getSnapshot().collectAllocatedBytes;
 	}
 
 	public long getMinExecutionTimeNanos() {
 		return minExecutionTimeNanos.getValue();
 	}
 
+	public int getSamplingIntervalMs() {
+		return samplingIntervalMs.getValue();
+	}
+
+	public boolean isSamplingProfilerActive() {
+		return getSamplingIntervalMs() > 0;
+	}
+
+	public int getMaxCallTreeNodes() {
+		return getSnapshot().maxCallTreeNodes;
+	}
+
+	public int getMaxCallTreeDepth() {
+		return getSnapshot().maxCallTreeDepth;
+	}
+
+	public boolean isAggregateRepeatedCalls() {
+		return getSnapshot().aggregateRepeatedCalls;
+	}
+
+	public boolean isAllocatedBytesPerCall() {
+		return getSnapshot().allocatedBytesPerCall;
+	}
+
 	public int getCallStackEveryXRequestsToGroup() {
-		return callStackEveryXRequestsToGroup.getValue();
+		return getSnapshot().callStackEveryXRequestsToGroup;
 	}
 
 	public boolean isLogCallStacks() {
@@ -209,24 +400,38 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 	}
 
 	public boolean isCollectDbTimePerRequest() {
-		return collectDbTimePerRequest.getValue();
+		return getSnapshot().collectDbTimePerRequest;
 	}
 
 	public boolean isProfilerActive() {
-		return profilerActive.getValue();
+		return getSnapshot().profilerActive;
 	}
 
 	public BusinessTransactionNamingStrategy getBusinessTransactionNamingStrategy() {
 		return businessTransactionNamingStrategy.getValue();
 	}
 
+	@Override
+	protected void onConfigurationReloaded() {
+		snapshot = new Snapshot(this);
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			snapshot = new Snapshot(this);
+			this.snapshot = snapshot;
+		}
+		return snapshot;
+	}
+
 	@Override
 	public void onShutDown() {
 		getRequestMonitor().close();
 	}
 
 	public double getMinExecutionTimePercent() {
-		return minExecutionTimePercent.getValue();
+		return getSnapshot().minExecutionTimePercent;
 	}
 
 	public boolean isAnonymizeIPs() {
@@ -240,4 +445,36 @@ public class RequestMonitorPlugin extends StagemonitorPlugin {
 	public int getOnlyReportNRequestsPerMinuteToElasticsearch() {
 		return onlyReportNRequestsPerMinuteToElasticsearch.getValue();
 	}
+
+	/**
+	 * The values the {@link RequestMonitor} reads for each request. A new snapshot is created when the configuration
+	 * is reloaded, so that a request never sees a mix of old and new values.
+	 */
+	private static class Snapshot {
+		private final boolean collectRequestStats;
+		private final boolean collectCpuTime;
+		private final boolean collectAllocatedBytes;
+		private final boolean profilerActive;
+		private final double minExecutionTimePercent;
+		private final int maxCallTreeNodes;
+		private final int maxCallTreeDepth;
+		private final boolean aggregateRepeatedCalls;
+		private final boolean allocatedBytesPerCall;
+		private final int callStackEveryXRequestsToGroup;
+		private final boolean collectDbTimePerRequest;
+
+		private Snapshot(RequestMonitorPlugin plugin) {
+			collectRequestStats = plugin.collectRequestStats.getValue();
+			collectCpuTime = plugin.collectCpuTime.getValue();
+			collectAllocatedBytes = plugin.collectAllocatedBytes.getValue();
+			profilerActive = plugin.profilerActive.getValue();
+			minExecutionTimePercent = plugin.minExecutionTimePercent.getValue();
+			maxCallTreeNodes = plugin.maxCallTreeNodes.getValue();
+			maxCallTreeDepth = plugin.maxCallTreeDepth.getValue();
+			aggregateRepeatedCalls = plugin.aggregateRepeatedCalls.getValue();
+			allocatedBytesPerCall = plugin.allocatedBytesPerCall.getValue();
+			callStackEveryXRequestsToGroup = plugin.callStackEveryXRequestsToGroup.getValue();
+			collectDbTimePerRequest = plugin.collectDbTimePerRequest.getValue();
+		}
+	}
 }
@@ -37,6 +37,7 @@ public class RequestTrace {
 	private long executionTimeDb;
 	private int executionCountDb;
 	private long executionTimeCpu;
+	private long allocatedBytes;
 	private boolean error = false;
 	@JsonProperty("@timestamp")
 	private final String timestamp;
@@ -143,6 +144,18 @@ public class RequestTrace {
 		this.executionTimeCpu = executionTimeCpu;
 	}
 
+	/**
+	 * @return the number of bytes that have been allocated on the heap by the thread that executed the request or 0,
+	 * if the JVM does not support measuring them
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public void setAllocatedBytes(long allocatedBytes) {
+		this.allocatedBytes = allocatedBytes;
+	}
+
 	public String getTimestamp() {
 		return timestamp;
 	}
@@ -0,0 +1,265 @@
+package org.stagemonitor.requestmonitor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A bounded ring buffer for serialized request traces that is stored off-heap in a direct {@link ByteBuffer}.
+ * <p/>
+ * When the buffer is full, the oldest records are overwritten. Each record has a small header containing the
+ * timestamp, execution time, error flag and name of the request, so that queries can filter the records without
+ * deserializing their payload. Only the payloads of the records that match a query are copied to the heap.
+ */
+public class RequestTraceRingBuffer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Marks the remaining bytes until the end of the buffer as unused
+	 */
+	private static final int PADDING = -1;
+
+	// record length, payload length, timestamp, execution time, error flag, name length
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 1 + 2;
+	private static final int PAYLOAD_LENGTH_OFFSET = 4;
+	private static final int TIMESTAMP_OFFSET = 8;
+	private static final int EXECUTION_TIME_OFFSET = 16;
+	private static final int ERROR_OFFSET = 24;
+	private static final int NAME_LENGTH_OFFSET = 25;
+
+	private final ByteBuffer buffer;
+	private final int capacity;
+	/**
+	 * The absolute offset of the oldest record
+	 */
+	private long head;
+	/**
+	 * The absolute offset the next record is written to
+	 */
+	private long tail;
+	private int size;
+
+	/**
+	 * @param capacityBytes the size of the off-heap buffer in bytes
+	 */
+	public RequestTraceRingBuffer(int capacityBytes) {
+		// all records are aligned to 8 bytes
+		this.capacity = capacityBytes & ~7;
+		this.buffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Adds a record to the buffer and overwrites the oldest records if necessary.
+	 *
+	 * @return <code>true</code>, if the record has been added, <code>false</code> if it is larger than the buffer
+	 */
+	public synchronized boolean add(long timestamp, long executionTime, boolean error, String name, byte[] payload) {
+		final byte[] nameBytes = name != null ? name.getBytes(UTF_8) : new byte[0];
+		if (nameBytes.length > Short.MAX_VALUE) {
+			return false;
+		}
+		final long unalignedLength = (long) HEADER_SIZE + nameBytes.length + payload.length;
+		if (unalignedLength > capacity) {
+			return false;
+		}
+		final int length = align((int) unalignedLength);
+		int position = getPosition(tail);
+		if (capacity - position < length) {
+			final int remaining = capacity - position;
+			makeSpace(tail + remaining);
+			buffer.putInt(position, PADDING);
+			tail += remaining;
+			position = 0;
+		}
+		makeSpace(tail + length);
+
+		buffer.putInt(position, length);
+		buffer.putInt(position + PAYLOAD_LENGTH_OFFSET, payload.length);
+		buffer.putLong(position + TIMESTAMP_OFFSET, timestamp);
+		buffer.putLong(position + EXECUTION_TIME_OFFSET, executionTime);
+		buffer.put(position + ERROR_OFFSET, (byte) (error ? 1 : 0));
+		buffer.putShort(position + NAME_LENGTH_OFFSET, (short) nameBytes.length);
+		put(position + HEADER_SIZE, nameBytes);
+		put(position + HEADER_SIZE + nameBytes.length, payload);
+		tail += length;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Returns the records with the highest execution time
+	 *
+	 * @param name  the name of the requests or <code>null</code> for all requests
+	 * @param limit the maximum number of records to return, values greater than the number of records are reduced
+	 *              to the number of records
+	 * @return the slowest records, ordered by execution time descending
+	 */
+	public synchronized List<Record> getSlowest(String name, int limit) {
+		limit = Math.min(limit, size);
+		if (limit <= 0) {
+			return Collections.emptyList();
+		}
+		final byte[] nameBytes = name != null ? name.getBytes(UTF_8) : null;
+		final PriorityQueue<long[]> slowest = new PriorityQueue<long[]>(limit, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+			}
+		});
+		for (long offset = head; offset < tail; offset += getRecordLength(offset)) {
+			final int position = getPosition(offset);
+			if (isPadding(position) || (nameBytes != null && !hasName(position, nameBytes))) {
+				continue;
+			}
+			final long executionTime = buffer.getLong(position + EXECUTION_TIME_OFFSET);
+			if (slowest.size() < limit) {
+				slowest.add(new long[]{executionTime, offset});
+			} else if (slowest.peek()[0] < executionTime) {
+				slowest.poll();
+				slowest.add(new long[]{executionTime, offset});
+			}
+		}
+		final List<Record> records = new ArrayList<Record>(slowest.size());
+		while (!slowest.isEmpty()) {
+			records.add(readRecord(getPosition(slowest.poll()[1])));
+		}
+		Collections.reverse(records);
+		return records;
+	}
+
+	/**
+	 * Returns the records of erroneous requests
+	 *
+	 * @param since only records whose timestamp is at least <code>since</code> are returned
+	 * @return the records of erroneous requests, newest first
+	 */
+	public synchronized List<Record> getErrors(long since) {
+		final List<Record> records = new ArrayList<Record>();
+		for (long offset = head; offset < tail; offset += getRecordLength(offset)) {
+			final int position = getPosition(offset);
+			if (!isPadding(position) && buffer.get(position + ERROR_OFFSET) != 0
+					&& buffer.getLong(position + TIMESTAMP_OFFSET) >= since) {
+				records.add(readRecord(position));
+			}
+		}
+		Collections.reverse(records);
+		return records;
+	}
+
+	/**
+	 * @return the number of records currently stored in the buffer
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Evicts the oldest records until the buffer can hold all bytes up to the absolute offset <code>end</code>
+	 */
+	private void makeSpace(long end) {
+		while (end - head > capacity) {
+			if (!isPadding(getPosition(head))) {
+				size--;
+			}
+			head += getRecordLength(head);
+		}
+	}
+
+	private int getRecordLength(long offset) {
+		final int position = getPosition(offset);
+		return isPadding(position) ? capacity - position : buffer.getInt(position);
+	}
+
+	private boolean isPadding(int position) {
+		return buffer.getInt(position) == PADDING;
+	}
+
+	private int getPosition(long offset) {
+		return (int) (offset % capacity);
+	}
+
+	private boolean hasName(int position, byte[] nameBytes) {
+		if (buffer.getShort(position + NAME_LENGTH_OFFSET) != nameBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < nameBytes.length; i++) {
+			if (buffer.get(position + HEADER_SIZE + i) != nameBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Record readRecord(int position) {
+		final byte[] name = get(position + HEADER_SIZE, buffer.getShort(position + NAME_LENGTH_OFFSET));
+		final byte[] payload = get(position + HEADER_SIZE + name.length, buffer.getInt(position + PAYLOAD_LENGTH_OFFSET));
+		return new Record(buffer.getLong(position + TIMESTAMP_OFFSET), buffer.getLong(position + EXECUTION_TIME_OFFSET),
+				buffer.get(position + ERROR_OFFSET) != 0, new String(name, UTF_8), payload);
+	}
+
+	private void put(int position, byte[] bytes) {
+		final ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(position);
+		duplicate.put(bytes);
+	}
+
+	private byte[] get(int position, int length) {
+		final byte[] bytes = new byte[length];
+		final ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(position);
+		duplicate.get(bytes);
+		return bytes;
+	}
+
+	private static int align(int length) {
+		return (length + 7) & ~7;
+	}
+
+	/**
+	 * A record that has been copied from the buffer to the heap
+	 */
+	public static class Record {
+		private final long timestamp;
+		private final long executionTime;
+		private final boolean error;
+		private final String name;
+		private final byte[] payload;
+
+		private Record(long timestamp, long executionTime, boolean error, String name, byte[] payload) {
+			this.timestamp = timestamp;
+			this.executionTime = executionTime;
+			this.error = error;
+			this.name = name;
+			this.payload = payload;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public long getExecutionTime() {
+			return executionTime;
+		}
+
+		public boolean isError() {
+			return error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+	}
+}
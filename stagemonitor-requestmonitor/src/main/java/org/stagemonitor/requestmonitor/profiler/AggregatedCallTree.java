@@ -0,0 +1,159 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the call trees of many requests into a single call tree, so that it is possible to see where the time is
+ * spent across all requests of the same name.
+ * <p/>
+ * Calls with the same call path (the signatures from the root to the call) are merged into one node that sums up the
+ * total and self time of the calls. The number of nodes is bounded. When the limit is reached, calls with a new call
+ * path are not added to the tree anymore and their execution time is added to the self time of the caller.
+ */
+public class AggregatedCallTree {
+
+	private final int maxNodes;
+	private final Node root;
+	private int nodes = 1;
+	private int mergedCallTrees;
+
+	/**
+	 * @param signature the signature of the root, usually the name of the request
+	 * @param maxNodes  the maximum number of nodes
+	 */
+	public AggregatedCallTree(String signature, int maxNodes) {
+		this.maxNodes = maxNodes;
+		this.root = new Node(signature);
+	}
+
+	/**
+	 * Merges a call tree into this tree
+	 *
+	 * @param callTree the root of the call tree
+	 */
+	public synchronized void merge(CallStackElement callTree) {
+		merge(root, callTree);
+		mergedCallTrees++;
+	}
+
+	private void merge(Node node, CallStackElement element) {
+		node.totalTime += element.getExecutionTime();
+		node.callCount += element.getCallCount();
+		long selfTime = element.getExecutionTime();
+		for (CallStackElement child : element.getChildren()) {
+			final Node childNode = getOrCreateChild(node, child.getSignature());
+			if (childNode != null) {
+				selfTime -= child.getExecutionTime();
+				merge(childNode, child);
+			}
+		}
+		node.selfTime += selfTime;
+	}
+
+	private Node getOrCreateChild(Node node, String signature) {
+		if (node.children == null) {
+			node.children = new HashMap<String, Node>();
+		}
+		Node child = node.children.get(signature);
+		if (child == null && nodes < maxNodes) {
+			child = new Node(signature);
+			node.children.put(signature, child);
+			nodes++;
+		}
+		return child;
+	}
+
+	/**
+	 * Writes this call tree in the collapsed stack format that is used by flame graph tools like
+	 * <a href="https://github.com/brendangregg/FlameGraph">FlameGraph</a>. Each line consists of the call path
+	 * separated by semicolons, followed by a space and the self time of the call path in microseconds. Call paths with a
+	 * self time below one microsecond are omitted.
+	 *
+	 * @param sb the buffer the collapsed stacks are appended to
+	 */
+	public synchronized void appendCollapsedStacks(StringBuilder sb) {
+		appendCollapsedStacks(root, new StringBuilder(), sb);
+	}
+
+	private static void appendCollapsedStacks(Node node, StringBuilder path, StringBuilder sb) {
+		final int pathLength = path.length();
+		if (pathLength > 0) {
+			path.append(';');
+		}
+		appendFrame(path, node.signature);
+		final long selfTimeMicros = TimeUnit.NANOSECONDS.toMicros(node.selfTime);
+		if (selfTimeMicros > 0) {
+			sb.append(path).append(' ').append(selfTimeMicros).append('\n');
+		}
+		if (node.children != null) {
+			for (Node child : node.children.values()) {
+				appendCollapsedStacks(child, path, sb);
+			}
+		}
+		path.setLength(pathLength);
+	}
+
+	private static void appendFrame(StringBuilder path, String signature) {
+		for (int i = 0; i < signature.length(); i++) {
+			final char c = signature.charAt(i);
+			if (c == ';') {
+				path.append(',');
+			} else if (c == '\n' || c == '\r') {
+				path.append(' ');
+			} else {
+				path.append(c);
+			}
+		}
+		// remove the trailing space of IO calls, it would be confused with the separator of the self time
+		if (path.length() > 0 && path.charAt(path.length() - 1) == ' ') {
+			path.setLength(path.length() - 1);
+		}
+	}
+
+	/**
+	 * @return the total execution time of all merged call trees in nanoseconds
+	 */
+	public synchronized long getTotalTime() {
+		return root.totalTime;
+	}
+
+	public synchronized int getNodes() {
+		return nodes;
+	}
+
+	public synchronized int getMergedCallTrees() {
+		return mergedCallTrees;
+	}
+
+	/**
+	 * Returns the times of a call path
+	 *
+	 * @param signatures the signatures of the call path, excluding the root
+	 * @return the self time, total time and call count of the call path or <code>null</code>, if the call path is not
+	 * part of this tree
+	 */
+	public synchronized long[] getTimes(String... signatures) {
+		Node node = root;
+		for (String signature : signatures) {
+			node = node.children != null ? node.children.get(signature) : null;
+			if (node == null) {
+				return null;
+			}
+		}
+		return new long[]{node.selfTime, node.totalTime, node.callCount};
+	}
+
+	private static class Node {
+		private final String signature;
+		private long selfTime;
+		private long totalTime;
+		private long callCount;
+		private Map<String, Node> children;
+
+		private Node(String signature) {
+			this.signature = signature;
+		}
+	}
+}
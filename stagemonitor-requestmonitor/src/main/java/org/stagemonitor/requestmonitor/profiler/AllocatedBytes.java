@@ -0,0 +1,88 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.util.ClassUtils;
+
+/**
+ * Reads the number of bytes the current thread has allocated on the heap.
+ * <p/>
+ * This relies on <code>com.sun.management.ThreadMXBean</code>, which is not available on all JVMs. If it is not
+ * available or thread allocated memory measurement is not supported, {@link #getCurrentThreadAllocatedBytes()} always
+ * returns 0.
+ */
+public final class AllocatedBytes {
+
+	private static final Logger logger = LoggerFactory.getLogger(AllocatedBytes.class);
+
+	private static final AllocatedBytesReader reader = createReader();
+
+	private AllocatedBytes() {
+	}
+
+	private static AllocatedBytesReader createReader() {
+		if (!ClassUtils.isPresent("com.sun.management.ThreadMXBean")) {
+			return null;
+		}
+		try {
+			final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+			if (SunAllocatedBytesReader.isSupported(threadMXBean)) {
+				return new SunAllocatedBytesReader(threadMXBean);
+			}
+		} catch (RuntimeException e) {
+			logger.warn(e.getMessage(), e);
+		} catch (LinkageError e) {
+			logger.warn(e.getMessage(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * @return <code>true</code>, if the allocated bytes of the current thread can be measured
+	 */
+	public static boolean isSupported() {
+		return reader != null;
+	}
+
+	/**
+	 * Returns the total number of bytes the current thread has allocated since it has been started. The difference of
+	 * two values is the number of bytes that have been allocated in between.
+	 *
+	 * @return the allocated bytes or 0, if this is not supported by the JVM
+	 */
+	public static long getCurrentThreadAllocatedBytes() {
+		return reader != null ? reader.getCurrentThreadAllocatedBytes() : 0L;
+	}
+
+	private interface AllocatedBytesReader {
+		long getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Only loaded if <code>com.sun.management.ThreadMXBean</code> is present
+	 */
+	private static class SunAllocatedBytesReader implements AllocatedBytesReader {
+		private final com.sun.management.ThreadMXBean threadMXBean;
+
+		private SunAllocatedBytesReader(ThreadMXBean threadMXBean) {
+			this.threadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		}
+
+		private static boolean isSupported(ThreadMXBean threadMXBean) {
+			if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+				return false;
+			}
+			final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+			return sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled();
+		}
+
+		@Override
+		public long getCurrentThreadAllocatedBytes() {
+			// returns -1 if the measurement has been disabled in the meantime
+			return Math.max(0L, threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()));
+		}
+	}
+}
@@ -1,12 +1,13 @@
 package org.stagemonitor.requestmonitor.profiler;
 
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class CallStackElement {
 
@@ -23,7 +24,9 @@ public class CallStackElement {
 	private CallStackElement parent;
 	private String signature;
 	private long executionTime;
-	private List<CallStackElement> children = new LinkedList<CallStackElement>();
+	private int callCount = 1;
+	private long allocatedBytes;
+	private List<CallStackElement> children = new ArrayList<CallStackElement>();
 
 	public CallStackElement(String signature) {
 		this(null, signature);
@@ -48,14 +51,20 @@ public class CallStackElement {
 	}
 
 	public void removeCallsFasterThan(long thresholdNs) {
-		for (Iterator<CallStackElement> iterator = children.iterator(); iterator.hasNext(); ) {
-			CallStackElement child = iterator.next();
-			if (child.executionTime < thresholdNs && !child.isIOQuery()) {
-				iterator.remove();
-			} else {
+		if (children.isEmpty()) {
+			return;
+		}
+		// copying the remaining children avoids shifting the array list on each removal
+		final List<CallStackElement> remainingChildren = new ArrayList<CallStackElement>(children.size());
+		for (CallStackElement child : children) {
+			if (child.executionTime >= thresholdNs || child.isIOQuery()) {
 				child.removeCallsFasterThan(thresholdNs);
+				remainingChildren.add(child);
 			}
 		}
+		if (remainingChildren.size() < children.size()) {
+			children = remainingChildren;
+		}
 	}
 
 	private boolean isIOQuery() {
@@ -122,6 +131,48 @@ public class CallStackElement {
 		}
 	}
 
+	/**
+	 * The number of calls that are aggregated in this element. If a method is called repeatedly, the calls can be
+	 * aggregated into a single element whose execution time is the sum of the execution times of all calls.
+	 *
+	 * @return the number of aggregated calls
+	 */
+	@JsonIgnore
+	public int getCallCount() {
+		return callCount;
+	}
+
+	public void setCallCount(int callCount) {
+		this.callCount = callCount;
+	}
+
+	@JsonProperty("callCount")
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Integer getAggregatedCallCount() {
+		return callCount > 1 ? callCount : null;
+	}
+
+	/**
+	 * The number of bytes that have been allocated by this call, including the allocations of the calls it made. This
+	 * is only measured if <code>stagemonitor.profiler.allocatedBytesPerCall</code> is enabled.
+	 *
+	 * @return the allocated bytes or 0, if they have not been measured
+	 */
+	@JsonIgnore
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public void setAllocatedBytes(long allocatedBytes) {
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	@JsonProperty("allocatedBytes")
+	@JsonInclude(JsonInclude.Include.NON_NULL)
+	private Long getMeasuredAllocatedBytes() {
+		return allocatedBytes > 0 ? allocatedBytes : null;
+	}
+
 	public CallStackElement getParent() {
 		return parent;
 	}
@@ -134,6 +185,31 @@ public class CallStackElement {
 		children.remove(children.size() - 1);
 	}
 
+	CallStackElement getLastChild() {
+		return children.isEmpty() ? null : children.get(children.size() - 1);
+	}
+
+	/**
+	 * Aggregates another call of this method into this element
+	 *
+	 * @param timestamp the timestamp at the beginning of the method
+	 */
+	void executionRestarted(long timestamp) {
+		// executionStopped(long, long) adds the duration of this call to the execution time of the previous calls
+		executionTime = timestamp - executionTime;
+		callCount++;
+	}
+
+	/**
+	 * Aggregates another call whose execution time is already known into this element
+	 *
+	 * @param executionTime the execution time of the call
+	 */
+	void addCall(long executionTime) {
+		this.executionTime += executionTime;
+		callCount++;
+	}
+
 	public void executionStopped(long executionTime) {
 		this.executionTime = executionTime;
 	}
@@ -162,56 +238,138 @@ public class CallStackElement {
 
 	public String toString(boolean asciiArt) {
 		final StringBuilder sb = new StringBuilder(3000);
-		logStats(getExecutionTime(), new LinkedList<String>(), sb, asciiArt);
+		appendHeader(sb);
+		appendCallTree(getExecutionTime(), new StringBuilder(), isLastChild(), sb, asciiArt);
 		return sb.toString();
 	}
 
+	/**
+	 * Appends this element and all its children to the provided {@link StringBuilder}
+	 *
+	 * @param totalExecutionTimeNs the execution time of the root element
+	 * @param indentationStack     the indentation of this element
+	 * @param sb                   the buffer the call tree is rendered to
+	 * @param asciiArt             whether to use box-drawing characters
+	 */
 	public void logStats(long totalExecutionTimeNs, Deque<String> indentationStack, StringBuilder sb,
 						 final boolean asciiArt) {
+		appendHeader(sb);
+		final StringBuilder indentation = new StringBuilder();
+		for (String indent : indentationStack) {
+			indentation.append(indent);
+		}
+		appendCallTree(totalExecutionTimeNs, indentation, isLastChild(), sb, asciiArt);
+	}
+
+	private void appendHeader(StringBuilder sb) {
 		if (isRoot()) {
 			sb.append("----------------------------------------------------------------------\n");
 			sb.append("Selftime (ms)              Total (ms)                 Method signature\n");
 			sb.append("----------------------------------------------------------------------\n");
 		}
-		appendTimesPercentTable(totalExecutionTimeNs, sb, asciiArt);
-		appendCallTree(indentationStack, sb, asciiArt);
+	}
+
+	/**
+	 * Renders this element and all its children in a single pass.
+	 *
+	 * @param totalExecutionTimeNs the execution time of the root element
+	 * @param indentation          the indentation of this element's children
+	 * @param lastChild            whether this element is the last child of its parent
+	 * @param sb                   the buffer the call tree is rendered to
+	 * @param asciiArt             whether to use box-drawing characters
+	 */
+	private void appendCallTree(long totalExecutionTimeNs, StringBuilder indentation, boolean lastChild,
+								StringBuilder sb, boolean asciiArt) {
+		final int childCount = children.size();
+		long netExecutionTime = executionTime;
+		for (int i = 0; i < childCount; i++) {
+			netExecutionTime -= children.get(i).executionTime;
+		}
+		appendNumber(sb, netExecutionTime);
+		appendPercent(sb, netExecutionTime, totalExecutionTimeNs, asciiArt);
+		appendNumber(sb, executionTime);
+		appendPercent(sb, executionTime, totalExecutionTimeNs, asciiArt);
 
-		for (CallStackElement callStats : getChildren()) {
-			if (!isRoot()) {
-				if (isLastChild()) {
-					indentationStack.add("    ");
-				} else {
-					indentationStack.add(asciiArt ? HORIZONTAL : "|   ");
-				}
+		sb.append(indentation);
+		if (!isRoot()) {
+			if (lastChild) {
+				sb.append(asciiArt ? ANGLE : "`-- ");
+			} else {
+				sb.append(asciiArt ? HORIZONTAL_ANGLE : "|-- ");
 			}
-			callStats.logStats(totalExecutionTimeNs, indentationStack, sb, asciiArt);
-			if (!isRoot()) {
-				indentationStack.pollLast();
+		}
+		sb.append(signature);
+		if (callCount > 1) {
+			if (!signature.endsWith(" ")) {
+				sb.append(' ');
 			}
+			sb.append('(').append(callCount).append(" calls)");
 		}
-	}
-
-	private void appendTimesPercentTable(long totalExecutionTimeNs, StringBuilder sb, boolean asciiArt) {
-		appendNumber(sb, getNetExecutionTime());
-		appendPercent(sb, getNetExecutionTime(), totalExecutionTimeNs, asciiArt);
+		sb.append('\n');
 
-		appendNumber(sb, getExecutionTime());
-		appendPercent(sb, getExecutionTime(), totalExecutionTimeNs, asciiArt);
+		final int indentationLength = indentation.length();
+		if (!isRoot()) {
+			indentation.append(lastChild ? "    " : (asciiArt ? HORIZONTAL : "|   "));
+		}
+		for (int i = 0; i < childCount; i++) {
+			children.get(i).appendCallTree(totalExecutionTimeNs, indentation, i == childCount - 1, sb, asciiArt);
+		}
+		indentation.setLength(indentationLength);
 	}
 
-	private void appendNumber(StringBuilder sb, long time) {
-		sb.append(String.format(Locale.US, "%09.2f", time / 1000000.0)).append("  ");
+	/**
+	 * Appends the nanoseconds as milliseconds in the format <code>%09.2f</code> without using {@link String#format}
+	 */
+	static void appendNumber(StringBuilder sb, long timeNs) {
+		if (timeNs < 0) {
+			sb.append('-');
+		}
+		// rounds half up like java.util.Formatter
+		final long hundredthsOfMs = (Math.abs(timeNs) + 5000) / 10000;
+		appendZeroPadded(sb, hundredthsOfMs / 100, timeNs < 0 ? 5 : 6);
+		sb.append('.');
+		appendZeroPadded(sb, hundredthsOfMs % 100, 2);
+		sb.append("  ");
 	}
 
-	private void appendPercent(StringBuilder sb, long time, long totalExecutionTimeNs, boolean asciiArt) {
+	private static void appendPercent(StringBuilder sb, long time, long totalExecutionTimeNs, boolean asciiArt) {
 		final double percent = time / (double) totalExecutionTimeNs;
-		sb.append(String.format(Locale.US, "%03.0f", percent * 100)).append("% ").append(printPercentAsBar(percent, 10, asciiArt)).append(' ');
+		if (Double.isNaN(percent) || Double.isInfinite(percent)) {
+			sb.append(String.format(Locale.US, "%03.0f", percent * 100));
+		} else {
+			final long roundedPercent = Math.round(Math.abs(percent) * 100);
+			if (percent < 0) {
+				sb.append('-');
+				appendZeroPadded(sb, roundedPercent, 2);
+			} else {
+				appendZeroPadded(sb, roundedPercent, 3);
+			}
+		}
+		sb.append("% ");
+		appendPercentAsBar(sb, percent, 10, asciiArt);
+		sb.append(' ');
+	}
+
+	private static void appendZeroPadded(StringBuilder sb, long value, int width) {
+		int digits = 1;
+		for (long i = value; i >= 10; i /= 10) {
+			digits++;
+		}
+		for (int i = digits; i < width; i++) {
+			sb.append('0');
+		}
+		sb.append(value);
 	}
 
 	static String printPercentAsBar(double percent, int totalBars, boolean asciiArt) {
+		final StringBuilder sb = new StringBuilder(totalBars);
+		appendPercentAsBar(sb, percent, totalBars, asciiArt);
+		return sb.toString();
+	}
+
+	private static void appendPercentAsBar(StringBuilder sb, double percent, int totalBars, boolean asciiArt) {
 		int actualBars = (int) (percent * totalBars);
 		boolean includeHalfBarAtEnd = actualBars * 2 != (int) (percent * totalBars * 2);
-		StringBuilder sb = new StringBuilder(totalBars);
 		for (int i = 0; i < totalBars; i++) {
 			if (i < actualBars) {
 				sb.append(asciiArt ? (char) 9608 : '|'); // █
@@ -221,30 +379,10 @@ public class CallStackElement {
 				sb.append(asciiArt ? (char) 9617 : '-'); // ▒
 			}
 		}
-		return sb.toString();
-	}
-
-	private void appendCallTree(Deque<String> indentationStack, StringBuilder sb, final boolean asciiArt) {
-		for (String indentation : indentationStack) {
-			sb.append(indentation);
-		}
-		if (!isRoot()) {
-			if (isLastChild()) {
-				sb.append(asciiArt ? ANGLE : "`-- ");
-			} else {
-				sb.append(asciiArt ? HORIZONTAL_ANGLE : "|-- ");
-			}
-		}
-
-		sb.append(getSignature()).append('\n');
 	}
 
 	private boolean isLastChild() {
-		if (parent == null) {
-			return true;
-		}
-		final List<CallStackElement> parentChildren = parent.getChildren();
-		return parentChildren.get(parentChildren.size() - 1) == this;
+		return parent == null || parent.getLastChild() == this;
 	}
 
 	private boolean isRoot() {
@@ -0,0 +1,132 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+/**
+ * Builds the call tree of a profiled request while the request is executed and keeps its size bounded, regardless of
+ * how many methods are called:
+ * <ul>
+ * <li>Calls that are nested deeper than <code>maxDepth</code> are not recorded</li>
+ * <li>After <code>maxNodes</code> elements have been created, no new elements are added to the call tree</li>
+ * <li>Repeated calls of the same method (for example in a loop) can be aggregated into a single element</li>
+ * </ul>
+ * The execution time of calls that are not recorded is part of the self time of the closest recorded caller.
+ * <p/>
+ * Optionally, the bytes that are allocated by each recorded call are measured with {@link AllocatedBytes}.
+ * <p/>
+ * Instances of this class are confined to the profiled thread.
+ */
+class CallTreeBuilder {
+
+	private final CallStackElement root;
+	private final long minExecutionTimeNanos;
+	private final int maxNodes;
+	private final int maxDepth;
+	private final boolean aggregateRepeatedCalls;
+	private final boolean trackAllocatedBytes;
+
+	private CallStackElement current;
+	private int nodes = 1;
+	private int depth;
+	/**
+	 * The number of started calls that are not recorded and have not been stopped yet
+	 */
+	private int suppressedCalls;
+
+	CallTreeBuilder(String signature, long minExecutionTimeNanos, int maxNodes, int maxDepth, boolean aggregateRepeatedCalls) {
+		this(signature, minExecutionTimeNanos, maxNodes, maxDepth, aggregateRepeatedCalls, false);
+	}
+
+	CallTreeBuilder(String signature, long minExecutionTimeNanos, int maxNodes, int maxDepth, boolean aggregateRepeatedCalls,
+					boolean trackAllocatedBytes) {
+		this.root = new CallStackElement(signature);
+		this.current = root;
+		this.minExecutionTimeNanos = minExecutionTimeNanos;
+		this.maxNodes = maxNodes;
+		this.maxDepth = maxDepth;
+		this.aggregateRepeatedCalls = aggregateRepeatedCalls;
+		this.trackAllocatedBytes = trackAllocatedBytes && AllocatedBytes.isSupported();
+		if (this.trackAllocatedBytes) {
+			// like the execution time, the allocated bytes are initialized to the value at the start of the call
+			root.setAllocatedBytes(AllocatedBytes.getCurrentThreadAllocatedBytes());
+		}
+	}
+
+	void start(String signature, long timestamp) {
+		if (suppressedCalls > 0 || depth >= maxDepth) {
+			suppressedCalls++;
+			return;
+		}
+		final CallStackElement previousCall = current.getLastChild();
+		if (aggregateRepeatedCalls && previousCall != null && signature.equals(previousCall.getSignature())) {
+			previousCall.executionRestarted(timestamp);
+			current = previousCall;
+			if (trackAllocatedBytes) {
+				// the allocations of this call are added to the allocations of the previous calls when it is stopped
+				current.setAllocatedBytes(AllocatedBytes.getCurrentThreadAllocatedBytes() - current.getAllocatedBytes());
+			}
+		} else if (nodes < maxNodes) {
+			current = new CallStackElement(current, signature, timestamp);
+			nodes++;
+			if (trackAllocatedBytes) {
+				current.setAllocatedBytes(AllocatedBytes.getCurrentThreadAllocatedBytes());
+			}
+		} else {
+			suppressedCalls++;
+			return;
+		}
+		depth++;
+	}
+
+	/**
+	 * @return <code>false</code>, if the root has been stopped
+	 */
+	boolean stop(long timestamp) {
+		if (suppressedCalls > 0) {
+			suppressedCalls--;
+			return true;
+		}
+		final CallStackElement stopped = current;
+		if (trackAllocatedBytes) {
+			stopped.setAllocatedBytes(AllocatedBytes.getCurrentThreadAllocatedBytes() - stopped.getAllocatedBytes());
+		}
+		current = stopped.executionStopped(timestamp, minExecutionTimeNanos);
+		if (current == null) {
+			return false;
+		}
+		if (current.getLastChild() != stopped) {
+			// the call was faster than minExecutionTimeNanos and has been removed
+			nodes--;
+		}
+		depth--;
+		return true;
+	}
+
+	/**
+	 * Adds a call whose execution time is already known (like an IO call) to the current element. Unlike method
+	 * calls, such calls are also added if the maximum depth is exceeded, because they are added to the closest recorded
+	 * caller.
+	 */
+	void addCall(String signature, long executionTimeNanos) {
+		final CallStackElement previousCall = current.getLastChild();
+		if (aggregateRepeatedCalls && previousCall != null && signature.equals(previousCall.getSignature())) {
+			previousCall.addCall(executionTimeNanos);
+		} else if (nodes < maxNodes) {
+			new CallStackElement(current, signature, executionTimeNanos);
+			nodes++;
+		}
+	}
+
+	CallStackElement getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the innermost recorded call that has not been stopped yet
+	 */
+	CallStackElement getCurrent() {
+		return current;
+	}
+
+	int getNodes() {
+		return nodes;
+	}
+}
@@ -0,0 +1,151 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes call trees to a compact binary format that is used to buffer call trees internally.
+ * <p/>
+ * Compared to the ascii art and JSON representations, which are meant to be read by humans and are therefore only
+ * generated when the call tree is actually viewed, this format is cheap to produce and small:
+ * <ul>
+ * <li>Each distinct signature is only written once to a dictionary at the beginning</li>
+ * <li>The nodes are written depth first as signature index, execution time, call count, allocated bytes and number of
+ * children</li>
+ * <li>All numbers are encoded as variable length integers, so that short execution times only take a few bytes</li>
+ * </ul>
+ */
+public final class CompactCallStackSerializer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private CompactCallStackSerializer() {
+	}
+
+	public static byte[] serialize(CallStackElement callStack) {
+		final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		final List<String> signatures = new ArrayList<String>();
+		final ByteArrayOutputStream nodes = new ByteArrayOutputStream(256);
+		writeNode(callStack, dictionary, signatures, nodes);
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(nodes.size() + signatures.size() * 32);
+		writeVarLong(os, signatures.size());
+		for (String signature : signatures) {
+			final byte[] bytes = signature.getBytes(UTF_8);
+			writeVarLong(os, bytes.length);
+			os.write(bytes, 0, bytes.length);
+		}
+		final byte[] nodeBytes = nodes.toByteArray();
+		os.write(nodeBytes, 0, nodeBytes.length);
+		return os.toByteArray();
+	}
+
+	private static void writeNode(CallStackElement element, Map<String, Integer> dictionary, List<String> signatures,
+								  ByteArrayOutputStream os) {
+		Integer index = dictionary.get(element.getSignature());
+		if (index == null) {
+			index = signatures.size();
+			dictionary.put(element.getSignature(), index);
+			signatures.add(element.getSignature());
+		}
+		writeVarLong(os, index);
+		writeVarLong(os, element.getExecutionTime());
+		writeVarLong(os, element.getCallCount());
+		writeVarLong(os, element.getAllocatedBytes());
+		final List<CallStackElement> children = element.getChildren();
+		writeVarLong(os, children.size());
+		for (CallStackElement child : children) {
+			writeNode(child, dictionary, signatures, os);
+		}
+	}
+
+	public static CallStackElement deserialize(byte[] bytes) throws IOException {
+		return deserialize(bytes, 0);
+	}
+
+	/**
+	 * @param bytes  the buffer that contains the serialized call tree
+	 * @param offset the offset of the serialized call tree in <code>bytes</code>
+	 * @return the root of the call tree
+	 * @throws IOException if the bytes don't contain a valid call tree
+	 */
+	public static CallStackElement deserialize(byte[] bytes, int offset) throws IOException {
+		final Input in = new Input(bytes, offset);
+		final String[] signatures = new String[in.readInt()];
+		for (int i = 0; i < signatures.length; i++) {
+			final int length = in.readInt();
+			signatures[i] = in.readString(length);
+		}
+		return readNode(in, signatures, null);
+	}
+
+	private static CallStackElement readNode(Input in, String[] signatures, CallStackElement parent) throws IOException {
+		final int index = in.readInt();
+		if (index >= signatures.length) {
+			throw new IOException("Invalid signature index " + index);
+		}
+		final CallStackElement element = new CallStackElement(parent, signatures[index], in.readLong());
+		element.setCallCount(in.readInt());
+		element.setAllocatedBytes(in.readLong());
+		final int children = in.readInt();
+		for (int i = 0; i < children; i++) {
+			readNode(in, signatures, element);
+		}
+		return element;
+	}
+
+	static void writeVarLong(ByteArrayOutputStream os, long value) {
+		while ((value & ~0x7FL) != 0) {
+			os.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		os.write((int) value);
+	}
+
+	private static class Input {
+		private final byte[] bytes;
+		private int position;
+
+		private Input(byte[] bytes, int position) {
+			this.bytes = bytes;
+			this.position = position;
+		}
+
+		long readLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= bytes.length) {
+					throw new IOException("Unexpected end of serialized call stack");
+				}
+				final byte b = bytes[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed variable length integer");
+		}
+
+		int readInt() throws IOException {
+			final long value = readLong();
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw new IOException("Invalid length " + value);
+			}
+			return (int) value;
+		}
+
+		String readString(int length) throws IOException {
+			if (length > bytes.length - position) {
+				throw new IOException("Unexpected end of serialized call stack");
+			}
+			final String s = new String(bytes, position, length, UTF_8);
+			position += length;
+			return s;
+		}
+	}
+}
@@ -7,22 +7,22 @@ public final class Profiler {
 
 	public static final long MIN_EXECUTION_TIME_NANOS = Stagemonitor.getConfiguration(RequestMonitorPlugin.class).getMinExecutionTimeNanos();
 
-	private static final ThreadLocal<CallStackElement> methodCallParent = new ThreadLocal<CallStackElement>();
+	private static final ThreadLocal<CallTreeBuilder> callTreeBuilder = new ThreadLocal<CallTreeBuilder>();
 
 	private Profiler() {
 	}
 
 	public static void start(String signature) {
-		final CallStackElement parent = methodCallParent.get();
-		if (parent != null) {
-			methodCallParent.set(new CallStackElement(parent, signature));
+		final CallTreeBuilder callTree = callTreeBuilder.get();
+		if (callTree != null) {
+			callTree.start(signature, System.nanoTime());
 		}
 	}
 
 	public static void stop() {
-		final CallStackElement currentElement = methodCallParent.get();
-		if (currentElement != null) {
-			methodCallParent.set(currentElement.executionStopped(System.nanoTime(), MIN_EXECUTION_TIME_NANOS));
+		final CallTreeBuilder callTree = callTreeBuilder.get();
+		if (callTree != null && !callTree.stop(System.nanoTime())) {
+			callTreeBuilder.set(null);
 		}
 	}
 
@@ -31,35 +31,74 @@ public final class Profiler {
 	}
 
 	public static void addCall(String signature, long executionTimeNanos) {
-		final CallStackElement currentCall = methodCallParent.get();
-		new CallStackElement(currentCall, signature, executionTimeNanos);
+		final CallTreeBuilder callTree = callTreeBuilder.get();
+		if (callTree != null) {
+			callTree.addCall(signature, executionTimeNanos);
+		}
 	}
 
 	public static boolean isProfilingActive() {
-		return methodCallParent.get() != null;
+		return callTreeBuilder.get() != null;
 	}
 
 	/**
-	 * Activates the profiling for the current thread by setting the provided
-	 * {@link CallStackElement} as the root of the call stack
+	 * Activates the profiling for the current thread by creating a new {@link CallStackElement} that is the root of
+	 * the call stack. The size of the call stack is not limited.
 	 *
 	 * @return the root of the call stack
 	 */
 	public static CallStackElement activateProfiling(String signature) {
-		CallStackElement root = new CallStackElement(signature);
-		methodCallParent.set(root);
-		return root;
+		return activateProfiling(signature, Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * Activates the profiling for the current thread by creating a new {@link CallStackElement} that is the root of
+	 * the call stack.
+	 *
+	 * @param signature              the signature of the root
+	 * @param maxNodes               the maximum number of elements of the call stack
+	 * @param maxDepth               the maximum depth of the call stack (the root has a depth of 0)
+	 * @param aggregateRepeatedCalls whether consecutive calls to the same method should be aggregated into one element
+	 * @return the root of the call stack
+	 */
+	public static CallStackElement activateProfiling(String signature, int maxNodes, int maxDepth, boolean aggregateRepeatedCalls) {
+		return activateProfiling(signature, maxNodes, maxDepth, aggregateRepeatedCalls, false);
+	}
+
+	/**
+	 * Activates the profiling for the current thread by creating a new {@link CallStackElement} that is the root of
+	 * the call stack.
+	 *
+	 * @param signature              the signature of the root
+	 * @param maxNodes               the maximum number of elements of the call stack
+	 * @param maxDepth               the maximum depth of the call stack (the root has a depth of 0)
+	 * @param aggregateRepeatedCalls whether consecutive calls to the same method should be aggregated into one element
+	 * @param trackAllocatedBytes    whether the bytes allocated by each call should be measured
+	 *                               (see {@link CallStackElement#getAllocatedBytes()})
+	 * @return the root of the call stack
+	 */
+	public static CallStackElement activateProfiling(String signature, int maxNodes, int maxDepth, boolean aggregateRepeatedCalls,
+													 boolean trackAllocatedBytes) {
+		final CallTreeBuilder callTree = new CallTreeBuilder(signature, MIN_EXECUTION_TIME_NANOS, maxNodes, maxDepth,
+				aggregateRepeatedCalls, trackAllocatedBytes);
+		callTreeBuilder.set(callTree);
+		return callTree.getRoot();
 	}
 
 	public static void deactivateProfiling() {
-		methodCallParent.set(null);
+		callTreeBuilder.set(null);
 	}
 
+	/**
+	 * @return the innermost method call that is recorded and has not been stopped yet or <code>null</code>, if
+	 * profiling is not active
+	 */
 	public static CallStackElement getMethodCallParent() {
-		return methodCallParent.get();
+		final CallTreeBuilder callTree = callTreeBuilder.get();
+		return callTree != null ? callTree.getCurrent() : null;
 	}
 
 	public static void clearMethodCallParent() {
-		methodCallParent.remove();
+		callTreeBuilder.remove();
 	}
 }
@@ -19,7 +19,7 @@ public class ProfilingInstrumenter extends StagemonitorJavassistInstrumenter {
 
 	@Override
 	public boolean isIncluded(String className) {
-		if (!requestMonitorPlugin.isProfilerActive()) {
+		if (!requestMonitorPlugin.isProfilerActive() || requestMonitorPlugin.isSamplingProfilerActive()) {
 			return false;
 		}
 		return super.isIncluded(className) || isServlet(className);
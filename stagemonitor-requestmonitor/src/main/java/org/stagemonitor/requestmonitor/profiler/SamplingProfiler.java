@@ -0,0 +1,225 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.util.ExecutorUtils;
+
+/**
+ * A profiler that periodically samples the stack traces of the threads that are currently executing a monitored
+ * request and builds a statistical call tree for each request.
+ * <p/>
+ * In contrast to the {@link ProfilingInstrumenter}, the methods don't have to be instrumented, which means there is
+ * no overhead per method call. The overhead only depends on the sampling interval and on the number of concurrent
+ * requests. The execution time of a method in the call tree is the number of samples that contain the method
+ * multiplied by the sampling interval, so methods that are faster than the sampling interval may not show up at all.
+ * <p/>
+ * The stack traces of all sampled threads are taken with a single call to
+ * {@link ThreadMXBean#getThreadInfo(long[], int)}, so that each sample only needs one safepoint, regardless of the
+ * number of concurrent requests.
+ * <p/>
+ * As the {@link Profiler} is not active for sampled requests, IO calls like SQL statements that are reported via
+ * {@link Profiler#addIOCall(String, long)} are not part of the call tree.
+ */
+public class SamplingProfiler {
+
+	private static final Logger logger = LoggerFactory.getLogger(SamplingProfiler.class);
+
+	private final ConcurrentMap<Thread, SampledThread> sampledThreads = new ConcurrentHashMap<Thread, SampledThread>();
+	private final ScheduledExecutorService sampler;
+	private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private final long intervalNanos;
+
+	/**
+	 * Creates a new {@link SamplingProfiler} and starts sampling
+	 *
+	 * @param intervalMs the interval in which the threads are sampled
+	 */
+	public SamplingProfiler(long intervalMs) {
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		sampler = ExecutorUtils.createSingleThreadSchedulingDeamonPool("stagemonitor-sampling-profiler");
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sample();
+				} catch (RuntimeException e) {
+					logger.warn(e.getMessage(), e);
+				}
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts sampling the current thread. The frames that are on the stack when this method is called are not part of
+	 * the call tree.
+	 * <p/>
+	 * If the current thread is already sampled, the samples are added to the new call tree until it is stopped.
+	 *
+	 * @param signature the signature of the root of the call tree
+	 * @param maxNodes  the maximum number of elements of the call tree
+	 * @param maxDepth  the maximum depth of the call tree
+	 * @return the root of the call tree. The call tree must not be accessed until
+	 * {@link #stopSampling(CallStackElement)} is called.
+	 */
+	public CallStackElement startSampling(String signature, int maxNodes, int maxDepth) {
+		final Thread thread = Thread.currentThread();
+		final SampledThread sampledThread = new SampledThread(signature, new Throwable().getStackTrace(), maxNodes, maxDepth,
+				sampledThreads.get(thread));
+		sampledThreads.put(thread, sampledThread);
+		return sampledThread.root;
+	}
+
+	/**
+	 * Stops sampling the current thread. After this method returns, the call tree is not modified anymore.
+	 * <p/>
+	 * It is safe to call this method multiple times.
+	 *
+	 * @param root the root of the call tree that has been returned by {@link #startSampling(String, int, int)}
+	 */
+	public void stopSampling(CallStackElement root) {
+		final Thread thread = Thread.currentThread();
+		final SampledThread sampledThread = sampledThreads.get(thread);
+		if (sampledThread == null || sampledThread.root != root) {
+			return;
+		}
+		if (sampledThread.previous != null) {
+			sampledThreads.put(thread, sampledThread.previous);
+		} else {
+			sampledThreads.remove(thread);
+		}
+		synchronized (sampledThread) {
+			sampledThread.stopped = true;
+		}
+	}
+
+	void sample() {
+		final List<SampledThread> threads = new ArrayList<SampledThread>(sampledThreads.size());
+		final List<Long> threadIds = new ArrayList<Long>(sampledThreads.size());
+		for (Map.Entry<Thread, SampledThread> entry : sampledThreads.entrySet()) {
+			threadIds.add(entry.getKey().getId());
+			threads.add(entry.getValue());
+		}
+		if (threads.isEmpty()) {
+			return;
+		}
+		final long[] ids = new long[threadIds.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = threadIds.get(i);
+		}
+		final ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(ids, Integer.MAX_VALUE);
+		for (int i = 0; i < threadInfos.length; i++) {
+			// null if the thread is not alive anymore
+			if (threadInfos[i] != null) {
+				final SampledThread sampledThread = threads.get(i);
+				synchronized (sampledThread) {
+					if (!sampledThread.stopped) {
+						sampledThread.addSample(threadInfos[i].getStackTrace(), intervalNanos);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the sampling thread
+	 */
+	public void close() {
+		sampler.shutdown();
+	}
+
+	private static class SampledThread {
+		private final CallStackElement root;
+		/**
+		 * The stack trace at the beginning of the request. Frames that all samples share with this stack trace are
+		 * omitted.
+		 */
+		private final StackTraceElement[] baseStackTrace;
+		private final int maxNodes;
+		private final int maxDepth;
+		/**
+		 * The call tree that has been sampled before this one was started in the same thread
+		 */
+		private final SampledThread previous;
+		private int nodes = 1;
+		private boolean stopped;
+
+		private SampledThread(String signature, StackTraceElement[] baseStackTrace, int maxNodes, int maxDepth,
+							  SampledThread previous) {
+			this.root = new CallStackElement(null, signature, 0);
+			this.baseStackTrace = baseStackTrace;
+			this.maxNodes = maxNodes;
+			this.maxDepth = maxDepth;
+			this.previous = previous;
+		}
+
+		private void addSample(StackTraceElement[] stackTrace, long timeNanos) {
+			root.setExecutionTime(root.getExecutionTime() + timeNanos);
+			CallStackElement parent = root;
+			int depth = 0;
+			for (int i = stackTrace.length - 1 - getCommonOuterFrames(stackTrace); i >= 0 && depth < maxDepth; i--, depth++) {
+				final StackTraceElement frame = stackTrace[i];
+				CallStackElement element = getChild(parent, frame);
+				if (element == null) {
+					if (nodes >= maxNodes) {
+						return;
+					}
+					element = new CallStackElement(parent, frame.getClassName() + '.' + frame.getMethodName() + "()", 0);
+					nodes++;
+				}
+				element.setExecutionTime(element.getExecutionTime() + timeNanos);
+				parent = element;
+			}
+		}
+
+		private int getCommonOuterFrames(StackTraceElement[] stackTrace) {
+			int common = 0;
+			while (common < stackTrace.length && common < baseStackTrace.length
+					&& isSameFrame(stackTrace[stackTrace.length - 1 - common], baseStackTrace[baseStackTrace.length - 1 - common])) {
+				common++;
+			}
+			return common;
+		}
+
+		/**
+		 * The base stack trace is taken with {@link Throwable#getStackTrace()} and the samples with
+		 * {@link ThreadMXBean#getThreadInfo(long[], int)}, so don't rely on {@link StackTraceElement#equals(Object)}
+		 */
+		private static boolean isSameFrame(StackTraceElement frame, StackTraceElement other) {
+			return frame.getLineNumber() == other.getLineNumber()
+					&& frame.getMethodName().equals(other.getMethodName())
+					&& frame.getClassName().equals(other.getClassName());
+		}
+
+		private static CallStackElement getChild(CallStackElement parent, StackTraceElement frame) {
+			final List<CallStackElement> children = parent.getChildren();
+			// the most recently added child is the most likely one to be sampled again
+			for (int i = children.size() - 1; i >= 0; i--) {
+				final CallStackElement child = children.get(i);
+				if (isSignatureOf(child.getSignature(), frame)) {
+					return child;
+				}
+			}
+			return null;
+		}
+
+		private static boolean isSignatureOf(String signature, StackTraceElement frame) {
+			final String className = frame.getClassName();
+			final String methodName = frame.getMethodName();
+			return signature.length() == className.length() + methodName.length() + 3
+					&& signature.startsWith(className)
+					&& signature.charAt(className.length()) == '.'
+					&& signature.startsWith(methodName, className.length() + 1);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.stagemonitor.requestmonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.stagemonitor.requestmonitor.profiler.CallStackElement;
+
+public class AggregatedCallTreeReporterTest {
+
+	private final AggregatedCallTreeReporter reporter = new AggregatedCallTreeReporter(100, 2);
+
+	@Test
+	public void testDiscardNewRequestNamesWhenMaxRequestNamesIsReached() throws Exception {
+		reporter.reportRequestTrace(requestTrace("GET /a"));
+		reporter.reportRequestTrace(requestTrace("GET /b"));
+		reporter.reportRequestTrace(requestTrace("GET /c"));
+		reporter.reportRequestTrace(requestTrace("GET /a"));
+
+		assertEquals(2, reporter.getCallTrees().size());
+		assertNull(reporter.getCallTree("GET /c"));
+		assertEquals(2, reporter.getCallTree("GET /a").getMergedCallTrees());
+		assertEquals(1, reporter.getCallTree("GET /b").getMergedCallTrees());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		reporter.reportRequestTrace(requestTrace("GET /a"));
+		reporter.reportRequestTrace(requestTrace("GET /b"));
+		reporter.reset();
+		reporter.reportRequestTrace(requestTrace("GET /c"));
+
+		assertEquals(1, reporter.getCallTrees().size());
+		assertEquals(1, reporter.getCallTree("GET /c").getMergedCallTrees());
+	}
+
+	private static RequestTrace requestTrace(final String name) {
+		final RequestTrace requestTrace = new RequestTrace(null, new RequestTrace.GetNameCallback() {
+			@Override
+			public String getName() {
+				return name;
+			}
+		});
+		final CallStackElement root = new CallStackElement(null, name, 0);
+		root.setExecutionTime(2000000);
+		new CallStackElement(root, "foo()", 0).setExecutionTime(2000000);
+		requestTrace.setCallStack(root);
+		return requestTrace;
+	}
+}
@@ -0,0 +1,49 @@
+package org.stagemonitor.requestmonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.requestmonitor.profiler.CallStackElement;
+
+public class RecentRequestTraceReporterTest {
+
+	private final RecentRequestTraceReporter reporter = new RecentRequestTraceReporter(1024 * 1024);
+
+	@Test
+	public void testReportAndQuery() throws Exception {
+		reporter.reportRequestTrace(requestTrace("GET /a", 100, false));
+		reporter.reportRequestTrace(requestTrace("GET /a", 300, true));
+		reporter.reportRequestTrace(requestTrace("GET /b", 500, false));
+
+		final List<String> slowest = reporter.getSlowest("GET /a", 10);
+		assertEquals(2, slowest.size());
+		final JsonNode slowestRequestTrace = JsonUtils.getMapper().readTree(slowest.get(0));
+		assertEquals("GET /a", slowestRequestTrace.get("name").asText());
+		assertEquals(300, slowestRequestTrace.get("executionTime").asLong());
+		// the ascii call stack is not rendered
+		assertEquals(null, slowestRequestTrace.get("callStack"));
+		assertEquals("GET /a", JsonUtils.getMapper().readTree(slowestRequestTrace.get("callStackJson").asText())
+				.get("signature").asText());
+
+		final List<String> errors = reporter.getErrors(0);
+		assertEquals(1, errors.size());
+		assertEquals(300, JsonUtils.getMapper().readTree(errors.get(0)).get("executionTime").asLong());
+	}
+
+	private static RequestTrace requestTrace(final String name, long executionTime, boolean error) {
+		final RequestTrace requestTrace = new RequestTrace(null, new RequestTrace.GetNameCallback() {
+			@Override
+			public String getName() {
+				return name;
+			}
+		});
+		requestTrace.setExecutionTime(executionTime);
+		requestTrace.setError(error);
+		requestTrace.setCallStack(new CallStackElement(name));
+		return requestTrace;
+	}
+}
@@ -3,6 +3,8 @@ package org.stagemonitor.requestmonitor;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
@@ -11,6 +13,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.SharedMetricRegistries;
 import com.codahale.metrics.Timer;
@@ -24,6 +27,7 @@ import org.stagemonitor.core.CorePlugin;
 import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
 import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.requestmonitor.profiler.AllocatedBytes;
 
 
 public class RequestMonitorTest {
@@ -174,6 +178,53 @@ public class RequestMonitorTest {
 		}
 	}
 
+	@Test
+	public void testSamplingProfiler() throws Exception {
+		when(requestMonitorPlugin.getCallStackEveryXRequestsToGroup()).thenReturn(1);
+		when(requestMonitorPlugin.isSamplingProfilerActive()).thenReturn(true);
+		when(requestMonitorPlugin.getSamplingIntervalMs()).thenReturn(1);
+		when(requestMonitorPlugin.getMaxCallTreeNodes()).thenReturn(1000);
+		when(requestMonitorPlugin.getMaxCallTreeDepth()).thenReturn(100);
+		requestMonitor = new RequestMonitor(corePlugin, registry, requestMonitorPlugin);
+		final MonitoredRequest<RequestTrace> monitoredRequest = createMonitoredRequest();
+		when(monitoredRequest.execute()).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				Thread.sleep(100);
+				return "test";
+			}
+		});
+
+		final RequestMonitor.RequestInformation<RequestTrace> monitor = requestMonitor.monitor(monitoredRequest);
+		requestMonitor.close();
+
+		assertNotNull(monitor.getRequestTrace().getCallStack());
+		assertEquals("test", monitor.getRequestTrace().getCallStack().getSignature());
+		assertTrue(monitor.getRequestTrace().getCallStack().toString(), monitor.getRequestTrace().getCallStack().toString().contains("java.lang.Thread.sleep()"));
+	}
+
+	@Test
+	public void testAllocatedBytes() throws Exception {
+		assumeTrue(AllocatedBytes.isSupported());
+		when(requestMonitorPlugin.isCollectAllocatedBytes()).thenReturn(true);
+		final Histogram histogram = mock(Histogram.class);
+		when(registry.histogram(name("allocated_bytes").tag("request_name", "test").layer("All").build())).thenReturn(histogram);
+		when(registry.histogram(name("allocated_bytes").tag("request_name", "All").layer("All").build())).thenReturn(mock(Histogram.class));
+		final MonitoredRequest<RequestTrace> monitoredRequest = createMonitoredRequest();
+		when(monitoredRequest.execute()).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return new byte[1024 * 1024];
+			}
+		});
+
+		final RequestMonitor.RequestInformation<RequestTrace> monitor = requestMonitor.monitor(monitoredRequest);
+
+		final long allocatedBytes = monitor.getRequestTrace().getAllocatedBytes();
+		assertTrue(allocatedBytes >= 1024 * 1024);
+		verify(histogram).update(allocatedBytes);
+	}
+
 	@Test
 	public void testGetInstanceNameFromExecution() throws Exception {
 		final MonitoredRequest<RequestTrace> monitoredRequest = createMonitoredRequest();
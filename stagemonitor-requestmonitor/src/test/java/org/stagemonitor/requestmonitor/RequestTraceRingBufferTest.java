@@ -0,0 +1,83 @@
+package org.stagemonitor.requestmonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RequestTraceRingBufferTest {
+
+	@Test
+	public void testGetSlowest() throws Exception {
+		final RequestTraceRingBuffer buffer = new RequestTraceRingBuffer(1024);
+		buffer.add(1, 10, false, "GET /a", payload(1));
+		buffer.add(2, 30, false, "GET /a", payload(2));
+		buffer.add(3, 50, false, "GET /b", payload(3));
+		buffer.add(4, 20, false, "GET /a", payload(4));
+
+		assertEquals(Arrays.asList(2, 4), getPayloads(buffer.getSlowest("GET /a", 2)));
+		assertEquals(Arrays.asList(3, 2, 4, 1), getPayloads(buffer.getSlowest(null, 10)));
+		assertEquals("GET /b", buffer.getSlowest(null, 1).get(0).getName());
+		assertEquals(Arrays.asList(3, 2, 4, 1), getPayloads(buffer.getSlowest(null, Integer.MAX_VALUE)));
+		assertTrue(buffer.getSlowest(null, 0).isEmpty());
+	}
+
+	@Test
+	public void testGetErrors() throws Exception {
+		final RequestTraceRingBuffer buffer = new RequestTraceRingBuffer(1024);
+		buffer.add(1, 10, true, "GET /a", payload(1));
+		buffer.add(2, 10, false, "GET /a", payload(2));
+		buffer.add(3, 10, true, "GET /a", payload(3));
+		buffer.add(4, 10, true, "GET /a", payload(4));
+
+		assertEquals(Arrays.asList(4, 3), getPayloads(buffer.getErrors(3)));
+	}
+
+	@Test
+	public void testOverwriteOldestRecords() throws Exception {
+		// each record takes 40 bytes (27 bytes header + 6 bytes name + 1 byte payload, aligned to 8 bytes)
+		final RequestTraceRingBuffer buffer = new RequestTraceRingBuffer(100);
+		assertEquals(96, buffer.getCapacity());
+		for (int i = 0; i < 10; i++) {
+			assertTrue(buffer.add(i, i, false, "GET /a", payload(i)));
+			assertEquals(Math.min(i + 1, 2), buffer.size());
+		}
+		assertEquals(Arrays.asList(9, 8), getPayloads(buffer.getSlowest(null, 10)));
+	}
+
+	@Test
+	public void testRecordLargerThanBuffer() throws Exception {
+		final RequestTraceRingBuffer buffer = new RequestTraceRingBuffer(64);
+		assertFalse(buffer.add(1, 1, false, "GET /a", new byte[64]));
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testRecordsOfDifferentSize() throws Exception {
+		final RequestTraceRingBuffer buffer = new RequestTraceRingBuffer(256);
+		for (int i = 0; i < 100; i++) {
+			buffer.add(i, i, false, "GET /" + i, new byte[i % 50]);
+			final List<RequestTraceRingBuffer.Record> records = buffer.getSlowest(null, 100);
+			assertEquals(buffer.size(), records.size());
+			assertEquals(i, records.get(0).getExecutionTime());
+			assertEquals(i % 50, records.get(0).getPayload().length);
+		}
+	}
+
+	private static byte[] payload(int i) {
+		return new byte[]{(byte) i};
+	}
+
+	private static List<Integer> getPayloads(List<RequestTraceRingBuffer.Record> records) {
+		final List<Integer> payloads = new ArrayList<Integer>();
+		for (RequestTraceRingBuffer.Record record : records) {
+			payloads.add((int) record.getPayload()[0]);
+		}
+		return payloads;
+	}
+}
@@ -0,0 +1,65 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class AggregatedCallTreeTest {
+
+	@Test
+	public void testMerge() {
+		final AggregatedCallTree aggregatedCallTree = new AggregatedCallTree("GET /", 100);
+		aggregatedCallTree.merge(callTree(100000, "a()", 60000, "b()", 20000));
+		aggregatedCallTree.merge(callTree(50000, "a()", 30000, "c()", 10000));
+
+		assertEquals(2, aggregatedCallTree.getMergedCallTrees());
+		assertEquals(150000, aggregatedCallTree.getTotalTime());
+		assertEquals(4, aggregatedCallTree.getNodes());
+		assertArrayEquals(new long[]{30000, 150000, 2}, aggregatedCallTree.getTimes());
+		assertArrayEquals(new long[]{90000, 90000, 2}, aggregatedCallTree.getTimes("a()"));
+		assertArrayEquals(new long[]{20000, 20000, 1}, aggregatedCallTree.getTimes("b()"));
+		assertNull(aggregatedCallTree.getTimes("a()", "b()"));
+	}
+
+	@Test
+	public void testMaxNodes() {
+		final AggregatedCallTree aggregatedCallTree = new AggregatedCallTree("GET /", 2);
+		aggregatedCallTree.merge(callTree(100000, "a()", 60000, "b()", 20000));
+
+		assertEquals(2, aggregatedCallTree.getNodes());
+		// the execution time of b() is part of the self time of the root
+		assertArrayEquals(new long[]{40000, 100000, 1}, aggregatedCallTree.getTimes());
+		assertNull(aggregatedCallTree.getTimes("b()"));
+	}
+
+	@Test
+	public void testCollapsedStacks() {
+		final AggregatedCallTree aggregatedCallTree = new AggregatedCallTree("GET /", 100);
+		final CallStackElement root = callTree(100000, "a()", 60000, "b()", 20000);
+		new CallStackElement(root.getChildren().get(0), "select *\nfrom a; ", 0).setExecutionTime(10000);
+		new CallStackElement(root.getChildren().get(0), "fast()", 0).setExecutionTime(10);
+		aggregatedCallTree.merge(root);
+
+		final StringBuilder sb = new StringBuilder();
+		aggregatedCallTree.appendCollapsedStacks(sb);
+
+		assertEquals(new HashSet<String>(Arrays.asList(
+				"GET / 20",
+				"GET /;a() 49",
+				"GET /;a();select * from a, 10",
+				"GET /;b() 20")), new HashSet<String>(Arrays.asList(sb.toString().split("\n"))));
+	}
+
+	private static CallStackElement callTree(long total, String signature1, long time1, String signature2, long time2) {
+		final CallStackElement root = new CallStackElement(null, "total", 0);
+		root.setExecutionTime(total);
+		new CallStackElement(root, signature1, 0).setExecutionTime(time1);
+		new CallStackElement(root, signature2, 0).setExecutionTime(time2);
+		return root;
+	}
+}
@@ -1,5 +1,8 @@
 package org.stagemonitor.requestmonitor.profiler;
 
+import java.util.LinkedList;
+import java.util.Locale;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -24,4 +27,66 @@ public class CallStackElementTest {
 		CallStackElement callStackElement = new CallStackElement("total");
 		Assert.assertNull(callStackElement.getShortSignature());
 	}
+
+	@Test
+	public void testAppendNumberLikeStringFormat() {
+		for (long timeNs : new long[]{0, 1, 4999, 5000, 15000, 123456789, 999995000, 123456789012345L, -1, -5000, -123456789}) {
+			final StringBuilder sb = new StringBuilder();
+			CallStackElement.appendNumber(sb, timeNs);
+			Assert.assertEquals(String.format(Locale.US, "%09.2f", timeNs / 1000000.0) + "  ", sb.toString());
+		}
+	}
+
+	@Test
+	public void testToString() {
+		CallStackElement root = new CallStackElement(null, "total", 0);
+		root.setExecutionTime(1000000000L);
+		CallStackElement child1 = new CallStackElement(root, "child1", 0);
+		child1.setExecutionTime(600000000L);
+		new CallStackElement(child1, "grandChild", 0).setExecutionTime(250000000L);
+		new CallStackElement(root, "child2", 0).setExecutionTime(5000L);
+
+		Assert.assertEquals("" +
+				"----------------------------------------------------------------------\n" +
+				"Selftime (ms)              Total (ms)                 Method signature\n" +
+				"----------------------------------------------------------------------\n" +
+				"000400.00  040% |||:------ 001000.00  100% |||||||||| total\n" +
+				"000350.00  035% |||:------ 000600.00  060% ||||||---- |-- child1\n" +
+				"000250.00  025% ||:------- 000250.00  025% ||:------- |   `-- grandChild\n" +
+				"000000.01  000% ---------- 000000.01  000% ---------- `-- child2\n", root.toString());
+	}
+
+	@Test
+	public void testLogStats() {
+		CallStackElement root = new CallStackElement(null, "total", 0);
+		root.setExecutionTime(1000000000L);
+		CallStackElement child1 = new CallStackElement(root, "child1", 0);
+		child1.setExecutionTime(600000000L);
+		new CallStackElement(root, "child2", 0).setExecutionTime(5000L);
+
+		final StringBuilder sb = new StringBuilder();
+		root.logStats(root.getExecutionTime(), new LinkedList<String>(), sb, false);
+		Assert.assertEquals(root.toString(), sb.toString());
+		// non-root elements are rendered without header
+		Assert.assertEquals("000600.00  100% |||||||||| 000600.00  100% |||||||||| |-- child1\n", child1.toString());
+	}
+
+	@Test
+	public void testRemoveCallsFasterThan() {
+		CallStackElement root = new CallStackElement(null, "total", 0);
+		for (int i = 0; i < 10000; i++) {
+			final CallStackElement child = new CallStackElement(root, "child" + i, 0);
+			child.setExecutionTime(i % 2 == 0 ? 100 : 1);
+			new CallStackElement(child, "grandChild", 0).setExecutionTime(1);
+		}
+		new CallStackElement(root, "select * from user ", 0).setExecutionTime(1);
+
+		root.removeCallsFasterThan(10);
+
+		Assert.assertEquals(5001, root.getChildren().size());
+		Assert.assertEquals("child0", root.getChildren().get(0).getSignature());
+		Assert.assertEquals("child2", root.getChildren().get(1).getSignature());
+		Assert.assertTrue(root.getChildren().get(0).getChildren().isEmpty());
+		Assert.assertEquals("select * from user ", root.getChildren().get(5000).getSignature());
+	}
 }
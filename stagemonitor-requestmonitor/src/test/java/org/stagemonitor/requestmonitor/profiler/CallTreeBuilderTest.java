@@ -0,0 +1,122 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+public class CallTreeBuilderTest {
+
+	@Test
+	public void testMaxNodes() {
+		final CallTreeBuilder callTree = new CallTreeBuilder("total", 0, 3, Integer.MAX_VALUE, false);
+		for (int i = 0; i < 5; i++) {
+			callTree.start("method" + i + "()", 0);
+			callTree.start("nested()", 0);
+			callTree.stop(10);
+			callTree.stop(20);
+		}
+		callTree.addCall("select * from user ", 5);
+		assertFalse(callTree.stop(100));
+
+		final CallStackElement root = callTree.getRoot();
+		assertEquals(3, callTree.getNodes());
+		assertEquals(1, root.getChildren().size());
+		assertEquals("method0()", root.getChildren().get(0).getSignature());
+		assertEquals("nested()", root.getChildren().get(0).getChildren().get(0).getSignature());
+	}
+
+	@Test
+	public void testMaxDepth() {
+		final CallTreeBuilder callTree = new CallTreeBuilder("total", 0, Integer.MAX_VALUE, 1, false);
+		callTree.start("method1()", 0);
+		callTree.start("method2()", 0);
+		callTree.start("method3()", 0);
+		assertEquals("method1()", callTree.getCurrent().getSignature());
+		// IO calls are added to the closest recorded caller
+		callTree.addCall("select * from user ", 5);
+		callTree.stop(10);
+		callTree.stop(20);
+		callTree.stop(30);
+		callTree.start("method4()", 30);
+		callTree.stop(40);
+
+		final CallStackElement root = callTree.getRoot();
+		assertEquals(2, root.getChildren().size());
+		final CallStackElement method1 = root.getChildren().get(0);
+		assertEquals(30, method1.getExecutionTime());
+		assertEquals(1, method1.getChildren().size());
+		assertEquals("select * from user ", method1.getChildren().get(0).getSignature());
+		assertEquals("method4()", root.getChildren().get(1).getSignature());
+		assertSame(root, callTree.getCurrent());
+	}
+
+	@Test
+	public void testAggregateRepeatedCalls() {
+		final CallTreeBuilder callTree = new CallTreeBuilder("total", 0, Integer.MAX_VALUE, Integer.MAX_VALUE, true);
+		for (int i = 0; i < 1000; i++) {
+			callTree.start("loop()", i * 10);
+			callTree.addCall("select * from user ", 2);
+			callTree.stop(i * 10 + 5);
+		}
+		callTree.start("other()", 10000);
+		callTree.stop(10001);
+		callTree.start("loop()", 10001);
+		callTree.stop(10002);
+		assertFalse(callTree.stop(10002));
+
+		final CallStackElement root = callTree.getRoot();
+		assertEquals(5, callTree.getNodes());
+		assertEquals(3, root.getChildren().size());
+		final CallStackElement loop = root.getChildren().get(0);
+		assertEquals(1000, loop.getCallCount());
+		assertEquals(5000, loop.getExecutionTime());
+		assertEquals(1000, loop.getChildren().get(0).getCallCount());
+		assertEquals(2000, loop.getChildren().get(0).getExecutionTime());
+		assertEquals(1, root.getChildren().get(2).getCallCount());
+		assertTrue(root.toString().contains("`-- loop()\n"));
+		assertTrue(root.toString().contains("|-- loop() (1000 calls)\n"));
+		assertTrue(root.toString().contains("`-- select * from user (1000 calls)\n"));
+	}
+
+	@Test
+	public void testRemoveFastCalls() {
+		final CallTreeBuilder callTree = new CallTreeBuilder("total", 10, 3, Integer.MAX_VALUE, false);
+		for (int i = 0; i < 5; i++) {
+			callTree.start("fast" + i + "()", 0);
+			callTree.stop(1);
+		}
+		callTree.start("slow()", 0);
+		callTree.stop(100);
+
+		assertEquals(1, callTree.getRoot().getChildren().size());
+		assertEquals("slow()", callTree.getRoot().getChildren().get(0).getSignature());
+	}
+
+	@Test
+	public void testTrackAllocatedBytes() {
+		assumeTrue(AllocatedBytes.isSupported());
+		final CallTreeBuilder callTree = new CallTreeBuilder("total", 0, Integer.MAX_VALUE, Integer.MAX_VALUE, true, true);
+		final byte[][] allocations = new byte[2][];
+		for (int i = 0; i < 2; i++) {
+			callTree.start("allocate()", 0);
+			allocations[i] = new byte[1024 * 1024];
+			callTree.stop(10);
+		}
+		callTree.start("noop()", 10);
+		callTree.stop(20);
+		assertFalse(callTree.stop(20));
+
+		final CallStackElement root = callTree.getRoot();
+		final CallStackElement allocate = root.getChildren().get(0);
+		assertEquals(2, allocate.getCallCount());
+		assertTrue(allocate.getAllocatedBytes() >= 2 * 1024 * 1024);
+		assertTrue(allocate.getAllocatedBytes() < 3 * 1024 * 1024);
+		assertTrue(root.getChildren().get(1).getAllocatedBytes() < 1024 * 1024);
+		assertTrue(root.getAllocatedBytes() >= allocate.getAllocatedBytes());
+		assertEquals(2, allocations.length);
+	}
+}
@@ -0,0 +1,67 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.stagemonitor.core.util.JsonUtils;
+
+public class CompactCallStackSerializerTest {
+
+	@Test
+	public void testSerializeAndDeserialize() throws Exception {
+		final CallStackElement root = new CallStackElement(null, "total", 0);
+		root.setExecutionTime(1000000000L);
+		final CallStackElement child1 = new CallStackElement(root, "public void Foo.bar()", 0);
+		child1.setExecutionTime(400000000L);
+		final CallStackElement grandChild = new CallStackElement(child1, "select * from ünicode ", 0);
+		grandChild.setExecutionTime(3);
+		final CallStackElement child2 = new CallStackElement(root, "public void Foo.bar()", 0);
+		child2.setExecutionTime(500000000L);
+		child2.setCallCount(3);
+		child2.setAllocatedBytes(1024);
+
+		final CallStackElement deserialized = CompactCallStackSerializer.deserialize(CompactCallStackSerializer.serialize(root));
+
+		assertEquals(JsonUtils.toJson(root), JsonUtils.toJson(deserialized));
+		assertEquals(root.toString(true), deserialized.toString(true));
+		assertTrue(deserialized.getChildren().get(0).getParent() == deserialized);
+	}
+
+	@Test
+	public void testSignaturesAreOnlyWrittenOnce() throws Exception {
+		final String signature = "public void org.stagemonitor.requestmonitor.profiler.CompactCallStackSerializerTest.test()";
+		final CallStackElement root = new CallStackElement(null, "total", 0);
+		for (int i = 0; i < 100; i++) {
+			new CallStackElement(root, signature, 0).setExecutionTime(i);
+		}
+
+		final byte[] bytes = CompactCallStackSerializer.serialize(root);
+
+		assertTrue(bytes.length < 2 * signature.length() + 100 * 5);
+		assertEquals(100, CompactCallStackSerializer.deserialize(bytes).getChildren().size());
+	}
+
+	@Test
+	public void testDeserializeWithOffset() throws Exception {
+		final CallStackElement root = new CallStackElement(null, "total", 0);
+		root.setExecutionTime(Long.MAX_VALUE);
+		final byte[] serialized = CompactCallStackSerializer.serialize(root);
+		final byte[] bytes = new byte[serialized.length + 3];
+		System.arraycopy(serialized, 0, bytes, 3, serialized.length);
+
+		assertEquals(Long.MAX_VALUE, CompactCallStackSerializer.deserialize(bytes, 3).getExecutionTime());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws Exception {
+		final CallStackElement root = new CallStackElement(null, "total", 0);
+		new CallStackElement(root, "child", 0);
+		final byte[] bytes = CompactCallStackSerializer.serialize(root);
+
+		CompactCallStackSerializer.deserialize(Arrays.copyOf(bytes, bytes.length - 2));
+	}
+}
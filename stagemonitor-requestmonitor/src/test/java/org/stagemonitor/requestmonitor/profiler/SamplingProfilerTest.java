@@ -0,0 +1,122 @@
+package org.stagemonitor.requestmonitor.profiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SamplingProfilerTest {
+
+	// the samples are triggered manually
+	private final SamplingProfiler samplingProfiler = new SamplingProfiler(TimeUnit.HOURS.toMillis(1));
+
+	@After
+	public void tearDown() throws Exception {
+		samplingProfiler.close();
+	}
+
+	@Test
+	public void testSample() throws Exception {
+		final CallStackElement root = samplingProfiler.startSampling("total", Integer.MAX_VALUE, Integer.MAX_VALUE);
+		method1();
+		method1();
+		samplingProfiler.stopSampling(root);
+		samplingProfiler.sample();
+
+		assertEquals(TimeUnit.HOURS.toNanos(2), root.getExecutionTime());
+		assertEquals(1, root.getChildren().size());
+		final CallStackElement testMethod = root.getChildren().get(0);
+		assertEquals(SamplingProfilerTest.class.getName() + ".testSample()", testMethod.getSignature());
+		assertEquals(1, testMethod.getChildren().size());
+		final CallStackElement method1 = testMethod.getChildren().get(0);
+		assertEquals(SamplingProfilerTest.class.getName() + ".method1()", method1.getSignature());
+		assertEquals(TimeUnit.HOURS.toNanos(2), method1.getExecutionTime());
+		assertEquals(SamplingProfiler.class.getName() + ".sample()", method1.getChildren().get(0).getSignature());
+	}
+
+	@Test
+	public void testMaxDepthAndMaxNodes() throws Exception {
+		final CallStackElement depthLimited = samplingProfiler.startSampling("total", Integer.MAX_VALUE, 2);
+		method1();
+		samplingProfiler.stopSampling(depthLimited);
+		final CallStackElement nodesLimited = samplingProfiler.startSampling("total", 2, Integer.MAX_VALUE);
+		method1();
+		samplingProfiler.stopSampling(nodesLimited);
+
+		assertEquals(1, depthLimited.getChildren().get(0).getChildren().size());
+		assertTrue(depthLimited.getChildren().get(0).getChildren().get(0).getChildren().isEmpty());
+		assertEquals(1, nodesLimited.getChildren().size());
+		assertTrue(nodesLimited.getChildren().get(0).getChildren().isEmpty());
+	}
+
+	@Test
+	public void testNestedSampling() throws Exception {
+		final CallStackElement outer = samplingProfiler.startSampling("outer", Integer.MAX_VALUE, Integer.MAX_VALUE);
+		final CallStackElement inner = samplingProfiler.startSampling("inner", Integer.MAX_VALUE, Integer.MAX_VALUE);
+		method1();
+		samplingProfiler.stopSampling(inner);
+		samplingProfiler.stopSampling(inner);
+		method1();
+		samplingProfiler.stopSampling(outer);
+
+		assertEquals(TimeUnit.HOURS.toNanos(1), inner.getExecutionTime());
+		assertEquals(TimeUnit.HOURS.toNanos(1), outer.getExecutionTime());
+	}
+
+	@Test
+	public void testSampleOtherThreads() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch sampled = new CountDownLatch(1);
+		final List<CallStackElement> roots = new CopyOnWriteArrayList<CallStackElement>();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 2; i++) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final CallStackElement root = samplingProfiler.startSampling("total", Integer.MAX_VALUE, Integer.MAX_VALUE);
+					roots.add(root);
+					started.countDown();
+					try {
+						sampled.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					samplingProfiler.stopSampling(root);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		started.await();
+		for (Thread thread : threads) {
+			while (thread.getState() != Thread.State.WAITING) {
+				Thread.sleep(1);
+			}
+		}
+
+		samplingProfiler.sample();
+		sampled.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(2, roots.size());
+		for (CallStackElement root : roots) {
+			assertEquals(TimeUnit.HOURS.toNanos(1), root.getExecutionTime());
+			final CallStackElement run = root.getChildren().get(0);
+			assertTrue(run.getSignature().endsWith(".run()"));
+			assertEquals(CountDownLatch.class.getName() + ".await()", run.getChildren().get(0).getSignature());
+		}
+	}
+
+	private void method1() {
+		samplingProfiler.sample();
+	}
+}
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.FilterRegistration;
@@ -36,14 +37,18 @@ import org.stagemonitor.core.util.ClassUtils;
 import org.stagemonitor.core.util.StringUtils;
 import org.stagemonitor.web.configuration.ConfigurationServlet;
 import org.stagemonitor.web.logging.MDCListener;
+import org.stagemonitor.web.metrics.PrometheusServlet;
 import org.stagemonitor.web.metrics.StagemonitorMetricsServlet;
 import org.stagemonitor.web.monitor.MonitoredHttpRequest;
 import org.stagemonitor.web.monitor.filter.HttpRequestMonitorFilter;
 import org.stagemonitor.web.monitor.filter.StagemonitorSecurityFilter;
 import org.stagemonitor.web.monitor.filter.UserNameFilter;
 import org.stagemonitor.web.monitor.rum.RumServlet;
+import org.stagemonitor.web.monitor.servlet.AggregatedCallTreeServlet;
 import org.stagemonitor.web.monitor.servlet.FileServlet;
+import org.stagemonitor.web.monitor.servlet.RecentRequestTracesServlet;
 import org.stagemonitor.web.monitor.spring.SpringMonitoredHttpRequest;
+import org.stagemonitor.web.monitor.widget.LiveStreamServlet;
 import org.stagemonitor.web.monitor.widget.RequestTraceServlet;
 import org.stagemonitor.web.monitor.widget.WidgetServlet;
 import org.stagemonitor.web.session.SessionCounter;
@@ -56,6 +61,12 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 
 	private static final Logger logger = LoggerFactory.getLogger(WebPlugin.class);
 
+	private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\\\d|\\\\k<");
+	/**
+	 * Marks that the patterns of stagemonitor.groupUrls can't be combined into a single pattern
+	 */
+	private static final Pattern UNCOMBINABLE_GROUP_URLS = Pattern.compile("(?!)");
+
 	static  {
 		Stagemonitor.init();
 	}
@@ -111,6 +122,17 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 			.defaultValue(true)
 			.configurationCategory(WEB_PLUGIN)
 			.build();
+	private final ConfigurationOption<Integer> liveStreamMetricsInterval = ConfigurationOption.integerOption()
+			.key("stagemonitor.web.widget.liveStream.metricsInterval")
+			.dynamic(false)
+			.label("Live stream metrics interval")
+			.description("The amount of time between the metrics are pushed to the in browser widget (in seconds). " +
+					"The metrics are serialized once per interval for all connected widgets and only the metrics that " +
+					"have changed are transmitted. To deactivate pushing metrics, set this to a value below 1.\n" +
+					"Requires Servlet-Api >= 3.0")
+			.defaultValue(5)
+			.configurationCategory(WEB_PLUGIN)
+			.build();
 	private final ConfigurationOption<Map<Pattern, String>> groupUrls = ConfigurationOption.regexMapOption()
 			.key("stagemonitor.groupUrls")
 			.dynamic(true)
@@ -140,6 +162,26 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 			.defaultValue(true)
 			.configurationCategory(WEB_PLUGIN)
 			.build();
+	private final ConfigurationOption<Double> rumSampleRate = ConfigurationOption.doubleOption()
+			.key("stagemonitor.web.rum.sampleRate")
+			.dynamic(false)
+			.label("Real User Monitoring sample rate")
+			.description("The fraction of page views that send a beacon (between 0 and 1). For example, if set to " +
+					"0.1, only every 10th page view is recorded. The sampling is done in the browser, so page views " +
+					"that are not sampled don't cause a request at all.")
+			.defaultValue(1.0)
+			.configurationCategory(WEB_PLUGIN)
+			.build();
+	private final ConfigurationOption<Integer> rumBatchSize = ConfigurationOption.integerOption()
+			.key("stagemonitor.web.rum.batchSize")
+			.dynamic(false)
+			.label("Real User Monitoring batch size")
+			.description("If greater than 1, the browser collects this number of beacons in the local storage and " +
+					"sends them in a single request via navigator.sendBeacon. Browsers that don't support the local " +
+					"storage or navigator.sendBeacon send each beacon on its own.")
+			.defaultValue(1)
+			.configurationCategory(WEB_PLUGIN)
+			.build();
 	private final ConfigurationOption<Boolean> collectPageLoadTimesPerRequest = ConfigurationOption.booleanOption()
 			.key("stagemonitor.web.collectPageLoadTimesPerRequest")
 			.dynamic(true)
@@ -192,6 +234,26 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 			.defaultValue(null)
 			.configurationCategory(WEB_PLUGIN)
 			.build();
+	private final ConfigurationOption<Integer> metricsServletCacheMillis = ConfigurationOption.integerOption()
+			.key("stagemonitor.web.metricsServlet.cacheMillis")
+			.dynamic(true)
+			.label("Metrics servlet cache duration")
+			.description("The amount of time in milliseconds a rendered response of the metrics servlet is reused " +
+					"for requests with the same query string. Concurrent requests share a single render. " +
+					"Set to 0 to always render the current metrics.")
+			.defaultValue(0)
+			.configurationCategory(WEB_PLUGIN)
+			.build();
+	private final ConfigurationOption<Integer> prometheusCacheMillis = ConfigurationOption.integerOption()
+			.key("stagemonitor.web.prometheus.cacheMillis")
+			.dynamic(true)
+			.label("Prometheus endpoint cache duration")
+			.description("The amount of time in milliseconds the metrics rendered for /stagemonitor/prometheus are " +
+					"reused. Scrapes that arrive while the metrics are rendered always share the result. " +
+					"Set to 0 to render the current metrics for each scrape.")
+			.defaultValue(1000)
+			.configurationCategory(WEB_PLUGIN)
+			.build();
 	private ConfigurationOption<Boolean> monitorOnlySpringMvcOption = ConfigurationOption.booleanOption()
 			.key("stagemonitor.requestmonitor.spring.monitorOnlySpringMvcRequests")
 			.dynamic(true)
@@ -231,9 +293,20 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 			.configurationCategory(WEB_PLUGIN)
 			.build();
 
+	private volatile Snapshot snapshot;
+	/**
+	 * The combined pattern of stagemonitor.groupUrls, {@link #UNCOMBINABLE_GROUP_URLS} if they can't be combined or
+	 * <code>null</code> if the pattern has not been compiled yet
+	 */
+	private volatile Pattern anyGroupUrlPattern;
+
 	@Override
 	public void initializePlugin(Metric2Registry registry, Configuration config) {
 		registerPooledResources(registry, tomcatThreadPools());
+	}
+
+	@Override
+	public void initializeRemoteResources(Configuration config) {
 		final CorePlugin corePlugin = config.getConfig(CorePlugin.class);
 		ElasticsearchClient elasticsearchClient = corePlugin.getElasticsearchClient();
 		if (corePlugin.isReportToGraphite()) {
@@ -261,8 +334,31 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 		return configurationOptions;
 	}
 
+	public WebPlugin() {
+		groupUrls.addChangeListener(new ConfigurationOption.ChangeListener<Map<Pattern, String>>() {
+			@Override
+			public void onChange(ConfigurationOption<?> configurationOption, Map<Pattern, String> oldValue, Map<Pattern, String> newValue) {
+				anyGroupUrlPattern = orUncombinable(compileAnyGroupUrlPattern(newValue));
+			}
+		});
+	}
+
+	@Override
+	protected void onConfigurationReloaded() {
+		snapshot = new Snapshot(this);
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			snapshot = new Snapshot(this);
+			this.snapshot = snapshot;
+		}
+		return snapshot;
+	}
+
 	public boolean isCollectHttpHeaders() {
-		return collectHttpHeaders.getValue();
+		return getSnapshot().collectHttpHeaders;
 	}
 
 	public boolean isParseUserAgent() {
@@ -270,27 +366,86 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 	}
 
 	public Collection<String> getExcludeHeaders() {
-		return excludeHeaders.getValue();
+		return getSnapshot().excludeHeaders;
 	}
 
 	public boolean isWidgetEnabled() {
 		return widgetEnabled.getValue();
 	}
 
+	public int getLiveStreamMetricsInterval() {
+		return liveStreamMetricsInterval.getValue();
+	}
+
 	public Map<Pattern, String> getGroupUrls() {
-		return groupUrls.getValue();
+		return getSnapshot().groupUrls;
+	}
+
+	/**
+	 * Returns a single pattern that finds a match if and only if at least one of the patterns of {@link #getGroupUrls()}
+	 * does. That way, request names that don't have to be grouped can be detected with a single regex evaluation.
+	 * <p/>
+	 * The pattern is only recompiled when the value of <code>stagemonitor.groupUrls</code> changes.
+	 *
+	 * @return the combined pattern or <code>null</code>, if the patterns can't be combined
+	 */
+	public Pattern getAnyGroupUrlPattern() {
+		Pattern anyGroupUrlPattern = this.anyGroupUrlPattern;
+		if (anyGroupUrlPattern == null) {
+			anyGroupUrlPattern = orUncombinable(compileAnyGroupUrlPattern(groupUrls.getValue()));
+			this.anyGroupUrlPattern = anyGroupUrlPattern;
+		}
+		return anyGroupUrlPattern != UNCOMBINABLE_GROUP_URLS ? anyGroupUrlPattern : null;
+	}
+
+	private static Pattern orUncombinable(Pattern anyGroupUrlPattern) {
+		return anyGroupUrlPattern != null ? anyGroupUrlPattern : UNCOMBINABLE_GROUP_URLS;
+	}
+
+	static Pattern compileAnyGroupUrlPattern(Map<Pattern, String> groupUrls) {
+		final StringBuilder sb = new StringBuilder();
+		for (Pattern pattern : groupUrls.keySet()) {
+			if (BACK_REFERENCE.matcher(pattern.pattern()).find()) {
+				// the group numbers are shifted in the combined pattern
+				return null;
+			}
+			if (sb.length() > 0) {
+				sb.append('|');
+			}
+			sb.append("(?:").append(pattern.pattern()).append(')');
+		}
+		if (sb.length() == 0) {
+			// matches nothing
+			return Pattern.compile("(?!)");
+		}
+		try {
+			return Pattern.compile(sb.toString());
+		} catch (PatternSyntaxException e) {
+			// for example, if two patterns define a named group with the same name
+			logger.warn("The patterns of stagemonitor.groupUrls can't be combined, they are evaluated one by one: " +
+					e.getMessage());
+			return null;
+		}
 	}
 
 	public Collection<Pattern> getRequestParamsConfidential() {
-		return requestParamsConfidential.getValue();
+		return getSnapshot().requestParamsConfidential;
 	}
 
 	public boolean isRealUserMonitoringEnabled() {
-		return rumEnabled.getValue();
+		return getSnapshot().realUserMonitoringEnabled;
+	}
+
+	public double getRumSampleRate() {
+		return rumSampleRate.getValue();
+	}
+
+	public int getRumBatchSize() {
+		return rumBatchSize.getValue();
 	}
 
 	public boolean isCollectPageLoadTimesPerRequest() {
-		return collectPageLoadTimesPerRequest.getValue();
+		return getSnapshot().collectPageLoadTimesPerRequest;
 	}
 
 	public Collection<String> getExcludedRequestPaths() {
@@ -298,7 +453,7 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 	}
 
 	public boolean isMonitorOnlyForwardedRequests() {
-		return monitorOnlyForwardedRequests.getValue();
+		return getSnapshot().monitorOnlyForwardedRequests;
 	}
 
 	public String getMetricsServletAllowedOrigin() {
@@ -309,6 +464,14 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 		return metricsServletJsonpParameter.getValue();
 	}
 
+	public int getMetricsServletCacheMillis() {
+		return metricsServletCacheMillis.getValue();
+	}
+
+	public int getPrometheusCacheMillis() {
+		return prometheusCacheMillis.getValue();
+	}
+
 	public boolean isWidgetAndStagemonitorEndpointsAllowed(HttpServletRequest request, Configuration configuration) {
 		final Boolean showWidgetAttr = (Boolean) request.getAttribute(STAGEMONITOR_SHOW_WIDGET);
 		if (showWidgetAttr != null) {
@@ -349,7 +512,7 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 	}
 	
 	public Collection<String> getRequestExceptionAttributes() {
-		return requestExceptionAttributes.getValue();
+		return getSnapshot().requestExceptionAttributes;
 	}
 
 	@Override
@@ -358,10 +521,16 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 				.addMapping(ConfigurationServlet.CONFIGURATION_ENDPOINT);
 		ctx.addServlet(StagemonitorMetricsServlet.class.getSimpleName(), new StagemonitorMetricsServlet())
 				.addMapping("/stagemonitor/metrics");
+		ctx.addServlet(PrometheusServlet.class.getSimpleName(), new PrometheusServlet())
+				.addMapping("/stagemonitor/prometheus");
 		ctx.addServlet(RumServlet.class.getSimpleName(), new RumServlet())
 				.addMapping("/stagemonitor/public/rum");
 		ctx.addServlet(FileServlet.class.getSimpleName(), new FileServlet())
 				.addMapping("/stagemonitor/static/*", "/stagemonitor/public/static/*");
+		ctx.addServlet(RecentRequestTracesServlet.class.getSimpleName(), new RecentRequestTracesServlet())
+				.addMapping("/stagemonitor/recent-request-traces/*");
+		ctx.addServlet(AggregatedCallTreeServlet.class.getSimpleName(), new AggregatedCallTreeServlet())
+				.addMapping("/stagemonitor/aggregated-call-trees");
 		ctx.addServlet(WidgetServlet.class.getSimpleName(), new WidgetServlet())
 				.addMapping("/stagemonitor");
 
@@ -369,6 +538,10 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 		requestTraceServlet.addMapping("/stagemonitor/request-traces");
 		requestTraceServlet.setAsyncSupported(true);
 
+		final ServletRegistration.Dynamic liveStreamServlet = ctx.addServlet(LiveStreamServlet.class.getSimpleName(), new LiveStreamServlet());
+		liveStreamServlet.addMapping("/stagemonitor/live");
+		liveStreamServlet.setAsyncSupported(true);
+
 
 		final FilterRegistration.Dynamic securityFilter = ctx.addFilter(StagemonitorSecurityFilter.class.getSimpleName(), new StagemonitorSecurityFilter());
 		// Add as last filter so that other filters have the chance to set the
@@ -392,4 +565,29 @@ public class WebPlugin extends StagemonitorPlugin implements ServletContainerIni
 		ctx.addListener(SpringMonitoredHttpRequest.HandlerMappingServletContextListener.class);
 		ctx.addListener(SessionCounter.class);
 	}
+
+	/**
+	 * The immutable values that {@link HttpRequestMonitorFilter} and {@link MonitoredHttpRequest} use for each request
+	 */
+	private static class Snapshot {
+		private final boolean collectHttpHeaders;
+		private final Collection<String> excludeHeaders;
+		private final Map<Pattern, String> groupUrls;
+		private final Collection<Pattern> requestParamsConfidential;
+		private final boolean realUserMonitoringEnabled;
+		private final boolean collectPageLoadTimesPerRequest;
+		private final boolean monitorOnlyForwardedRequests;
+		private final Collection<String> requestExceptionAttributes;
+
+		private Snapshot(WebPlugin plugin) {
+			collectHttpHeaders = plugin.collectHttpHeaders.getValue();
+			excludeHeaders = plugin.excludeHeaders.getValue();
+			groupUrls = plugin.groupUrls.getValue();
+			requestParamsConfidential = plugin.requestParamsConfidential.getValue();
+			realUserMonitoringEnabled = plugin.rumEnabled.getValue();
+			collectPageLoadTimesPerRequest = plugin.collectPageLoadTimesPerRequest.getValue();
+			monitorOnlyForwardedRequests = plugin.monitorOnlyForwardedRequests.getValue();
+			requestExceptionAttributes = plugin.requestExceptionAttributes.getValue();
+		}
+	}
 }
@@ -0,0 +1,35 @@
+package org.stagemonitor.web.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+
+/**
+ * The names of the metric types as used in the json representation of a {@link com.codahale.metrics.MetricRegistry}
+ */
+final class MetricTypes {
+
+	static final String[] TYPES = {"gauges", "counters", "histograms", "meters", "timers"};
+
+	private MetricTypes() {
+		// don't instantiate
+	}
+
+	static String getType(Metric metric) {
+		if (metric instanceof Timer) {
+			return "timers";
+		} else if (metric instanceof Histogram) {
+			return "histograms";
+		} else if (metric instanceof Meter) {
+			return "meters";
+		} else if (metric instanceof Counter) {
+			return "counters";
+		} else if (metric instanceof Gauge) {
+			return "gauges";
+		}
+		return null;
+	}
+}
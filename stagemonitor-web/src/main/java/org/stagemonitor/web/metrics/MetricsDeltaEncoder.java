@@ -0,0 +1,149 @@
+package org.stagemonitor.web.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.codahale.metrics.Metric;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+
+/**
+ * Serializes the metrics of a {@link Metric2Registry} once per tick and encodes only the metrics that have changed
+ * since the previous tick.
+ * <p/>
+ * The json format is compatible with the one of {@link StagemonitorMetricsServlet}
+ * (<code>{"gauges": {...}, "counters": {...}, "histograms": {...}, "meters": {...}, "timers": {...}}</code>) and
+ * additionally contains the names of the metrics that have been removed since the last tick (<code>"removed"</code>)
+ * and whether the document contains all metrics or just the changes (<code>"full"</code>).
+ * <p/>
+ * The graphite name of each metric is only computed once, when the metric is first seen.
+ * <p/>
+ * This class is not thread safe. {@link #tick()} and {@link #encodeFull()} are meant to be called by a single
+ * scheduler thread.
+ */
+public class MetricsDeltaEncoder {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final Metric2Registry registry;
+	private final ObjectMapper mapper;
+	private Map<MetricName, SerializedMetric> previousTick = new HashMap<MetricName, SerializedMetric>();
+	private long timestamp;
+
+	public MetricsDeltaEncoder(Metric2Registry registry, ObjectMapper mapper) {
+		this.registry = registry;
+		this.mapper = mapper;
+	}
+
+	/**
+	 * Serializes all metrics and returns the json of those which have changed since the last tick.
+	 *
+	 * @return the json encoded changes or <code>null</code>, if nothing has changed
+	 */
+	public byte[] tick() throws IOException {
+		final Map<MetricName, SerializedMetric> currentTick = new HashMap<MetricName, SerializedMetric>(previousTick.size());
+		final List<SerializedMetric> changed = new ArrayList<SerializedMetric>();
+		for (Map.Entry<MetricName, Metric> entry : registry.getMetrics().entrySet()) {
+			final String type = MetricTypes.getType(entry.getValue());
+			if (type == null) {
+				continue;
+			}
+			final String json = serialize(entry.getValue());
+			if (json == null) {
+				continue;
+			}
+			final SerializedMetric previous = previousTick.get(entry.getKey());
+			final String graphiteName = previous != null ? previous.graphiteName : entry.getKey().toGraphiteName();
+			final SerializedMetric current = new SerializedMetric(graphiteName, type, json);
+			currentTick.put(entry.getKey(), current);
+			if (previous == null || !previous.json.equals(json)) {
+				changed.add(current);
+			}
+		}
+
+		final List<String> removed = new ArrayList<String>();
+		for (Map.Entry<MetricName, SerializedMetric> entry : previousTick.entrySet()) {
+			if (!currentTick.containsKey(entry.getKey())) {
+				removed.add(entry.getValue().graphiteName);
+			}
+		}
+		previousTick = currentTick;
+		timestamp = System.currentTimeMillis();
+
+		if (changed.isEmpty() && removed.isEmpty()) {
+			return null;
+		}
+		return encode(false, changed, removed);
+	}
+
+	/**
+	 * Returns the json of all metrics as serialized by the last {@link #tick()}
+	 *
+	 * @return the json encoded metrics
+	 */
+	public byte[] encodeFull() throws IOException {
+		return encode(true, previousTick.values(), new ArrayList<String>(0));
+	}
+
+	private byte[] encode(boolean full, Collection<SerializedMetric> metrics, List<String> removed) throws IOException {
+		final Map<String, List<SerializedMetric>> metricsByType = new LinkedHashMap<String, List<SerializedMetric>>();
+		for (String type : MetricTypes.TYPES) {
+			metricsByType.put(type, new ArrayList<SerializedMetric>());
+		}
+		for (SerializedMetric metric : metrics) {
+			metricsByType.get(metric.type).add(metric);
+		}
+
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final JsonGenerator jg = mapper.getFactory().createGenerator(os);
+		jg.writeStartObject();
+		jg.writeBooleanField("full", full);
+		jg.writeNumberField("timestamp", timestamp);
+		for (Map.Entry<String, List<SerializedMetric>> entry : metricsByType.entrySet()) {
+			jg.writeObjectFieldStart(entry.getKey());
+			for (SerializedMetric metric : entry.getValue()) {
+				jg.writeFieldName(metric.graphiteName);
+				jg.writeRawValue(metric.json);
+			}
+			jg.writeEndObject();
+		}
+		jg.writeArrayFieldStart("removed");
+		for (String name : removed) {
+			jg.writeString(name);
+		}
+		jg.writeEndArray();
+		jg.writeEndObject();
+		jg.close();
+		return os.toByteArray();
+	}
+
+	private String serialize(Metric metric) {
+		try {
+			return mapper.writeValueAsString(metric);
+		} catch (Exception e) {
+			logger.warn("Could not serialize metric: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	private static class SerializedMetric {
+		private final String graphiteName;
+		private final String type;
+		private final String json;
+
+		private SerializedMetric(String graphiteName, String type, String json) {
+			this.graphiteName = graphiteName;
+			this.type = type;
+			this.json = json;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.stagemonitor.web.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.stagemonitor.core.Stagemonitor;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.web.WebPlugin;
+
+/**
+ * Exposes the metrics of a {@link Metric2Registry} in the Prometheus text format (see {@link PrometheusTextRenderer}).
+ * <p/>
+ * The metrics are rendered at most once per <code>stagemonitor.web.prometheus.cacheMillis</code>. Scrapes that arrive
+ * while the metrics are rendered wait for the result instead of rendering again, so that several Prometheus servers
+ * scraping at the same time only cost one render.
+ * <p/>
+ * Like all endpoints under /stagemonitor/*, this servlet is protected by the
+ * {@link org.stagemonitor.web.monitor.filter.StagemonitorSecurityFilter}.
+ */
+public class PrometheusServlet extends HttpServlet {
+
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final WebPlugin webPlugin;
+	private final PrometheusTextRenderer renderer;
+	private final Object renderLock = new Object();
+	private volatile RenderedMetrics lastRender;
+
+	public PrometheusServlet() {
+		this(Stagemonitor.getMetric2Registry(), Stagemonitor.getConfiguration(WebPlugin.class));
+	}
+
+	public PrometheusServlet(Metric2Registry registry, WebPlugin webPlugin) {
+		this.webPlugin = webPlugin;
+		this.renderer = new PrometheusTextRenderer(registry);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final byte[] metrics = getRenderedMetrics(System.currentTimeMillis());
+		resp.setStatus(HttpServletResponse.SC_OK);
+		resp.setContentType(CONTENT_TYPE);
+		resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+		resp.setContentLength(metrics.length);
+		final OutputStream output = resp.getOutputStream();
+		try {
+			output.write(metrics);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Returns the last rendered metrics, if the rendering has been started at most
+	 * <code>stagemonitor.web.prometheus.cacheMillis</code> before the request came in. Otherwise, the metrics are
+	 * rendered.
+	 *
+	 * @param requestTime the time the request came in
+	 * @return the rendered metrics
+	 */
+	byte[] getRenderedMetrics(long requestTime) throws IOException {
+		final long oldestAcceptableRender = requestTime - webPlugin.getPrometheusCacheMillis();
+		RenderedMetrics rendered = lastRender;
+		if (rendered != null && rendered.renderStart >= oldestAcceptableRender) {
+			return rendered.payload;
+		}
+		synchronized (renderLock) {
+			rendered = lastRender;
+			if (rendered == null || rendered.renderStart < oldestAcceptableRender) {
+				final long renderStart = System.currentTimeMillis();
+				rendered = new RenderedMetrics(renderer.render(), renderStart);
+				lastRender = rendered;
+			}
+			return rendered.payload;
+		}
+	}
+
+	private static class RenderedMetrics {
+		private final byte[] payload;
+		private final long renderStart;
+
+		private RenderedMetrics(byte[] payload, long renderStart) {
+			this.payload = payload;
+			this.renderStart = renderStart;
+		}
+	}
+}
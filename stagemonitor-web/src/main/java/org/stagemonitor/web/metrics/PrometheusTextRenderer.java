@@ -0,0 +1,260 @@
+package org.stagemonitor.web.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+
+/**
+ * Renders the metrics of a {@link Metric2Registry} in the
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus text exposition format</a>
+ * (version 0.0.4).
+ * <p/>
+ * The tags of a {@link MetricName} are rendered as labels. The metrics are mapped as follows:
+ * <ul>
+ *     <li>{@link Gauge}s with numeric or boolean values and {@link Counter}s are rendered as <code>gauge</code>,
+ *     because a {@link Counter} can also be decremented</li>
+ *     <li>{@link Meter}s are rendered as <code>counter</code> with the suffix <code>_total</code></li>
+ *     <li>{@link Histogram}s and {@link Timer}s are rendered as <code>summary</code>. The values of timers are
+ *     converted to seconds. The metrics don't record the exact sum of all observations, so <code>_sum</code> is
+ *     approximated as the mean of the reservoir times the count. The approximation is exact as long as the reservoir
+ *     contains all observations, otherwise it depends on how representative the reservoir is.</li>
+ * </ul>
+ * The metric names and label strings are only computed once, when the metric is first seen.
+ * <p/>
+ * This class is not thread safe. The output is rendered into a buffer that is reused for each call of
+ * {@link #render()}.
+ */
+class PrometheusTextRenderer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+	private static final String[] QUANTILE_LABELS = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+	private static final double SECONDS_PER_NANOSECOND = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final Metric2Registry registry;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+	private final Writer writer = new OutputStreamWriter(buffer, UTF_8);
+	private Map<MetricName, Sample> samples = new HashMap<MetricName, Sample>();
+
+	PrometheusTextRenderer(Metric2Registry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Renders all metrics
+	 *
+	 * @return the rendered metrics
+	 */
+	byte[] render() throws IOException {
+		final Map<String, List<Sample>> families = collectFamilies();
+		buffer.reset();
+		for (Map.Entry<String, List<Sample>> family : families.entrySet()) {
+			final List<Sample> familySamples = family.getValue();
+			writer.write("# TYPE ");
+			writer.write(family.getKey());
+			writer.write(' ');
+			writer.write(familySamples.get(0).type);
+			writer.write('\n');
+			for (Sample sample : familySamples) {
+				writeSample(sample);
+			}
+		}
+		writer.flush();
+		return buffer.toByteArray();
+	}
+
+	private Map<String, List<Sample>> collectFamilies() {
+		final Map<MetricName, Sample> currentSamples = new HashMap<MetricName, Sample>(samples.size());
+		final Map<String, List<Sample>> families = new TreeMap<String, List<Sample>>();
+		for (Map.Entry<MetricName, Metric> entry : registry.getMetrics().entrySet()) {
+			Sample sample = samples.get(entry.getKey());
+			if (sample == null || sample.metric != entry.getValue()) {
+				sample = createSample(entry.getKey(), entry.getValue());
+				if (sample == null) {
+					continue;
+				}
+			}
+			currentSamples.put(entry.getKey(), sample);
+
+			List<Sample> family = families.get(sample.name);
+			if (family == null) {
+				family = new ArrayList<Sample>();
+				families.put(sample.name, family);
+			}
+			if (family.isEmpty() || family.get(0).type.equals(sample.type)) {
+				family.add(sample);
+			} else {
+				logger.debug("Skipping {}, because there already is a metric with the name {} of another type",
+						entry.getKey(), sample.name);
+			}
+		}
+		samples = currentSamples;
+		return families;
+	}
+
+	private static Sample createSample(MetricName metricName, Metric metric) {
+		final String name = sanitizeName(metricName.getName());
+		final String labels = renderLabels(metricName.getTags());
+		if (metric instanceof Timer || metric instanceof Histogram) {
+			return new Sample(metric, name, "summary", labels);
+		} else if (metric instanceof Meter) {
+			return new Sample(metric, name + "_total", "counter", labels);
+		} else if (metric instanceof Counter || metric instanceof Gauge) {
+			return new Sample(metric, name, "gauge", labels);
+		}
+		return null;
+	}
+
+	private void writeSample(Sample sample) throws IOException {
+		final Metric metric = sample.metric;
+		if (metric instanceof Timer) {
+			final Timer timer = (Timer) metric;
+			writeSummary(sample, timer.getSnapshot(), timer.getCount(), SECONDS_PER_NANOSECOND);
+		} else if (metric instanceof Histogram) {
+			final Histogram histogram = (Histogram) metric;
+			writeSummary(sample, histogram.getSnapshot(), histogram.getCount(), 1);
+		} else if (metric instanceof Meter) {
+			writeValue(sample.name, sample.labels, null, Long.toString(((Meter) metric).getCount()));
+		} else if (metric instanceof Counter) {
+			writeValue(sample.name, sample.labels, null, Long.toString(((Counter) metric).getCount()));
+		} else {
+			writeGauge(sample);
+		}
+	}
+
+	private void writeSummary(Sample sample, Snapshot snapshot, long count, double factor) throws IOException {
+		for (int i = 0; i < QUANTILES.length; i++) {
+			writeValue(sample.name, sample.labels, QUANTILE_LABELS[i], formatDouble(snapshot.getValue(QUANTILES[i]) * factor));
+		}
+		writeValue(sample.name + "_sum", sample.labels, null, formatDouble(snapshot.getMean() * count * factor));
+		writeValue(sample.name + "_count", sample.labels, null, Long.toString(count));
+	}
+
+	private void writeGauge(Sample sample) throws IOException {
+		final Object value;
+		try {
+			value = ((Gauge) sample.metric).getValue();
+		} catch (RuntimeException e) {
+			logger.debug("Could not get value of gauge {}: {}", sample.name, e.getMessage());
+			return;
+		}
+		if (value instanceof Number) {
+			writeValue(sample.name, sample.labels, null, formatDouble(((Number) value).doubleValue()));
+		} else if (value instanceof Boolean) {
+			writeValue(sample.name, sample.labels, null, ((Boolean) value) ? "1" : "0");
+		}
+	}
+
+	private void writeValue(String name, String labels, String quantile, String value) throws IOException {
+		writer.write(name);
+		if (!labels.isEmpty() || quantile != null) {
+			writer.write('{');
+			writer.write(labels);
+			if (quantile != null) {
+				if (!labels.isEmpty()) {
+					writer.write(',');
+				}
+				writer.write("quantile=\"");
+				writer.write(quantile);
+				writer.write('"');
+			}
+			writer.write('}');
+		}
+		writer.write(' ');
+		writer.write(value);
+		writer.write('\n');
+	}
+
+	static String formatDouble(double value) {
+		if (Double.isNaN(value)) {
+			return "NaN";
+		} else if (Double.isInfinite(value)) {
+			return value > 0 ? "+Inf" : "-Inf";
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * Replaces all characters that are not allowed in metric names (<code>[a-zA-Z_:][a-zA-Z0-9_:]*</code>)
+	 * with underscores
+	 */
+	static String sanitizeName(String name) {
+		final StringBuilder sb = new StringBuilder(name.length() + 1);
+		if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+			sb.append('_');
+		}
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == ':') {
+				sb.append(c);
+			} else {
+				sb.append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String renderLabels(Map<String, String> tags) {
+		final StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			// colons are reserved for metric names
+			sb.append(sanitizeName(tag.getKey()).replace(':', '_')).append("=\"");
+			escapeLabelValue(sb, tag.getValue());
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	private static void escapeLabelValue(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '\\') {
+				sb.append("\\\\");
+			} else if (c == '"') {
+				sb.append("\\\"");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	private static class Sample {
+		private final Metric metric;
+		private final String name;
+		private final String type;
+		private final String labels;
+
+		private Sample(Metric metric, String name, String type, String labels) {
+			this.metric = metric;
+			this.name = name;
+			this.type = type;
+			this.labels = labels;
+		}
+	}
+}
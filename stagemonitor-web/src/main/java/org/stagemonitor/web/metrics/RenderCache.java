@@ -0,0 +1,118 @@
+package org.stagemonitor.web.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares a rendered response between concurrent callers for a short amount of time.
+ * <p/>
+ * If multiple callers request the same key at the same time, only the first one renders the response.
+ * The others wait for the result instead of rendering it themselves. If rendering fails, the entry is removed, so that
+ * the next caller renders the response again.
+ */
+class RenderCache {
+
+	private final int maxEntries;
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	RenderCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	interface Renderer {
+		void render(OutputStream os) throws IOException;
+	}
+
+	/**
+	 * Returns the rendered response for the key, if it has been rendered no more than maxAgeMillis ago.
+	 * Otherwise, the response is rendered with the renderer.
+	 *
+	 * @param key          the cache key
+	 * @param maxAgeMillis the maximum age of a cached response
+	 * @param renderer     renders the response, if there is no cached response for the key that is recent enough
+	 * @return the rendered response
+	 */
+	byte[] get(String key, long maxAgeMillis, Renderer renderer) throws IOException {
+		final long now = System.currentTimeMillis();
+		Entry entry = entries.get(key);
+		if (entry == null || entry.isExpired(now, maxAgeMillis)) {
+			removeExpiredEntries(now, maxAgeMillis);
+			if (entries.size() >= maxEntries) {
+				return render(renderer);
+			}
+			final Entry newEntry = new Entry(now, renderer);
+			final boolean added = entry == null ? entries.putIfAbsent(key, newEntry) == null : entries.replace(key, entry, newEntry);
+			if (added) {
+				newEntry.future.run();
+			}
+			entry = entries.get(key);
+			if (entry == null) {
+				return render(renderer);
+			}
+		}
+		try {
+			return entry.getRendered();
+		} catch (IOException e) {
+			// don't serve the failure to the callers that come after the ones that are already waiting
+			entries.remove(key, entry);
+			throw e;
+		} catch (RuntimeException e) {
+			entries.remove(key, entry);
+			throw e;
+		}
+	}
+
+	private void removeExpiredEntries(long now, long maxAgeMillis) {
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			if (entry.getValue().isExpired(now, maxAgeMillis)) {
+				entries.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private static byte[] render(Renderer renderer) throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		renderer.render(os);
+		return os.toByteArray();
+	}
+
+	private static class Entry {
+		private final long renderedAt;
+		private final FutureTask<byte[]> future;
+
+		private Entry(long renderedAt, final Renderer renderer) {
+			this.renderedAt = renderedAt;
+			this.future = new FutureTask<byte[]>(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return render(renderer);
+				}
+			});
+		}
+
+		private boolean isExpired(long now, long maxAgeMillis) {
+			return future.isDone() && now - renderedAt > maxAgeMillis;
+		}
+
+		private byte[] getRendered() throws IOException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e.getMessage());
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+}
@@ -2,17 +2,31 @@ package org.stagemonitor.web.metrics;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.codahale.metrics.Metric;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import com.fasterxml.jackson.databind.util.JSONPObject;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.stagemonitor.core.Stagemonitor;
+import org.stagemonitor.core.metrics.metrics2.Metric2Filter;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.metrics.metrics2.MetricName;
+import org.stagemonitor.core.metrics.metrics2.MetricNameFilter;
 import org.stagemonitor.core.util.JsonUtils;
 import org.stagemonitor.web.WebPlugin;
 
@@ -20,12 +34,52 @@ import org.stagemonitor.web.WebPlugin;
  * A servlet which returns the metrics in a given registry as an {@code application/json} response.
  * Derived from com.codahale.metrics.servlets.MetricsServlet
  * (https://github.com/dropwizard/metrics/blob/master/metrics-servlets/src/main/java/com/codahale/metrics/servlets/MetricsServlet.java)
+ * <p/>
+ * The following query parameters are supported:
+ * <ul>
+ *     <li><code>name</code>: only returns metrics with this name (see {@link MetricName#getName()}), can be repeated</li>
+ *     <li><code>tag</code>: only returns metrics with this tag in the form <code>key:value</code>, can be repeated</li>
+ *     <li><code>fields</code>: a comma separated list of the fields that should be returned for each metric
+ *     (for example <code>count,mean,p95</code>)</li>
+ *     <li><code>offset</code> and <code>limit</code>: pagination of the matching metrics, which are ordered by
+ *     name and tags. If present, the response contains the total number of matching metrics (<code>total</code>).</li>
+ *     <li><code>pretty</code>: pretty prints the json if <code>true</code></li>
+ * </ul>
+ * The name and tag filters are evaluated against the {@link MetricName}, only the metrics that are returned are
+ * converted to graphite names.
  */
 public class StagemonitorMetricsServlet extends HttpServlet {
 
+	private static final String VERSION = "3.0.0";
+	private static final int MAX_CACHED_RESPONSES = 64;
+
+	private static final Comparator<Map.Entry<MetricName, Metric>> BY_METRIC_NAME = new Comparator<Map.Entry<MetricName, Metric>>() {
+		@Override
+		public int compare(Map.Entry<MetricName, Metric> o1, Map.Entry<MetricName, Metric> o2) {
+			final MetricName name1 = o1.getKey();
+			final MetricName name2 = o2.getKey();
+			int result = name1.getName().compareTo(name2.getName());
+			final Iterator<Map.Entry<String, String>> tags1 = name1.getTags().entrySet().iterator();
+			final Iterator<Map.Entry<String, String>> tags2 = name2.getTags().entrySet().iterator();
+			while (result == 0 && tags1.hasNext() && tags2.hasNext()) {
+				final Map.Entry<String, String> tag1 = tags1.next();
+				final Map.Entry<String, String> tag2 = tags2.next();
+				result = tag1.getKey().compareTo(tag2.getKey());
+				if (result == 0) {
+					result = tag1.getValue().compareTo(tag2.getValue());
+				}
+			}
+			if (result == 0) {
+				result = name1.getTags().size() - name2.getTags().size();
+			}
+			return result;
+		}
+	};
+
 	private final Metric2Registry registry;
 	private final WebPlugin webPlugin;
 	private final ObjectMapper mapper;
+	private final RenderCache renderCache = new RenderCache(MAX_CACHED_RESPONSES);
 
 	public StagemonitorMetricsServlet() {
 		this(Stagemonitor.getMetric2Registry(), Stagemonitor.getConfiguration(WebPlugin.class), JsonUtils.getMapper());
@@ -38,7 +92,15 @@ public class StagemonitorMetricsServlet extends HttpServlet {
 	}
 
 	@Override
-	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+	protected void doGet(final HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final MetricsQuery query;
+		try {
+			query = new MetricsQuery(req);
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
 		resp.setContentType("application/json");
 		if (webPlugin.getMetricsServletAllowedOrigin() != null) {
 			resp.setHeader("Access-Control-Allow-Origin", webPlugin.getMetricsServletAllowedOrigin());
@@ -48,21 +110,151 @@ public class StagemonitorMetricsServlet extends HttpServlet {
 
 		final OutputStream output = resp.getOutputStream();
 		try {
-			String jsonpParamName = webPlugin.getMetricsServletJsonpParamName();
-			if (jsonpParamName != null && req.getParameter(jsonpParamName) != null) {
-				getWriter(req).writeValue(output, new JSONPObject(req.getParameter(jsonpParamName), registry.getMetricRegistry()));
+			final long cacheMillis = webPlugin.getMetricsServletCacheMillis();
+			if (cacheMillis > 0) {
+				final String cacheKey = req.getQueryString() != null ? req.getQueryString() : "";
+				output.write(renderCache.get(cacheKey, cacheMillis, new RenderCache.Renderer() {
+					@Override
+					public void render(OutputStream os) throws IOException {
+						writeMetrics(os, req, query);
+					}
+				}));
 			} else {
-				getWriter(req).writeValue(output, registry.getMetricRegistry());
+				writeMetrics(output, req, query);
 			}
 		} finally {
 			output.close();
 		}
 	}
 
-	private ObjectWriter getWriter(HttpServletRequest request) {
-		if (Boolean.parseBoolean(request.getParameter("pretty"))) {
-			return mapper.writerWithDefaultPrettyPrinter();
+	private void writeMetrics(OutputStream os, HttpServletRequest req, MetricsQuery query) throws IOException {
+		final JsonGenerator jg = mapper.getFactory().createGenerator(os);
+		jg.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		if (Boolean.parseBoolean(req.getParameter("pretty"))) {
+			jg.useDefaultPrettyPrinter();
+		}
+		final String jsonpParamName = webPlugin.getMetricsServletJsonpParamName();
+		final String jsonpCallback = jsonpParamName != null ? req.getParameter(jsonpParamName) : null;
+		if (jsonpCallback != null) {
+			jg.writeRaw(jsonpCallback);
+			jg.writeRaw('(');
+		}
+		if (query.isEmpty()) {
+			jg.writeObject(registry.getMetricRegistry());
+		} else {
+			writeMatchingMetrics(jg, query);
+		}
+		if (jsonpCallback != null) {
+			jg.writeRaw(')');
+		}
+		jg.close();
+	}
+
+	private void writeMatchingMetrics(JsonGenerator jg, MetricsQuery query) throws IOException {
+		final List<Map.Entry<MetricName, Metric>> matches = new ArrayList<Map.Entry<MetricName, Metric>>();
+		for (Map.Entry<MetricName, Metric> entry : registry.getMetrics().entrySet()) {
+			if (MetricTypes.getType(entry.getValue()) != null && query.filter.matches(entry.getKey(), entry.getValue())) {
+				matches.add(entry);
+			}
+		}
+		List<Map.Entry<MetricName, Metric>> page = matches;
+		if (query.isPaginated()) {
+			Collections.sort(matches, BY_METRIC_NAME);
+			final int fromIndex = Math.min(query.offset, matches.size());
+			page = matches.subList(fromIndex, (int) Math.min((long) fromIndex + query.limit, matches.size()));
+		}
+
+		final Map<String, List<Map.Entry<MetricName, Metric>>> metricsByType = new LinkedHashMap<String, List<Map.Entry<MetricName, Metric>>>();
+		for (String type : MetricTypes.TYPES) {
+			metricsByType.put(type, new ArrayList<Map.Entry<MetricName, Metric>>());
+		}
+		for (Map.Entry<MetricName, Metric> entry : page) {
+			metricsByType.get(MetricTypes.getType(entry.getValue())).add(entry);
+		}
+
+		jg.writeStartObject();
+		jg.writeStringField("version", VERSION);
+		if (query.isPaginated()) {
+			jg.writeNumberField("total", matches.size());
+		}
+		for (Map.Entry<String, List<Map.Entry<MetricName, Metric>>> metricsOfType : metricsByType.entrySet()) {
+			jg.writeObjectFieldStart(metricsOfType.getKey());
+			for (Map.Entry<MetricName, Metric> entry : metricsOfType.getValue()) {
+				jg.writeFieldName(entry.getKey().toGraphiteName());
+				writeMetric(jg, entry.getValue(), query.fields);
+			}
+			jg.writeEndObject();
+		}
+		jg.writeEndObject();
+	}
+
+	private void writeMetric(JsonGenerator jg, Metric metric, Set<String> fields) throws IOException {
+		if (fields.isEmpty()) {
+			jg.writeObject(metric);
+		} else {
+			final ObjectNode metricNode = mapper.valueToTree(metric);
+			metricNode.retain(fields);
+			jg.writeTree(metricNode);
+		}
+	}
+
+	private static class MetricsQuery {
+		private final Metric2Filter filter;
+		private final Set<String> fields = new LinkedHashSet<String>();
+		private final int offset;
+		private final int limit;
+		private final boolean empty;
+
+		private MetricsQuery(HttpServletRequest req) {
+			final List<String> names = getParameterValues(req, "name");
+			final Map<String, String> tags = new LinkedHashMap<String, String>();
+			for (String tag : getParameterValues(req, "tag")) {
+				final int separator = tag.indexOf(':');
+				if (separator < 1) {
+					throw new IllegalArgumentException("The tag parameter has to be in the form key:value but was " + tag);
+				}
+				tags.put(tag.substring(0, separator), tag.substring(separator + 1));
+			}
+			filter = new MetricNameFilter(names, tags);
+			for (String fieldList : getParameterValues(req, "fields")) {
+				for (String field : fieldList.split(",")) {
+					if (!field.trim().isEmpty()) {
+						fields.add(field.trim());
+					}
+				}
+			}
+			offset = getIntParameter(req, "offset", 0);
+			limit = getIntParameter(req, "limit", Integer.MAX_VALUE);
+			empty = names.isEmpty() && tags.isEmpty() && fields.isEmpty() && !isPaginated();
+		}
+
+		private boolean isEmpty() {
+			return empty;
+		}
+
+		private boolean isPaginated() {
+			return offset > 0 || limit < Integer.MAX_VALUE;
+		}
+
+		private static List<String> getParameterValues(HttpServletRequest req, String name) {
+			final String[] values = req.getParameterValues(name);
+			return values != null ? Arrays.asList(values) : Collections.<String>emptyList();
+		}
+
+		private static int getIntParameter(HttpServletRequest req, String name, int defaultValue) {
+			final String value = req.getParameter(name);
+			if (value == null) {
+				return defaultValue;
+			}
+			try {
+				final int intValue = Integer.parseInt(value);
+				if (intValue < 0) {
+					throw new IllegalArgumentException("The parameter " + name + " must not be negative");
+				}
+				return intValue;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("The parameter " + name + " has to be a number but was " + value);
+			}
 		}
-		return mapper.writer();
 	}
 }
@@ -138,6 +138,10 @@ public class MonitoredHttpRequest implements MonitoredRequest<HttpRequestTrace>
 
 	public static String getRequestNameByRequest(HttpServletRequest request, WebPlugin webPlugin) {
 		String requestURI = removeSemicolonContent(request.getRequestURI().substring(request.getContextPath().length()));
+		final Pattern anyGroupUrlPattern = webPlugin.getAnyGroupUrlPattern();
+		if (anyGroupUrlPattern != null && !anyGroupUrlPattern.matcher(requestURI).find()) {
+			return request.getMethod() + " " + requestURI;
+		}
 		for (Map.Entry<Pattern, String> entry : webPlugin.getGroupUrls().entrySet()) {
 			requestURI = entry.getKey().matcher(requestURI).replaceAll(entry.getValue());
 		}
@@ -24,10 +24,26 @@ public class BoomerangJsHtmlInjector implements HtmlInjector {
 	}
 
 	private String buildBoomerangTemplate(String contextPath) {
-		String beaconUrl = webPlugin.isRealUserMonitoringEnabled() ?
-				"      beacon_url: " + "'" + contextPath + "/stagemonitor/public/rum'" + ",\n" : "";
+		final String rumUrl = "'" + contextPath + "/stagemonitor/public/rum'";
+		final boolean sampled = webPlugin.isRealUserMonitoringEnabled() && webPlugin.getRumSampleRate() < 1;
+		final boolean batched = webPlugin.isRealUserMonitoringEnabled() && webPlugin.getRumBatchSize() > 1;
+		String beaconUrl = "";
+		if (webPlugin.isRealUserMonitoringEnabled()) {
+			// when batching, the beacons are sent by the before_beacon listener instead of boomerang
+			final String condition = sampled && batched ? "stagemonitorRumSampled && !stagemonitorRumBatched" :
+					sampled ? "stagemonitorRumSampled" : batched ? "!stagemonitorRumBatched" : null;
+			beaconUrl = "      beacon_url: " + (condition != null ? condition + " ? " + rumUrl + " : null" : rumUrl) + ",\n";
+		}
 		return "<script src=\"" + contextPath + "/stagemonitor/public/static/rum/" + BOOMERANG_FILENAME + "\"></script>\n" +
 				"<script>\n" +
+				(sampled ? "   var stagemonitorRumSampled = Math.random() < " + Math.max(0, webPlugin.getRumSampleRate()) + ";\n" : "") +
+				(batched ? "   var stagemonitorRumBatched = (function() {\n" +
+						"      try {\n" +
+						"         return !!(window.navigator.sendBeacon && window.JSON && window.localStorage);\n" +
+						"      } catch (e) {\n" +
+						"         return false;\n" +
+						"      }\n" +
+						"   })();\n" : "") +
 				"   BOOMR.init({\n" +
 				beaconUrl +
 				"      log: null\n" +
@@ -35,9 +51,36 @@ public class BoomerangJsHtmlInjector implements HtmlInjector {
 				"   BOOMR.addVar(\"requestId\", \"${requestId}\");\n" +
 				"   BOOMR.addVar(\"requestName\", \"${requestName}\");\n" +
 				"   BOOMR.addVar(\"serverTime\", ${serverTime});\n" +
+				(batched ? buildBatchingListener(rumUrl, sampled) : "") +
 				"</script>";
 	}
 
+	/**
+	 * Collects the beacons in the local storage and sends them to the {@link RumServlet} as a json array,
+	 * when <code>stagemonitor.web.rum.batchSize</code> beacons are collected.
+	 */
+	private String buildBatchingListener(String rumUrl, boolean sampled) {
+		final int batchSize = Math.min(webPlugin.getRumBatchSize(), RumServlet.MAX_BEACONS_PER_BATCH);
+		return "   if (stagemonitorRumBatched" + (sampled ? " && stagemonitorRumSampled" : "") + ") {\n" +
+				"      BOOMR.subscribe(\"before_beacon\", function(vars) {\n" +
+				"         if (vars.timeToFirstByte === undefined) {\n" +
+				"            return;\n" +
+				"         }\n" +
+				"         try {\n" +
+				"            var beacons = JSON.parse(localStorage.getItem(\"stagemonitor-rum-beacons\") || \"[]\");\n" +
+				"            beacons.push({requestName: vars.requestName, serverTime: vars.serverTime, " +
+				"timeToFirstByte: vars.timeToFirstByte, domProcessing: vars.domProcessing, pageRendering: vars.pageRendering});\n" +
+				"            if (beacons.length >= " + batchSize + ") {\n" +
+				"               beacons = navigator.sendBeacon(" + rumUrl + ", JSON.stringify(beacons)) ? [] : beacons.slice(" + (1 - batchSize) + ");\n" +
+				"            }\n" +
+				"            localStorage.setItem(\"stagemonitor-rum-beacons\", JSON.stringify(beacons));\n" +
+				"         } catch (e) {\n" +
+				"            BOOMR.debug(\"Could not batch beacon: \" + e);\n" +
+				"         }\n" +
+				"      });\n" +
+				"   }\n";
+	}
+
 	@Override
 	public boolean isActive(HttpServletRequest httpServletRequest) {
 		// if widget is enabled, inject as well to render page load time statistics in widget
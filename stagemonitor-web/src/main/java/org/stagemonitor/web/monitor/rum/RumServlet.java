@@ -4,23 +4,47 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.JsonUtils;
 import org.stagemonitor.web.WebPlugin;
 
 /**
  * The Real User Monitoring Servlet handles boomerang beacons (see http://www.lognormal.com/boomerang/doc/)
+ * <p/>
+ * A GET request contains a single beacon as request parameters. A POST request contains a json array of beacons
+ * which is sent by the snippet of the {@link BoomerangJsHtmlInjector} via <code>navigator.sendBeacon</code>, if
+ * <code>stagemonitor.web.rum.batchSize</code> is greater than 1. The body may be gzip compressed
+ * (<code>Content-Encoding: gzip</code>).
  */
 public class RumServlet extends HttpServlet {
 
+	static final int MAX_BEACONS_PER_BATCH = 100;
+	/**
+	 * The request name is provided by the client, so don't let the cache grow unbounded
+	 */
+	private static final int MAX_CACHED_REQUEST_NAMES = 1000;
+	private static final String ALL_REQUESTS = "All";
+
 	private final Metric2Registry metricRegistry;
 	private final WebPlugin webPlugin;
+	private final ConcurrentMap<String, PageLoadTimers> timersByRequestName = new ConcurrentHashMap<String, PageLoadTimers>();
 
 	public RumServlet() {
 		this(Stagemonitor.getMetric2Registry(), Stagemonitor.getConfiguration(WebPlugin.class));
@@ -42,23 +66,111 @@ public class RumServlet extends HttpServlet {
 			final long timeToFirstByte = Long.parseLong(getRequiredParam(req, "timeToFirstByte"));
 			final long domProcessing = Long.parseLong(getRequiredParam(req, "domProcessing"));
 			final long pageRendering = Long.parseLong(getRequiredParam(req, "pageRendering"));
-			final long networkTime = timeToFirstByte - serverTime;
 
-			trackPageLoadTime("All", serverTime, domProcessing, pageRendering, networkTime);
-			if (webPlugin.isCollectPageLoadTimesPerRequest()) {
-				trackPageLoadTime(requestName, serverTime, domProcessing, pageRendering, networkTime);
-			}
+			trackBeacon(requestName, serverTime, timeToFirstByte, domProcessing, pageRendering);
 		} else {
 			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 		}
 	}
 
-	private void trackPageLoadTime(String requestName, long serverTime, long domProcessing, long pageRendering, long networkTime) {
-		metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Dom Processing").build()).update(domProcessing, MILLISECONDS);
-		metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Page Rendering").build()).update(pageRendering, MILLISECONDS);
-		metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Network").build()).update(networkTime, MILLISECONDS);
-		metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Server").build()).update(serverTime, MILLISECONDS);
-		metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("All").build()).update(serverTime + networkTime + pageRendering + domProcessing, MILLISECONDS);
+	@Override
+	public void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		if (!webPlugin.isRealUserMonitoringEnabled()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		InputStream inputStream = req.getInputStream();
+		if ("gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+			inputStream = new GZIPInputStream(inputStream);
+		}
+		final List<Beacon> beacons;
+		try {
+			beacons = readBeacons(inputStream);
+		} catch (JsonProcessingException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed json: " + e.getOriginalMessage());
+			return;
+		} catch (IllegalArgumentException e) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		} finally {
+			inputStream.close();
+		}
+		for (Beacon beacon : beacons) {
+			trackBeacon(beacon.requestName, beacon.serverTime, beacon.timeToFirstByte, beacon.domProcessing, beacon.pageRendering);
+		}
+		resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	/**
+	 * Reads a json array of beacons like
+	 * <code>[{"requestName":"GET /","serverTime":100,"timeToFirstByte":160,"domProcessing":10,"pageRendering":30}]</code>
+	 * <p/>
+	 * Incomplete beacons (for example of browsers that don't support the navigation timing API) are ignored.
+	 * <p/>
+	 * The whole batch is read before any beacon is tracked, so that an invalid batch is rejected without being
+	 * tracked partially.
+	 */
+	private List<Beacon> readBeacons(InputStream inputStream) throws IOException {
+		final JsonParser parser = JsonUtils.getMapper().getFactory().createParser(inputStream);
+		if (parser.nextToken() != JsonToken.START_ARRAY) {
+			throw new IllegalArgumentException("Expected a json array of beacons");
+		}
+		final List<Beacon> beacons = new ArrayList<Beacon>();
+		int beaconCount = 0;
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+			if (++beaconCount > MAX_BEACONS_PER_BATCH) {
+				throw new IllegalArgumentException("A batch must not contain more than " + MAX_BEACONS_PER_BATCH + " beacons");
+			}
+			String requestName = null;
+			long serverTime = -1;
+			long timeToFirstByte = -1;
+			long domProcessing = -1;
+			long pageRendering = -1;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("requestName".equals(field)) {
+					requestName = parser.getValueAsString();
+				} else if ("serverTime".equals(field)) {
+					serverTime = parser.getValueAsLong(-1);
+				} else if ("timeToFirstByte".equals(field)) {
+					timeToFirstByte = parser.getValueAsLong(-1);
+				} else if ("domProcessing".equals(field)) {
+					domProcessing = parser.getValueAsLong(-1);
+				} else if ("pageRendering".equals(field)) {
+					pageRendering = parser.getValueAsLong(-1);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (requestName != null && serverTime >= 0 && timeToFirstByte >= 0 && domProcessing >= 0 && pageRendering >= 0) {
+				beacons.add(new Beacon(requestName, serverTime, timeToFirstByte, domProcessing, pageRendering));
+			}
+		}
+		if (token != JsonToken.END_ARRAY) {
+			throw new IllegalArgumentException("Expected a json array of beacons");
+		}
+		return beacons;
+	}
+
+	private void trackBeacon(String requestName, long serverTime, long timeToFirstByte, long domProcessing, long pageRendering) {
+		final long networkTime = timeToFirstByte - serverTime;
+		getPageLoadTimers(ALL_REQUESTS).update(serverTime, domProcessing, pageRendering, networkTime);
+		if (webPlugin.isCollectPageLoadTimesPerRequest()) {
+			getPageLoadTimers(requestName).update(serverTime, domProcessing, pageRendering, networkTime);
+		}
+	}
+
+	private PageLoadTimers getPageLoadTimers(String requestName) {
+		PageLoadTimers timers = timersByRequestName.get(requestName);
+		if (timers == null) {
+			timers = new PageLoadTimers(metricRegistry, requestName);
+			if (timersByRequestName.size() < MAX_CACHED_REQUEST_NAMES) {
+				timersByRequestName.putIfAbsent(requestName, timers);
+			}
+		}
+		return timers;
 	}
 
 	private String getRequiredParam(HttpServletRequest req, String parameterName) {
@@ -68,4 +180,48 @@ public class RumServlet extends HttpServlet {
 		}
 		return parameter;
 	}
+
+	private static class Beacon {
+		private final String requestName;
+		private final long serverTime;
+		private final long timeToFirstByte;
+		private final long domProcessing;
+		private final long pageRendering;
+
+		private Beacon(String requestName, long serverTime, long timeToFirstByte, long domProcessing, long pageRendering) {
+			this.requestName = requestName;
+			this.serverTime = serverTime;
+			this.timeToFirstByte = timeToFirstByte;
+			this.domProcessing = domProcessing;
+			this.pageRendering = pageRendering;
+		}
+	}
+
+	/**
+	 * The timers of a request name, resolved once so that tracking a beacon does not have to create
+	 * {@link org.stagemonitor.core.metrics.metrics2.MetricName}s
+	 */
+	private static class PageLoadTimers {
+		private final Timer domProcessing;
+		private final Timer pageRendering;
+		private final Timer network;
+		private final Timer server;
+		private final Timer all;
+
+		private PageLoadTimers(Metric2Registry metricRegistry, String requestName) {
+			domProcessing = metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Dom Processing").build());
+			pageRendering = metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Page Rendering").build());
+			network = metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Network").build());
+			server = metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("Server").build());
+			all = metricRegistry.timer(name("response_time_rum").tag("request_name", requestName).layer("All").build());
+		}
+
+		private void update(long serverTime, long domProcessingTime, long pageRenderingTime, long networkTime) {
+			domProcessing.update(domProcessingTime, MILLISECONDS);
+			pageRendering.update(pageRenderingTime, MILLISECONDS);
+			network.update(networkTime, MILLISECONDS);
+			server.update(serverTime, MILLISECONDS);
+			all.update(serverTime + networkTime + pageRenderingTime + domProcessingTime, MILLISECONDS);
+		}
+	}
 }
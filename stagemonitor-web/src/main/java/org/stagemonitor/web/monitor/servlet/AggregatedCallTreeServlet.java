@@ -0,0 +1,66 @@
+package org.stagemonitor.web.monitor.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.stagemonitor.core.Stagemonitor;
+import org.stagemonitor.requestmonitor.AggregatedCallTreeReporter;
+import org.stagemonitor.requestmonitor.RequestMonitorPlugin;
+import org.stagemonitor.requestmonitor.profiler.AggregatedCallTree;
+
+/**
+ * Exports the call trees that are aggregated by the {@link AggregatedCallTreeReporter} in the collapsed stack format,
+ * which can be rendered as a flame graph, for example with <code>flamegraph.pl</code>.
+ * <ul>
+ * <li><code>/stagemonitor/aggregated-call-trees?name=&lt;request name&gt;</code> returns the aggregated call tree of
+ * the requests with the given name</li>
+ * <li><code>/stagemonitor/aggregated-call-trees</code> returns the aggregated call trees of all requests. The first
+ * frame of each stack is the request name.</li>
+ * </ul>
+ * Like all endpoints under /stagemonitor/*, this servlet is protected by the
+ * {@link org.stagemonitor.web.monitor.filter.StagemonitorSecurityFilter}.
+ */
+public class AggregatedCallTreeServlet extends HttpServlet {
+
+	private final RequestMonitorPlugin requestMonitorPlugin;
+
+	public AggregatedCallTreeServlet() {
+		this(Stagemonitor.getConfiguration(RequestMonitorPlugin.class));
+	}
+
+	public AggregatedCallTreeServlet(RequestMonitorPlugin requestMonitorPlugin) {
+		this.requestMonitorPlugin = requestMonitorPlugin;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final AggregatedCallTreeReporter reporter = requestMonitorPlugin.getAggregatedCallTreeReporter();
+		if (reporter == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Set stagemonitor.profiler.aggregatedCallTrees.maxNodes to aggregate call trees");
+			return;
+		}
+		final StringBuilder sb = new StringBuilder();
+		final String name = req.getParameter("name");
+		if (name != null) {
+			final AggregatedCallTree callTree = reporter.getCallTree(name);
+			if (callTree == null) {
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No call trees of requests with the name " + name);
+				return;
+			}
+			callTree.appendCollapsedStacks(sb);
+		} else {
+			for (AggregatedCallTree callTree : reporter.getCallTrees().values()) {
+				callTree.appendCollapsedStacks(sb);
+			}
+		}
+		resp.setContentType("text/plain");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+		resp.getWriter().write(sb.toString());
+	}
+}
@@ -0,0 +1,96 @@
+package org.stagemonitor.web.monitor.servlet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.stagemonitor.core.Stagemonitor;
+import org.stagemonitor.requestmonitor.RecentRequestTraceReporter;
+import org.stagemonitor.requestmonitor.RequestMonitorPlugin;
+
+/**
+ * Queries the recent request traces that are buffered by the {@link RecentRequestTraceReporter}.
+ * <ul>
+ * <li><code>/stagemonitor/recent-request-traces/slowest?name=&lt;request name&gt;&amp;limit=10</code> returns the
+ * slowest request traces. If no name is given, all request names are considered.</li>
+ * <li><code>/stagemonitor/recent-request-traces/errors?minutes=5</code> returns the request traces of the erroneous
+ * requests of the last minutes.</li>
+ * </ul>
+ * Like all endpoints under /stagemonitor/*, this servlet is protected by the
+ * {@link org.stagemonitor.web.monitor.filter.StagemonitorSecurityFilter}.
+ */
+public class RecentRequestTracesServlet extends HttpServlet {
+
+	private static final int DEFAULT_LIMIT = 10;
+	private static final int DEFAULT_MINUTES = 5;
+
+	private final RequestMonitorPlugin requestMonitorPlugin;
+
+	public RecentRequestTracesServlet() {
+		this(Stagemonitor.getConfiguration(RequestMonitorPlugin.class));
+	}
+
+	public RecentRequestTracesServlet(RequestMonitorPlugin requestMonitorPlugin) {
+		this.requestMonitorPlugin = requestMonitorPlugin;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		final RecentRequestTraceReporter reporter = requestMonitorPlugin.getRecentRequestTraceReporter();
+		if (reporter == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+					"Set stagemonitor.requestmonitor.recentRequestTraces.bufferSizeMB to buffer recent request traces");
+			return;
+		}
+		final List<String> requestTraces;
+		final String query = req.getPathInfo() != null ? req.getPathInfo() : "";
+		if ("/slowest".equals(query)) {
+			final int limit = getIntParameter(req, "limit", DEFAULT_LIMIT);
+			if (limit < 1) {
+				resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The limit must be greater than 0");
+				return;
+			}
+			requestTraces = reporter.getSlowest(req.getParameter("name"), limit);
+		} else if ("/errors".equals(query)) {
+			final int minutes = getIntParameter(req, "minutes", DEFAULT_MINUTES);
+			requestTraces = reporter.getErrors(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes));
+		} else {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Use /slowest or /errors");
+			return;
+		}
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+		writeJsonArray(requestTraces, resp);
+	}
+
+	private static void writeJsonArray(List<String> requestTraces, HttpServletResponse resp) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		for (int i = 0; i < requestTraces.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(requestTraces.get(i));
+		}
+		sb.append(']');
+		resp.getWriter().write(sb.toString());
+	}
+
+	private static int getIntParameter(HttpServletRequest req, String name, int defaultValue) {
+		final String value = req.getParameter(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
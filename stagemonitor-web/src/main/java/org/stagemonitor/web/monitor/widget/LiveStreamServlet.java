@@ -0,0 +1,326 @@
+package org.stagemonitor.web.monitor.widget;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.core.Stagemonitor;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.core.util.StringUtils;
+import org.stagemonitor.requestmonitor.RequestMonitor;
+import org.stagemonitor.requestmonitor.RequestTrace;
+import org.stagemonitor.requestmonitor.RequestTraceReporter;
+import org.stagemonitor.web.WebPlugin;
+import org.stagemonitor.web.metrics.MetricsDeltaEncoder;
+import org.stagemonitor.web.monitor.HttpRequestTrace;
+
+/**
+ * Pushes request traces and metrics to the in browser widget as
+ * <a href="http://www.w3.org/TR/eventsource/">Server-Sent Events</a>.
+ * <p/>
+ * Each subscriber receives the <code>request-trace</code> events of its own widget connection
+ * (<code>?connectionId=...</code>) and the <code>metrics</code> events. The metrics are serialized once per tick by
+ * the {@link MetricsDeltaEncoder} and the same bytes are written to all subscribers. The first metrics event a
+ * subscriber receives contains all metrics, subsequent ones only the metrics that have changed.
+ * <p/>
+ * The events are not written by the threads that produce them. Each subscriber has a small bounded queue that is
+ * drained by the broadcaster thread, so that a slow client can't block the reporting of request traces. A subscriber
+ * that can't keep up and lets its queue overflow is disconnected. The EventSource of the widget then reconnects.
+ * <p/>
+ * Requires async support. If the request does not support async processing, the widget falls back to polling
+ * the {@link RequestTraceServlet} and the {@link org.stagemonitor.web.metrics.StagemonitorMetricsServlet}.
+ */
+public class LiveStreamServlet extends HttpServlet implements RequestTraceReporter {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/**
+	 * The connection is closed after this time and reestablished by the EventSource.
+	 * This makes sure that the connections of clients that went away unnoticed don't pile up.
+	 */
+	private static final long MAX_CONNECTION_TIME = TimeUnit.MINUTES.toMillis(5);
+	private static final long KEEP_ALIVE_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+	private static final byte[] KEEP_ALIVE = ":\n\n".getBytes(UTF_8);
+	private static final byte[] RETRY = "retry: 3000\n\n".getBytes(UTF_8);
+	static final int MAX_QUEUED_EVENTS = 64;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final WebPlugin webPlugin;
+	private final MetricsDeltaEncoder metricsDeltaEncoder;
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drainScheduled.set(false);
+			drainSubscribers();
+		}
+	};
+
+	/**
+	 * Broadcasts the metrics and keep-alive messages and writes the queued events to the subscribers
+	 */
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			thread.setName("live-stream-broadcaster");
+			return thread;
+		}
+	});
+
+	public LiveStreamServlet() {
+		this(Stagemonitor.getMetric2Registry(), Stagemonitor.getConfiguration(WebPlugin.class));
+	}
+
+	public LiveStreamServlet(Metric2Registry registry, WebPlugin webPlugin) {
+		this.webPlugin = webPlugin;
+		this.metricsDeltaEncoder = new MetricsDeltaEncoder(registry, JsonUtils.getMapper());
+	}
+
+	@Override
+	public void init() {
+		RequestMonitor.addRequestTraceReporter(this);
+		final int metricsInterval = webPlugin.getLiveStreamMetricsInterval();
+		if (metricsInterval > 0) {
+			scheduler.scheduleAtFixedRate(new MetricsBroadcaster(), metricsInterval, metricsInterval, TimeUnit.SECONDS);
+		} else {
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					broadcast(KEEP_ALIVE);
+					drainSubscribers();
+				}
+			}, KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		if (!req.isAsyncSupported()) {
+			resp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Async processing is not supported for this request");
+			return;
+		}
+		resp.setContentType("text/event-stream");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		final AsyncContext asyncContext = req.startAsync(req, resp);
+		asyncContext.setTimeout(MAX_CONNECTION_TIME);
+		final Subscriber subscriber = new Subscriber(asyncContext, resp.getOutputStream(), req.getParameter("connectionId"));
+		asyncContext.addListener(subscriber);
+		subscribers.add(subscriber);
+		subscriber.offer(RETRY);
+		scheduleDrain();
+	}
+
+	@Override
+	public <T extends RequestTrace> void reportRequestTrace(T requestTrace) throws IOException {
+		final String connectionId = ((HttpRequestTrace) requestTrace).getConnectionId();
+		if (StringUtils.isEmpty(connectionId)) {
+			return;
+		}
+		byte[] event = null;
+		for (Subscriber subscriber : subscribers) {
+			if (connectionId.equals(subscriber.connectionId)) {
+				if (event == null) {
+					logger.debug("reportRequestTrace {} ({})", requestTrace.getName(), requestTrace.getTimestamp());
+					event = toEvent("request-trace", RequestTraceServlet.REQUEST_TRACE_WRITER.writeValueAsBytes(requestTrace));
+				}
+				subscriber.offer(event);
+			}
+		}
+		if (event != null) {
+			scheduleDrain();
+		}
+	}
+
+	@Override
+	public <T extends RequestTrace> boolean isActive(T requestTrace) {
+		return !subscribers.isEmpty() && requestTrace instanceof HttpRequestTrace &&
+				((HttpRequestTrace) requestTrace).isShowWidgetAllowed();
+	}
+
+	int getNumberOfSubscribers() {
+		return subscribers.size();
+	}
+
+	void broadcastMetrics() throws IOException {
+		if (subscribers.isEmpty()) {
+			return;
+		}
+		final byte[] delta = metricsDeltaEncoder.tick();
+		final byte[] deltaEvent = delta != null ? toEvent("metrics", delta) : KEEP_ALIVE;
+		byte[] fullEvent = null;
+		for (Subscriber subscriber : subscribers) {
+			if (subscriber.needsAllMetrics) {
+				if (fullEvent == null) {
+					fullEvent = toEvent("metrics", metricsDeltaEncoder.encodeFull());
+				}
+				subscriber.needsAllMetrics = !subscriber.offer(fullEvent);
+			} else {
+				subscriber.offer(deltaEvent);
+			}
+		}
+		drainSubscribers();
+	}
+
+	private void broadcast(byte[] event) {
+		for (Subscriber subscriber : subscribers) {
+			subscriber.offer(event);
+		}
+	}
+
+	private void scheduleDrain() {
+		if (drainScheduled.compareAndSet(false, true)) {
+			try {
+				scheduler.execute(drainTask);
+			} catch (RejectedExecutionException e) {
+				// the servlet has been destroyed
+				drainScheduled.set(false);
+			}
+		}
+	}
+
+	private void drainSubscribers() {
+		for (Subscriber subscriber : subscribers) {
+			subscriber.drain();
+		}
+	}
+
+	private static byte[] toEvent(String eventName, byte[] data) throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream(data.length + eventName.length() + 16);
+		os.write(("event: " + eventName + "\ndata: ").getBytes(UTF_8));
+		os.write(data);
+		os.write('\n');
+		os.write('\n');
+		return os.toByteArray();
+	}
+
+	@Override
+	public void destroy() {
+		scheduler.shutdown();
+		for (Subscriber subscriber : subscribers) {
+			subscriber.close();
+		}
+	}
+
+	private class MetricsBroadcaster implements Runnable {
+		@Override
+		public void run() {
+			try {
+				broadcastMetrics();
+			} catch (Exception e) {
+				logger.warn("Could not broadcast metrics (this exception is ignored)", e);
+			}
+		}
+	}
+
+	/**
+	 * A connected EventSource.
+	 * <p/>
+	 * Events are queued by the threads that produce them and written by the thread that drains the queue. Draining is
+	 * synchronized, so that the events are written in order.
+	 */
+	private class Subscriber implements AsyncListener {
+		private final AsyncContext asyncContext;
+		private final OutputStream outputStream;
+		private final String connectionId;
+		private final BlockingQueue<byte[]> events = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_EVENTS);
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private boolean needsAllMetrics = true;
+
+		private Subscriber(AsyncContext asyncContext, OutputStream outputStream, String connectionId) {
+			this.asyncContext = asyncContext;
+			this.outputStream = outputStream;
+			this.connectionId = connectionId;
+		}
+
+		/**
+		 * Queues an event without blocking. If the queue is full, the subscriber can't keep up and is closed.
+		 *
+		 * @return <code>true</code>, if the event has been queued
+		 */
+		private boolean offer(byte[] event) {
+			if (closed.get()) {
+				return false;
+			}
+			if (events.offer(event)) {
+				return true;
+			}
+			logger.debug("Closing subscriber {}, because it can't keep up with the events", connectionId);
+			close();
+			return false;
+		}
+
+		private synchronized void drain() {
+			if (events.isEmpty()) {
+				return;
+			}
+			try {
+				for (byte[] event = events.poll(); event != null && !closed.get(); event = events.poll()) {
+					outputStream.write(event);
+				}
+				if (!closed.get()) {
+					outputStream.flush();
+				}
+			} catch (IOException e) {
+				logger.debug("Subscriber went away: {}", e.getMessage());
+				close();
+			}
+		}
+
+		private void close() {
+			subscribers.remove(this);
+			events.clear();
+			if (closed.compareAndSet(false, true)) {
+				try {
+					asyncContext.complete();
+				} catch (IllegalStateException e) {
+					// already completed by the container
+				}
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			subscribers.remove(this);
+			closed.set(true);
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
+}
@@ -3,50 +3,83 @@ package org.stagemonitor.web.monitor.widget;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.stagemonitor.core.Stagemonitor;
 import org.stagemonitor.core.configuration.Configuration;
+import org.stagemonitor.core.util.JsonUtils;
 import org.stagemonitor.requestmonitor.RequestMonitor;
 import org.stagemonitor.requestmonitor.RequestTrace;
 import org.stagemonitor.requestmonitor.RequestTraceReporter;
 import org.stagemonitor.web.WebPlugin;
 import org.stagemonitor.web.monitor.HttpRequestTrace;
 
+/**
+ * Delivers the request traces of a widget connection via long polling.
+ * <p/>
+ * If the request supports async processing, a waiting poll does not block a container thread but is parked as a
+ * {@link AsyncContext} until a request trace for the connection is reported or the timeout expires.
+ */
 public class RequestTraceServlet extends HttpServlet implements RequestTraceReporter {
 
 	public static final String CONNECTION_ID = "x-stagemonitor-connection-id";
 	private static final long DEFAULT_REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(25);
 	private static final long MAX_REQUEST_TRACE_BUFFERING_TIME = 60 * 1000;
+	static final int MAX_BUFFERED_REQUEST_TRACES_PER_CONNECTION = 50;
+
+	/**
+	 * Serializes request traces like {@link RequestTrace#toJson()} but without rendering the ascii call stack first
+	 */
+	static final ObjectWriter REQUEST_TRACE_WRITER = JsonUtils.getMapper().copy()
+			.addMixIn(RequestTrace.class, ExcludeCallStackAscii.class)
+			.writer()
+			.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	private final WebPlugin webPlugin;
 	private final Configuration configuration;
 	private final long requestTimeout;
-	private ConcurrentMap<String, ConcurrentLinkedQueue<HttpRequestTrace>> connectionIdToRequestTracesMap = new ConcurrentHashMap<String, ConcurrentLinkedQueue<HttpRequestTrace>>();
-	private ConcurrentMap<String, Object> connectionIdToLockMap = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<String, WidgetConnection> connectionIdToConnectionMap = new ConcurrentHashMap<String, WidgetConnection>();
 
 	/**
-	 * see {@link OldRequestTraceRemover}
+	 * Times out waiting async requests and runs the {@link OldConnectionRemover}
 	 */
-	private ScheduledExecutorService oldRequestTracesRemoverPool;
-
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			thread.setName("request-trace-servlet");
+			return thread;
+		}
+	});
 
 	public RequestTraceServlet() {
 		this(Stagemonitor.getConfiguration(), DEFAULT_REQUEST_TIMEOUT);
@@ -57,21 +90,11 @@ public class RequestTraceServlet extends HttpServlet implements RequestTraceRepo
 		this.configuration = configuration;
 		this.webPlugin = configuration.getConfig(WebPlugin.class);
 	}
-	
+
 	@Override
 	public void init() {
 		RequestMonitor.addRequestTraceReporter(this);
-		oldRequestTracesRemoverPool = Executors.newScheduledThreadPool(1, new ThreadFactory() {
-			@Override
-			public Thread newThread(Runnable r) {
-				Thread thread = new Thread(r);
-				thread.setDaemon(true);
-				thread.setName("request-trace-remover");
-				return thread;
-			}
-		});
-		
-		oldRequestTracesRemoverPool.scheduleAtFixedRate(new OldRequestTraceRemover(), 
+		scheduler.scheduleAtFixedRate(new OldConnectionRemover(),
 				MAX_REQUEST_TRACE_BUFFERING_TIME, MAX_REQUEST_TRACE_BUFFERING_TIME, TimeUnit.MILLISECONDS);
 	}
 
@@ -79,31 +102,41 @@ public class RequestTraceServlet extends HttpServlet implements RequestTraceRepo
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 		final String connectionId = req.getParameter("connectionId");
 		if (connectionId != null && !connectionId.trim().isEmpty()) {
-			final ConcurrentLinkedQueue<HttpRequestTrace> traces = connectionIdToRequestTracesMap.remove(connectionId);
-			if (traces != null) {
+			final WidgetConnection connection = getConnection(connectionId);
+			connection.touch();
+			if (connection.hasBufferedRequestTraces()) {
 				logger.debug("picking up buffered requests");
-				writeRequestTracesToResponse(resp, traces);
+				writeRequestTracesToResponse(resp, connection.drainRequestTraces());
+			} else if (req.isAsyncSupported()) {
+				asyncWaitForRequestTrace(connection, req, resp);
 			} else {
-				blockingWaitForRequestTrace(connectionId, resp);
+				blockingWaitForRequestTrace(connection, resp);
 			}
 		} else {
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
 		}
 	}
 
-	private void blockingWaitForRequestTrace(String connectionId, HttpServletResponse resp) throws IOException {
-		Object lock = new Object();
-		synchronized (lock) {
-			connectionIdToLockMap.put(connectionId, lock);
-			try {
-				lock.wait(requestTimeout);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
-			} finally {
-				connectionIdToLockMap.remove(connectionId, lock);
-			}
-			writeRequestTracesToResponse(resp, connectionIdToRequestTracesMap.remove(connectionId));
+	private void asyncWaitForRequestTrace(WidgetConnection connection, HttpServletRequest req, HttpServletResponse resp) {
+		final AsyncContext asyncContext = req.startAsync(req, resp);
+		asyncContext.setTimeout(requestTimeout * 2);
+		final AsyncPendingRequest pendingRequest = new AsyncPendingRequest(connection, asyncContext, resp);
+		asyncContext.addListener(pendingRequest);
+		connection.setPendingRequest(pendingRequest);
+		pendingRequest.setTimeoutTask(scheduler.schedule(pendingRequest, requestTimeout, TimeUnit.MILLISECONDS));
+	}
+
+	private void blockingWaitForRequestTrace(WidgetConnection connection, HttpServletResponse resp) throws IOException {
+		final BlockingPendingRequest pendingRequest = new BlockingPendingRequest();
+		connection.setPendingRequest(pendingRequest);
+		try {
+			pendingRequest.await(requestTimeout);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			connection.removePendingRequest(pendingRequest);
 		}
+		writeRequestTracesToResponse(resp, connection.drainRequestTraces());
 	}
 
 	@Override
@@ -114,48 +147,42 @@ public class RequestTraceServlet extends HttpServlet implements RequestTraceRepo
 			final String connectionId = httpRequestTrace.getConnectionId();
 			if (connectionId != null && !connectionId.trim().isEmpty()) {
 				logger.debug("reportRequestTrace {} ({})", requestTrace.getName(), requestTrace.getTimestamp());
-				bufferRequestTrace(connectionId, httpRequestTrace);
-
-				final Object lock = connectionIdToLockMap.remove(connectionId);
-				if (lock != null) {
-					synchronized (lock) {
-						lock.notifyAll();
-					}
-				}
+				getConnection(connectionId).bufferRequestTrace(httpRequestTrace);
 			}
 		}
 	}
 
-	private void bufferRequestTrace(String connectionId, HttpRequestTrace requestTrace) {
-		logger.debug("bufferRequestTrace {} ({})", requestTrace.getName(), requestTrace.getTimestamp());
-		ConcurrentLinkedQueue<HttpRequestTrace> httpRequestTraces = new ConcurrentLinkedQueue<HttpRequestTrace>();
-		httpRequestTraces.add(requestTrace);
-
-		final ConcurrentLinkedQueue<HttpRequestTrace> alreadyAssociatedValue = connectionIdToRequestTracesMap
-				.putIfAbsent(connectionId, httpRequestTraces);
-		if (alreadyAssociatedValue != null) {
-			alreadyAssociatedValue.add(requestTrace);
+	private WidgetConnection getConnection(String connectionId) {
+		WidgetConnection connection = connectionIdToConnectionMap.get(connectionId);
+		if (connection == null) {
+			connection = new WidgetConnection();
+			final WidgetConnection alreadyAssociatedValue = connectionIdToConnectionMap.putIfAbsent(connectionId, connection);
+			if (alreadyAssociatedValue != null) {
+				connection = alreadyAssociatedValue;
+			}
 		}
+		return connection;
 	}
 
 	private void writeRequestTracesToResponse(HttpServletResponse response, Collection<HttpRequestTrace> requestTraces)
 			throws IOException {
-		if (requestTraces == null) {
-			requestTraces = Collections.emptyList();
-		}
 		response.setContentType("application/json");
 		response.setHeader("Pragma", "no-cache");
 		response.setHeader("Cache-Control", "max-age=0, no-cache, no-store, must-revalidate");
 		response.setHeader("Expires", "0");
 		response.setCharacterEncoding("UTF-8");
 
-		final ArrayList<String> jsonResponse = new ArrayList<String>(requestTraces.size());
-		for (HttpRequestTrace requestTrace : requestTraces) {
-			logger.debug("writeRequestTracesToResponse {} ({})", requestTrace.getName(), requestTrace.getTimestamp());
-			jsonResponse.add(requestTrace.toJson());
+		final JsonGenerator jsonGenerator = JsonUtils.getMapper().getFactory().createGenerator(response.getOutputStream());
+		try {
+			jsonGenerator.writeStartArray();
+			for (HttpRequestTrace requestTrace : requestTraces) {
+				logger.debug("writeRequestTracesToResponse {} ({})", requestTrace.getName(), requestTrace.getTimestamp());
+				REQUEST_TRACE_WRITER.writeValue(jsonGenerator, requestTrace);
+			}
+			jsonGenerator.writeEndArray();
+		} finally {
+			jsonGenerator.close();
 		}
-		response.getOutputStream().print(jsonResponse.toString());
-		response.getOutputStream().close();
 	}
 
 	@Override
@@ -168,40 +195,203 @@ public class RequestTraceServlet extends HttpServlet implements RequestTraceRepo
 		}
 	}
 
+	@Override
+	public void destroy() {
+		scheduler.shutdown();
+	}
+
 	/**
-	 * Clears old request traces that are buffered in {@link #connectionIdToRequestTracesMap} but are never picked up
-	 * to prevent a memory leak
+	 * The request traces of a widget connection that have not been picked up yet and the poll request that is
+	 * currently waiting for them, if any.
+	 * <p/>
+	 * The buffer is bounded. If the widget does not pick up the request traces in time, the oldest ones are discarded.
+	 */
+	private static class WidgetConnection {
+		private final BlockingQueue<HttpRequestTrace> requestTraces =
+				new LinkedBlockingQueue<HttpRequestTrace>(MAX_BUFFERED_REQUEST_TRACES_PER_CONNECTION);
+		private final AtomicReference<PendingRequest> pendingRequest = new AtomicReference<PendingRequest>();
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		private void touch() {
+			lastAccess = System.currentTimeMillis();
+		}
+
+		private void bufferRequestTrace(HttpRequestTrace requestTrace) {
+			while (!requestTraces.offer(requestTrace)) {
+				requestTraces.poll();
+			}
+			final PendingRequest waiting = pendingRequest.getAndSet(null);
+			if (waiting != null) {
+				waiting.onRequestTracesAvailable();
+			}
+		}
+
+		private boolean hasBufferedRequestTraces() {
+			return !requestTraces.isEmpty();
+		}
+
+		private List<HttpRequestTrace> drainRequestTraces() {
+			final List<HttpRequestTrace> result = new ArrayList<HttpRequestTrace>(requestTraces.size());
+			requestTraces.drainTo(result);
+			return result;
+		}
+
+		private void setPendingRequest(PendingRequest request) {
+			final PendingRequest previous = pendingRequest.getAndSet(request);
+			if (previous != null) {
+				// the widget opened a new poll request for the same connection, so release the old one
+				previous.onRequestTracesAvailable();
+			}
+			// a request trace could have been buffered before the pending request was registered
+			if (hasBufferedRequestTraces() && pendingRequest.compareAndSet(request, null)) {
+				request.onRequestTracesAvailable();
+			}
+		}
+
+		private void removePendingRequest(PendingRequest request) {
+			pendingRequest.compareAndSet(request, null);
+		}
+
+		private boolean isOrphan() {
+			return pendingRequest.get() == null &&
+					System.currentTimeMillis() - lastAccess > MAX_REQUEST_TRACE_BUFFERING_TIME;
+		}
+	}
+
+	private interface PendingRequest {
+		void onRequestTracesAvailable();
+	}
+
+	private static class BlockingPendingRequest implements PendingRequest {
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		public void onRequestTracesAvailable() {
+			latch.countDown();
+		}
+
+		private void await(long timeoutMs) throws InterruptedException {
+			latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * A poll request that does not occupy a thread while waiting.
+	 * <p/>
+	 * The request is completed exactly once, either when request traces are reported (the response is then written
+	 * on a container thread via {@link AsyncContext#start(Runnable)}), when the request timeout expires
+	 * or when the container signals a timeout or error.
 	 */
-	private class OldRequestTraceRemover implements Runnable {
+	private class AsyncPendingRequest implements PendingRequest, Runnable, AsyncListener {
+		private final WidgetConnection connection;
+		private final AsyncContext asyncContext;
+		private final HttpServletResponse response;
+		private final AtomicBoolean completed = new AtomicBoolean(false);
+		private volatile ScheduledFuture<?> timeoutTask;
+
+		private AsyncPendingRequest(WidgetConnection connection, AsyncContext asyncContext, HttpServletResponse response) {
+			this.connection = connection;
+			this.asyncContext = asyncContext;
+			this.response = response;
+		}
+
+		@Override
+		public void onRequestTracesAvailable() {
+			if (completed.compareAndSet(false, true)) {
+				asyncContext.start(new Runnable() {
+					@Override
+					public void run() {
+						writeResponse();
+					}
+				});
+			}
+		}
+
+		private void setTimeoutTask(ScheduledFuture<?> timeoutTask) {
+			this.timeoutTask = timeoutTask;
+			if (completed.get()) {
+				// the request has been completed before the timeout task was set
+				cancelTimeoutTask();
+			}
+		}
+
+		private void cancelTimeoutTask() {
+			final ScheduledFuture<?> task = timeoutTask;
+			if (task != null) {
+				task.cancel(false);
+			}
+		}
+
+		/**
+		 * Invoked by the {@link #scheduler} when the request timeout expires
+		 */
 		@Override
 		public void run() {
-			for (Map.Entry<String, ConcurrentLinkedQueue<HttpRequestTrace>> entry : connectionIdToRequestTracesMap.entrySet()) {
-				final ConcurrentLinkedQueue<HttpRequestTrace> httpRequestTraces = entry.getValue();
-				removeOldRequestTraces(httpRequestTraces);
-				if (httpRequestTraces.isEmpty()) {
-					removeOrphanEntry(entry);
+			completeNow();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			completeNow();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			connection.removePendingRequest(this);
+			if (completed.compareAndSet(false, true)) {
+				cancelTimeoutTask();
+				try {
+					asyncContext.complete();
+				} catch (IllegalStateException e) {
+					// already completed by the container
 				}
 			}
 		}
 
-		private void removeOldRequestTraces(ConcurrentLinkedQueue<HttpRequestTrace> httpRequestTraces) {
-			for (Iterator<HttpRequestTrace> iterator = httpRequestTraces.iterator(); iterator.hasNext(); ) {
-				HttpRequestTrace httpRequestTrace = iterator.next();
-				final long timeInBuffer = System.currentTimeMillis() - httpRequestTrace.getTimestampEnd();
-				if (timeInBuffer > MAX_REQUEST_TRACE_BUFFERING_TIME) {
-					iterator.remove();
-				}
+		@Override
+		public void onComplete(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+
+		private void completeNow() {
+			if (completed.compareAndSet(false, true)) {
+				writeResponse();
+			}
+		}
+
+		private void writeResponse() {
+			connection.removePendingRequest(this);
+			cancelTimeoutTask();
+			try {
+				writeRequestTracesToResponse(response, connection.drainRequestTraces());
+			} catch (Exception e) {
+				logger.warn("Could not write request traces to the widget: {}", e.getMessage());
+			} finally {
+				asyncContext.complete();
 			}
 		}
+	}
 
-		private void removeOrphanEntry(Map.Entry<String, ConcurrentLinkedQueue<HttpRequestTrace>> entry) {
-			// to eliminate race conditions remove only if queue is still empty
-			connectionIdToRequestTracesMap.remove(entry.getKey(), new ConcurrentLinkedQueue<HttpRequestTrace>());
+	/**
+	 * Removes connections that have not been polled for {@link #MAX_REQUEST_TRACE_BUFFERING_TIME} (for example because
+	 * the browser tab was closed or the widget receives the request traces via the {@link LiveStreamServlet})
+	 * to prevent a memory leak
+	 */
+	private class OldConnectionRemover implements Runnable {
+		@Override
+		public void run() {
+			for (Map.Entry<String, WidgetConnection> entry : connectionIdToConnectionMap.entrySet()) {
+				if (entry.getValue().isOrphan()) {
+					connectionIdToConnectionMap.remove(entry.getKey(), entry.getValue());
+				}
+			}
 		}
 	}
 
-	@Override
-	public void destroy() {
-		oldRequestTracesRemoverPool.shutdown();
+	@JsonIgnoreProperties("callStack")
+	private static abstract class ExcludeCallStackAscii {
 	}
 }
@@ -81,6 +81,7 @@ public class StagemonitorWidgetHtmlInjector implements HtmlInjector {
 				.replace("@@CONFIGURATION_SOURCES@@", JsonUtils.toJson(configuration.getNamesOfConfigurationSources()))
 				.replace("@@MEASUREMENT_SESSION@@", JsonUtils.toJson(Stagemonitor.getMeasurementSession()))
 				.replace("@@PATHS_OF_TAB_PLUGINS@@", JsonUtils.toJson(pathsOfWidgetTabPlugins))
+				.replace("@@LIVE_STREAM_METRICS_INTERVAL@@", Integer.toString(webPlugin.getLiveStreamMetricsInterval()))
 				.replace("@@PATHS_OF_WIDGET_METRIC_TAB_PLUGINS@@", JsonUtils.toJson(pathsOfWidgetMetricTabPlugins));
 	}
 }
@@ -2,15 +2,52 @@ var rootRequestTrace;
 var noOfRequestTraces = 0;
 listenForAjaxRequestTraces = function (rootRequest, connectionId) {
 	rootRequestTrace = rootRequest;
+	if (window.EventSource) {
+		var liveStream = new EventSource(stagemonitor.baseUrl + "/stagemonitor/live?connectionId=" + encodeURIComponent(connectionId));
+		liveStream.addEventListener("request-trace", function (event) {
+			addAjaxRequestTrace(JSON.parse(event.data));
+		});
+		liveStream.addEventListener("metrics", function (event) {
+			mergeLiveMetrics(JSON.parse(event.data));
+		});
+		liveStream.onerror = function () {
+			// the EventSource is closed for good if the server does not support the live stream
+			if (liveStream.readyState === EventSource.CLOSED) {
+				stagemonitor.liveStream = null;
+				pollAjaxRequestTraces(connectionId);
+			}
+		};
+		stagemonitor.liveStream = liveStream;
+	} else {
+		pollAjaxRequestTraces(connectionId);
+	}
+};
+
+// the first metrics event of a connection contains all metrics, the subsequent ones only those that have changed
+function mergeLiveMetrics(update) {
+	var metricTypes = ["gauges", "counters", "histograms", "meters", "timers"];
+	if (update.full || !stagemonitor.liveMetrics) {
+		stagemonitor.liveMetrics = {};
+	}
+	var liveMetrics = stagemonitor.liveMetrics;
+	$.each(metricTypes, function (i, type) {
+		liveMetrics[type] = $.extend({}, liveMetrics[type], update[type]);
+		$.each(update.removed, function (j, name) {
+			delete liveMetrics[type][name];
+		});
+	});
+}
+
+function pollAjaxRequestTraces(connectionId) {
 	$.getJSON(stagemonitor.baseUrl + "/stagemonitor/request-traces", {"connectionId": connectionId}, function (requestTraces) {
 			if (requestTraces) {
 				for (var i = 0; i < requestTraces.length; i++) {
 					addAjaxRequestTrace(requestTraces[i]);
 				}
 			}
-			listenForAjaxRequestTraces(rootRequest, connectionId);
+			pollAjaxRequestTraces(connectionId);
 		});
-};
+}
 
 $(document).ready(function () {
 	var table = $("#ajax-table").dataTable({
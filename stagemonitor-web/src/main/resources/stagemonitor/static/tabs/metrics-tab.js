@@ -45,9 +45,14 @@ function renderMetricsTab() {
 				});
 				renderAllTimerTables();
 				renderAllGraphs();
-				setInterval(function () {
-					getMetricsFromServer(onMetricsReceived);
-				}, tickMs);
+				// the live stream only pushes metrics if stagemonitor.web.widget.liveStream.metricsInterval is > 0
+				if (stagemonitor.liveStream && stagemonitor.liveStreamMetricsInterval > 0) {
+					listenForMetricsUpdates();
+				} else {
+					setInterval(function () {
+						getMetricsFromServer(onMetricsReceived);
+					}, tickMs);
+				}
 			}
 		});
 	}
@@ -112,6 +117,15 @@ function renderMetricsTab() {
 		});
 	}
 
+	function listenForMetricsUpdates() {
+		// the metrics are merged into stagemonitor.liveMetrics by a listener that is registered earlier
+		stagemonitor.liveStream.addEventListener("metrics", function () {
+			var metrics = $.extend(true, {}, stagemonitor.liveMetrics);
+			metrics['timestamp'] = new Date().getTime();
+			onMetricsReceived(metrics);
+		});
+	}
+
 	function getPluginId(pluginPath) {
 		return pluginPath.substring(pluginPath.lastIndexOf("/") + 1, pluginPath.length)
 	}
@@ -50,6 +50,7 @@ function renderRequestTab(requestTrace) {
 			"executionTime": {name: "Server execution time in ms", description: "The time in ms it took to process the request in the server."},
 			"executionTimeDb": {name: "Execution time for SQL-Queries in ms", description: ""},
 			"executionTimeCpu": {name: "Execution time for the CPU", description: "The amount of time in ms it took the CPU to process the request."},
+			"allocatedBytes": {name: "Allocated bytes", description: "The number of bytes that have been allocated on the heap while processing the request. Lower is better."},
 			"executionCountDb": {name: "Number of SQL-Queries", description: "The number of SQL-Queries. Lower is better."},
 			"error": {name: "Error", description: "true, if there was an error while processing the request, false otherwise."},
 			"exceptionClass": {name: "Exception class", description: "The class of the thrown exception. (Only present, if there was a exception)"},
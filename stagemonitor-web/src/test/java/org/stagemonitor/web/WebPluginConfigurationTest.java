@@ -1,12 +1,17 @@
 package org.stagemonitor.web;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -63,4 +68,25 @@ public class WebPluginConfigurationTest {
 		assertEquals(false, config.isMonitorOnlySpringMvcRequests());
 
 	}
+
+	@Test
+	public void testAnyGroupUrlPattern() {
+		final Pattern anyGroupUrlPattern = config.getAnyGroupUrlPattern();
+		assertTrue(anyGroupUrlPattern.matcher("/static/app.js").find());
+		assertTrue(anyGroupUrlPattern.matcher("/static/logo.png").find());
+		assertFalse(anyGroupUrlPattern.matcher("/owners/1/edit").find());
+	}
+
+	@Test
+	public void testAnyGroupUrlPatternWithBackReference() {
+		assertNull(WebPlugin.compileAnyGroupUrlPattern(Collections.singletonMap(Pattern.compile("/(a)/\\1"), "a")));
+	}
+
+	@Test
+	public void testAnyGroupUrlPatternWithDuplicateNamedGroups() {
+		final Map<Pattern, String> groupUrls = new LinkedHashMap<Pattern, String>();
+		groupUrls.put(Pattern.compile("/a/(?<id>\\d+)"), "/a/{id}");
+		groupUrls.put(Pattern.compile("/b/(?<id>\\d+)"), "/b/{id}");
+		assertNull(WebPlugin.compileAnyGroupUrlPattern(groupUrls));
+	}
 }
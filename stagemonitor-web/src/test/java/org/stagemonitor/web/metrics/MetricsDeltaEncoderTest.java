@@ -0,0 +1,91 @@
+package org.stagemonitor.web.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Before;
+import org.junit.Test;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.JsonUtils;
+
+public class MetricsDeltaEncoderTest {
+
+	private Metric2Registry registry;
+	private MetricsDeltaEncoder encoder;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+		encoder = new MetricsDeltaEncoder(registry, JsonUtils.getMapper());
+	}
+
+	@Test
+	public void testFirstTickContainsAllMetrics() throws Exception {
+		registry.counter(name("requests").tag("request_name", "Search").build()).inc();
+		registry.counter(name("errors").build()).inc(2);
+
+		final JsonNode delta = parse(encoder.tick());
+
+		assertFalse(delta.get("full").asBoolean());
+		assertEquals(1, delta.get("counters").get("requests.Search").get("count").asInt());
+		assertEquals(2, delta.get("counters").get("errors").get("count").asInt());
+		assertEquals(0, delta.get("removed").size());
+	}
+
+	@Test
+	public void testOnlyChangedMetricsAreEncoded() throws Exception {
+		registry.counter(name("requests").build()).inc();
+		registry.counter(name("errors").build()).inc();
+		encoder.tick();
+
+		registry.counter(name("requests").build()).inc();
+		final JsonNode delta = parse(encoder.tick());
+
+		assertEquals(1, delta.get("counters").size());
+		assertEquals(2, delta.get("counters").get("requests").get("count").asInt());
+	}
+
+	@Test
+	public void testNoChanges() throws Exception {
+		registry.counter(name("requests").build()).inc();
+		encoder.tick();
+
+		assertNull(encoder.tick());
+	}
+
+	@Test
+	public void testRemovedMetrics() throws Exception {
+		registry.counter(name("requests").build()).inc();
+		encoder.tick();
+
+		registry.remove(name("requests").build());
+		final JsonNode delta = parse(encoder.tick());
+
+		assertEquals(0, delta.get("counters").size());
+		assertEquals("requests", delta.get("removed").get(0).asText());
+	}
+
+	@Test
+	public void testEncodeFull() throws Exception {
+		registry.counter(name("requests").build()).inc();
+		registry.counter(name("errors").build()).inc();
+		encoder.tick();
+		registry.counter(name("requests").build()).inc();
+		encoder.tick();
+
+		final JsonNode full = parse(encoder.encodeFull());
+
+		assertTrue(full.get("full").asBoolean());
+		assertEquals(2, full.get("counters").size());
+		assertEquals(2, full.get("counters").get("requests").get("count").asInt());
+		assertEquals(0, full.get("timers").size());
+	}
+
+	private JsonNode parse(byte[] json) throws Exception {
+		return JsonUtils.getMapper().readTree(json);
+	}
+}
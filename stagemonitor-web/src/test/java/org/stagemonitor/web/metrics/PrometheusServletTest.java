@@ -0,0 +1,138 @@
+package org.stagemonitor.web.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.web.WebPlugin;
+
+public class PrometheusServletTest {
+
+	private Metric2Registry registry;
+	private WebPlugin webPlugin;
+	private PrometheusServlet servlet;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+		webPlugin = mock(WebPlugin.class);
+		servlet = new PrometheusServlet(registry, webPlugin);
+	}
+
+	@Test
+	public void testCounterAndGauge() throws Exception {
+		registry.counter(name("errors").tag("request_name", "Search").build()).inc(3);
+		registry.register(name("jvm.threads").build(), new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return 42;
+			}
+		});
+
+		final MockHttpServletResponse response = get();
+
+		assertEquals(PrometheusServlet.CONTENT_TYPE, response.getContentType());
+		assertEquals("# TYPE errors gauge\n" +
+				"errors{request_name=\"Search\"} 3\n" +
+				"# TYPE jvm_threads gauge\n" +
+				"jvm_threads 42.0\n", response.getContentAsString());
+	}
+
+	@Test
+	public void testTimer() throws Exception {
+		registry.timer(name("response_time").tag("request_name", "Search").layer("All").build())
+				.update(2, TimeUnit.SECONDS);
+
+		assertEquals("# TYPE response_time summary\n" +
+				"response_time{request_name=\"Search\",layer=\"All\",quantile=\"0.5\"} 2.0\n" +
+				"response_time{request_name=\"Search\",layer=\"All\",quantile=\"0.75\"} 2.0\n" +
+				"response_time{request_name=\"Search\",layer=\"All\",quantile=\"0.95\"} 2.0\n" +
+				"response_time{request_name=\"Search\",layer=\"All\",quantile=\"0.98\"} 2.0\n" +
+				"response_time{request_name=\"Search\",layer=\"All\",quantile=\"0.99\"} 2.0\n" +
+				"response_time{request_name=\"Search\",layer=\"All\",quantile=\"0.999\"} 2.0\n" +
+				"response_time_sum{request_name=\"Search\",layer=\"All\"} 2.0\n" +
+				"response_time_count{request_name=\"Search\",layer=\"All\"} 1\n", get().getContentAsString());
+	}
+
+	@Test
+	public void testHistogramSum() throws Exception {
+		final Histogram histogram = registry.histogram(name("result_size").build());
+		histogram.update(1);
+		histogram.update(3);
+
+		final String metrics = get().getContentAsString();
+
+		assertTrue(metrics, metrics.contains("result_size_sum 4.0\n"));
+		assertTrue(metrics, metrics.contains("result_size_count 2\n"));
+	}
+
+	@Test
+	public void testMetricsWithSameNameAreGrouped() throws Exception {
+		registry.meter(name("requests").tag("request_name", "Search").build()).mark();
+		registry.counter(name("errors").build()).inc();
+		registry.meter(name("requests").tag("request_name", "Show").build()).mark(2);
+
+		final String metrics = get().getContentAsString();
+
+		assertTrue(metrics, metrics.contains("# TYPE requests_total counter\n" +
+				"requests_total{request_name=\"S"));
+		assertTrue(metrics, metrics.contains("requests_total{request_name=\"Search\"} 1\n"));
+		assertTrue(metrics, metrics.contains("requests_total{request_name=\"Show\"} 2\n"));
+		assertEquals(1, metrics.split("# TYPE requests_total").length - 1);
+	}
+
+	@Test
+	public void testEscaping() throws Exception {
+		registry.counter(name("http.errors-4xx").tag("request-name", "GET /a\"b\\c\nd").build()).inc();
+
+		assertEquals("# TYPE http_errors_4xx gauge\n" +
+				"http_errors_4xx{request_name=\"GET /a\\\"b\\\\c\\nd\"} 1\n", get().getContentAsString());
+	}
+
+	@Test
+	public void testRenderIsReusedWithinCacheWindow() throws Exception {
+		when(webPlugin.getPrometheusCacheMillis()).thenReturn(1000);
+		registry.counter(name("errors").build()).inc();
+		final byte[] first = servlet.getRenderedMetrics(System.currentTimeMillis());
+
+		registry.counter(name("errors").build()).inc();
+
+		assertSame(first, servlet.getRenderedMetrics(System.currentTimeMillis()));
+		final String rendered = new String(servlet.getRenderedMetrics(System.currentTimeMillis() + 2000), "UTF-8");
+		assertTrue(rendered, rendered.contains("errors 2\n"));
+	}
+
+	@Test
+	public void testNoCaching() throws Exception {
+		registry.counter(name("errors").build()).inc();
+		assertTrue(get().getContentAsString().contains("errors 1\n"));
+
+		registry.counter(name("errors").build()).inc();
+		registry.remove(name("errors").build());
+		registry.counter(name("errors").build()).inc(5);
+		Thread.sleep(1);
+
+		final String metrics = get().getContentAsString();
+		assertTrue(metrics, metrics.contains("errors 5\n"));
+		assertFalse(metrics, metrics.contains("errors 2\n"));
+	}
+
+	private MockHttpServletResponse get() throws Exception {
+		final MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(new MockHttpServletRequest("GET", "/stagemonitor/prometheus"), response);
+		return response;
+	}
+}
@@ -0,0 +1,47 @@
+package org.stagemonitor.web.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class RenderCacheTest {
+
+	private final RenderCache renderCache = new RenderCache(10);
+
+	@Test
+	public void testFailedRenderIsNotCached() throws Exception {
+		try {
+			renderCache.get("key", 60000, new RenderCache.Renderer() {
+				@Override
+				public void render(OutputStream os) throws IOException {
+					throw new IOException("failed");
+				}
+			});
+			fail();
+		} catch (IOException e) {
+			assertEquals("failed", e.getMessage());
+		}
+
+		assertEquals("ok", new String(renderCache.get("key", 60000, renderer("ok")), "UTF-8"));
+	}
+
+	@Test
+	public void testRenderIsCached() throws Exception {
+		renderCache.get("key", 60000, renderer("first"));
+
+		assertEquals("first", new String(renderCache.get("key", 60000, renderer("second")), "UTF-8"));
+	}
+
+	private static RenderCache.Renderer renderer(final String content) {
+		return new RenderCache.Renderer() {
+			@Override
+			public void render(OutputStream os) throws IOException {
+				os.write(content.getBytes("UTF-8"));
+			}
+		};
+	}
+}
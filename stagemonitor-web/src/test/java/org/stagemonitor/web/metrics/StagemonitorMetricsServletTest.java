@@ -0,0 +1,142 @@
+package org.stagemonitor.web.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.core.util.JsonUtils;
+import org.stagemonitor.web.WebPlugin;
+
+public class StagemonitorMetricsServletTest {
+
+	private Metric2Registry registry;
+	private WebPlugin webPlugin;
+	private StagemonitorMetricsServlet servlet;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+		registry.timer(name("response_time").tag("request_name", "Search").layer("All").build());
+		registry.timer(name("response_time").tag("request_name", "Show").layer("All").build());
+		registry.timer(name("response_time").tag("request_name", "Show").layer("jdbc").build());
+		registry.counter(name("errors").build()).inc();
+		webPlugin = mock(WebPlugin.class);
+		servlet = new StagemonitorMetricsServlet(registry, webPlugin, JsonUtils.getMapper());
+	}
+
+	@Test
+	public void testAllMetrics() throws Exception {
+		final MockHttpServletResponse response = get(new MockHttpServletRequest("GET", "/stagemonitor/metrics"));
+
+		assertEquals(JsonUtils.toJson(registry.getMetricRegistry()), response.getContentAsString());
+	}
+
+	@Test
+	public void testJsonp() throws Exception {
+		when(webPlugin.getMetricsServletJsonpParamName()).thenReturn("callback");
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.addParameter("callback", "foo");
+
+		final MockHttpServletResponse response = get(request);
+
+		assertEquals("foo(" + JsonUtils.toJson(registry.getMetricRegistry()) + ")", response.getContentAsString());
+	}
+
+	@Test
+	public void testFilterByNameAndTag() throws Exception {
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.addParameter("name", "response_time");
+		request.addParameter("tag", "layer:All");
+
+		final JsonNode metrics = getJson(request);
+
+		assertEquals(2, metrics.get("timers").size());
+		assertTrue(metrics.get("timers").has("response_time.Search.All"));
+		assertTrue(metrics.get("timers").has("response_time.Show.All"));
+		assertEquals(0, metrics.get("counters").size());
+		assertFalse(metrics.has("total"));
+	}
+
+	@Test
+	public void testFieldSelection() throws Exception {
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.addParameter("name", "errors");
+		request.addParameter("fields", "count");
+
+		final JsonNode metrics = getJson(request);
+
+		assertEquals(1, metrics.get("counters").get("errors").size());
+		assertEquals(1, metrics.get("counters").get("errors").get("count").asInt());
+	}
+
+	@Test
+	public void testPagination() throws Exception {
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.addParameter("name", "response_time");
+		request.addParameter("offset", "1");
+		request.addParameter("limit", "1");
+
+		final JsonNode metrics = getJson(request);
+
+		assertEquals(3, metrics.get("total").asInt());
+		assertEquals(1, metrics.get("timers").size());
+		assertTrue(metrics.get("timers").has("response_time.Show.All"));
+	}
+
+	@Test
+	public void testPaginationOrdersByTagKeys() throws Exception {
+		registry.counter(name("requests").tag("b", "1").build());
+		registry.counter(name("requests").tag("a", "2").build());
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.addParameter("name", "requests");
+		request.addParameter("offset", "0");
+		request.addParameter("limit", "1");
+
+		final JsonNode metrics = getJson(request);
+
+		assertEquals(2, metrics.get("total").asInt());
+		assertTrue(metrics.get("counters").has("requests.2"));
+	}
+
+	@Test
+	public void testInvalidParameter() throws Exception {
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.addParameter("limit", "foo");
+
+		assertEquals(400, get(request).getStatus());
+	}
+
+	@Test
+	public void testCachedResponse() throws Exception {
+		when(webPlugin.getMetricsServletCacheMillis()).thenReturn(60000);
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/metrics");
+		request.setQueryString("name=errors");
+		request.addParameter("name", "errors");
+
+		assertEquals(1, getJson(request).get("counters").get("errors").get("count").asInt());
+		registry.counter(name("errors").build()).inc();
+		assertEquals(1, getJson(request).get("counters").get("errors").get("count").asInt());
+
+		when(webPlugin.getMetricsServletCacheMillis()).thenReturn(0);
+		assertEquals(2, getJson(request).get("counters").get("errors").get("count").asInt());
+	}
+
+	private JsonNode getJson(MockHttpServletRequest request) throws Exception {
+		return JsonUtils.getMapper().readTree(get(request).getContentAsString());
+	}
+
+	private MockHttpServletResponse get(MockHttpServletRequest request) throws Exception {
+		final MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		return response;
+	}
+}
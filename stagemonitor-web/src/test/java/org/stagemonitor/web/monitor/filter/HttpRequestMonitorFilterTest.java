@@ -193,6 +193,7 @@ public class HttpRequestMonitorFilterTest {
 	@Test
 	public void testRUM() throws Exception {
 		when(webPlugin.isRealUserMonitoringEnabled()).thenReturn(true);
+		when(webPlugin.getRumSampleRate()).thenReturn(1.0);
 		when(webPlugin.isWidgetEnabled()).thenReturn(false);
 		when(webPlugin.isWidgetAndStagemonitorEndpointsAllowed(any(HttpServletRequest.class), any(Configuration.class))).thenReturn(false);
 		initFilter();
@@ -212,4 +213,22 @@ public class HttpRequestMonitorFilterTest {
 				"</script></body></html>", servletResponse.getContentAsString());
 	}
 
+	@Test
+	public void testRUMSamplingAndBatching() throws Exception {
+		when(webPlugin.isRealUserMonitoringEnabled()).thenReturn(true);
+		when(webPlugin.getRumSampleRate()).thenReturn(0.25);
+		when(webPlugin.getRumBatchSize()).thenReturn(10);
+		when(webPlugin.isWidgetAndStagemonitorEndpointsAllowed(any(HttpServletRequest.class), any(Configuration.class))).thenReturn(false);
+		initFilter();
+
+		final MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+		httpRequestMonitorFilter.doFilter(requestWithAccept("text/html"), servletResponse, writeInResponseWhenCallingDoFilter(testHtml));
+
+		final String content = servletResponse.getContentAsString();
+		assertTrue(content, content.contains("var stagemonitorRumSampled = Math.random() < 0.25;\n"));
+		assertTrue(content, content.contains("beacon_url: stagemonitorRumSampled && !stagemonitorRumBatched ? '/stagemonitor/public/rum' : null,\n"));
+		assertTrue(content, content.contains("if (stagemonitorRumBatched && stagemonitorRumSampled) {\n"));
+		assertTrue(content, content.contains("if (beacons.length >= 10) {\n"));
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package org.stagemonitor.web.monitor.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.stagemonitor.requestmonitor.AggregatedCallTreeReporter;
+import org.stagemonitor.requestmonitor.RequestMonitorPlugin;
+import org.stagemonitor.requestmonitor.RequestTrace;
+import org.stagemonitor.requestmonitor.profiler.CallStackElement;
+
+public class AggregatedCallTreeServletTest {
+
+	private RequestMonitorPlugin requestMonitorPlugin;
+	private AggregatedCallTreeServlet servlet;
+	private MockHttpServletResponse response;
+
+	@Before
+	public void setUp() throws Exception {
+		requestMonitorPlugin = mock(RequestMonitorPlugin.class);
+		servlet = new AggregatedCallTreeServlet(requestMonitorPlugin);
+		response = new MockHttpServletResponse();
+	}
+
+	@Test
+	public void testCollapsedStacks() throws Exception {
+		final AggregatedCallTreeReporter reporter = new AggregatedCallTreeReporter(100, 100);
+		reporter.reportRequestTrace(requestTrace("GET /a"));
+		reporter.reportRequestTrace(requestTrace("GET /b"));
+		when(requestMonitorPlugin.getAggregatedCallTreeReporter()).thenReturn(reporter);
+
+		servlet.service(new MockHttpServletRequest("GET", "/stagemonitor/aggregated-call-trees"), response);
+		assertEquals(200, response.getStatus());
+		assertEquals("GET /a;foo() 2000\nGET /b;foo() 2000\n", response.getContentAsString());
+
+		response = new MockHttpServletResponse();
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/aggregated-call-trees");
+		request.addParameter("name", "GET /b");
+		servlet.service(request, response);
+		assertEquals("GET /b;foo() 2000\n", response.getContentAsString());
+	}
+
+	@Test
+	public void testNotActive() throws Exception {
+		servlet.service(new MockHttpServletRequest("GET", "/stagemonitor/aggregated-call-trees"), response);
+
+		assertEquals(404, response.getStatus());
+	}
+
+	private static RequestTrace requestTrace(final String name) {
+		final RequestTrace requestTrace = new RequestTrace(null, new RequestTrace.GetNameCallback() {
+			@Override
+			public String getName() {
+				return name;
+			}
+		});
+		final CallStackElement root = new CallStackElement(null, name, 0);
+		root.setExecutionTime(2000000);
+		new CallStackElement(root, "foo()", 0).setExecutionTime(2000000);
+		requestTrace.setCallStack(root);
+		return requestTrace;
+	}
+}
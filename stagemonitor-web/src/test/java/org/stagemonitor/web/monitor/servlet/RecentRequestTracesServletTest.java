@@ -0,0 +1,78 @@
+package org.stagemonitor.web.monitor.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.stagemonitor.requestmonitor.RecentRequestTraceReporter;
+import org.stagemonitor.requestmonitor.RequestMonitorPlugin;
+
+public class RecentRequestTracesServletTest {
+
+	private RequestMonitorPlugin requestMonitorPlugin;
+	private RecentRequestTraceReporter reporter;
+	private RecentRequestTracesServlet servlet;
+	private MockHttpServletResponse response;
+
+	@Before
+	public void setUp() throws Exception {
+		requestMonitorPlugin = mock(RequestMonitorPlugin.class);
+		reporter = mock(RecentRequestTraceReporter.class);
+		servlet = new RecentRequestTracesServlet(requestMonitorPlugin);
+		response = new MockHttpServletResponse();
+	}
+
+	@Test
+	public void testSlowest() throws Exception {
+		when(requestMonitorPlugin.getRecentRequestTraceReporter()).thenReturn(reporter);
+		when(reporter.getSlowest("GET /a", 2)).thenReturn(Arrays.asList("{\"id\":1}", "{\"id\":2}"));
+
+		servlet.service(request("/slowest", "name", "GET /a", "limit", "2"), response);
+
+		assertEquals(200, response.getStatus());
+		assertEquals("[{\"id\":1},{\"id\":2}]", response.getContentAsString());
+	}
+
+	@Test
+	public void testInvalidLimit() throws Exception {
+		when(requestMonitorPlugin.getRecentRequestTraceReporter()).thenReturn(reporter);
+
+		servlet.service(request("/slowest", "limit", "0"), response);
+
+		assertEquals(400, response.getStatus());
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		when(requestMonitorPlugin.getRecentRequestTraceReporter()).thenReturn(reporter);
+		when(reporter.getErrors(anyLong())).thenReturn(Arrays.asList("{\"id\":1}"));
+
+		servlet.service(request("/errors"), response);
+
+		assertEquals(200, response.getStatus());
+		assertEquals("[{\"id\":1}]", response.getContentAsString());
+	}
+
+	@Test
+	public void testNotActive() throws Exception {
+		servlet.service(request("/slowest"), response);
+
+		assertEquals(404, response.getStatus());
+	}
+
+	private static MockHttpServletRequest request(String pathInfo, String... params) {
+		final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/recent-request-traces" + pathInfo);
+		request.setPathInfo(pathInfo);
+		for (int i = 0; i < params.length; i += 2) {
+			request.addParameter(params[i], params[i + 1]);
+		}
+		return request;
+	}
+}
@@ -0,0 +1,159 @@
+package org.stagemonitor.web.monitor.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.stagemonitor.core.metrics.metrics2.Metric2Registry;
+import org.stagemonitor.requestmonitor.RequestTrace;
+import org.stagemonitor.web.WebPlugin;
+import org.stagemonitor.web.monitor.HttpRequestTrace;
+
+public class LiveStreamServletTest {
+
+	private LiveStreamServlet liveStreamServlet;
+	private Metric2Registry registry;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new Metric2Registry();
+		final WebPlugin webPlugin = mock(WebPlugin.class);
+		when(webPlugin.getLiveStreamMetricsInterval()).thenReturn(5);
+		liveStreamServlet = new LiveStreamServlet(registry, webPlugin);
+	}
+
+	@Test
+	public void testSubscribe() throws Exception {
+		final MockHttpServletResponse response = subscribe("1");
+
+		assertEquals("text/event-stream;charset=UTF-8", response.getHeader("content-type"));
+		awaitContent(response, "retry: 3000\n\n");
+		assertEquals("retry: 3000\n\n", response.getContentAsString());
+		assertEquals(1, liveStreamServlet.getNumberOfSubscribers());
+	}
+
+	@Test
+	public void testAsyncNotSupported() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/live");
+		request.setAsyncSupported(false);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		liveStreamServlet.service(request, response);
+
+		assertEquals(501, response.getStatus());
+		assertEquals(0, liveStreamServlet.getNumberOfSubscribers());
+	}
+
+	@Test
+	public void testRequestTracesAreOnlySentToTheirConnection() throws Exception {
+		final MockHttpServletResponse response1 = subscribe("1");
+		final MockHttpServletResponse response2 = subscribe("2");
+		final HttpRequestTrace requestTrace = createRequestTrace("1");
+
+		assertTrue(liveStreamServlet.isActive(requestTrace));
+		liveStreamServlet.reportRequestTrace(requestTrace);
+
+		awaitContent(response1, "event: request-trace\ndata: {");
+		assertFalse(response2.getContentAsString().contains("event: request-trace"));
+	}
+
+	@Test
+	public void testNotActiveWithoutSubscribers() throws Exception {
+		assertFalse(liveStreamServlet.isActive(createRequestTrace("1")));
+	}
+
+	@Test
+	public void testFirstMetricsEventIsFull() throws Exception {
+		registry.counter(name("requests").build()).inc();
+		final MockHttpServletResponse response1 = subscribe("1");
+		liveStreamServlet.broadcastMetrics();
+		final MockHttpServletResponse response2 = subscribe("2");
+
+		registry.counter(name("requests").build()).inc();
+		liveStreamServlet.broadcastMetrics();
+
+		final String[] events1 = response1.getContentAsString().split("\n\n");
+		assertEquals(3, events1.length);
+		assertTrue(events1[1].startsWith("event: metrics\ndata: {\"full\":true"));
+		assertTrue(events1[2].startsWith("event: metrics\ndata: {\"full\":false"));
+
+		final String[] events2 = response2.getContentAsString().split("\n\n");
+		assertEquals(2, events2.length);
+		assertTrue(events2[1].startsWith("event: metrics\ndata: {\"full\":true"));
+	}
+
+	@Test
+	public void testSlowSubscribersAreClosed() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final MockHttpServletResponse slowResponse = new MockHttpServletResponse() {
+			@Override
+			public ServletOutputStream getOutputStream() {
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						try {
+							release.await(5, TimeUnit.SECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				};
+			}
+		};
+		subscribe("1", slowResponse);
+		final MockHttpServletResponse response = subscribe("2");
+		assertEquals(2, liveStreamServlet.getNumberOfSubscribers());
+
+		for (int i = 0; i <= LiveStreamServlet.MAX_QUEUED_EVENTS + 1; i++) {
+			liveStreamServlet.reportRequestTrace(createRequestTrace("1"));
+		}
+		release.countDown();
+
+		assertEquals(1, liveStreamServlet.getNumberOfSubscribers());
+		liveStreamServlet.reportRequestTrace(createRequestTrace("2"));
+		awaitContent(response, "event: request-trace\ndata: {");
+	}
+
+	private MockHttpServletResponse subscribe(String connectionId) throws Exception {
+		return subscribe(connectionId, new MockHttpServletResponse());
+	}
+
+	private MockHttpServletResponse subscribe(String connectionId, MockHttpServletResponse response) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/live");
+		request.addParameter("connectionId", connectionId);
+		request.setAsyncSupported(true);
+		liveStreamServlet.service(request, response);
+		return response;
+	}
+
+	private void awaitContent(MockHttpServletResponse response, String expectedContent) throws Exception {
+		final long start = System.currentTimeMillis();
+		while (!response.getContentAsString().contains(expectedContent) && System.currentTimeMillis() - start < 1000) {
+			Thread.sleep(1);
+		}
+		assertTrue(response.getContentAsString().contains(expectedContent));
+	}
+
+	private HttpRequestTrace createRequestTrace(String connectionId) {
+		return new HttpRequestTrace(null, new RequestTrace.GetNameCallback() {
+			@Override
+			public String getName() {
+				return "test";
+			}
+		}, "/test", Collections.<String, String>emptyMap(), "GET", null, connectionId, true);
+	}
+}
@@ -10,12 +10,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.UUID;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.springframework.mock.web.MockAsyncContext;
 import org.springframework.mock.web.MockFilterChain;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
@@ -75,10 +78,65 @@ public class RequestTraceServletTest {
 
 		requestTraceServlet.service(request, response);
 
-		Assert.assertEquals(Arrays.asList(httpRequestTrace.toJson(), httpRequestTrace.toJson()).toString(), response.getContentAsString());
+		Assert.assertEquals(JsonUtils.toJson(Arrays.asList(httpRequestTrace, httpRequestTrace)), response.getContentAsString());
 		Assert.assertEquals("application/json;charset=UTF-8", response.getHeader("content-type"));
 	}
 
+	@Test
+	public void testBufferIsBounded() throws Exception {
+		for (int i = 0; i < RequestTraceServlet.MAX_BUFFERED_REQUEST_TRACES_PER_CONNECTION + 10; i++) {
+			requestTraceServlet.reportRequestTrace(httpRequestTrace);
+		}
+
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/request-traces");
+		request.addParameter("connectionId", connectionId);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		requestTraceServlet.service(request, response);
+
+		Assert.assertEquals(RequestTraceServlet.MAX_BUFFERED_REQUEST_TRACES_PER_CONNECTION,
+				JsonUtils.getMapper().readTree(response.getContentAsString()).size());
+	}
+
+	@Test
+	public void testAsyncRequestDoesNotBlock() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/request-traces");
+		request.addParameter("connectionId", connectionId);
+		request.setAsyncSupported(true);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		requestTraceServlet.service(request, response);
+		Assert.assertTrue(request.isAsyncStarted());
+		Assert.assertEquals("", response.getContentAsString());
+
+		requestTraceServlet.reportRequestTrace(httpRequestTrace);
+		waitForResponse(response);
+
+		Assert.assertEquals(JsonUtils.toJson(Arrays.asList(httpRequestTrace)), response.getContentAsString());
+		Assert.assertEquals("application/json;charset=UTF-8", response.getHeader("content-type"));
+	}
+
+	@Test
+	public void testAsyncRequestIsCompletedOnError() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/stagemonitor/request-traces");
+		request.addParameter("connectionId", connectionId);
+		request.setAsyncSupported(true);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		requestTraceServlet.service(request, response);
+		Assert.assertTrue(request.isAsyncStarted());
+
+		final MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+		for (AsyncListener listener : asyncContext.getListeners()) {
+			listener.onError(new AsyncEvent(asyncContext, new IllegalStateException("connection reset")));
+		}
+		Assert.assertFalse(request.isAsyncStarted());
+
+		// the request trace must be buffered for the next request instead of being written to the failed one
+		requestTraceServlet.reportRequestTrace(httpRequestTrace);
+		Assert.assertEquals("", response.getContentAsString());
+	}
+
 	private void performNonBlockingRequest(final HttpServletRequest request, final MockHttpServletResponse response) throws Exception {
 		final Object lock = new Object();
 		synchronized (lock) {
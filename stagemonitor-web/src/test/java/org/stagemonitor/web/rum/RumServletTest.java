@@ -7,7 +7,9 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.stagemonitor.core.metrics.metrics2.MetricName.name;
 
+import java.io.ByteArrayOutputStream;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -130,4 +132,72 @@ public class RumServletTest {
 
 		assertEquals(404, resp.getStatus());
 	}
+
+	@Test
+	public void testBatchedBeacons() throws Exception {
+		when(webPlugin.isCollectPageLoadTimesPerRequest()).thenReturn(true);
+		final MockHttpServletResponse resp = new MockHttpServletResponse();
+
+		rumServlet.doPost(postBeacons(("[" +
+				"{\"requestName\":\"GET /a\",\"serverTime\":100,\"timeToFirstByte\":160,\"domProcessing\":10,\"pageRendering\":30,\"foo\":{\"bar\":1}}," +
+				"{\"requestName\":\"GET /b\",\"serverTime\":\"200\",\"timeToFirstByte\":260,\"domProcessing\":20,\"pageRendering\":40}," +
+				"{\"requestName\":\"GET /c\",\"serverTime\":200}" +
+				"]").getBytes("UTF-8")), resp);
+
+		assertEquals(204, resp.getStatus());
+		assertEquals(2, registry.getTimers().get(name("response_time_rum").tag("request_name", "All").layer("All").build()).getCount());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(200), registry.getTimers().get(name("response_time_rum").tag("request_name", "GET /a").layer("All").build()).getSnapshot().getMax());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(60), registry.getTimers().get(name("response_time_rum").tag("request_name", "GET /b").layer("Network").build()).getSnapshot().getMax());
+		assertNull(registry.getTimers().get(name("response_time_rum").tag("request_name", "GET /c").layer("All").build()));
+	}
+
+	@Test
+	public void testGzipBatchedBeacons() throws Exception {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final GZIPOutputStream gzip = new GZIPOutputStream(os);
+		gzip.write("[{\"requestName\":\"GET /a\",\"serverTime\":100,\"timeToFirstByte\":160,\"domProcessing\":10,\"pageRendering\":30}]".getBytes("UTF-8"));
+		gzip.close();
+		final MockHttpServletRequest req = postBeacons(os.toByteArray());
+		req.addHeader("Content-Encoding", "gzip");
+		final MockHttpServletResponse resp = new MockHttpServletResponse();
+
+		rumServlet.doPost(req, resp);
+
+		assertEquals(204, resp.getStatus());
+		assertEquals(1, registry.getTimers().get(name("response_time_rum").tag("request_name", "All").layer("All").build()).getCount());
+	}
+
+	@Test
+	public void testMalformedBatch() throws Exception {
+		final MockHttpServletResponse resp = new MockHttpServletResponse();
+		rumServlet.doPost(postBeacons("{\"requestName\":\"GET /a\"}".getBytes("UTF-8")), resp);
+		assertEquals(400, resp.getStatus());
+
+		final MockHttpServletResponse resp2 = new MockHttpServletResponse();
+		rumServlet.doPost(postBeacons("[{\"requestName\":".getBytes("UTF-8")), resp2);
+		assertEquals(400, resp2.getStatus());
+	}
+
+	@Test
+	public void testBatchTooLarge() throws Exception {
+		final StringBuilder beacons = new StringBuilder("[");
+		for (int i = 0; i < 101; i++) {
+			beacons.append(i > 0 ? "," : "")
+					.append("{\"requestName\":\"GET /a\",\"serverTime\":100,\"timeToFirstByte\":160,\"domProcessing\":10,\"pageRendering\":30}");
+		}
+		final MockHttpServletResponse resp = new MockHttpServletResponse();
+
+		rumServlet.doPost(postBeacons(beacons.append("]").toString().getBytes("UTF-8")), resp);
+
+		assertEquals(400, resp.getStatus());
+		// the batch is rejected as a whole
+		assertNull(registry.getTimers().get(name("response_time_rum").tag("request_name", "All").layer("All").build()));
+	}
+
+	private MockHttpServletRequest postBeacons(byte[] content) {
+		final MockHttpServletRequest req = new MockHttpServletRequest("POST", "/stagemonitor/public/rum");
+		req.setContentType("text/plain;charset=UTF-8");
+		req.setContent(content);
+		return req;
+	}
 }